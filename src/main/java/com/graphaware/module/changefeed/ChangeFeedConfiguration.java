@@ -17,6 +17,7 @@
 package com.graphaware.module.changefeed;
 
 import com.graphaware.common.policy.InclusionPolicies;
+import com.graphaware.module.changefeed.io.OverflowPolicy;
 import com.graphaware.runtime.config.BaseTxAndTimerDrivenModuleConfiguration;
 import com.graphaware.runtime.config.BaseTxDrivenModuleConfiguration;
 import com.graphaware.runtime.config.TxAndTimerDrivenModuleConfiguration;
@@ -27,26 +28,73 @@ import com.graphaware.runtime.policy.InclusionPoliciesFactory;
  */
 public class ChangeFeedConfiguration extends BaseTxAndTimerDrivenModuleConfiguration<ChangeFeedConfiguration> implements TxAndTimerDrivenModuleConfiguration {
 
+    /**
+     * Storage engine keeping changes in the graph.
+     */
+    public static final String GRAPH_STORAGE = "graph";
+
+    /**
+     * Storage engine keeping changes in memory-mapped segment files next to the database store.
+     */
+    public static final String FILE_STORAGE = "file";
+
+    /**
+     * Storage engine keeping changes only in memory, so that they are lost on restart.
+     */
+    public static final String MEMORY_STORAGE = "memory";
+
     private static final int DEFAULT_MAX_CHANGES = 100;
     private static final int DEFAULT_PRUNE_DELAY = 10000;
     private static final int DEFAULT_PRUNE_WHEN_MAX_EXCEEDED_BY = 10;
+    private static final boolean DEFAULT_ASYNC_WRITES = false;
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+    private static final boolean DEFAULT_FLUSH_ON_SHUTDOWN = true;
+    private static final int DEFAULT_GROUP_COMMIT_WINDOW = 0;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int DEFAULT_SEGMENT_SIZE = 100;
+    private static final boolean DEFAULT_COMPRESSION = false;
+    private static final String DEFAULT_STORAGE = GRAPH_STORAGE;
+    private static final int DEFAULT_SHARDS = 1;
+    private static final long DEFAULT_CACHE_SIZE = 0;
+    private static final boolean DEFAULT_OFF_HEAP_CACHE = false;
 
     private final int maxChanges;
     private final int pruneDelay;
     private final int pruneWhenMaxExceededBy;
+    private final boolean asyncWrites;
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final boolean flushOnShutdown;
+    private final int groupCommitWindow;
+    private final int batchSize;
+    private final int segmentSize;
+    private final boolean compression;
+    private final String storage;
+    private final int shards;
+    private final long cacheSize;
+    private final boolean offHeapCache;
 
     /**
      * Create a default configuration with maximum number of changes = {@link #DEFAULT_MAX_CHANGES},
      * inclusion policies = {@link com.graphaware.runtime.policy.InclusionPoliciesFactory#allBusiness()},
      * (nothing is excluded except for framework-internal nodes and relationships),
      * initialize until = {@link #NEVER} (this module does not do any initialization), instance policy = {@link InstanceRolePolicy#MASTER_ONLY},
-     * prune delay = {@link #DEFAULT_PRUNE_DELAY}, and prune when max exceeded by = {@link #DEFAULT_PRUNE_WHEN_MAX_EXCEEDED_BY}.
+     * prune delay = {@link #DEFAULT_PRUNE_DELAY}, prune when max exceeded by = {@link #DEFAULT_PRUNE_WHEN_MAX_EXCEEDED_BY},
+     * synchronous writes without group commit (changes are persisted within the committing transaction),
+     * segment size = {@link #DEFAULT_SEGMENT_SIZE}, no compression, storage = {@link #DEFAULT_STORAGE}, a single shard,
+     * and the cache of latest changes kept on heap.
      * <p/>
-     * Change this by calling {@link #withMaxChanges(int)}, {@link #withPruneDelay(int)}, {@link #withPruneWhenMaxExceededBy(int)}, with
-     * other inclusion policies on the object, always using the returned object (this is a fluent interface).
+     * Change this by calling {@link #withMaxChanges(int)}, {@link #withPruneDelay(int)}, {@link #withPruneWhenMaxExceededBy(int)},
+     * {@link #withAsyncWrites(boolean)}, {@link #withQueueCapacity(int)}, {@link #withOverflowPolicy(OverflowPolicy)},
+     * {@link #withFlushOnShutdown(boolean)}, {@link #withGroupCommitWindow(int)}, {@link #withBatchSize(int)},
+     * {@link #withSegmentSize(int)}, {@link #withCompression(boolean)},
+     * {@link #withStorage(String)}, {@link #withShards(int)}, {@link #withCacheSize(long)}, {@link #withOffHeapCache(boolean)}, with other inclusion policies on the object, always using the returned object (this is a fluent interface).
      */
     public static ChangeFeedConfiguration defaultConfiguration() {
-        return new ChangeFeedConfiguration(InclusionPoliciesFactory.allBusiness(), NEVER, InstanceRolePolicy.MASTER_ONLY, DEFAULT_MAX_CHANGES, DEFAULT_PRUNE_DELAY, DEFAULT_PRUNE_WHEN_MAX_EXCEEDED_BY);
+        return new ChangeFeedConfiguration(InclusionPoliciesFactory.allBusiness(), NEVER, InstanceRolePolicy.MASTER_ONLY, DEFAULT_MAX_CHANGES, DEFAULT_PRUNE_DELAY, DEFAULT_PRUNE_WHEN_MAX_EXCEEDED_BY,
+                DEFAULT_ASYNC_WRITES, DEFAULT_QUEUE_CAPACITY, DEFAULT_OVERFLOW_POLICY, DEFAULT_FLUSH_ON_SHUTDOWN, DEFAULT_GROUP_COMMIT_WINDOW, DEFAULT_BATCH_SIZE, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPRESSION, DEFAULT_STORAGE, DEFAULT_SHARDS,
+                DEFAULT_CACHE_SIZE, DEFAULT_OFF_HEAP_CACHE);
     }
 
     /**
@@ -60,12 +108,39 @@ public class ChangeFeedConfiguration extends BaseTxAndTimerDrivenModuleConfigura
      * @param maxChanges             maximum number of changes to store before some oldest ones are pruned.
      * @param pruneDelay             delay in millis between pruning tasks.
      * @param pruneWhenMaxExceededBy number of changes the maximum needs to be exceeded by before the oldest ones are pruned.
+     * @param asyncWrites            true iff changes should be persisted by a background thread after the transaction commits.
+     * @param queueCapacity          maximum number of change sets waiting to be persisted when writing asynchronously.
+     * @param overflowPolicy         what to do with a change set when the queue is full.
+     * @param flushOnShutdown        true iff queued change sets should be persisted when the module shuts down.
+     * @param groupCommitWindow      maximum time in ms change sets are collected into a single group commit, 0 for no group commit.
+     * @param batchSize              maximum number of change sets persisted in a single transaction by group commit or asynchronous writes.
+     * @param segmentSize            maximum number of change sets packed into a single segment node, 1 disables packing.
+     * @param compression            true iff stored change sets should be compressed with a dictionary trained from recent change sets.
+     * @param storage                name of the storage engine to keep the changes in, {@link #GRAPH_STORAGE}, {@link #FILE_STORAGE},
+     *                               {@link #MEMORY_STORAGE}, or the name of an engine registered with {@link com.graphaware.module.changefeed.storage.StorageEngines}.
+     * @param shards                 number of shards the change feed is striped across when stored in the graph, 1 for a single shard.
+     * @param cacheSize              maximum number of bytes taken by the change sets held by the cache of latest changes, 0 for no limit (only on heap).
+     * @param offHeapCache           true iff the cache of latest changes should keep the changes outside of the Java heap.
      */
-    protected ChangeFeedConfiguration(InclusionPolicies inclusionPolicies, long initializeUntil, InstanceRolePolicy instanceRolePolicy, int maxChanges, int pruneDelay, int pruneWhenMaxExceededBy) {
+    protected ChangeFeedConfiguration(InclusionPolicies inclusionPolicies, long initializeUntil, InstanceRolePolicy instanceRolePolicy, int maxChanges, int pruneDelay, int pruneWhenMaxExceededBy,
+                                      boolean asyncWrites, int queueCapacity, OverflowPolicy overflowPolicy, boolean flushOnShutdown, int groupCommitWindow, int batchSize, int segmentSize, boolean compression, String storage, int shards,
+                                      long cacheSize, boolean offHeapCache) {
         super(inclusionPolicies, initializeUntil, instanceRolePolicy);
         this.maxChanges = maxChanges;
         this.pruneDelay = pruneDelay;
         this.pruneWhenMaxExceededBy = pruneWhenMaxExceededBy;
+        this.asyncWrites = asyncWrites;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.flushOnShutdown = flushOnShutdown;
+        this.groupCommitWindow = groupCommitWindow;
+        this.batchSize = batchSize;
+        this.segmentSize = segmentSize;
+        this.compression = compression;
+        this.storage = storage;
+        this.shards = shards;
+        this.cacheSize = cacheSize;
+        this.offHeapCache = offHeapCache;
     }
 
     /**
@@ -95,6 +170,115 @@ public class ChangeFeedConfiguration extends BaseTxAndTimerDrivenModuleConfigura
         return pruneWhenMaxExceededBy;
     }
 
+    /**
+     * Find out whether changes are persisted asynchronously, after the transaction has committed.
+     *
+     * @return true iff asynchronous.
+     */
+    public boolean isAsyncWrites() {
+        return asyncWrites;
+    }
+
+    /**
+     * Get the maximum number of change sets waiting to be persisted when writing asynchronously.
+     *
+     * @return queue capacity.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Get the policy applied to change sets that do not fit into the queue when writing asynchronously.
+     *
+     * @return overflow policy.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Find out whether queued change sets are persisted when the module shuts down.
+     *
+     * @return true iff flushed on shutdown.
+     */
+    public boolean isFlushOnShutdown() {
+        return flushOnShutdown;
+    }
+
+    /**
+     * Get the time in ms a group commit batch stays open after its first change set has arrived. 0 means group commit is disabled.
+     *
+     * @return window in ms.
+     */
+    public int getGroupCommitWindow() {
+        return groupCommitWindow;
+    }
+
+    /**
+     * Get the maximum number of change sets persisted in a single transaction by group commit or asynchronous writes.
+     *
+     * @return batch size.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Get the maximum number of change sets packed into a single segment node.
+     *
+     * @return maximum segment size.
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Find out whether stored change sets are compressed.
+     *
+     * @return true iff compressed.
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Get the name of the storage engine the changes are kept in.
+     *
+     * @return storage name, e.g. {@link #GRAPH_STORAGE}, {@link #FILE_STORAGE}, or {@link #MEMORY_STORAGE}.
+     */
+    public String getStorage() {
+        return storage;
+    }
+
+    /**
+     * Get the number of shards the change feed is striped across when stored in the graph.
+     *
+     * @return number of shards.
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Get the maximum number of bytes taken by the change sets held by the cache of latest changes. The oldest change
+     * sets are evicted from the cache once either this or {@link #getMaxChanges()} is exceeded.
+     *
+     * @return cache size in bytes, 0 for no limit.
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Find out whether the cache of latest changes keeps the changes outside of the Java heap.
+     *
+     * @return true iff off heap.
+     */
+    public boolean isOffHeapCache() {
+        return offHeapCache;
+    }
+
     /**
      * Create a new instance of this {@link ChangeFeedConfiguration} with different maxChanges.
      *
@@ -102,7 +286,8 @@ public class ChangeFeedConfiguration extends BaseTxAndTimerDrivenModuleConfigura
      * @return new instance.
      */
     public ChangeFeedConfiguration withMaxChanges(int maxChanges) {
-        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), maxChanges, getPruneDelay(), getPruneWhenMaxExceededBy());
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), maxChanges, getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), getSegmentSize(), isCompression(), getStorage(), getShards(), getCacheSize(), isOffHeapCache());
     }
 
     /**
@@ -112,7 +297,8 @@ public class ChangeFeedConfiguration extends BaseTxAndTimerDrivenModuleConfigura
      * @return new instance.
      */
     public ChangeFeedConfiguration withPruneDelay(int pruneDelay) {
-        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(),getMaxChanges(), pruneDelay, getPruneWhenMaxExceededBy());
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), pruneDelay, getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), getSegmentSize(), isCompression(), getStorage(), getShards(), getCacheSize(), isOffHeapCache());
     }
 
     /**
@@ -123,7 +309,146 @@ public class ChangeFeedConfiguration extends BaseTxAndTimerDrivenModuleConfigura
      * @return new instance.
      */
     public ChangeFeedConfiguration withPruneWhenMaxExceededBy(int pruneWhenMaxExceededBy) {
-        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(),getMaxChanges(), pruneDelay, pruneWhenMaxExceededBy);
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), pruneWhenMaxExceededBy,
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), getSegmentSize(), isCompression(), getStorage(), getShards(), getCacheSize(), isOffHeapCache());
+    }
+
+    /**
+     * Create a new instance of this {@link ChangeFeedConfiguration} with asynchronous writes enabled or disabled.
+     *
+     * @param asyncWrites true iff changes should be persisted by a background thread after the transaction commits.
+     * @return new instance.
+     */
+    public ChangeFeedConfiguration withAsyncWrites(boolean asyncWrites) {
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                asyncWrites, getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), getSegmentSize(), isCompression(), getStorage(), getShards(), getCacheSize(), isOffHeapCache());
+    }
+
+    /**
+     * Create a new instance of this {@link ChangeFeedConfiguration} with different queue capacity. Only applies to
+     * asynchronous writes.
+     *
+     * @param queueCapacity of the new instance.
+     * @return new instance.
+     */
+    public ChangeFeedConfiguration withQueueCapacity(int queueCapacity) {
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), queueCapacity, getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), getSegmentSize(), isCompression(), getStorage(), getShards(), getCacheSize(), isOffHeapCache());
+    }
+
+    /**
+     * Create a new instance of this {@link ChangeFeedConfiguration} with different overflow policy. Only applies to
+     * asynchronous writes.
+     *
+     * @param overflowPolicy of the new instance.
+     * @return new instance.
+     */
+    public ChangeFeedConfiguration withOverflowPolicy(OverflowPolicy overflowPolicy) {
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), overflowPolicy, isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), getSegmentSize(), isCompression(), getStorage(), getShards(), getCacheSize(), isOffHeapCache());
+    }
+
+    /**
+     * Create a new instance of this {@link ChangeFeedConfiguration} that does or does not flush queued changes on shutdown.
+     * Only applies to asynchronous writes.
+     *
+     * @param flushOnShutdown of the new instance.
+     * @return new instance.
+     */
+    public ChangeFeedConfiguration withFlushOnShutdown(boolean flushOnShutdown) {
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), flushOnShutdown, getGroupCommitWindow(), getBatchSize(), getSegmentSize(), isCompression(), getStorage(), getShards(), getCacheSize(), isOffHeapCache());
+    }
+
+    /**
+     * Create a new instance of this {@link ChangeFeedConfiguration} with different group commit window. Change sets are
+     * then persisted after the transaction commits, many of them in a single transaction, and the committing thread waits
+     * until its change set has been persisted. Ignored when writing asynchronously.
+     *
+     * @param groupCommitWindow of the new instance.
+     * @return new instance.
+     */
+    public ChangeFeedConfiguration withGroupCommitWindow(int groupCommitWindow) {
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), groupCommitWindow, getBatchSize(), getSegmentSize(), isCompression(), getStorage(), getShards(), getCacheSize(), isOffHeapCache());
+    }
+
+    /**
+     * Create a new instance of this {@link ChangeFeedConfiguration} with different maximum number of change sets persisted
+     * in a single transaction by group commit or asynchronous writes.
+     *
+     * @param batchSize of the new instance.
+     * @return new instance.
+     */
+    public ChangeFeedConfiguration withBatchSize(int batchSize) {
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), batchSize, getSegmentSize(), isCompression(), getStorage(), getShards(), getCacheSize(), isOffHeapCache());
+    }
+
+    /**
+     * Create a new instance of this {@link ChangeFeedConfiguration} with different maximum segment size.
+     *
+     * @param segmentSize of the new instance.
+     * @return new instance.
+     */
+    public ChangeFeedConfiguration withSegmentSize(int segmentSize) {
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), segmentSize, isCompression(), getStorage(), getShards(), getCacheSize(), isOffHeapCache());
+    }
+
+    /**
+     * Create a new instance of this {@link ChangeFeedConfiguration} with different compression of stored change sets.
+     *
+     * @param compression of the new instance.
+     * @return new instance.
+     */
+    public ChangeFeedConfiguration withCompression(boolean compression) {
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), getSegmentSize(), compression, getStorage(), getShards(), getCacheSize(), isOffHeapCache());
+    }
+
+    /**
+     * Create a new instance of this {@link ChangeFeedConfiguration} with a different storage engine.
+     *
+     * @param storage of the new instance.
+     * @return new instance.
+     */
+    public ChangeFeedConfiguration withStorage(String storage) {
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), getSegmentSize(), isCompression(), storage, getShards(), getCacheSize(), isOffHeapCache());
+    }
+
+    /**
+     * Create a new instance of this {@link ChangeFeedConfiguration} with a different number of shards.
+     *
+     * @param shards of the new instance.
+     * @return new instance.
+     */
+    public ChangeFeedConfiguration withShards(int shards) {
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), getSegmentSize(), isCompression(), getStorage(), shards, getCacheSize(), isOffHeapCache());
+    }
+
+    /**
+     * Create a new instance of this {@link ChangeFeedConfiguration} with a different cache size.
+     *
+     * @param cacheSize of the new instance, in bytes, 0 for no limit. On heap, the size of cached change sets is estimated.
+     * @return new instance.
+     */
+    public ChangeFeedConfiguration withCacheSize(long cacheSize) {
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), getSegmentSize(), isCompression(), getStorage(), getShards(), cacheSize, isOffHeapCache());
+    }
+
+    /**
+     * Create a new instance of this {@link ChangeFeedConfiguration} with the cache of latest changes kept on or off heap.
+     *
+     * @param offHeapCache of the new instance. An off-heap cache needs a positive {@link #withCacheSize(long)}.
+     * @return new instance.
+     */
+    public ChangeFeedConfiguration withOffHeapCache(boolean offHeapCache) {
+        return new ChangeFeedConfiguration(getInclusionPolicies(), initializeUntil(), getInstanceRolePolicy(), getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), getSegmentSize(), isCompression(), getStorage(), getShards(), getCacheSize(), offHeapCache);
     }
 
     /**
@@ -131,7 +456,8 @@ public class ChangeFeedConfiguration extends BaseTxAndTimerDrivenModuleConfigura
      */
     @Override
     protected ChangeFeedConfiguration newInstance(InclusionPolicies inclusionPolicies, long initializeUntil, InstanceRolePolicy instanceRolePolicy) {
-        return new ChangeFeedConfiguration(inclusionPolicies, initializeUntil, instanceRolePolicy, getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy());
+        return new ChangeFeedConfiguration(inclusionPolicies, initializeUntil, instanceRolePolicy, getMaxChanges(), getPruneDelay(), getPruneWhenMaxExceededBy(),
+                isAsyncWrites(), getQueueCapacity(), getOverflowPolicy(), isFlushOnShutdown(), getGroupCommitWindow(), getBatchSize(), getSegmentSize(), isCompression(), getStorage(), getShards(), getCacheSize(), isOffHeapCache());
     }
 
     /**
@@ -160,6 +486,42 @@ public class ChangeFeedConfiguration extends BaseTxAndTimerDrivenModuleConfigura
         if (pruneWhenMaxExceededBy != that.pruneWhenMaxExceededBy) {
             return false;
         }
+        if (asyncWrites != that.asyncWrites) {
+            return false;
+        }
+        if (queueCapacity != that.queueCapacity) {
+            return false;
+        }
+        if (overflowPolicy != that.overflowPolicy) {
+            return false;
+        }
+        if (flushOnShutdown != that.flushOnShutdown) {
+            return false;
+        }
+        if (groupCommitWindow != that.groupCommitWindow) {
+            return false;
+        }
+        if (batchSize != that.batchSize) {
+            return false;
+        }
+        if (segmentSize != that.segmentSize) {
+            return false;
+        }
+        if (compression != that.compression) {
+            return false;
+        }
+        if (!storage.equals(that.storage)) {
+            return false;
+        }
+        if (shards != that.shards) {
+            return false;
+        }
+        if (cacheSize != that.cacheSize) {
+            return false;
+        }
+        if (offHeapCache != that.offHeapCache) {
+            return false;
+        }
 
         return true;
     }
@@ -173,6 +535,18 @@ public class ChangeFeedConfiguration extends BaseTxAndTimerDrivenModuleConfigura
         result = 31 * result + maxChanges;
         result = 31 * result + pruneDelay;
         result = 31 * result + pruneWhenMaxExceededBy;
+        result = 31 * result + (asyncWrites ? 1 : 0);
+        result = 31 * result + queueCapacity;
+        result = 31 * result + overflowPolicy.hashCode();
+        result = 31 * result + (flushOnShutdown ? 1 : 0);
+        result = 31 * result + groupCommitWindow;
+        result = 31 * result + batchSize;
+        result = 31 * result + segmentSize;
+        result = 31 * result + (compression ? 1 : 0);
+        result = 31 * result + storage.hashCode();
+        result = 31 * result + shards;
+        result = 31 * result + (int) (cacheSize ^ (cacheSize >>> 32));
+        result = 31 * result + (offHeapCache ? 1 : 0);
         return result;
     }
 }
@@ -16,10 +16,20 @@
 
 package com.graphaware.module.changefeed;
 
-import com.graphaware.module.changefeed.cache.CachingGraphChangeWriter;
+import com.graphaware.common.uuid.EaioUuidGenerator;
+import com.graphaware.common.uuid.UuidGenerator;
 import com.graphaware.module.changefeed.cache.ChangeSetCache;
-import com.graphaware.module.changefeed.io.GraphChangeReader;
+import com.graphaware.module.changefeed.domain.ChangeEncoding;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.io.AsyncChangeWriter;
+import com.graphaware.module.changefeed.io.ChangeCompressor;
+import com.graphaware.module.changefeed.io.ChangeReader;
+import com.graphaware.module.changefeed.io.ChangeWriter;
 import com.graphaware.module.changefeed.io.GraphChangeWriter;
+import com.graphaware.module.changefeed.io.GroupCommitChangeWriter;
+import com.graphaware.module.changefeed.storage.GraphStorageEngine;
+import com.graphaware.module.changefeed.storage.StorageEngine;
+import com.graphaware.module.changefeed.storage.StorageEngines;
 import com.graphaware.runtime.config.TxAndTimerDrivenModuleConfiguration;
 import com.graphaware.runtime.metadata.EmptyContext;
 import com.graphaware.runtime.module.BaseTxDrivenModule;
@@ -27,24 +37,64 @@ import com.graphaware.runtime.module.DeliberateTransactionRollbackException;
 import com.graphaware.runtime.module.TimerDrivenModule;
 import com.graphaware.tx.event.improved.api.ImprovedTransactionData;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A {@link com.graphaware.runtime.module.TxDrivenModule} that keeps track of changes in the graph.
- * Also implements {@link TimerDrivenModule} to perform pruning of old changes.
+ * Also implements {@link TimerDrivenModule} to pack change sets into segments, to train compression dictionaries, and to
+ * perform pruning of old changes.
+ * <p/>
+ * By default, changes are persisted within the committing transaction. When configured with
+ * {@link ChangeFeedConfiguration#withAsyncWrites(boolean)} or {@link ChangeFeedConfiguration#withGroupCommitWindow(int)},
+ * changes are captured before commit, but only handed over to an {@link AsyncChangeWriter} or a
+ * {@link GroupCommitChangeWriter} after the transaction has successfully committed.
+ * <p/>
+ * Changes are kept by the {@link StorageEngine} registered with {@link StorageEngines} under the name given by
+ * {@link ChangeFeedConfiguration#getStorage()}. Only the {@link GraphStorageEngine} appends changes within the
+ * committing transaction; all other engines are always appended to after the transaction has committed.
+ * <p/>
+ * The outcome of each transaction is observed by a {@link TransactionEventHandler} registered by this module, rather
+ * than by {@link #afterCommit(Object)} and {@link #afterRollback(Object)}, because the runtime stops delivering those
+ * to further modules once it encounters a module that did not take part in the transaction. Neo4j calls that handler
+ * for every transaction that has reached {@link #beforeCommit(ImprovedTransactionData)}, even if another handler fails
+ * the transaction, and the handler completes whatever has been captured on the committing thread whether it has been
+ * registered before or after the runtime, so no change set is left in flight once its transaction has finished.
  */
 public class ChangeFeedModule extends BaseTxDrivenModule<Void> implements TimerDrivenModule<EmptyContext> {
 
     public static final String DEFAULT_MODULE_ID = "CFM";
 
+    private final UuidGenerator uuidGenerator = new EaioUuidGenerator();
+
     private final ChangeFeedConfiguration configuration;
-    private final GraphChangeWriter changeWriter;
+    private final StorageEngine storageEngine;
+    private final GraphChangeWriter graphWriter;
+    private final ChangeWriter changeWriter;
     private final ChangeSetCache changesCache;
+    private final ThreadLocal<List<ChangeSet>> capturedChangeSets = new ThreadLocal<>();
+    private final TransactionEventHandler<List<ChangeSet>> completionHandler = new CompletionHandler();
 
     public ChangeFeedModule(String moduleId, ChangeFeedConfiguration configuration, GraphDatabaseService database) {
         super(moduleId);
         this.configuration = configuration;
-        this.changesCache = new ChangeSetCache(configuration.getMaxChanges());
-        this.changeWriter = new CachingGraphChangeWriter(database, moduleId, changesCache);
+        this.changesCache = new ChangeSetCache(configuration.getMaxChanges(), configuration.getCacheSize(), configuration.isOffHeapCache());
+
+        this.storageEngine = StorageEngines.create(configuration.getStorage(), database, moduleId, configuration, changesCache);
+        this.graphWriter = storageEngine instanceof GraphStorageEngine ? ((GraphStorageEngine) storageEngine).getWriter() : null;
+
+        ChangeWriter storageWriter = storageEngine.getWriter();
+
+        if (configuration.isAsyncWrites()) {
+            this.changeWriter = new AsyncChangeWriter(storageWriter, moduleId, configuration.getQueueCapacity(), configuration.getOverflowPolicy(), configuration.isFlushOnShutdown(), configuration.getBatchSize());
+        } else if (configuration.getGroupCommitWindow() > 0) {
+            this.changeWriter = new GroupCommitChangeWriter(storageWriter, moduleId, configuration.getGroupCommitWindow(), configuration.getBatchSize());
+        } else {
+            this.changeWriter = storageWriter;
+        }
     }
 
     /**
@@ -53,7 +103,22 @@ public class ChangeFeedModule extends BaseTxDrivenModule<Void> implements TimerD
     @Override
     public void start(GraphDatabaseService database) {
         changeWriter.initialize();
-        changesCache.populate(new GraphChangeReader(database, getId()).getAllChanges());
+        database.registerTransactionEventHandler(completionHandler);
+        changesCache.populate(storageEngine.read(0, configuration.getMaxChanges()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void shutdown() {
+        if (changeWriter instanceof AsyncChangeWriter) {
+            ((AsyncChangeWriter) changeWriter).shutdown();
+        }
+        if (changeWriter instanceof GroupCommitChangeWriter) {
+            ((GroupCommitChangeWriter) changeWriter).shutdown();
+        }
+        storageEngine.shutdown();
     }
 
     /**
@@ -73,19 +138,98 @@ public class ChangeFeedModule extends BaseTxDrivenModule<Void> implements TimerD
         return changesCache;
     }
 
+    /**
+     * Get the storage engine keeping the changes of this module.
+     *
+     * @return storage engine.
+     */
+    public StorageEngine getStorageEngine() {
+        return storageEngine;
+    }
+
+    /**
+     * Get a reader of the changes kept in the storage engine of this module, bypassing the cache.
+     *
+     * @return reader.
+     */
+    public ChangeReader getChangeReader() {
+        return storageEngine.getReader();
+    }
+
+    /**
+     * Get the compressor of stored changes, which reports compression ratio and timings.
+     *
+     * @return compressor.
+     * @throws IllegalStateException if the changes are not stored in the graph.
+     */
+    public ChangeCompressor getCompressor() {
+        if (graphWriter == null) {
+            throw new IllegalStateException("Changes of Module ID " + getId() + " are not stored in the graph");
+        }
+        return graphWriter.getCompressor();
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public Void beforeCommit(ImprovedTransactionData transactionData) {
-        if (transactionData.hasBeenDeleted(changeWriter.getRoot())) {
+        if (graphWriter != null && transactionData.hasBeenDeleted(graphWriter.getRoot())) {
             throw new DeliberateTransactionRollbackException("Not allowed to delete change feed root!");
         }
 
-        changeWriter.recordChanges(transactionData.mutationsToStrings());
+        //the previous transaction of this thread never reached the completion handler, so it has rolled back
+        complete(takeCapturedChangeSets(), false);
+
+        ChangeSet changeSet = new ChangeSet(uuidGenerator.generateUuid());
+        ChangeEncoding.encode(transactionData, changeSet);
+
+        if (isSynchronous()) {
+            graphWriter.appendChangeSets(Collections.singletonList(changeSet));
+        }
+
+        capturedChangeSets.set(Collections.singletonList(changeSet));
+
         return null;
     }
 
+    /**
+     * Get the highest sequence number such that all change sets with the same or lower sequence number have been
+     * committed or rolled back. Readers should not return change sets above this number.
+     *
+     * @return visible sequence number.
+     */
+    public long getVisibleSequence() {
+        return storageEngine.getVisibleSequence();
+    }
+
+    /**
+     * @return true iff change sets are appended to the feed as part of the transaction that caused them.
+     */
+    private boolean isSynchronous() {
+        return changeWriter == graphWriter;
+    }
+
+    /**
+     * Complete change sets captured in a transaction once its outcome is known.
+     *
+     * @param changeSets captured in the transaction, can be null if there are none.
+     * @param committed  true iff the transaction has committed.
+     */
+    private void complete(List<ChangeSet> changeSets, boolean committed) {
+        if (changeSets == null) {
+            return;
+        }
+
+        if (isSynchronous()) {
+            graphWriter.completeChangeSets(changeSets, committed);
+        } else if (committed) {
+            for (ChangeSet changeSet : changeSets) {
+                changeWriter.recordChanges(changeSet);
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -99,7 +243,46 @@ public class ChangeFeedModule extends BaseTxDrivenModule<Void> implements TimerD
      */
     @Override
     public EmptyContext doSomeWork(EmptyContext lastContext, GraphDatabaseService database) {
+        storageEngine.doMaintenance();
         changeWriter.pruneChanges(configuration.getMaxChanges(), configuration.getPruneWhenMaxExceededBy());
         return new EmptyContext(System.currentTimeMillis() + configuration.getPruneDelay());
     }
+
+    /**
+     * Take the change sets captured by {@link #beforeCommit(ImprovedTransactionData)} on the current thread.
+     *
+     * @return captured change sets, null if there are none.
+     */
+    private List<ChangeSet> takeCapturedChangeSets() {
+        List<ChangeSet> changeSets = capturedChangeSets.get();
+        capturedChangeSets.remove();
+        return changeSets;
+    }
+
+    /**
+     * Handler which picks up change sets captured by {@link #beforeCommit(ImprovedTransactionData)} on the committing
+     * thread and completes them once the outcome of the transaction is known.
+     * <p/>
+     * Change sets are normally taken in {@link #beforeCommit(TransactionData)}, so that a transaction started on the
+     * same thread by another handler after commit cannot mistake them for its own. Change sets captured after this
+     * handler's {@link #beforeCommit(TransactionData)} has run, which happens when it is registered before the runtime,
+     * are taken when the outcome is known instead.
+     */
+    private class CompletionHandler implements TransactionEventHandler<List<ChangeSet>> {
+
+        @Override
+        public List<ChangeSet> beforeCommit(TransactionData data) throws Exception {
+            return takeCapturedChangeSets();
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, List<ChangeSet> changeSets) {
+            complete(changeSets != null ? changeSets : takeCapturedChangeSets(), true);
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, List<ChangeSet> changeSets) {
+            complete(changeSets != null ? changeSets : takeCapturedChangeSets(), false);
+        }
+    }
 }
@@ -16,6 +16,7 @@
 
 package com.graphaware.module.changefeed;
 
+import com.graphaware.module.changefeed.io.OverflowPolicy;
 import com.graphaware.runtime.module.BaseRuntimeModuleBootstrapper;
 import com.graphaware.runtime.module.RuntimeModule;
 import com.graphaware.runtime.module.RuntimeModuleBootstrapper;
@@ -36,6 +37,18 @@ public class ChangeFeedModuleBootstrapper extends BaseRuntimeModuleBootstrapper<
     private static final String MAX_CHANGES = "maxChanges";
     private static final String PRUNE_DELAY = "pruneDelay";
     private static final String PRUNE_WHEN_EXCEEDED = "pruneWhenExceeded";
+    private static final String ASYNC_WRITES = "asyncWrites";
+    private static final String QUEUE_CAPACITY = "queueCapacity";
+    private static final String OVERFLOW_POLICY = "overflowPolicy";
+    private static final String FLUSH_ON_SHUTDOWN = "flushOnShutdown";
+    private static final String GROUP_COMMIT_WINDOW = "groupCommitWindow";
+    private static final String BATCH_SIZE = "batchSize";
+    private static final String SEGMENT_SIZE = "segmentSize";
+    private static final String COMPRESSION = "compression";
+    private static final String STORAGE = "storage";
+    private static final String SHARDS = "shards";
+    private static final String CACHE_SIZE = "cacheSize";
+    private static final String OFF_HEAP_CACHE = "offHeapCache";
 
     /**
      * {@inheritDoc}
@@ -68,6 +81,78 @@ public class ChangeFeedModuleBootstrapper extends BaseRuntimeModuleBootstrapper<
             configuration = configuration.withPruneWhenMaxExceededBy(pruneWhenExceeded);
         }
 
+        if (config.get(ASYNC_WRITES) != null) {
+            boolean asyncWrites = Boolean.parseBoolean(config.get(ASYNC_WRITES));
+            LOG.info("AsyncWrites set to {}", asyncWrites);
+            configuration = configuration.withAsyncWrites(asyncWrites);
+        }
+
+        if (config.get(QUEUE_CAPACITY) != null) {
+            int queueCapacity = Integer.parseInt(config.get(QUEUE_CAPACITY));
+            LOG.info("QueueCapacity set to {}", queueCapacity);
+            configuration = configuration.withQueueCapacity(queueCapacity);
+        }
+
+        if (config.get(OVERFLOW_POLICY) != null) {
+            OverflowPolicy overflowPolicy = OverflowPolicy.valueOf(config.get(OVERFLOW_POLICY).trim().toUpperCase());
+            LOG.info("OverflowPolicy set to {}", overflowPolicy);
+            configuration = configuration.withOverflowPolicy(overflowPolicy);
+        }
+
+        if (config.get(FLUSH_ON_SHUTDOWN) != null) {
+            boolean flushOnShutdown = Boolean.parseBoolean(config.get(FLUSH_ON_SHUTDOWN));
+            LOG.info("FlushOnShutdown set to {}", flushOnShutdown);
+            configuration = configuration.withFlushOnShutdown(flushOnShutdown);
+        }
+
+        if (config.get(GROUP_COMMIT_WINDOW) != null) {
+            int groupCommitWindow = Integer.parseInt(config.get(GROUP_COMMIT_WINDOW));
+            LOG.info("GroupCommitWindow set to {}", groupCommitWindow);
+            configuration = configuration.withGroupCommitWindow(groupCommitWindow);
+        }
+
+        if (config.get(BATCH_SIZE) != null) {
+            int batchSize = Integer.parseInt(config.get(BATCH_SIZE));
+            LOG.info("BatchSize set to {}", batchSize);
+            configuration = configuration.withBatchSize(batchSize);
+        }
+
+        if (config.get(SEGMENT_SIZE) != null) {
+            int segmentSize = Integer.parseInt(config.get(SEGMENT_SIZE));
+            LOG.info("SegmentSize set to {}", segmentSize);
+            configuration = configuration.withSegmentSize(segmentSize);
+        }
+
+        if (config.get(COMPRESSION) != null) {
+            boolean compression = Boolean.parseBoolean(config.get(COMPRESSION));
+            LOG.info("Compression set to {}", compression);
+            configuration = configuration.withCompression(compression);
+        }
+
+        if (config.get(STORAGE) != null) {
+            String storage = config.get(STORAGE);
+            LOG.info("Storage set to {}", storage);
+            configuration = configuration.withStorage(storage);
+        }
+
+        if (config.get(SHARDS) != null) {
+            int shards = Integer.parseInt(config.get(SHARDS));
+            LOG.info("Shards set to {}", shards);
+            configuration = configuration.withShards(shards);
+        }
+
+        if (config.get(CACHE_SIZE) != null) {
+            long cacheSize = Long.parseLong(config.get(CACHE_SIZE));
+            LOG.info("CacheSize set to {}", cacheSize);
+            configuration = configuration.withCacheSize(cacheSize);
+        }
+
+        if (config.get(OFF_HEAP_CACHE) != null) {
+            boolean offHeapCache = Boolean.parseBoolean(config.get(OFF_HEAP_CACHE));
+            LOG.info("OffHeapCache set to {}", offHeapCache);
+            configuration = configuration.withOffHeapCache(offHeapCache);
+        }
+
         return new ChangeFeedModule(moduleId, configuration, database);
     }
 }
@@ -16,21 +16,41 @@
 
 package com.graphaware.module.changefeed.api;
 
+import com.graphaware.module.changefeed.ChangeFeedModule;
+import com.graphaware.module.changefeed.cache.CachingChangeReader;
 import com.graphaware.module.changefeed.cache.CachingGraphChangeReader;
+import com.graphaware.module.changefeed.cache.ChangeSetCache;
+import com.graphaware.module.changefeed.domain.ChangeFilter;
 import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.domain.ChangeSetJson;
 import com.graphaware.module.changefeed.io.ChangeReader;
+import com.graphaware.module.changefeed.io.ChangeSetHandler;
+import com.graphaware.module.changefeed.io.ForwardPage;
+import com.graphaware.module.changefeed.io.GraphChangeReader;
+import com.graphaware.module.changefeed.storage.GraphStorageEngine;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.NotFoundException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.graphaware.module.changefeed.ChangeFeedModule.DEFAULT_MODULE_ID;
+import static com.graphaware.runtime.RuntimeRegistry.getStartedRuntime;
 
 /**
  * REST API for {@link com.graphaware.module.changefeed.ChangeFeedModule}.
@@ -39,13 +59,153 @@ import static com.graphaware.module.changefeed.ChangeFeedModule.DEFAULT_MODULE_I
 @RequestMapping("/changefeed")
 public class ChangeFeedApi {
 
+    private static final String JSON_CONTENT_TYPE = "application/json;charset=UTF-8";
+    private static final String HEADERS = "headers";
+    private static final long DEFAULT_POLL_TIMEOUT = 30000;
+    private static final long STREAM_TIMEOUT = 300000;
+    private static final int STREAM_BUFFER_SIZE = 1000;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final String CURSOR_PREFIX = "c";
+
     private final GraphDatabaseService database;
+    private final Map<ChangeSetCache, ChangeSetBroadcaster> broadcasters = new HashMap<>();
+    private final Executor streamWriters = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ChangeFeed-Stream-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     @Autowired
     public ChangeFeedApi(GraphDatabaseService database) {
         this.database = database;
     }
 
+    /**
+     * Write a list of changes made to the graph as JSON, where each item represents all changes made within a transaction.
+     * Use this API if a single {@link com.graphaware.module.changefeed.ChangeFeedModule} is registered with module ID equal to {@link com.graphaware.module.changefeed.ChangeFeedModule#DEFAULT_MODULE_ID}.
+     *
+     * @param uuid     uuid of change set (optional). All changes which occur after the change with this uuid will be returned
+     * @param sequence sequence number of change set (optional, cannot be combined with uuid). All changes with a higher sequence number will be returned
+     * @param from     timestamp in ms since 1/1/1970 (optional, cannot be combined with uuid or sequence). Only changes with the same or a later timestamp will be returned
+     * @param to       timestamp in ms since 1/1/1970 (optional, cannot be combined with uuid or sequence). Only changes with an earlier timestamp will be returned
+     * @param limit    maximum number of changes to return (optional). Note that this is upper limit only, there might not be that many changes.
+     * @param fields   "headers" for writing change set headers only, i.e. the number of changes instead of the changes (optional).
+     * @param labels   labels, one of which every returned change set touches (optional).
+     * @param types    relationship types, one of which every returned change set touches (optional).
+     * @param keys     property keys, one of which every returned change set touches (optional).
+     * @param operations "create", "update", or "delete", one of which every returned change set performs (optional).
+     * @param response to write the JSON array of {@link com.graphaware.module.changefeed.domain.ChangeSet}s to, latest change first.
+     * @throws IOException if writing the response fails.
+     */
+    @RequestMapping(value = "/", method = RequestMethod.GET)
+    public void writeDefaultChangeFeed(@RequestParam(value = "uuid", required = false) String uuid, @RequestParam(value = "sequence", required = false) Long sequence,
+                                       @RequestParam(value = "from", required = false) Long from, @RequestParam(value = "to", required = false) Long to,
+                                       @RequestParam(value = "limit", required = false) Integer limit, @RequestParam(value = "fields", required = false) String fields,
+                                       @RequestParam(value = "label", required = false) List<String> labels, @RequestParam(value = "type", required = false) List<String> types,
+                                       @RequestParam(value = "key", required = false) List<String> keys, @RequestParam(value = "operation", required = false) List<String> operations,
+                                       HttpServletResponse response) throws IOException {
+        writeChangeFeed(DEFAULT_MODULE_ID, uuid, sequence, from, to, limit, fields, labels, types, keys, operations, response);
+    }
+
+    /**
+     * Write a list of changes made to the graph as JSON, where each item represents all changes made within a transaction.
+     * Every change set is written in its JSON form retained by the change set (see {@link ChangeSetJson}), so change sets
+     * served from the cache are not serialized again for every request. Unless limited to a time range, changes stored
+     * in the graph are written as they are read, so that any number of changes is written in constant memory, and a
+     * client disconnecting stops the read. When only headers are requested, the changes of
+     * change sets stored in the graph are not read at all, so that pollers can cheaply detect new activity before
+     * pulling the changes.
+     * <p/>
+     * Change sets can be filtered by the labels, relationship types, and property keys they touch, and the operations they
+     * perform. Change sets that do not match are skipped before they count towards the limit, mostly without reading
+     * their changes (see {@link ChangeFilter}).
+     *
+     * @param moduleId ID of the {@link com.graphaware.module.changefeed.ChangeFeedModule} that has written the changes.
+     * @param uuid     uuid of change set (optional). All changes which occur after the change with this uuid will be returned
+     * @param sequence sequence number of change set (optional, cannot be combined with uuid). All changes with a higher sequence number will be returned
+     * @param from     timestamp in ms since 1/1/1970 (optional, cannot be combined with uuid or sequence). Only changes with the same or a later timestamp will be returned
+     * @param to       timestamp in ms since 1/1/1970 (optional, cannot be combined with uuid or sequence). Only changes with an earlier timestamp will be returned
+     * @param limit    maximum number of changes to return (optional). Note that this is upper limit only, there might not be that many changes.
+     * @param fields   "headers" for writing change set headers only, i.e. the number of changes instead of the changes (optional).
+     * @param labels   labels, one of which every returned change set touches (optional).
+     * @param types    relationship types, one of which every returned change set touches (optional).
+     * @param keys     property keys, one of which every returned change set touches (optional).
+     * @param operations "create", "update", or "delete", one of which every returned change set performs (optional).
+     * @param response to write the JSON array of {@link com.graphaware.module.changefeed.domain.ChangeSet}s to, latest change first.
+     * @throws IOException              if writing the response fails.
+     * @throws IllegalArgumentException if more than one of uuid, sequence, and time range are given, or fields or
+     *                                  operations are unknown.
+     */
+    @RequestMapping(value = "/{moduleId}", method = RequestMethod.GET)
+    public void writeChangeFeed(@PathVariable String moduleId, @RequestParam(value = "uuid", required = false) String uuid, @RequestParam(value = "sequence", required = false) Long sequence,
+                                @RequestParam(value = "from", required = false) Long from, @RequestParam(value = "to", required = false) Long to,
+                                @RequestParam(value = "limit", required = false) Integer limit, @RequestParam(value = "fields", required = false) String fields,
+                                @RequestParam(value = "label", required = false) List<String> labels, @RequestParam(value = "type", required = false) List<String> types,
+                                @RequestParam(value = "key", required = false) List<String> keys, @RequestParam(value = "operation", required = false) List<String> operations,
+                                HttpServletResponse response) throws IOException {
+        if (fields != null && !HEADERS.equals(fields)) {
+            throw new IllegalArgumentException("Unknown fields " + fields + ", only " + HEADERS + " can be specified");
+        }
+
+        boolean headersOnly = fields != null;
+        ChangeReader changeReader = changeReader(moduleId, headersOnly, filter(labels, types, keys, operations));
+        boolean timeRange = from != null || to != null;
+
+        if (!(changeReader instanceof GraphChangeReader) || timeRange) {
+            Collection<ChangeSet> changeSets = getChangeFeed(changeReader, uuid, sequence, from, to, limit);
+
+            response.setContentType(JSON_CONTENT_TYPE);
+            if (headersOnly) {
+                ChangeSetJson.writeHeaders(changeSets, response.getOutputStream());
+            } else {
+                ChangeSetJson.write(changeSets, response.getOutputStream());
+            }
+            return;
+        }
+
+        if (uuid != null && sequence != null) {
+            throw new IllegalArgumentException("Only one of uuid, sequence, and time range (from, to) can be specified");
+        }
+
+        response.setContentType(JSON_CONTENT_TYPE);
+        final ChangeSetJson.ArrayWriter writer = new ChangeSetJson.ArrayWriter(response.getOutputStream(), headersOnly);
+        ChangeSetHandler handler = new ChangeSetHandler() {
+            @Override
+            public void handle(ChangeSet changeSet) throws IOException {
+                writer.write(changeSet);
+            }
+        };
+
+        GraphChangeReader graphChangeReader = (GraphChangeReader) changeReader;
+        if (sequence != null) {
+            graphChangeReader.readChangesSince(sequence, limit == null ? Integer.MAX_VALUE : limit, handler);
+        } else {
+            graphChangeReader.readChangesSince(uuid, limit == null ? Integer.MAX_VALUE : limit, handler);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Get a list of changes made to the graph, where each item represents all changes made within a transaction.
+     * Use this API if a single {@link com.graphaware.module.changefeed.ChangeFeedModule} is registered with module ID equal to {@link com.graphaware.module.changefeed.ChangeFeedModule#DEFAULT_MODULE_ID}.
+     *
+     * @param uuid     uuid of change set (optional). All changes which occur after the change with this uuid will be returned
+     * @param sequence sequence number of change set (optional, cannot be combined with uuid). All changes with a higher sequence number will be returned
+     * @param from     timestamp in ms since 1/1/1970 (optional, cannot be combined with uuid or sequence). Only changes with the same or a later timestamp will be returned
+     * @param to       timestamp in ms since 1/1/1970 (optional, cannot be combined with uuid or sequence). Only changes with an earlier timestamp will be returned
+     * @param limit    maximum number of changes to return (optional). Note that this is upper limit only, there might not be that many changes.
+     * @return Collection of {@link com.graphaware.module.changefeed.domain.ChangeSet}, latest change first.
+     */
+    public Collection<ChangeSet> getDefaultChangeFeed(String uuid, Long sequence, Long from, Long to, Integer limit) {
+        return getChangeFeed(DEFAULT_MODULE_ID, uuid, sequence, from, to, limit);
+    }
+
     /**
      * Get a list of changes made to the graph, where each item represents all changes made within a transaction.
      * Use this API if a single {@link com.graphaware.module.changefeed.ChangeFeedModule} is registered with module ID equal to {@link com.graphaware.module.changefeed.ChangeFeedModule#DEFAULT_MODULE_ID}.
@@ -54,10 +214,8 @@ public class ChangeFeedApi {
      * @param limit maximum number of changes to return (optional). Note that this is upper limit only, there might not be that many changes.
      * @return Collection of {@link com.graphaware.module.changefeed.domain.ChangeSet}, latest change first.
      */
-    @RequestMapping(value = "/", method = RequestMethod.GET)
-    @ResponseBody
-    public Collection<ChangeSet> getChangeFeed(@RequestParam(value = "uuid", required = false) String uuid, @RequestParam(value = "limit", required = false) Integer limit) {
-        return getChangeFeed(DEFAULT_MODULE_ID, uuid, limit);
+    public Collection<ChangeSet> getChangeFeed(String uuid, Integer limit) {
+        return getChangeFeed(DEFAULT_MODULE_ID, uuid, null, null, null, limit);
     }
 
     /**
@@ -68,10 +226,39 @@ public class ChangeFeedApi {
      * @param limit    maximum number of changes to return (optional). Note that this is upper limit only, there might not be that many changes.
      * @return Collection of {@link com.graphaware.module.changefeed.domain.ChangeSet}, latest change first.
      */
-    @RequestMapping(value = "/{moduleId}", method = RequestMethod.GET)
-    @ResponseBody
-    public Collection<ChangeSet> getChangeFeed(@PathVariable String moduleId, @RequestParam(value = "uuid", required = false) String uuid, @RequestParam(value = "limit", required = false) Integer limit) {
-        ChangeReader changeReader = new CachingGraphChangeReader(database, moduleId);
+    public Collection<ChangeSet> getChangeFeed(String moduleId, String uuid, Integer limit) {
+        return getChangeFeed(moduleId, uuid, null, null, null, limit);
+    }
+
+    /**
+     * Get a list of changes made to the graph, where each item represents all changes made within a transaction.
+     *
+     * @param moduleId ID of the {@link com.graphaware.module.changefeed.ChangeFeedModule} that has written the changes.
+     * @param uuid     uuid of change set (optional). All changes which occur after the change with this uuid will be returned
+     * @param sequence sequence number of change set (optional, cannot be combined with uuid). All changes with a higher sequence number will be returned
+     * @param from     timestamp in ms since 1/1/1970 (optional, cannot be combined with uuid or sequence). Only changes with the same or a later timestamp will be returned
+     * @param to       timestamp in ms since 1/1/1970 (optional, cannot be combined with uuid or sequence). Only changes with an earlier timestamp will be returned
+     * @param limit    maximum number of changes to return (optional). Note that this is upper limit only, there might not be that many changes.
+     * @return Collection of {@link com.graphaware.module.changefeed.domain.ChangeSet}, latest change first.
+     * @throws IllegalArgumentException if more than one of uuid, sequence, and time range are given.
+     */
+    public Collection<ChangeSet> getChangeFeed(String moduleId, String uuid, Long sequence, Long from, Long to, Integer limit) {
+        return getChangeFeed(changeReader(moduleId, false, ChangeFilter.all()), uuid, sequence, from, to, limit);
+    }
+
+    private Collection<ChangeSet> getChangeFeed(ChangeReader changeReader, String uuid, Long sequence, Long from, Long to, Integer limit) {
+        boolean timeRange = from != null || to != null;
+        if ((uuid != null ? 1 : 0) + (sequence != null ? 1 : 0) + (timeRange ? 1 : 0) > 1) {
+            throw new IllegalArgumentException("Only one of uuid, sequence, and time range (from, to) can be specified");
+        }
+
+        if (timeRange) {
+            return changeReader.getChangesBetween(from == null ? 0 : from, to == null ? Long.MAX_VALUE : to, limit == null ? Integer.MAX_VALUE : limit);
+        }
+
+        if (sequence != null) {
+            return changeReader.getNumberOfChangesSince(sequence, limit == null ? Integer.MAX_VALUE : limit);
+        }
 
         if (uuid == null && limit == null) {
             return changeReader.getAllChanges();
@@ -88,6 +275,214 @@ public class ChangeFeedApi {
         return changeReader.getNumberOfChangesSince(uuid, limit);
     }
 
+    /**
+     * Write a page of changes made to the graph as JSON, oldest change first, for reading the whole feed from oldest to
+     * newest. The response is an object holding the changes under <code>changes</code> and an opaque cursor under
+     * <code>next</code>, which is passed as the cursor of the request for the following page. Once the newest change
+     * has been read, the page is empty and the cursor stays the same, so a client can keep polling with it. Pages are
+     * read from the cache if they start within it, otherwise from the storage of the module, at the same cost for every
+     * page. Filtered pages hold the matching change sets only. At most {@link ForwardPage#MAX_SCANNED} change sets are
+     * read for a filtered page, and its cursor moves past the last change set read, even if it did not match, so a
+     * filtered page can be empty before the newest change has been read.
+     *
+     * @param moduleId ID of the {@link com.graphaware.module.changefeed.ChangeFeedModule} that has written the changes.
+     * @param cursor   cursor returned with the previous page (optional). Without it, reading starts with the oldest
+     *                 change still kept.
+     * @param limit    maximum number of changes in the page (optional), between 1 and 1000, 100 by default.
+     * @param fields   "headers" for writing change set headers only, i.e. the number of changes instead of the changes (optional).
+     * @param labels   labels, one of which every returned change set touches (optional).
+     * @param types    relationship types, one of which every returned change set touches (optional).
+     * @param keys     property keys, one of which every returned change set touches (optional).
+     * @param operations "create", "update", or "delete", one of which every returned change set performs (optional).
+     * @param response to write the JSON page to.
+     * @throws IOException              if writing the response fails.
+     * @throws IllegalArgumentException if the cursor is invalid, the limit is out of bounds, or fields or operations are
+     *                                  unknown.
+     */
+    @RequestMapping(value = "/{moduleId}/forward", method = RequestMethod.GET)
+    public void writeChangeFeedForward(@PathVariable String moduleId, @RequestParam(value = "cursor", required = false) String cursor,
+                                       @RequestParam(value = "limit", required = false) Integer limit, @RequestParam(value = "fields", required = false) String fields,
+                                       @RequestParam(value = "label", required = false) List<String> labels, @RequestParam(value = "type", required = false) List<String> types,
+                                       @RequestParam(value = "key", required = false) List<String> keys, @RequestParam(value = "operation", required = false) List<String> operations,
+                                       HttpServletResponse response) throws IOException {
+        if (fields != null && !HEADERS.equals(fields)) {
+            throw new IllegalArgumentException("Unknown fields " + fields + ", only " + HEADERS + " can be specified");
+        }
+        if (limit != null && (limit < 1 || limit > MAX_PAGE_SIZE)) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_PAGE_SIZE + ", was " + limit);
+        }
+
+        long sequence = cursor == null ? 0 : sequence(cursor);
+        ForwardPage page = changeReader(moduleId, fields != null, filter(labels, types, keys, operations)).readPage(sequence, limit == null ? DEFAULT_PAGE_SIZE : limit);
+
+        response.setContentType(JSON_CONTENT_TYPE);
+        ChangeSetJson.writePage(page.getChangeSets(), cursor(page.getNext()), fields != null, response.getOutputStream());
+    }
+
+    /**
+     * Wait for changes made to the graph after a change set, where each item represents all changes made within a
+     * transaction. If there are such changes already, they are returned straight away, like by
+     * {@link #getChangeFeed(String, String, Integer)}. Otherwise, the request is parked without holding a servlet
+     * thread until a change set is pushed into the change set cache of the module, which is then returned, or until the
+     * timeout expires, in which case an empty list is returned.
+     *
+     * @param moduleId ID of the {@link com.graphaware.module.changefeed.ChangeFeedModule} that has written the changes.
+     * @param uuid     uuid of change set (optional). All changes which occur after the change with this uuid will be returned
+     * @param limit    maximum number of changes to return (optional). Note that this is upper limit only, there might not be that many changes.
+     * @param timeout  maximum number of ms to wait for changes (optional), 30 seconds by default.
+     * @return Collection of {@link com.graphaware.module.changefeed.domain.ChangeSet}, latest change first, once available.
+     * @throws IllegalArgumentException if the timeout is not positive.
+     */
+    @RequestMapping(value = "/{moduleId}/poll", method = RequestMethod.GET)
+    @ResponseBody
+    public DeferredResult<Collection<ChangeSet>> pollChangeFeed(@PathVariable String moduleId, @RequestParam(value = "uuid", required = false) String uuid,
+                                                                @RequestParam(value = "limit", required = false) Integer limit, @RequestParam(value = "timeout", required = false) Long timeout) {
+        if (timeout != null && timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive, was " + timeout);
+        }
+
+        final ChangeSetCache cache = getStartedRuntime(database).getModule(moduleId, ChangeFeedModule.class).getChangesCache();
+        final DeferredResult<Collection<ChangeSet>> result = new DeferredResult<>(timeout == null ? DEFAULT_POLL_TIMEOUT : timeout, Collections.<ChangeSet>emptyList());
+
+        //registered before reading, so that a change set pushed in the meantime is not missed
+        final ChangeSetCache.Listener listener = new ChangeSetCache.Listener() {
+            @Override
+            public void pushed(ChangeSet changeSet) {
+                result.setResult(Collections.singletonList(changeSet));
+                cache.removeListener(this);
+            }
+        };
+        cache.addListener(listener);
+        result.onCompletion(new Runnable() {
+            @Override
+            public void run() {
+                cache.removeListener(listener);
+            }
+        });
+
+        Collection<ChangeSet> changeSets = getChangeFeed(changeReader(moduleId, false, ChangeFilter.all()), uuid, null, null, null, limit);
+        if (!changeSets.isEmpty()) {
+            result.setResult(changeSets);
+            cache.removeListener(listener);
+        }
+
+        return result;
+    }
+
+    /**
+     * Stream changes made to the graph as Server-Sent Events, one event per change set, with the uuid of the change set
+     * as the event id and the JSON form of the change set as the event data. The stream is closed after 5 minutes, or
+     * when the client falls too far behind. Clients are expected to reconnect with the standard Last-Event-ID header,
+     * which resumes the stream from the change cache.
+     *
+     * @param moduleId    ID of the {@link com.graphaware.module.changefeed.ChangeFeedModule} that has written the changes.
+     * @param lastEventId uuid of the last change set the client has received (optional). All cached changes which occur
+     *                    after the change with this uuid will be streamed first, otherwise only new changes are streamed.
+     * @return stream of events.
+     * @throws NotFoundException if the change set with the given uuid is no longer cached.
+     */
+    @RequestMapping(value = "/{moduleId}/stream", method = RequestMethod.GET)
+    public EventStreamEmitter streamChangeFeed(@PathVariable String moduleId, @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        EventStreamEmitter emitter = new EventStreamEmitter(STREAM_TIMEOUT);
+        broadcaster(moduleId).subscribe(emitter, lastEventId);
+        return emitter;
+    }
+
+    /**
+     * Get statistics of the change set cache of a {@link com.graphaware.module.changefeed.ChangeFeedModule}.
+     *
+     * @param moduleId ID of the {@link com.graphaware.module.changefeed.ChangeFeedModule}.
+     * @return number of reads since a uuid served entirely from the cache (hits) and those that were not (misses), and
+     * the number of bytes taken by cached change sets (size), if limited.
+     */
+    @RequestMapping(value = "/{moduleId}/cache", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Long> getCacheStatistics(@PathVariable String moduleId) {
+        ChangeSetCache cache = getStartedRuntime(database).getModule(moduleId, ChangeFeedModule.class).getChangesCache();
+
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("hits", cache.getHits());
+        statistics.put("misses", cache.getMisses());
+        statistics.put("size", cache.getSize());
+        return statistics;
+    }
+
+    /**
+     * Create a reader of change sets matching a filter for a module. Changes older than the cache are read from the
+     * graph if the module stores them there (only their headers, if requested), otherwise only the cache is read.
+     */
+    private ChangeReader changeReader(String moduleId, boolean headersOnly, ChangeFilter filter) {
+        ChangeFeedModule module = getStartedRuntime(database).getModule(moduleId, ChangeFeedModule.class);
+        if (module.getStorageEngine() instanceof GraphStorageEngine) {
+            return new CachingGraphChangeReader(database, moduleId, headersOnly, filter);
+        }
+        return new CachingChangeReader(database, moduleId, filter);
+    }
+
+    /**
+     * Create a filter of change sets from request parameters, any of which can be null.
+     *
+     * @throws IllegalArgumentException if an operation is unknown.
+     */
+    private static ChangeFilter filter(List<String> labels, List<String> types, List<String> keys, List<String> operations) {
+        ChangeFilter filter = ChangeFilter.all();
+        if (labels != null) {
+            filter = filter.withLabels(labels);
+        }
+        if (types != null) {
+            filter = filter.withRelationshipTypes(types);
+        }
+        if (keys != null) {
+            filter = filter.withPropertyKeys(keys);
+        }
+        if (operations != null) {
+            filter = filter.withOperations(operations);
+        }
+        return filter;
+    }
+
+
+    /**
+     * Encode a sequence number as a cursor of a page read forward.
+     */
+    private static String cursor(long sequence) {
+        return CURSOR_PREFIX + Long.toString(sequence, Character.MAX_RADIX);
+    }
+
+    /**
+     * Decode the sequence number of a cursor of a page read forward.
+     *
+     * @throws IllegalArgumentException if the cursor is invalid.
+     */
+    private static long sequence(String cursor) {
+        if (cursor.startsWith(CURSOR_PREFIX)) {
+            try {
+                long sequence = Long.parseLong(cursor.substring(CURSOR_PREFIX.length()), Character.MAX_RADIX);
+                if (sequence >= 0) {
+                    return sequence;
+                }
+            } catch (NumberFormatException e) {
+                //invalid, reported below
+            }
+        }
+        throw new IllegalArgumentException("Invalid cursor " + cursor);
+    }
+
+    /**
+     * Get the broadcaster of a module's change set cache, created on first use and shared by all streams.
+     */
+    private ChangeSetBroadcaster broadcaster(String moduleId) {
+        ChangeSetCache cache = getStartedRuntime(database).getModule(moduleId, ChangeFeedModule.class).getChangesCache();
+
+        synchronized (broadcasters) {
+            ChangeSetBroadcaster broadcaster = broadcasters.get(cache);
+            if (broadcaster == null) {
+                broadcaster = new ChangeSetBroadcaster(cache, streamWriters, STREAM_BUFFER_SIZE);
+                broadcasters.put(cache, broadcaster);
+            }
+            return broadcaster;
+        }
+    }
 
     @ExceptionHandler(IllegalArgumentException.class)
     @ResponseStatus(HttpStatus.BAD_REQUEST)
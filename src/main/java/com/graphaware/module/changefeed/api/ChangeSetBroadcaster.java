@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.api;
+
+import com.graphaware.module.changefeed.cache.ChangeSetCache;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import org.neo4j.graphdb.NotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Broadcaster of change sets pushed into a {@link ChangeSetCache} to subscribed Server-Sent Events streams.
+ * <p/>
+ * Every change set is delivered as an event with the uuid of the change set as its id and the JSON form of the change
+ * set (see {@link ChangeSet#getJson()}) as its data. The event is encoded once, by the first subscriber to deliver it,
+ * and the same bytes are written to all other subscribers as they are, through an {@link EventStreamEmitter}.
+ * <p/>
+ * The cache notifies the broadcaster on the thread that has pushed the change set, which only hands the event over to
+ * a bounded buffer of every subscriber. Events are written to the streams by the given executor. A subscriber whose
+ * buffer overflows, because its client reads slower than changes are committed, is disconnected, so that it does not
+ * hold on to an ever growing backlog. It can then reconnect and resume from the last event it has received.
+ */
+public class ChangeSetBroadcaster {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeSetBroadcaster.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ChangeSetCache cache;
+    private final Executor executor;
+    private final int bufferSize;
+    private final Set<Subscriber> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+
+    /**
+     * Construct a new broadcaster and register it with the cache.
+     *
+     * @param cache      to broadcast pushed change sets from.
+     * @param executor   writing events to the streams.
+     * @param bufferSize maximum number of events buffered for a single subscriber.
+     * @throws IllegalArgumentException if the buffer size is not positive.
+     */
+    public ChangeSetBroadcaster(ChangeSetCache cache, Executor executor, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive, was " + bufferSize);
+        }
+
+        this.cache = cache;
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+
+        cache.addListener(new ChangeSetCache.Listener() {
+            @Override
+            public void pushed(ChangeSet changeSet) {
+                broadcast(changeSet);
+            }
+        });
+    }
+
+    /**
+     * Subscribe a stream to all change sets pushed from now on, preceded by the cached change sets later than the given
+     * one, if any.
+     *
+     * @param emitter     stream to write the events to. Completed when the subscriber is disconnected.
+     * @param lastEventId uuid of the last change set the client has received, null to only receive new change sets.
+     * @throws NotFoundException if the change set with the given uuid is no longer cached, in which case the client
+     *                           must catch up by reading the feed first.
+     */
+    public void subscribe(final EventStreamEmitter emitter, String lastEventId) {
+        final Subscriber subscriber = new Subscriber(emitter);
+
+        //subscribed before reading the cache, so that a change set pushed in the meantime is not missed; such a change
+        //set is only buffered, the subscriber is not scheduled before its backlog has been assigned
+        subscribers.add(subscriber);
+
+        if (lastEventId != null) {
+            List<ChangeSet> missed = cache.getChangesIfCached(lastEventId, Integer.MAX_VALUE);
+            if (missed == null) {
+                subscribers.remove(subscriber);
+                throw new NotFoundException("Change set " + lastEventId + " is no longer cached, read the changes since it before streaming");
+            }
+            Collections.reverse(missed);
+            subscriber.backlog = missed;
+        }
+
+        emitter.onCompletion(new Runnable() {
+            @Override
+            public void run() {
+                subscribers.remove(subscriber);
+            }
+        });
+
+        subscriber.start();
+    }
+
+    /**
+     * Get the number of subscribed streams.
+     *
+     * @return number of subscribers.
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    private void broadcast(ChangeSet changeSet) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+
+        Event event = new Event(changeSet);
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(event);
+        }
+    }
+
+    /**
+     * A change set with its event, encoded on first use.
+     */
+    private static final class Event {
+
+        private final ChangeSet changeSet;
+        private volatile byte[] bytes;
+
+        private Event(ChangeSet changeSet) {
+            this.changeSet = changeSet;
+        }
+
+        private byte[] bytes() {
+            byte[] result = bytes;
+            if (result == null) {
+                synchronized (this) {
+                    result = bytes;
+                    if (result == null) {
+                        result = encode(changeSet);
+                        bytes = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private static byte[] encode(ChangeSet changeSet) {
+            ByteArrayOutputStream event = new ByteArrayOutputStream();
+            byte[] id = ("id: " + changeSet.getUuid() + "\ndata: ").getBytes(UTF_8);
+            byte[] data = changeSet.getJson();
+            event.write(id, 0, id.length);
+            event.write(data, 0, data.length);
+            event.write('\n');
+            event.write('\n');
+            return event.toByteArray();
+        }
+    }
+
+    /**
+     * A subscribed stream with its buffer of events yet to be written. Events are written by at most one thread at a
+     * time, scheduled whenever the buffer is not empty, but not before the subscriber has been {@link #start()}ed.
+     */
+    private final class Subscriber implements Runnable {
+
+        private final EventStreamEmitter emitter;
+        private final BlockingQueue<Event> buffer = new ArrayBlockingQueue<>(bufferSize);
+        //held until started, so that buffered events are never written before the backlog
+        private final AtomicBoolean scheduled = new AtomicBoolean(true);
+        private volatile List<ChangeSet> backlog;
+        private volatile boolean overflowed = false;
+        private long lastSequence = 0;
+
+        private Subscriber(EventStreamEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        private void offer(Event event) {
+            if (!buffer.offer(event)) {
+                overflowed = true;
+            }
+            schedule();
+        }
+
+        private void start() {
+            scheduled.set(false);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    LOG.warn("Could not schedule writing change set events, disconnecting subscriber");
+                    disconnect(e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                do {
+                    if (backlog != null) {
+                        for (ChangeSet changeSet : backlog) {
+                            write(new Event(changeSet));
+                        }
+                        backlog = null;
+                    }
+
+                    Event event;
+                    while (!overflowed && (event = buffer.poll()) != null) {
+                        write(event);
+                    }
+
+                    if (overflowed) {
+                        LOG.warn("Subscriber to the change feed has fallen more than " + bufferSize + " change sets behind, disconnecting");
+                        disconnect(null);
+                        return;
+                    }
+
+                    scheduled.set(false);
+                } while (!buffer.isEmpty() && scheduled.compareAndSet(false, true));
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Failed to write change set events, disconnecting subscriber", e);
+                disconnect(e);
+            }
+        }
+
+        private void write(Event event) throws IOException {
+            //change sets read from the cache on subscription might have been pushed again since
+            if (event.changeSet.getSequence() > lastSequence) {
+                emitter.sendEvent(event.bytes());
+                lastSequence = event.changeSet.getSequence();
+            }
+        }
+
+        private void disconnect(Exception e) {
+            subscribers.remove(this);
+            buffer.clear();
+            if (e == null) {
+                emitter.complete();
+            } else {
+                emitter.completeWithError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.api;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * {@link ResponseBodyEmitter} of a Server-Sent Events stream whose events are encoded by the caller, e.g. once for all
+ * subscribers of a {@link ChangeSetBroadcaster}.
+ * <p/>
+ * Unlike {@link org.springframework.web.servlet.mvc.method.annotation.SseEmitter}, which wraps everything it sends into
+ * <code>data:</code> lines of a new event, this emitter writes the bytes of complete events as they are. It sets the
+ * <code>text/event-stream</code> content type of the response itself.
+ */
+public class EventStreamEmitter extends ResponseBodyEmitter {
+
+    static final MediaType EVENT_STREAM = new MediaType("text", "event-stream", Charset.forName("UTF-8"));
+
+    /**
+     * Construct a new emitter.
+     *
+     * @param timeout in ms, after which the stream is closed.
+     */
+    public EventStreamEmitter(Long timeout) {
+        super(timeout);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void extendResponse(ServerHttpResponse outputMessage) {
+        super.extendResponse(outputMessage);
+
+        HttpHeaders headers = outputMessage.getHeaders();
+        if (headers.getContentType() == null) {
+            headers.setContentType(EVENT_STREAM);
+        }
+    }
+
+    /**
+     * Write an encoded event to the stream.
+     *
+     * @param event complete event, i.e. its fields, each terminated by a line feed, followed by an empty line.
+     * @throws IOException if writing fails.
+     */
+    public void sendEvent(byte[] event) throws IOException {
+        send(event, EVENT_STREAM);
+    }
+}
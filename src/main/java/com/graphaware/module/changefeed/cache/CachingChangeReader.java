@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.cache;
+
+import com.graphaware.module.changefeed.ChangeFeedModule;
+import com.graphaware.module.changefeed.domain.ChangeFilter;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.io.ChangeReader;
+import com.graphaware.module.changefeed.io.ForwardPage;
+import com.graphaware.module.changefeed.storage.StorageEngine;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+
+import static com.graphaware.runtime.RuntimeRegistry.getStartedRuntime;
+
+/**
+ * {@link ChangeReader} which reads the changes from the {@link ChangeSetCache} of a {@link ChangeFeedModule},
+ * regardless of where the module stores them. Changes since a sequence number or within a time range that are not all
+ * cached are read from the {@link StorageEngine} of the module instead, and so are changes since a uuid older than the
+ * cache and pages read forward that do not start within the cache.
+ * <p/>
+ * A reader can be constructed to read change sets matching a {@link ChangeFilter} only. Storage engines do not filter
+ * change sets themselves, so change sets read from the storage engine are filtered as they are read, page by page.
+ * Only the matching change sets are kept, and at most {@link ForwardPage#MAX_SCANNED} change sets are read for a page
+ * read forward.
+ */
+public class CachingChangeReader implements ChangeReader {
+
+    private static final int STORAGE_PAGE_SIZE = 1000;
+
+    private final ChangeSetCache cache;
+    private final StorageEngine storageEngine;
+    private final ChangeFilter filter;
+
+    /**
+     * Construct a new reader.
+     * <p/>
+     * Use this API if a single {@link ChangeFeedModule} is registered with module ID equal to {@link ChangeFeedModule#DEFAULT_MODULE_ID}.
+     *
+     * @param database in which the changes are stored.
+     */
+    public CachingChangeReader(GraphDatabaseService database) {
+        this(database, ChangeFeedModule.DEFAULT_MODULE_ID);
+    }
+
+    /**
+     * Construct a new reader.
+     *
+     * @param database in which the changes are stored.
+     * @param moduleId ID of the module storing changes.
+     * @throws org.neo4j.graphdb.NotFoundException if there is no such module.
+     */
+    public CachingChangeReader(GraphDatabaseService database, String moduleId) {
+        this(database, moduleId, ChangeFilter.all());
+    }
+
+    /**
+     * Construct a new reader.
+     *
+     * @param database in which the changes are stored.
+     * @param moduleId ID of the module storing changes.
+     * @param filter   change sets must match to be read.
+     * @throws org.neo4j.graphdb.NotFoundException if there is no such module.
+     */
+    public CachingChangeReader(GraphDatabaseService database, String moduleId, ChangeFilter filter) {
+        this.filter = filter;
+        ChangeFeedModule module = getStartedRuntime(database).getModule(moduleId, ChangeFeedModule.class);
+        cache = module.getChangesCache();
+        storageEngine = module.getStorageEngine();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getAllChanges() {
+        return getChangesSince(null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getNumberOfChanges(int limit) {
+        return getNumberOfChangesSince(null, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getChangesSince(String uuid) {
+        return getNumberOfChangesSince(uuid, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getNumberOfChangesSince(String uuid, int limit) {
+        List<ChangeSet> cached = cache.getChangesIfCached(uuid, limit, filter);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (filter.isAll()) {
+            return storageEngine.getReader().getNumberOfChangesSince(uuid, limit);
+        }
+
+        return readNewestMatching(0, uuid, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getNumberOfChangesSince(long sequence, int limit) {
+        List<ChangeSet> cached = cache.getChangesIfCached(sequence, limit, filter);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (filter.isAll()) {
+            return storageEngine.read(sequence, limit);
+        }
+
+        return readNewestMatching(sequence, null, limit);
+    }
+
+    /**
+     * Read the newest change sets matching the filter from the storage engine, keeping no more than the limit whilst
+     * paging through all change sets with a sequence number higher than the given one, oldest first.
+     *
+     * @param sequence sequence number of the newest change set that will not be included in the result.
+     * @param uuid     uuid of the change set; neither it nor any older change set will be included in the result. Null
+     *                 to include all change sets with a higher sequence number.
+     * @param limit    the number of change sets to read.
+     * @return change sets ordered from newest to oldest.
+     */
+    private List<ChangeSet> readNewestMatching(long sequence, String uuid, int limit) {
+        ChangeReader reader = storageEngine.getReader();
+        Deque<ChangeSet> newest = new ArrayDeque<>();
+        List<ChangeSet> page = reader.readForward(sequence, STORAGE_PAGE_SIZE);
+        while (!page.isEmpty()) {
+            for (ChangeSet changeSet : page) {
+                if (uuid != null && uuid.equals(changeSet.getUuid())) {
+                    newest.clear();
+                } else if (filter.matches(changeSet)) {
+                    newest.addFirst(changeSet);
+                    if (newest.size() > limit) {
+                        newest.removeLast();
+                    }
+                }
+            }
+            page = reader.readForward(page.get(page.size() - 1).getSequence(), STORAGE_PAGE_SIZE);
+        }
+        return new ArrayList<>(newest);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getChangesBetween(long from, long to, int limit) {
+        List<ChangeSet> cached = cache.getChangesBetween(from, to, limit, filter);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (filter.isAll()) {
+            return storageEngine.getReader().getChangesBetween(from, to, limit);
+        }
+
+        List<ChangeSet> result = new ArrayList<>();
+        for (ChangeSet changeSet : storageEngine.getReader().getChangesBetween(from, to, Integer.MAX_VALUE)) {
+            if (result.size() >= limit) {
+                break;
+            }
+            if (filter.matches(changeSet)) {
+                result.add(changeSet);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<ChangeSet> readForward(long sequence, int limit) {
+        return readPage(sequence, limit).getChangeSets();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ForwardPage readPage(long sequence, int limit) {
+        ForwardPage cached = cache.getPageForward(sequence, limit, filter);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (filter.isAll()) {
+            return storageEngine.getReader().readPage(sequence, limit);
+        }
+
+        return readMatchingPage(sequence, limit);
+    }
+
+    /**
+     * Read change sets matching the filter from the storage engine, oldest first, a storage page at a time, until the
+     * limit is reached or {@link ForwardPage#MAX_SCANNED} change sets have been read.
+     */
+    private ForwardPage readMatchingPage(long sequence, int limit) {
+        ChangeReader reader = storageEngine.getReader();
+        List<ChangeSet> result = new ArrayList<>();
+        long next = sequence;
+        int scanned = 0;
+
+        while (result.size() < limit && scanned < ForwardPage.MAX_SCANNED) {
+            List<ChangeSet> page = reader.readForward(next, Math.min(STORAGE_PAGE_SIZE, ForwardPage.MAX_SCANNED - scanned));
+            if (page.isEmpty()) {
+                break;
+            }
+            for (ChangeSet changeSet : page) {
+                next = changeSet.getSequence();
+                scanned++;
+                if (filter.matches(changeSet)) {
+                    result.add(changeSet);
+                    if (result.size() >= limit) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        return new ForwardPage(result, next);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.cache;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.io.FileChangeLog;
+import com.graphaware.module.changefeed.io.FileChangeWriter;
+
+/**
+ * {@link FileChangeWriter} that also pushes all written changes to {@link ChangeSetCache}.
+ */
+public class CachingFileChangeWriter extends FileChangeWriter {
+
+    private final ChangeSetCache cache;
+
+    /**
+     * Construct a new writer.
+     *
+     * @param log   to append the changes to.
+     * @param cache for caching changes.
+     */
+    public CachingFileChangeWriter(FileChangeLog log, ChangeSetCache cache) {
+        super(log);
+        this.cache = cache;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Pushes the change set into the cache.
+     */
+    @Override
+    protected void onChangeSetVisible(ChangeSet changeSet) {
+        cache.push(changeSet);
+    }
+}
@@ -17,20 +17,37 @@
 package com.graphaware.module.changefeed.cache;
 
 import com.graphaware.module.changefeed.ChangeFeedModule;
+import com.graphaware.module.changefeed.domain.ChangeFilter;
 import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.io.ChangeSetHandler;
+import com.graphaware.module.changefeed.io.ForwardPage;
 import com.graphaware.module.changefeed.io.GraphChangeReader;
 import org.neo4j.graphdb.GraphDatabaseService;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import static com.graphaware.runtime.RuntimeRegistry.getStartedRuntime;
 
 /**
  * {@link GraphChangeReader} which reads the changes from {@link ChangeSetCache}.
+ * <p/>
+ * Changes since a uuid or a sequence number, or within a time range, are read from the cache if it holds all of them. Otherwise, the newest changes are still read
+ * from the cache, and only the older changes missing from the cache are read from the graph, by seeking their range of
+ * sequence numbers. Changes within a time range that are not all cached are read from the graph only.
+ * <p/>
+ * Changes handed to a {@link ChangeSetHandler} one by one are read the same way, from the cache first, then from the
+ * graph.
+ * <p/>
+ * A {@link ChangeFilter} the reader is constructed with applies to the changes read from the cache and from the graph
+ * alike.
  */
 public class CachingGraphChangeReader extends GraphChangeReader {
 
     private final ChangeSetCache cache;
+    private final ChangeFilter filter;
 
     /**
      * Construct a new reader.
@@ -50,7 +67,33 @@ public class CachingGraphChangeReader extends GraphChangeReader {
      * @param moduleId ID of the module storing changes.
      */
     public CachingGraphChangeReader(GraphDatabaseService database, String moduleId) {
-        super(database, moduleId);
+        this(database, moduleId, false);
+    }
+
+    /**
+     * Construct a new reader.
+     *
+     * @param database    in which the changes are stored.
+     * @param moduleId    ID of the module storing changes.
+     * @param headersOnly true for reading change set headers only from the graph, fetching their changes on demand.
+     *                    Change sets served from the cache are always complete.
+     */
+    public CachingGraphChangeReader(GraphDatabaseService database, String moduleId, boolean headersOnly) {
+        this(database, moduleId, headersOnly, ChangeFilter.all());
+    }
+
+    /**
+     * Construct a new reader.
+     *
+     * @param database    in which the changes are stored.
+     * @param moduleId    ID of the module storing changes.
+     * @param headersOnly true for reading change set headers only from the graph, fetching their changes on demand.
+     *                    Change sets served from the cache are always complete.
+     * @param filter      change sets must match to be read.
+     */
+    public CachingGraphChangeReader(GraphDatabaseService database, String moduleId, boolean headersOnly, ChangeFilter filter) {
+        super(database, moduleId, headersOnly, filter);
+        this.filter = filter;
 
         cache = getStartedRuntime(database).getModule(moduleId, ChangeFeedModule.class).getChangesCache();
     }
@@ -60,6 +103,119 @@ public class CachingGraphChangeReader extends GraphChangeReader {
      */
     @Override
     protected Collection<ChangeSet> doGetChanges(String uuid, int limit) {
-        return cache.getChanges(uuid, limit);
+        List<ChangeSet> cached = cache.getChangesIfCached(uuid, limit, filter);
+        if (cached != null) {
+            return cached;
+        }
+
+        return getChangesSince(getSequence(uuid), limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getNumberOfChangesSince(long sequence, int limit) {
+        List<ChangeSet> cached = cache.getChangesIfCached(sequence, limit, filter);
+        if (cached != null) {
+            return cached;
+        }
+
+        return getChangesSince(sequence, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getChangesBetween(long from, long to, int limit) {
+        List<ChangeSet> cached = cache.getChangesBetween(from, to, limit, filter);
+        if (cached != null) {
+            return cached;
+        }
+
+        return super.getChangesBetween(from, to, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Pages starting within the cache are read from the cache, older pages from the graph.
+     */
+    @Override
+    public ForwardPage readPage(long sequence, int limit) {
+        ForwardPage cached = cache.getPageForward(sequence, limit, filter);
+        if (cached != null) {
+            return cached;
+        }
+
+        return super.readPage(sequence, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readChangesSince(String uuid, int limit, ChangeSetHandler handler) throws IOException {
+        List<ChangeSet> cached = cache.getChangesIfCached(uuid, limit, filter);
+        if (cached != null) {
+            return handle(cached, handler);
+        }
+
+        return readChangesSince(getSequence(uuid), limit, handler);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The newest changes are handed over from the cache, the older ones missing from it are read from the graph.
+     */
+    @Override
+    public int readChangesSince(long sequence, int limit, ChangeSetHandler handler) throws IOException {
+        List<ChangeSet> cached = cache.getChangesIfCached(sequence, limit, filter);
+        if (cached != null) {
+            return handle(cached, handler);
+        }
+
+        int handled = 0;
+        long untilSequence = Long.MAX_VALUE;
+        for (ChangeSet changeSet : cache.getChanges(null, limit, filter)) {
+            if (changeSet.getSequence() <= sequence) {
+                return handled;
+            }
+            handler.handle(changeSet);
+            handled++;
+            untilSequence = changeSet.getSequence() - 1;
+        }
+
+        return handled + readChangesBetween(sequence, untilSequence, limit == Integer.MAX_VALUE ? limit : limit - handled, handler);
+    }
+
+    private int handle(List<ChangeSet> changeSets, ChangeSetHandler handler) throws IOException {
+        for (ChangeSet changeSet : changeSets) {
+            handler.handle(changeSet);
+        }
+        return changeSets.size();
+    }
+
+    /**
+     * Read the newest changes since a sequence number from the cache and the older ones missing from it from the graph.
+     */
+    private List<ChangeSet> getChangesSince(long sinceSequence, int limit) {
+        List<ChangeSet> result = new ArrayList<>();
+        for (ChangeSet changeSet : cache.getChanges(null, limit, filter)) {
+            if (changeSet.getSequence() <= sinceSequence) {
+                return result;
+            }
+            result.add(changeSet);
+        }
+
+        if (result.size() < limit) {
+            long untilSequence = result.isEmpty() ? Long.MAX_VALUE : result.get(result.size() - 1).getSequence() - 1;
+            int remaining = limit == Integer.MAX_VALUE ? limit : limit - result.size();
+            result.addAll(getNumberOfChangesBetween(sinceSequence, untilSequence, remaining));
+        }
+
+        return result;
     }
 }
@@ -39,12 +39,56 @@ public class CachingGraphChangeWriter extends GraphChangeWriter {
         this.cache = cache;
     }
 
+    /**
+     * Construct a new writer.
+     *
+     * @param database    in which to store the changes.
+     * @param moduleId    ID of the module storing changes.
+     * @param segmentSize maximum number of change sets packed into a single segment node, 1 disables packing.
+     * @param cache       for caching changes.
+     */
+    public CachingGraphChangeWriter(GraphDatabaseService database, String moduleId, int segmentSize, ChangeSetCache cache) {
+        super(database, moduleId, segmentSize);
+        this.cache = cache;
+    }
+
+    /**
+     * Construct a new writer.
+     *
+     * @param database    in which to store the changes.
+     * @param moduleId    ID of the module storing changes.
+     * @param segmentSize maximum number of change sets packed into a single segment node, 1 disables packing.
+     * @param compression true iff stored changes should be compressed.
+     * @param cache       for caching changes.
+     */
+    public CachingGraphChangeWriter(GraphDatabaseService database, String moduleId, int segmentSize, boolean compression, ChangeSetCache cache) {
+        super(database, moduleId, segmentSize, compression);
+        this.cache = cache;
+    }
+
+    /**
+     * Construct a new writer.
+     *
+     * @param database    in which to store the changes.
+     * @param moduleId    ID of the module storing changes.
+     * @param segmentSize maximum number of change sets packed into a single segment node, 1 disables packing.
+     * @param compression true iff stored changes should be compressed.
+     * @param shards      number of shards to stripe the change feed across, 1 for a single shard.
+     * @param cache       for caching changes.
+     */
+    public CachingGraphChangeWriter(GraphDatabaseService database, String moduleId, int segmentSize, boolean compression, int shards, ChangeSetCache cache) {
+        super(database, moduleId, segmentSize, compression, shards);
+        this.cache = cache;
+    }
+
     /**
      * {@inheritDoc}
+     * <p/>
+     * Pushes the change set into the cache. Change sets become visible in sequence order regardless of the shard they
+     * have been appended to, so the cache holds a single feed merged across all shards.
      */
     @Override
-    protected void recordChanges(ChangeSet changeSet) {
-        super.recordChanges(changeSet);
+    protected void onChangeSetVisible(ChangeSet changeSet) {
         cache.push(changeSet);
     }
 }
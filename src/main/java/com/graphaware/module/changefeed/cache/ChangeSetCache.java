@@ -16,20 +16,81 @@
 
 package com.graphaware.module.changefeed.cache;
 
+import com.graphaware.module.changefeed.domain.ChangeFilter;
 import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.io.ForwardPage;
 import com.graphaware.module.changefeed.util.BoundedConcurrentStack;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * {@link com.graphaware.module.changefeed.util.BoundedConcurrentStack} of {@link com.graphaware.module.changefeed.domain.ChangeSet}s,
  * intended to be used as a cache of configurable number of latest {@link com.graphaware.module.changefeed.domain.ChangeSet}s.
+ * <p/>
+ * The cache keeps an index from the uuid of every cached change set to its position in the stack, written before the
+ * change set becomes visible to readers and maintained on eviction, so that reading changes since a uuid reads the
+ * newer positions directly, and a uuid that is not cached does not need to be searched for at all. Change sets are
+ * expected to be pushed in the order of their sequence numbers, with timestamps that never decrease, so reading changes
+ * since a sequence number or within a time range binary searches the cached positions.
+ * <p/>
+ * Every read is served from a single {@link com.graphaware.module.changefeed.util.BoundedConcurrentStack.Snapshot} of
+ * the stack, so that the returned changes are always a contiguous slice of the feed, even when change sets are pushed
+ * and evicted concurrently.
+ * <p/>
+ * Reads since a uuid or a sequence number are counted as hits if the change set with the uuid or sequence number is
+ * cached, or has just been evicted (all newer change sets are still cached), and as misses otherwise. Reads within a
+ * time range are counted as hits if the range starts after the oldest cached change set. Reads of the latest changes, without a uuid, are not counted.
+ * <p/>
+ * Every read can be limited to change sets matching a {@link ChangeFilter}. Change sets that do not match are skipped
+ * and do not count towards the limit; most of them are told apart by the bitmap of their tags, without reading their
+ * changes.
+ * <p/>
+ * Besides the number of change sets, the cache can be bounded by the number of bytes they take, so that a few very large
+ * transactions do not exhaust the heap. Change sets are evicted oldest first until the cache is within both bounds. A
+ * change set larger than the size on its own is not cached at all. The cache then remembers the position after which it
+ * is missing, and serves only reads that do not span it, so that older change sets stay readable. The
+ * cache can also keep the changes off heap (see {@link OffHeapChangeSetStack}), where it must be bounded by bytes, so
+ * that a large cache does not burden the garbage collector. The uuid index is kept on heap in both cases.
+ * <p/>
+ * Listeners can be registered to be notified of every pushed change set, e.g. to complete requests waiting for new
+ * changes without polling the cache.
  */
 public class ChangeSetCache {
 
+    private static final Key SEQUENCE = new Key() {
+        @Override
+        long of(ChangeSet changeSet) {
+            return changeSet.getSequence();
+        }
+    };
+
+    private static final Key TIMESTAMP = new Key() {
+        @Override
+        long of(ChangeSet changeSet) {
+            return changeSet.getTimestamp();
+        }
+    };
+
+    //estimated heap taken by a change set apart from its changes: the object, its uuid, and the list of changes
+    private static final long CHANGE_SET_OVERHEAD = 200;
+    //changes rendered into strings (UTF-16) and into JSON take several times the size of their encoded form
+    private static final long ENCODED_CHANGES_EXPANSION = 8;
+
     private final BoundedConcurrentStack<ChangeSet> changes;
+    private final ConcurrentMap<String, Long> positions = new ConcurrentHashMap<>();
+    private final NavigableSet<Long> gaps = new ConcurrentSkipListSet<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final Set<Listener> listeners = Collections.newSetFromMap(new ConcurrentHashMap<Listener, Boolean>());
 
     /**
      * Construct a new cache with given capacity.
@@ -37,16 +98,104 @@ public class ChangeSetCache {
      * @param capacity of the cache.
      */
     public ChangeSetCache(int capacity) {
-        changes = new BoundedConcurrentStack<>(capacity);
+        this(capacity, 0, false);
     }
 
     /**
-     * Push a change set into the cache.
+     * Construct a new cache.
+     *
+     * @param capacity of the cache.
+     * @param size     maximum number of bytes taken by cached change sets, 0 for no limit. On heap, the number of bytes
+     *                 taken by a change set is estimated (see {@link #estimateSize(ChangeSet)}), off heap it is the
+     *                 number of bytes taken by its encoded changes.
+     * @param offHeap  true iff the changes should be kept outside of the Java heap, in which case the size must be
+     *                 positive.
+     * @throws IllegalArgumentException if the size is negative, or not positive off heap.
+     */
+    public ChangeSetCache(int capacity, long size, boolean offHeap) {
+        if (offHeap) {
+            changes = new OffHeapChangeSetStack(capacity, size) {
+                @Override
+                protected void pushed(ChangeSet changeSet, long position) {
+                    index(changeSet, position);
+                }
+
+                @Override
+                protected void evicted(ChangeSet changeSet, long position) {
+                    unindex(changeSet, position);
+                }
+            };
+            return;
+        }
+
+        if (size < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative, was " + size);
+        }
+
+        if (size > 0) {
+            changes = new BoundedConcurrentStack<ChangeSet>(capacity, capacity / 4 + 1, size, size + size / 4 + 1) {
+                @Override
+                protected long weigh(ChangeSet changeSet) {
+                    return estimateSize(changeSet);
+                }
+
+                @Override
+                protected void pushed(ChangeSet changeSet, long position) {
+                    index(changeSet, position);
+                }
+
+                @Override
+                protected void evicted(ChangeSet changeSet, long position) {
+                    unindex(changeSet, position);
+                }
+            };
+            return;
+        }
+
+        changes = new BoundedConcurrentStack<ChangeSet>(capacity) {
+            @Override
+            protected void pushed(ChangeSet changeSet, long position) {
+                index(changeSet, position);
+            }
+
+            @Override
+            protected void evicted(ChangeSet changeSet, long position) {
+                unindex(changeSet, position);
+            }
+        };
+    }
+
+    /**
+     * Push a change set into the cache and notify all registered listeners once it can be read from the cache.
      *
      * @param changeSet to push.
      */
     public void push(ChangeSet changeSet) {
-        changes.push(changeSet);
+        append(changeSet);
+
+        if (!listeners.isEmpty()) {
+            for (Listener listener : listeners) {
+                listener.pushed(changeSet);
+            }
+        }
+    }
+
+    /**
+     * Register a listener to be notified of every change set pushed into the cache from now on, until removed.
+     *
+     * @param listener to register.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a registered listener.
+     *
+     * @param listener to remove. Nothing happens if it is not registered.
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
     }
 
     /**
@@ -55,7 +204,23 @@ public class ChangeSetCache {
      * @param changeSets to populate the cache with. These are expected to be ordered from newest to oldest.
      */
     public void populate(Collection<ChangeSet> changeSets) {
-        changes.populate(changeSets);
+        List<ChangeSet> newestFirst = new ArrayList<>(changeSets);
+        for (int i = Math.min(newestFirst.size(), changes.getMaxCapacity()) - 1; i >= 0; i--) {
+            append(newestFirst.get(i));
+        }
+    }
+
+    private void append(ChangeSet changeSet) {
+        if (changes.push(changeSet) > 0) {
+            if (!gaps.isEmpty()) {
+                //gaps before the oldest cached change set are no longer spanned by any read
+                gaps.headSet(changes.getFirstPosition() - 1).clear();
+            }
+            return;
+        }
+
+        //change sets are pushed one at a time, so the last position is the one of the previous change set
+        gaps.add(changes.getLastPosition());
     }
 
     /**
@@ -68,19 +233,428 @@ public class ChangeSetCache {
      * whichever returns fewer changes.
      */
     public Collection<ChangeSet> getChanges(String uuid, int limit) {
-        List<ChangeSet> result = new LinkedList<>();
+        return getChanges(uuid, limit, ChangeFilter.all());
+    }
+
+    /**
+     * Get a number of latest changes newer than the given uuid, matching a filter.
+     *
+     * @param uuid   uuid of all returned changes will be more recent than this. Null will return all changes.
+     * @param limit  the number of changes to get.
+     * @param filter the changes must match.
+     * @return changes ordered from newest to oldest, limited in the same way as by {@link #getChanges(String, int)}.
+     */
+    public Collection<ChangeSet> getChanges(String uuid, int limit, ChangeFilter filter) {
+        return read(uuid, limit, false, filter);
+    }
+
+    /**
+     * Get a number of latest changes newer than the given uuid, provided that all changes newer than the uuid are cached.
+     *
+     * @param uuid  uuid of all returned changes will be more recent than this. Null will return all changes.
+     * @param limit the number of changes to get.
+     * @return changes ordered from newest to oldest, limited in the same way as by {@link #getChanges(String, int)},
+     * null iff the uuid is not null and the cache does not hold all changes newer than it.
+     */
+    public List<ChangeSet> getChangesIfCached(String uuid, int limit) {
+        return getChangesIfCached(uuid, limit, ChangeFilter.all());
+    }
+
+    /**
+     * Get a number of latest changes newer than the given uuid and matching a filter, provided that all changes newer
+     * than the uuid are cached.
+     *
+     * @param uuid   uuid of all returned changes will be more recent than this. Null will return all changes.
+     * @param limit  the number of changes to get.
+     * @param filter the changes must match.
+     * @return changes ordered from newest to oldest, null iff the uuid is not null and the cache does not hold all
+     * changes newer than it.
+     */
+    public List<ChangeSet> getChangesIfCached(String uuid, int limit, ChangeFilter filter) {
+        return read(uuid, limit, true, filter);
+    }
+
+    /**
+     * Get a number of latest changes with a sequence number higher than the given one, provided that all such changes
+     * are cached.
+     *
+     * @param sequence sequence number of the newest change set that will not be included in the result.
+     * @param limit    the number of changes to get.
+     * @return changes ordered from newest to oldest, null iff the cache does not hold all changes newer than the sequence
+     * number.
+     */
+    public List<ChangeSet> getChangesIfCached(long sequence, int limit) {
+        return getChangesIfCached(sequence, limit, ChangeFilter.all());
+    }
+
+    /**
+     * Get a number of latest changes with a sequence number higher than the given one and matching a filter, provided
+     * that all changes newer than the sequence number are cached.
+     *
+     * @param sequence sequence number of the newest change set that will not be included in the result.
+     * @param limit    the number of changes to get.
+     * @param filter   the changes must match.
+     * @return changes ordered from newest to oldest, null iff the cache does not hold all changes newer than the sequence
+     * number.
+     */
+    public List<ChangeSet> getChangesIfCached(long sequence, int limit, ChangeFilter filter) {
+        List<ChangeSet> result = new ArrayList<>();
+        boolean counted = false;
+
+        while (true) {
+            BoundedConcurrentStack<ChangeSet>.Snapshot snapshot = changes.snapshot();
+
+            ChangeSet oldest = snapshot.get(snapshot.getFirstPosition());
+            if (oldest == null && snapshot.isIntact()) {
+                //nothing cached yet
+                count(false);
+                return null;
+            }
+
+            long first = oldest == null ? -1 : firstPositionAfter(snapshot, SEQUENCE, sequence);
+            if (first < 0) {
+                //the snapshot has been overwritten whilst searching, search a newer one
+                continue;
+            }
+
+            boolean cached = sequence >= oldest.getSequence() - 1 && !spansGap(first - 1, Long.MAX_VALUE);
+            if (!counted) {
+                count(cached);
+                counted = true;
+            }
+
+            if (!cached) {
+                return null;
+            }
+
+            if (limit <= 0 || readChanges(snapshot, first, limit, filter, result)) {
+                return result;
+            }
+
+            result.clear();
+        }
+    }
+
+    /**
+     * Get a number of oldest changes with a sequence number higher than the given one, provided that the change set
+     * following the sequence number is cached.
+     *
+     * @param sequence sequence number of the last change set that will not be included in the result.
+     * @param limit    the number of changes to get.
+     * @return changes ordered from oldest to newest, null iff the cache does not hold the change set following the
+     * sequence number.
+     */
+    public List<ChangeSet> getChangesForward(long sequence, int limit) {
+        return getChangesForward(sequence, limit, ChangeFilter.all());
+    }
+
+    /**
+     * Get a number of oldest changes with a sequence number higher than the given one and matching a filter, provided
+     * that the change set following the sequence number is cached.
+     *
+     * @param sequence sequence number of the last change set that will not be included in the result.
+     * @param limit    the number of changes to get.
+     * @param filter   the changes must match.
+     * @return changes ordered from oldest to newest, null iff the cache does not hold the change set following the
+     * sequence number.
+     */
+    public List<ChangeSet> getChangesForward(long sequence, int limit, ChangeFilter filter) {
+        ForwardPage page = getPageForward(sequence, limit, filter);
+        return page == null ? null : page.getChangeSets();
+    }
+
+    /**
+     * Get a page of oldest changes with a sequence number higher than the given one and matching a filter, provided
+     * that the change set following the sequence number is cached. Unless the filter matches all change sets, at most
+     * {@link ForwardPage#MAX_SCANNED} cached change sets are read for the page.
+     *
+     * @param sequence sequence number of the last change set that will not be included in the result.
+     * @param limit    the number of changes to get.
+     * @param filter   the changes must match.
+     * @return page of changes ordered from oldest to newest, whose next sequence number is that of the last change set
+     * read, null iff the cache does not hold the change set following the sequence number.
+     */
+    public ForwardPage getPageForward(long sequence, int limit, ChangeFilter filter) {
+        List<ChangeSet> result = new ArrayList<>();
+        boolean counted = false;
+
+        while (true) {
+            BoundedConcurrentStack<ChangeSet>.Snapshot snapshot = changes.snapshot();
+
+            ChangeSet oldest = snapshot.get(snapshot.getFirstPosition());
+            if (oldest == null && snapshot.isIntact()) {
+                count(false);
+                return null;
+            }
+
+            long first = oldest == null ? -1 : firstPositionAfter(snapshot, SEQUENCE, sequence);
+            if (first < 0) {
+                continue;
+            }
+
+            boolean cached = sequence >= oldest.getSequence() - 1;
+
+            long end = filter.isAll() ? snapshot.getLastPosition() : Math.min(snapshot.getLastPosition(), first + ForwardPage.MAX_SCANNED - 1);
+            long last = !cached || limit <= 0 ? first - 1 : readChangesForward(snapshot, first, end, limit, filter, result);
+            if (last < 0) {
+                result.clear();
+                continue;
+            }
+
+            ChangeSet lastRead = last < first ? null : snapshot.get(last);
+            if (last >= first && lastRead == null) {
+                result.clear();
+                continue;
+            }
 
-        for (ChangeSet changeSet : changes) {
-            if (uuid != null && uuid.equals(changeSet.getUuid())) {
-                break;
+            //a page must not skip a change set that has not been cached, nor end right before one if it is not full
+            cached = cached && !spansGap(first - 1, result.size() < limit ? last : last - 1);
+            if (!counted) {
+                count(cached);
+                counted = true;
+            }
+
+            return cached ? new ForwardPage(result, lastRead == null ? sequence : lastRead.getSequence()) : null;
+        }
+    }
+
+    /**
+     * Get a number of latest changes within a time range, provided that all such changes are cached.
+     *
+     * @param from  timestamp of the oldest changes that can be included in the result (inclusive).
+     * @param to    timestamp of the first changes that will not be included in the result (exclusive).
+     * @param limit the number of changes to get.
+     * @return changes ordered from newest to oldest, null iff the cache does not hold all changes within the range.
+     */
+    public List<ChangeSet> getChangesBetween(long from, long to, int limit) {
+        return getChangesBetween(from, to, limit, ChangeFilter.all());
+    }
+
+    /**
+     * Get a number of latest changes within a time range and matching a filter, provided that all changes within the
+     * range are cached.
+     *
+     * @param from   timestamp of the oldest changes that can be included in the result (inclusive).
+     * @param to     timestamp of the first changes that will not be included in the result (exclusive).
+     * @param limit  the number of changes to get.
+     * @param filter the changes must match.
+     * @return changes ordered from newest to oldest, null iff the cache does not hold all changes within the range.
+     */
+    public List<ChangeSet> getChangesBetween(long from, long to, int limit, ChangeFilter filter) {
+        List<ChangeSet> result = new ArrayList<>();
+        boolean counted = false;
+
+        while (true) {
+            BoundedConcurrentStack<ChangeSet>.Snapshot snapshot = changes.snapshot();
+
+            ChangeSet oldest = snapshot.get(snapshot.getFirstPosition());
+            if (oldest == null && snapshot.isIntact()) {
+                count(false);
+                return null;
+            }
+
+            long first = oldest == null ? -1 : firstPositionAfter(snapshot, TIMESTAMP, from - 1);
+            long last = first < 0 ? -1 : firstPositionAfter(snapshot, TIMESTAMP, to - 1) - 1;
+            if (last < 0) {
+                continue;
+            }
+
+            boolean cached = from > oldest.getTimestamp() && !spansGap(first - 1, last);
+            if (!counted) {
+                count(cached);
+                counted = true;
+            }
+
+            if (!cached) {
+                return null;
+            }
+
+            if (limit <= 0 || from >= to || readChanges(snapshot, last, first, limit, filter, result)) {
+                return result;
+            }
+
+            result.clear();
+        }
+    }
+
+    /**
+     * Get the number of bytes taken by the cached change sets.
+     *
+     * @return number of bytes, estimated on heap, 0 if the size of the cache is not limited.
+     */
+    public long getSize() {
+        return changes.getWeight();
+    }
+
+    /**
+     * Estimate the number of bytes of heap taken by a cached change set, assuming its changes are read, i.e. rendered
+     * into strings and JSON, at some point.
+     *
+     * @param changeSet to estimate the size of.
+     * @return estimated number of bytes.
+     */
+    public static long estimateSize(ChangeSet changeSet) {
+        return CHANGE_SET_OVERHEAD + ENCODED_CHANGES_EXPANSION * changeSet.getEncodedChanges().length;
+    }
+
+    /**
+     * Get the number of reads since a uuid or sequence number that have been served entirely from the cache.
+     *
+     * @return number of hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of reads since a uuid or sequence number that could not be served entirely from the cache.
+     *
+     * @return number of misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private List<ChangeSet> read(String uuid, int limit, boolean cachedOnly, ChangeFilter filter) {
+        List<ChangeSet> result = new ArrayList<>();
+        boolean counted = uuid == null;
+
+        while (true) {
+            //look the uuid up before taking the snapshot, so that a uuid evicted in the meantime is outside of it
+            Long since = uuid == null ? null : positions.get(uuid);
+            BoundedConcurrentStack<ChangeSet>.Snapshot snapshot = changes.snapshot();
+
+            long first = snapshot.getFirstPosition();
+            boolean cached = since != null && since >= first - 1 && !spansGap(since, Long.MAX_VALUE);
+            if (cached) {
+                first = since + 1;
+            } else if (!gaps.isEmpty()) {
+                //only the change sets after the last gap are the latest ones
+                first = Math.max(first, gaps.last() + 1);
+            }
+
+            if (!counted) {
+                count(cached);
+                counted = true;
+            }
+
+            if (uuid != null && !cached && cachedOnly) {
+                return null;
+            }
+
+            if (limit <= 0 || readChanges(snapshot, first, limit, filter, result)) {
+                return result;
+            }
+
+            //the snapshot has been overwritten whilst reading, read a newer one
+            result.clear();
+        }
+    }
+
+    /**
+     * Find the oldest position in a snapshot holding a change set with a key higher than the given value.
+     *
+     * @return position, last position + 1 if there is no such change set, -1 if the snapshot has been overwritten.
+     */
+    private long firstPositionAfter(BoundedConcurrentStack<ChangeSet>.Snapshot snapshot, Key key, long value) {
+        long low = snapshot.getFirstPosition();
+        long high = snapshot.getLastPosition() + 1;
+
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            ChangeSet changeSet = snapshot.get(middle);
+            if (changeSet == null) {
+                return -1;
+            }
+            if (key.of(changeSet) > value) {
+                high = middle;
             } else {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * @return true iff a change set that has not been cached is missing right after one of the given positions.
+     */
+    private boolean spansGap(long fromPosition, long toPosition) {
+        Long gap = gaps.ceiling(fromPosition);
+        return gap != null && gap <= toPosition;
+    }
+
+    private void index(ChangeSet changeSet, long position) {
+        positions.put(changeSet.getUuid(), position);
+    }
+
+    private void unindex(ChangeSet changeSet, long position) {
+        positions.remove(changeSet.getUuid(), position);
+    }
+
+    private void count(boolean hit) {
+        if (hit) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+    }
+
+    private boolean readChanges(BoundedConcurrentStack<ChangeSet>.Snapshot snapshot, long first, int limit, ChangeFilter filter, List<ChangeSet> result) {
+        return readChanges(snapshot, snapshot.getLastPosition(), first, limit, filter, result);
+    }
+
+    private boolean readChanges(BoundedConcurrentStack<ChangeSet>.Snapshot snapshot, long last, long first, int limit, ChangeFilter filter, List<ChangeSet> result) {
+        for (long position = last; position >= first && result.size() < limit; position--) {
+            ChangeSet changeSet = snapshot.get(position);
+            if (changeSet == null) {
+                return false;
+            }
+            if (filter.matches(changeSet)) {
                 result.add(changeSet);
             }
-            if (result.size() >= limit) {
-                return result;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the last position read, -1 if the snapshot has been overwritten.
+     */
+    private long readChangesForward(BoundedConcurrentStack<ChangeSet>.Snapshot snapshot, long first, long last, int limit, ChangeFilter filter, List<ChangeSet> result) {
+        long position = first;
+        for (; position <= last && result.size() < limit; position++) {
+            ChangeSet changeSet = snapshot.get(position);
+            if (changeSet == null) {
+                return -1;
+            }
+            if (filter.matches(changeSet)) {
+                result.add(changeSet);
             }
         }
 
-        return result;
+        return position - 1;
+    }
+
+    /**
+     * Listener notified of change sets pushed into the cache (see {@link #addListener(Listener)}).
+     */
+    public interface Listener {
+
+        /**
+         * Called by the thread that has pushed a change set into the cache, which is often a thread that has just
+         * committed a transaction. Must therefore return quickly and must not throw exceptions.
+         *
+         * @param changeSet that has been pushed, readable from the cache.
+         */
+        void pushed(ChangeSet changeSet);
+    }
+
+    /**
+     * Key by which cached change sets are ordered.
+     */
+    private abstract static class Key {
+
+        abstract long of(ChangeSet changeSet);
     }
 }
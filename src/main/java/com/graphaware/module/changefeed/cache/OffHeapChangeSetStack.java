@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.cache;
+
+import com.graphaware.module.changefeed.domain.ChangeEncoding;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.util.BoundedConcurrentStack;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+/**
+ * {@link BoundedConcurrentStack} of {@link ChangeSet}s keeping the changes in direct memory, outside of the Java heap.
+ * <p/>
+ * The changes of every change set are stored in their encoded form (see {@link ChangeEncoding}), prefixed by their
+ * length, in a ring buffer of bytes allocated with {@link ByteBuffer#allocateDirect(int)}. The heap only holds a compact
+ * header (uuid, sequence number, timestamp, and bitmap of tags) per slot of the stack. Change sets are only decoded from direct memory
+ * when read, so that every read returns new {@link ChangeSet} instances.
+ * <p/>
+ * The stack is bounded by the number of bytes taken by the changes. The ring buffer is a quarter larger than that, so
+ * that the bytes of change sets that are no longer visible stay intact for a while, in the same way as slots do.
+ * Change sets larger than the maximum size are refused before they are given a position (see
+ * {@link BoundedConcurrentStack#push(Object)}), so they are not cached at all and do not evict any other change sets.
+ */
+public class OffHeapChangeSetStack extends BoundedConcurrentStack<ChangeSet> {
+
+    private static final int LENGTH_BYTES = 4;
+    private static final byte[] NO_CHANGES = ChangeEncoding.encode(Collections.<String>emptyList());
+
+    private final ByteBuffer buffer;
+    private final int bufferCapacity;
+
+    /**
+     * Construct a new stack.
+     *
+     * @param maxCapacity maximum number of change sets, must be positive.
+     * @param maxBytes    maximum number of bytes taken by the changes of the change sets, must be positive.
+     * @throws IllegalArgumentException if the maximum number of bytes is not positive or too large to be allocated.
+     */
+    public OffHeapChangeSetStack(int maxCapacity, long maxBytes) {
+        super(maxCapacity, maxCapacity / 4 + 1, maxBytes, bufferCapacity(maxBytes));
+        this.bufferCapacity = (int) bufferCapacity(maxBytes);
+        this.buffer = ByteBuffer.allocateDirect(bufferCapacity);
+    }
+
+    private static long bufferCapacity(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Off-heap cache size must be positive, was " + maxBytes);
+        }
+
+        long capacity = maxBytes + maxBytes / 4 + 1;
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Off-heap cache size must be at most " + (Integer.MAX_VALUE / 5 * 4) + " bytes, was " + maxBytes);
+        }
+
+        return capacity;
+    }
+
+    /**
+     * Get the number of bytes of direct memory allocated by this stack.
+     *
+     * @return number of bytes.
+     */
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The weight of a change set is the number of bytes its changes take in direct memory.
+     */
+    @Override
+    protected long weigh(ChangeSet changeSet) {
+        return LENGTH_BYTES + changeSet.getEncodedChanges().length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void store(int slot, ChangeSet changeSet, long offset) {
+        ChangeSet header = new ChangeSet(changeSet.getUuid(), changeSet.getTimestamp());
+        header.setSequence(changeSet.getSequence());
+        header.setEncodedChanges(NO_CHANGES);
+        header.setTags(changeSet.getTags());
+        super.store(slot, header, offset);
+
+        //change sets weighing more than the maximum size, which is less than the buffer capacity, are never stored
+        byte[] changes = changeSet.getEncodedChanges();
+        putLength(offset, changes.length);
+        put(offset + LENGTH_BYTES, changes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected ChangeSet load(int slot, long offset) {
+        ChangeSet header = super.load(slot, offset);
+        if (header == null) {
+            return null;
+        }
+
+        int length = getLength(offset);
+        if (length < 0 || length > bufferCapacity - LENGTH_BYTES) {
+            //overwritten whilst reading
+            return null;
+        }
+
+        byte[] changes = new byte[length];
+        get(offset + LENGTH_BYTES, changes);
+
+        ChangeSet changeSet = new ChangeSet(header.getUuid(), header.getTimestamp());
+        changeSet.setSequence(header.getSequence());
+        changeSet.setEncodedChanges(changes);
+        changeSet.setTags(header.getTags());
+        return changeSet;
+    }
+
+    private void putLength(long offset, int length) {
+        for (int i = 0; i < LENGTH_BYTES; i++) {
+            buffer.put(index(offset + i), (byte) (length >>> (8 * (LENGTH_BYTES - 1 - i))));
+        }
+    }
+
+    private int getLength(long offset) {
+        int length = 0;
+        for (int i = 0; i < LENGTH_BYTES; i++) {
+            length = (length << 8) | (buffer.get(index(offset + i)) & 0xFF);
+        }
+        return length;
+    }
+
+    private void put(long offset, byte[] bytes) {
+        ByteBuffer view = buffer.duplicate();
+        int index = index(offset);
+        int untilEnd = Math.min(bytes.length, bufferCapacity - index);
+
+        view.position(index);
+        view.put(bytes, 0, untilEnd);
+        if (untilEnd < bytes.length) {
+            view.position(0);
+            view.put(bytes, untilEnd, bytes.length - untilEnd);
+        }
+    }
+
+    private void get(long offset, byte[] bytes) {
+        ByteBuffer view = buffer.duplicate();
+        int index = index(offset);
+        int untilEnd = Math.min(bytes.length, bufferCapacity - index);
+
+        view.position(index);
+        view.get(bytes, 0, untilEnd);
+        if (untilEnd < bytes.length) {
+            view.position(0);
+            view.get(bytes, untilEnd, bytes.length - untilEnd);
+        }
+    }
+
+    private int index(long offset) {
+        return (int) (offset % bufferCapacity);
+    }
+}
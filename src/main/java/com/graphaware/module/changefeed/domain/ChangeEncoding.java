@@ -0,0 +1,1006 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.domain;
+
+import com.graphaware.common.util.Change;
+import com.graphaware.tx.event.improved.api.ImprovedTransactionData;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+
+import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import static com.graphaware.common.util.PropertyContainerUtils.valueToString;
+
+/**
+ * Compact binary encoding of the changes in a {@link ChangeSet}.
+ * <p/>
+ * Mutations captured from a transaction are encoded structurally: operation type, entity id, labels or relationship
+ * type, and properties. Changed entities are encoded as their previous state followed by a delta (changed labels,
+ * set and removed properties). Strings repeated within a change set, such as property keys and labels, are only
+ * written once and referred to by their position afterwards. Numbers are written as variable-length integers.
+ * <p/>
+ * Changes are only rendered into their human-readable form (the one produced by
+ * {@link ImprovedTransactionData#mutationsToStrings()}) by {@link #decode(byte[])}, i.e. when somebody reads them.
+ * Changes that are only available as text, such as those recorded before this encoding was introduced, are encoded
+ * verbatim.
+ * <p/>
+ * Encoding is on the commit path of every transaction, so it is kept allocation-lean: each thread encodes into its own
+ * reusable buffer and string table, created and deleted entities are written straight from the graph without taking
+ * a snapshot of them first, and strings are written as UTF-8 without an intermediate byte array. The only allocation
+ * proportional to the size of the transaction is the resulting byte array, which is stored and cached as it is.
+ * <p/>
+ * The {@link ChangeTags} of the changes are collected as a bitmap while they are encoded, and can be read back exactly
+ * by {@link #tags(byte[])}, again without rendering the changes.
+ */
+public final class ChangeEncoding {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte VERSION = 1;
+
+    private static final byte TEXT = 0;
+    private static final byte CREATED_NODE = 1;
+    private static final byte DELETED_NODE = 2;
+    private static final byte CHANGED_NODE = 3;
+    private static final byte CREATED_RELATIONSHIP = 4;
+    private static final byte DELETED_RELATIONSHIP = 5;
+    private static final byte CHANGED_RELATIONSHIP = 6;
+
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte CHAR = 4;
+    private static final byte INT = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte STRING = 9;
+    private static final byte ARRAY = 0x10;
+
+    private static final ThreadLocal<Output> OUTPUT = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output();
+        }
+    };
+
+    /**
+     * Encode all mutations of a transaction.
+     *
+     * @param transactionData data of the transaction.
+     * @return encoded changes.
+     */
+    public static byte[] encode(ImprovedTransactionData transactionData) {
+        return write(OUTPUT.get().start(), transactionData).finish();
+    }
+
+    /**
+     * Encode all mutations of a transaction into a change set, together with the bitmap of their tags.
+     *
+     * @param transactionData data of the transaction.
+     * @param changeSet       to set the encoded changes and their tags on.
+     */
+    public static void encode(ImprovedTransactionData transactionData, ChangeSet changeSet) {
+        Output out = write(OUTPUT.get().start(), transactionData);
+        long tags = out.tags;
+        changeSet.setEncodedChanges(out.finish());
+        changeSet.setTags(tags);
+    }
+
+    private static Output write(Output out, ImprovedTransactionData transactionData) {
+        for (Node node : transactionData.getAllCreatedNodes()) {
+            out.writeByte(CREATED_NODE);
+            out.tag(ChangeTags.CREATE);
+            writeNode(out, node, true);
+        }
+
+        for (Node node : transactionData.getAllDeletedNodes()) {
+            out.writeByte(DELETED_NODE);
+            out.tag(ChangeTags.DELETE);
+            writeNode(out, node, true);
+        }
+
+        for (Change<Node> change : transactionData.getAllChangedNodes()) {
+            out.writeByte(CHANGED_NODE);
+            out.tag(ChangeTags.UPDATE);
+            NodeState previous = NodeState.of(change.getPrevious());
+            out.tagLabels(previous.labels);
+            writeNode(out, previous);
+            writeNodeDelta(out, previous, NodeState.of(change.getCurrent()), true);
+        }
+
+        for (Relationship relationship : transactionData.getAllCreatedRelationships()) {
+            out.writeByte(CREATED_RELATIONSHIP);
+            out.tag(ChangeTags.CREATE);
+            writeRelationship(out, relationship);
+        }
+
+        for (Relationship relationship : transactionData.getAllDeletedRelationships()) {
+            out.writeByte(DELETED_RELATIONSHIP);
+            out.tag(ChangeTags.DELETE);
+            writeRelationship(out, relationship);
+        }
+
+        for (Change<Relationship> change : transactionData.getAllChangedRelationships()) {
+            out.writeByte(CHANGED_RELATIONSHIP);
+            out.tag(ChangeTags.UPDATE);
+            RelationshipState previous = RelationshipState.of(change.getPrevious());
+            RelationshipState current = RelationshipState.of(change.getCurrent());
+            out.tag(ChangeTags.relationshipTypeBit(previous.type));
+            writeRelationship(out, previous);
+            writeNodeDelta(out, previous.startNode, current.startNode, false);
+            writePropertiesDelta(out, previous.properties, current.properties, true);
+            writeNodeDelta(out, previous.endNode, current.endNode, false);
+        }
+
+        return out;
+    }
+
+    /**
+     * Encode changes that are only available in their human-readable form.
+     *
+     * @param changes to encode.
+     * @return encoded changes.
+     */
+    public static byte[] encode(Collection<String> changes) {
+        Output out = OUTPUT.get().start();
+        for (String change : changes) {
+            out.writeByte(TEXT);
+            out.writeText(change);
+        }
+        return out.finish();
+    }
+
+    /**
+     * Render encoded changes into their human-readable form. Identical changes are only rendered once.
+     *
+     * @param encoded changes produced by one of the encode methods.
+     * @return changes.
+     * @throws IllegalArgumentException if the changes have been encoded with an unknown version of the encoding.
+     */
+    public static List<String> decode(byte[] encoded) {
+        Input in = new Input(encoded);
+        Set<String> changes = new LinkedHashSet<>();
+
+        while (in.hasMore()) {
+            byte type = in.readByte();
+            switch (type) {
+                case TEXT:
+                    changes.add(in.readText());
+                    break;
+                case CREATED_NODE:
+                    changes.add("Created node " + readNode(in));
+                    break;
+                case DELETED_NODE:
+                    changes.add("Deleted node " + readNode(in));
+                    break;
+                case CHANGED_NODE:
+                    NodeState previousNode = readNode(in);
+                    changes.add("Changed node " + previousNode + " to " + readNodeDelta(in, previousNode, null));
+                    break;
+                case CREATED_RELATIONSHIP:
+                    changes.add("Created relationship " + readRelationship(in));
+                    break;
+                case DELETED_RELATIONSHIP:
+                    changes.add("Deleted relationship " + readRelationship(in));
+                    break;
+                case CHANGED_RELATIONSHIP:
+                    RelationshipState previous = readRelationship(in);
+                    RelationshipState current = new RelationshipState(previous.id, previous.type,
+                            readNodeDelta(in, previous.startNode, null),
+                            readPropertiesDelta(in, previous.properties, null),
+                            readNodeDelta(in, previous.endNode, null));
+                    changes.add("Changed relationship " + previous + " to " + current);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown change type " + type + ". The changes are corrupt.");
+            }
+        }
+
+        return new ArrayList<>(changes);
+    }
+
+    /**
+     * Read the tags of encoded changes, without rendering them.
+     *
+     * @param encoded changes produced by one of the encode methods.
+     * @return tags.
+     * @throws IllegalArgumentException if the changes have been encoded with an unknown version of the encoding.
+     */
+    public static ChangeTags tags(byte[] encoded) {
+        Input in = new Input(encoded);
+        ChangeTags tags = new ChangeTags();
+
+        while (in.hasMore()) {
+            byte type = in.readByte();
+            switch (type) {
+                case TEXT:
+                    String text = in.readText();
+                    if (text.startsWith("Created ")) {
+                        tags.addOperation(ChangeTags.CREATE);
+                    } else if (text.startsWith("Changed ")) {
+                        tags.addOperation(ChangeTags.UPDATE);
+                    } else if (text.startsWith("Deleted ")) {
+                        tags.addOperation(ChangeTags.DELETE);
+                    } else {
+                        tags.addOperation(ChangeTags.CREATE | ChangeTags.UPDATE | ChangeTags.DELETE);
+                    }
+                    tags.markIncomplete();
+                    break;
+                case CREATED_NODE:
+                    tags.addOperation(ChangeTags.CREATE);
+                    tagNode(tags, readNode(in));
+                    break;
+                case DELETED_NODE:
+                    tags.addOperation(ChangeTags.DELETE);
+                    tagNode(tags, readNode(in));
+                    break;
+                case CHANGED_NODE:
+                    tags.addOperation(ChangeTags.UPDATE);
+                    NodeState previousNode = readNode(in);
+                    tags.addLabels(previousNode.labels);
+                    tags.addLabels(readNodeDelta(in, previousNode, tags).labels);
+                    break;
+                case CREATED_RELATIONSHIP:
+                    tags.addOperation(ChangeTags.CREATE);
+                    tagRelationship(tags, readRelationship(in));
+                    break;
+                case DELETED_RELATIONSHIP:
+                    tags.addOperation(ChangeTags.DELETE);
+                    tagRelationship(tags, readRelationship(in));
+                    break;
+                case CHANGED_RELATIONSHIP:
+                    tags.addOperation(ChangeTags.UPDATE);
+                    RelationshipState previous = readRelationship(in);
+                    tags.addRelationshipType(previous.type);
+                    readNodeDelta(in, previous.startNode, null);
+                    readPropertiesDelta(in, previous.properties, tags);
+                    readNodeDelta(in, previous.endNode, null);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown change type " + type + ". The changes are corrupt.");
+            }
+        }
+
+        return tags;
+    }
+
+    private static void tagNode(ChangeTags tags, NodeState node) {
+        tags.addLabels(node.labels);
+        tags.addPropertyKeys(node.properties.keySet());
+    }
+
+    private static void tagRelationship(ChangeTags tags, RelationshipState relationship) {
+        tags.addRelationshipType(relationship.type);
+        tags.addPropertyKeys(relationship.properties.keySet());
+    }
+
+    /**
+     * Write a node straight from the graph, in the same format as {@link #writeNode(Output, NodeState)}, tagging its
+     * labels and property keys if asked to.
+     */
+    private static void writeNode(Output out, Node node, boolean tag) {
+        out.writeVarLong(node.getId());
+
+        List<String> labels = out.scratch();
+        for (Label label : node.getLabels()) {
+            labels.add(label.name());
+        }
+        out.writeVarInt(labels.size());
+        for (String label : labels) {
+            out.writeString(label);
+        }
+        if (tag) {
+            out.tagLabels(labels);
+        }
+
+        writeProperties(out, node, tag);
+    }
+
+    private static void writeNode(Output out, NodeState node) {
+        out.writeVarLong(node.id);
+        out.writeVarInt(node.labels.size());
+        for (String label : node.labels) {
+            out.writeString(label);
+        }
+        writeProperties(out, node.properties);
+    }
+
+    private static NodeState readNode(Input in) {
+        long id = in.readVarLong();
+        int labelCount = in.readVarInt();
+        List<String> labels = new ArrayList<>(labelCount);
+        for (int i = 0; i < labelCount; i++) {
+            labels.add(in.readString());
+        }
+        return new NodeState(id, labels, readProperties(in));
+    }
+
+    private static void writeNodeDelta(Output out, NodeState previous, NodeState current, boolean tag) {
+        if (new HashSet<>(previous.labels).equals(new HashSet<>(current.labels))) {
+            out.writeByte((byte) 0);
+        } else {
+            out.writeByte((byte) 1);
+            out.writeVarInt(current.labels.size());
+            for (String label : current.labels) {
+                out.writeString(label);
+            }
+            if (tag) {
+                out.tagLabels(current.labels);
+            }
+        }
+        writePropertiesDelta(out, previous.properties, current.properties, tag);
+    }
+
+    /**
+     * @param tags to add the keys of set and removed properties to, null for none.
+     */
+    private static NodeState readNodeDelta(Input in, NodeState previous, ChangeTags tags) {
+        List<String> labels = previous.labels;
+        if (in.readByte() != 0) {
+            int labelCount = in.readVarInt();
+            labels = new ArrayList<>(labelCount);
+            for (int i = 0; i < labelCount; i++) {
+                labels.add(in.readString());
+            }
+        }
+        return new NodeState(previous.id, labels, readPropertiesDelta(in, previous.properties, tags));
+    }
+
+    private static void writeRelationship(Output out, RelationshipState relationship) {
+        out.writeVarLong(relationship.id);
+        out.writeString(relationship.type);
+        writeNode(out, relationship.startNode);
+        writeProperties(out, relationship.properties);
+        writeNode(out, relationship.endNode);
+    }
+
+    /**
+     * Write a relationship straight from the graph, in the same format as {@link #writeRelationship(Output, RelationshipState)},
+     * tagging its type and property keys, but not its nodes.
+     */
+    private static void writeRelationship(Output out, Relationship relationship) {
+        out.writeVarLong(relationship.getId());
+        String type = relationship.getType().name();
+        out.writeString(type);
+        out.tag(ChangeTags.relationshipTypeBit(type));
+        writeNode(out, relationship.getStartNode(), false);
+        writeProperties(out, relationship, true);
+        writeNode(out, relationship.getEndNode(), false);
+    }
+
+    private static RelationshipState readRelationship(Input in) {
+        long id = in.readVarLong();
+        String type = in.readString();
+        NodeState startNode = readNode(in);
+        Map<String, Object> properties = readProperties(in);
+        NodeState endNode = readNode(in);
+        return new RelationshipState(id, type, startNode, properties, endNode);
+    }
+
+    private static void writeProperties(Output out, Map<String, Object> properties) {
+        out.writeVarInt(properties.size());
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            out.writeString(property.getKey());
+            out.writeValue(property.getValue());
+        }
+    }
+
+    /**
+     * Write properties straight from the graph, in the same format as {@link #writeProperties(Output, Map)}, tagging
+     * their keys if asked to. The order of properties does not matter, they are sorted when read.
+     */
+    private static void writeProperties(Output out, PropertyContainer propertyContainer, boolean tag) {
+        List<String> keys = out.scratch();
+        for (String key : propertyContainer.getPropertyKeys()) {
+            keys.add(key);
+        }
+        out.writeVarInt(keys.size());
+        for (String key : keys) {
+            out.writeString(key);
+            out.writeValue(propertyContainer.getProperty(key));
+            if (tag) {
+                out.tag(ChangeTags.propertyKeyBit(key));
+            }
+        }
+    }
+
+    private static Map<String, Object> readProperties(Input in) {
+        int count = in.readVarInt();
+        Map<String, Object> properties = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            properties.put(in.readString(), in.readValue());
+        }
+        return properties;
+    }
+
+    private static void writePropertiesDelta(Output out, Map<String, Object> previous, Map<String, Object> current, boolean tag) {
+        Map<String, Object> set = new TreeMap<>();
+        for (Map.Entry<String, Object> property : current.entrySet()) {
+            if (!Objects.deepEquals(property.getValue(), previous.get(property.getKey()))) {
+                set.put(property.getKey(), property.getValue());
+            }
+        }
+        writeProperties(out, set);
+
+        List<String> removed = new ArrayList<>();
+        for (String key : previous.keySet()) {
+            if (!current.containsKey(key)) {
+                removed.add(key);
+            }
+        }
+        out.writeVarInt(removed.size());
+        for (String key : removed) {
+            out.writeString(key);
+        }
+
+        if (tag) {
+            out.tagPropertyKeys(set.keySet());
+            out.tagPropertyKeys(removed);
+        }
+    }
+
+    /**
+     * @param tags to add the keys of set and removed properties to, null for none.
+     */
+    private static Map<String, Object> readPropertiesDelta(Input in, Map<String, Object> previous, ChangeTags tags) {
+        Map<String, Object> properties = new TreeMap<>(previous);
+        Map<String, Object> set = readProperties(in);
+        properties.putAll(set);
+        if (tags != null) {
+            tags.addPropertyKeys(set.keySet());
+        }
+        int removed = in.readVarInt();
+        for (int i = 0; i < removed; i++) {
+            String key = in.readString();
+            properties.remove(key);
+            if (tags != null) {
+                tags.addPropertyKeys(Collections.singleton(key));
+            }
+        }
+        return properties;
+    }
+
+    private static Map<String, Object> properties(PropertyContainer propertyContainer) {
+        Map<String, Object> properties = new TreeMap<>();
+        for (String key : propertyContainer.getPropertyKeys()) {
+            properties.put(key, propertyContainer.getProperty(key));
+        }
+        return properties;
+    }
+
+    private static String propertiesToString(Map<String, Object> properties) {
+        if (properties.isEmpty()) {
+            return "";
+        }
+
+        StringBuilder result = new StringBuilder("{");
+        boolean first = true;
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            if (!first) {
+                result.append(", ");
+            }
+            first = false;
+            result.append(property.getKey()).append(": ").append(valueToString(property.getValue()));
+        }
+        return result.append("}").toString();
+    }
+
+    /**
+     * State of a node as captured in a transaction.
+     */
+    private static final class NodeState {
+
+        private final long id;
+        private final List<String> labels;
+        private final Map<String, Object> properties;
+
+        private NodeState(long id, List<String> labels, Map<String, Object> properties) {
+            this.id = id;
+            this.labels = labels;
+            this.properties = properties;
+        }
+
+        private static NodeState of(Node node) {
+            List<String> labels = new ArrayList<>();
+            for (Label label : node.getLabels()) {
+                labels.add(label.name());
+            }
+            return new NodeState(node.getId(), labels, properties(node));
+        }
+
+        /**
+         * @return the same representation as {@link com.graphaware.common.util.PropertyContainerUtils#nodeToString(Node)}.
+         */
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder("(");
+
+            List<String> sortedLabels = new ArrayList<>(labels);
+            Collections.sort(sortedLabels);
+            for (String label : sortedLabels) {
+                result.append(":").append(label);
+            }
+
+            String props = propertiesToString(properties);
+            if (!props.isEmpty()) {
+                if (!sortedLabels.isEmpty()) {
+                    result.append(" ");
+                }
+                result.append(props);
+            }
+
+            return result.append(")").toString();
+        }
+    }
+
+    /**
+     * State of a relationship as captured in a transaction.
+     */
+    private static final class RelationshipState {
+
+        private final long id;
+        private final String type;
+        private final NodeState startNode;
+        private final Map<String, Object> properties;
+        private final NodeState endNode;
+
+        private RelationshipState(long id, String type, NodeState startNode, Map<String, Object> properties, NodeState endNode) {
+            this.id = id;
+            this.type = type;
+            this.startNode = startNode;
+            this.properties = properties;
+            this.endNode = endNode;
+        }
+
+        private static RelationshipState of(Relationship relationship) {
+            return new RelationshipState(relationship.getId(), relationship.getType().name(),
+                    NodeState.of(relationship.getStartNode()), properties(relationship), NodeState.of(relationship.getEndNode()));
+        }
+
+        /**
+         * @return the same representation as {@link com.graphaware.common.util.PropertyContainerUtils#relationshipToString(Relationship)}.
+         */
+        @Override
+        public String toString() {
+            String props = propertiesToString(properties);
+            return startNode + "-[:" + type + (props.isEmpty() ? "" : " " + props) + "]->" + endNode;
+        }
+    }
+
+    /**
+     * Growable buffer the changes are encoded into, reused by all encodings on the same thread.
+     */
+    private static final class Output {
+
+        private static final int INITIAL_SIZE = 1024;
+        private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+        private static final int MAX_RETAINED_STRINGS = 4096;
+
+        private final List<String> scratch = new ArrayList<>();
+        private Map<String, Integer> strings = new HashMap<>();
+        private byte[] buffer = new byte[INITIAL_SIZE];
+        private int position;
+        private long tags;
+
+        private Output start() {
+            position = 0;
+            tags = 0;
+            strings.clear();
+            writeByte(VERSION);
+            return this;
+        }
+
+        /**
+         * @return the encoded changes. Buffers grown by an unusually large transaction are released.
+         */
+        private byte[] finish() {
+            byte[] result = Arrays.copyOf(buffer, position);
+            if (buffer.length > MAX_RETAINED_SIZE) {
+                buffer = new byte[INITIAL_SIZE];
+            }
+            if (strings.size() > MAX_RETAINED_STRINGS) {
+                strings = new HashMap<>();
+            }
+            return result;
+        }
+
+        /**
+         * @return an empty list for temporarily collecting labels or property keys.
+         */
+        private List<String> scratch() {
+            scratch.clear();
+            return scratch;
+        }
+
+        /**
+         * Add bits to the bitmap of tags of the changes being encoded (see {@link ChangeTags#toBitmap()}).
+         */
+        private void tag(long bits) {
+            tags |= bits;
+        }
+
+        private void tagLabels(Collection<String> labels) {
+            for (String label : labels) {
+                tags |= ChangeTags.labelBit(label);
+            }
+        }
+
+        private void tagPropertyKeys(Collection<String> keys) {
+            for (String key : keys) {
+                tags |= ChangeTags.propertyKeyBit(key);
+            }
+        }
+
+        private void writeByte(byte b) {
+            ensureCapacity(1);
+            buffer[position++] = b;
+        }
+
+        private void writeBytes(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((byte) value);
+        }
+
+        private void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeFixed(long value, int bytes) {
+            for (int i = 0; i < bytes; i++) {
+                writeByte((byte) (value >>> (8 * i)));
+            }
+        }
+
+        /**
+         * Write text as UTF-8, directly into the buffer unless it contains surrogate characters.
+         */
+        private void writeText(String text) {
+            int length = text.length();
+            int utf8Length = 0;
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    utf8Length++;
+                } else if (c < 0x800) {
+                    utf8Length += 2;
+                } else if (Character.isSurrogate(c)) {
+                    byte[] bytes = text.getBytes(UTF_8);
+                    writeVarInt(bytes.length);
+                    writeBytes(bytes);
+                    return;
+                } else {
+                    utf8Length += 3;
+                }
+            }
+
+            writeVarInt(utf8Length);
+            ensureCapacity(utf8Length);
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xC0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                } else {
+                    buffer[position++] = (byte) (0xE0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        /**
+         * Write a string, or a reference to it if it has already been written.
+         */
+        private void writeString(String string) {
+            Integer index = strings.get(string);
+            if (index != null) {
+                writeVarInt(index + 1);
+                return;
+            }
+
+            strings.put(string, strings.size());
+            writeVarInt(0);
+            writeText(string);
+        }
+
+        private void writeValue(Object value) {
+            if (value.getClass().isArray()) {
+                byte type = type(value.getClass().getComponentType());
+                writeByte((byte) (ARRAY | type));
+                int length = Array.getLength(value);
+                writeVarInt(length);
+                writeArray(type, value, length);
+                return;
+            }
+
+            byte type = type(value.getClass());
+            writeByte(type);
+            writeScalar(type, value);
+        }
+
+        /**
+         * Write array elements, without boxing those of primitive arrays.
+         */
+        private void writeArray(byte type, Object array, int length) {
+            if (array instanceof long[]) {
+                for (long element : (long[]) array) {
+                    writeZigZag(element);
+                }
+            } else if (array instanceof int[]) {
+                for (int element : (int[]) array) {
+                    writeZigZag(element);
+                }
+            } else if (array instanceof short[]) {
+                for (short element : (short[]) array) {
+                    writeZigZag(element);
+                }
+            } else if (array instanceof byte[]) {
+                writeBytes((byte[]) array);
+            } else if (array instanceof boolean[]) {
+                for (boolean element : (boolean[]) array) {
+                    writeByte((byte) (element ? 1 : 0));
+                }
+            } else if (array instanceof char[]) {
+                for (char element : (char[]) array) {
+                    writeVarInt(element);
+                }
+            } else if (array instanceof float[]) {
+                for (float element : (float[]) array) {
+                    writeFixed(Float.floatToIntBits(element), 4);
+                }
+            } else if (array instanceof double[]) {
+                for (double element : (double[]) array) {
+                    writeFixed(Double.doubleToLongBits(element), 8);
+                }
+            } else {
+                for (int i = 0; i < length; i++) {
+                    writeScalar(type, Array.get(array, i));
+                }
+            }
+        }
+
+        private void writeScalar(byte type, Object value) {
+            switch (type) {
+                case BOOLEAN:
+                    writeByte((byte) ((Boolean) value ? 1 : 0));
+                    break;
+                case BYTE:
+                    writeByte((Byte) value);
+                    break;
+                case SHORT:
+                case INT:
+                case LONG:
+                    writeZigZag(((Number) value).longValue());
+                    break;
+                case CHAR:
+                    writeVarInt((Character) value);
+                    break;
+                case FLOAT:
+                    writeFixed(Float.floatToIntBits((Float) value), 4);
+                    break;
+                case DOUBLE:
+                    writeFixed(Double.doubleToLongBits((Double) value), 8);
+                    break;
+                case STRING:
+                    writeString((String) value);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown value type " + type + ". This is a bug.");
+            }
+        }
+
+        private byte type(Class<?> clazz) {
+            if (clazz == Boolean.class || clazz == boolean.class) {
+                return BOOLEAN;
+            }
+            if (clazz == Byte.class || clazz == byte.class) {
+                return BYTE;
+            }
+            if (clazz == Short.class || clazz == short.class) {
+                return SHORT;
+            }
+            if (clazz == Character.class || clazz == char.class) {
+                return CHAR;
+            }
+            if (clazz == Integer.class || clazz == int.class) {
+                return INT;
+            }
+            if (clazz == Long.class || clazz == long.class) {
+                return LONG;
+            }
+            if (clazz == Float.class || clazz == float.class) {
+                return FLOAT;
+            }
+            if (clazz == Double.class || clazz == double.class) {
+                return DOUBLE;
+            }
+            if (clazz == String.class) {
+                return STRING;
+            }
+            throw new IllegalArgumentException("Property value of type " + clazz.getName() + " can not be encoded");
+        }
+
+        private void ensureCapacity(int extra) {
+            if (position + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+            }
+        }
+
+    }
+
+    /**
+     * Reader of encoded changes.
+     */
+    private static final class Input {
+
+        private final List<String> strings = new ArrayList<>();
+        private final byte[] buffer;
+        private int position;
+
+        private Input(byte[] buffer) {
+            this.buffer = buffer;
+            byte version = readByte();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unknown version " + version + " of change encoding");
+            }
+        }
+
+        private boolean hasMore() {
+            return position < buffer.length;
+        }
+
+        private byte readByte() {
+            return buffer[position++];
+        }
+
+        private int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        private long readVarLong() {
+            long result = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return result;
+        }
+
+        private long readZigZag() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readFixed(int bytes) {
+            long result = 0;
+            for (int i = 0; i < bytes; i++) {
+                result |= (readByte() & 0xFFL) << (8 * i);
+            }
+            return result;
+        }
+
+        private String readText() {
+            int length = readVarInt();
+            String text = new String(buffer, position, length, UTF_8);
+            position += length;
+            return text;
+        }
+
+        private String readString() {
+            int index = readVarInt();
+            if (index > 0) {
+                return strings.get(index - 1);
+            }
+
+            String string = readText();
+            strings.add(string);
+            return string;
+        }
+
+        private Object readValue() {
+            byte type = readByte();
+            if ((type & ARRAY) == 0) {
+                return readScalar(type);
+            }
+
+            byte componentType = (byte) (type & ~ARRAY);
+            int length = readVarInt();
+            Object array = Array.newInstance(componentType(componentType), length);
+            for (int i = 0; i < length; i++) {
+                Array.set(array, i, readScalar(componentType));
+            }
+            return array;
+        }
+
+        private Object readScalar(byte type) {
+            switch (type) {
+                case BOOLEAN:
+                    return readByte() != 0;
+                case BYTE:
+                    return readByte();
+                case SHORT:
+                    return (short) readZigZag();
+                case CHAR:
+                    return (char) readVarInt();
+                case INT:
+                    return (int) readZigZag();
+                case LONG:
+                    return readZigZag();
+                case FLOAT:
+                    return Float.intBitsToFloat((int) readFixed(4));
+                case DOUBLE:
+                    return Double.longBitsToDouble(readFixed(8));
+                case STRING:
+                    return readString();
+                default:
+                    throw new IllegalArgumentException("Unknown value type " + type + ". The changes are corrupt.");
+            }
+        }
+
+        private Class<?> componentType(byte type) {
+            switch (type) {
+                case BOOLEAN:
+                    return boolean.class;
+                case BYTE:
+                    return byte.class;
+                case SHORT:
+                    return short.class;
+                case CHAR:
+                    return char.class;
+                case INT:
+                    return int.class;
+                case LONG:
+                    return long.class;
+                case FLOAT:
+                    return float.class;
+                case DOUBLE:
+                    return double.class;
+                case STRING:
+                    return String.class;
+                default:
+                    throw new IllegalArgumentException("Unknown value type " + type + ". The changes are corrupt.");
+            }
+        }
+    }
+
+    private ChangeEncoding() {
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.domain;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Filter of {@link ChangeSet}s by their {@link ChangeTags}. A change set matches if it touches at least one of the
+ * labels, at least one of the relationship types, and at least one of the property keys, and performs at least one of
+ * the operations given. Criteria that have not been given match every change set.
+ * <p/>
+ * A change set is checked against its tag bitmap first, so that most change sets that do not match are skipped without
+ * reading their changes. Only change sets whose bitmap might match are checked against their exact tags.
+ */
+public final class ChangeFilter {
+
+    private static final ChangeFilter ALL = new ChangeFilter(Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<String>emptySet(), 0);
+
+    private final Set<String> labels;
+    private final Set<String> relationshipTypes;
+    private final Set<String> propertyKeys;
+    private final long operations;
+
+    private final long labelBits;
+    private final long relationshipTypeBits;
+    private final long propertyKeyBits;
+
+    /**
+     * Get a filter matching all change sets, which can be narrowed down by the <code>with</code> methods.
+     *
+     * @return filter.
+     */
+    public static ChangeFilter all() {
+        return ALL;
+    }
+
+    private ChangeFilter(Set<String> labels, Set<String> relationshipTypes, Set<String> propertyKeys, long operations) {
+        this.labels = labels;
+        this.relationshipTypes = relationshipTypes;
+        this.propertyKeys = propertyKeys;
+        this.operations = operations;
+
+        long bits = 0;
+        for (String label : labels) {
+            bits |= ChangeTags.labelBit(label);
+        }
+        labelBits = bits;
+
+        bits = 0;
+        for (String type : relationshipTypes) {
+            bits |= ChangeTags.relationshipTypeBit(type);
+        }
+        relationshipTypeBits = bits;
+
+        bits = 0;
+        for (String key : propertyKeys) {
+            bits |= ChangeTags.propertyKeyBit(key);
+        }
+        propertyKeyBits = bits;
+    }
+
+    /**
+     * Create a new instance of this filter with labels, one of which a change set must touch.
+     *
+     * @param labels labels, none for any.
+     * @return new instance.
+     */
+    public ChangeFilter withLabels(String... labels) {
+        return withLabels(Arrays.asList(labels));
+    }
+
+    /**
+     * Create a new instance of this filter with labels, one of which a change set must touch.
+     *
+     * @param labels labels, empty for any.
+     * @return new instance.
+     */
+    public ChangeFilter withLabels(Collection<String> labels) {
+        return new ChangeFilter(new HashSet<>(labels), relationshipTypes, propertyKeys, operations);
+    }
+
+    /**
+     * Create a new instance of this filter with relationship types, one of which a change set must touch.
+     *
+     * @param relationshipTypes relationship types, none for any.
+     * @return new instance.
+     */
+    public ChangeFilter withRelationshipTypes(String... relationshipTypes) {
+        return withRelationshipTypes(Arrays.asList(relationshipTypes));
+    }
+
+    /**
+     * Create a new instance of this filter with relationship types, one of which a change set must touch.
+     *
+     * @param relationshipTypes relationship types, empty for any.
+     * @return new instance.
+     */
+    public ChangeFilter withRelationshipTypes(Collection<String> relationshipTypes) {
+        return new ChangeFilter(labels, new HashSet<>(relationshipTypes), propertyKeys, operations);
+    }
+
+    /**
+     * Create a new instance of this filter with property keys, one of which a change set must touch.
+     *
+     * @param propertyKeys property keys, none for any.
+     * @return new instance.
+     */
+    public ChangeFilter withPropertyKeys(String... propertyKeys) {
+        return withPropertyKeys(Arrays.asList(propertyKeys));
+    }
+
+    /**
+     * Create a new instance of this filter with property keys, one of which a change set must touch.
+     *
+     * @param propertyKeys property keys, empty for any.
+     * @return new instance.
+     */
+    public ChangeFilter withPropertyKeys(Collection<String> propertyKeys) {
+        return new ChangeFilter(labels, relationshipTypes, new HashSet<>(propertyKeys), operations);
+    }
+
+    /**
+     * Create a new instance of this filter with operations, one of which a change set must perform.
+     *
+     * @param operations "create", "update", or "delete" (case insensitive), none for any.
+     * @return new instance.
+     * @throws IllegalArgumentException if an operation is unknown.
+     */
+    public ChangeFilter withOperations(String... operations) {
+        return withOperations(Arrays.asList(operations));
+    }
+
+    /**
+     * Create a new instance of this filter with operations, one of which a change set must perform.
+     *
+     * @param operations "create", "update", or "delete" (case insensitive), empty for any.
+     * @return new instance.
+     * @throws IllegalArgumentException if an operation is unknown.
+     */
+    public ChangeFilter withOperations(Collection<String> operations) {
+        long bits = 0;
+        for (String operation : operations) {
+            if ("create".equalsIgnoreCase(operation)) {
+                bits |= ChangeTags.CREATE;
+            } else if ("update".equalsIgnoreCase(operation)) {
+                bits |= ChangeTags.UPDATE;
+            } else if ("delete".equalsIgnoreCase(operation)) {
+                bits |= ChangeTags.DELETE;
+            } else {
+                throw new IllegalArgumentException("Unknown operation " + operation + ", only create, update, and delete can be specified");
+            }
+        }
+        return new ChangeFilter(labels, relationshipTypes, propertyKeys, bits);
+    }
+
+    /**
+     * @return true iff this filter matches all change sets.
+     */
+    public boolean isAll() {
+        return operations == 0 && labels.isEmpty() && relationshipTypes.isEmpty() && propertyKeys.isEmpty();
+    }
+
+    /**
+     * Check whether a change set with the given tag bitmap might match this filter.
+     *
+     * @param tags bitmap of the change set (see {@link ChangeTags#toBitmap()}).
+     * @return false iff the change set does not match for sure.
+     */
+    public boolean mightMatch(long tags) {
+        return (operations == 0 || (tags & operations) != 0)
+                && (labelBits == 0 || (tags & labelBits) != 0)
+                && (relationshipTypeBits == 0 || (tags & relationshipTypeBits) != 0)
+                && (propertyKeyBits == 0 || (tags & propertyKeyBits) != 0);
+    }
+
+    /**
+     * Check whether a change set matches this filter. Its changes are only read if its tag bitmap might match and the
+     * filter is not limited to operations, which the bitmap holds exactly.
+     *
+     * @param changeSet to check.
+     * @return true iff the change set matches.
+     */
+    public boolean matches(ChangeSet changeSet) {
+        if (isAll()) {
+            return true;
+        }
+
+        if (!mightMatch(changeSet.getTags())) {
+            return false;
+        }
+
+        if (labels.isEmpty() && relationshipTypes.isEmpty() && propertyKeys.isEmpty()) {
+            return true;
+        }
+
+        ChangeTags tags = ChangeEncoding.tags(changeSet.getEncodedChanges());
+        return touchesAny(tags, labels, tags.getLabels())
+                && touchesAny(tags, relationshipTypes, tags.getRelationshipTypes())
+                && touchesAny(tags, propertyKeys, tags.getPropertyKeys());
+    }
+
+    private static boolean touchesAny(ChangeTags tags, Set<String> wanted, Set<String> touched) {
+        if (wanted.isEmpty() || !tags.isComplete()) {
+            return true;
+        }
+        for (String name : wanted) {
+            if (touched.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
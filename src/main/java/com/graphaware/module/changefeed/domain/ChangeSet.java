@@ -26,12 +26,29 @@ import java.util.*;
  * <p/>
  * Note that the changes are organised in a list for predictable order (creates, then deletes, etc.), but the ordering
  * within a particular change set does not resemble the real ordering of the operations in the transaction.
+ * <p/>
+ * Changes captured from a transaction are held in their compact binary form (see {@link ChangeEncoding}) and only
+ * rendered into human-readable strings when first read. The JSON form of the change set served by the REST API (see
+ * {@link ChangeSetJson}) is encoded on first read as well, and retained for as long as the change set is.
+ * <p/>
+ * A change set can also be read from storage as a header only, i.e. its uuid, sequence number, timestamp, and number of
+ * changes, without its changes. The changes of such a change set are fetched on demand (see {@link #loadEncodedChanges()})
+ * when first read.
+ * <p/>
+ * The bitmap of the {@link ChangeTags} of a change set is computed when its changes are encoded and stored alongside it,
+ * so that it is known without reading the changes (see {@link ChangeFilter}).
  */
 public class ChangeSet {
 
     private final String uuid;
-    private final long timestamp;
-    private final List<String> changes = new LinkedList<>();
+    private long timestamp;
+    private List<String> changes = new ArrayList<>();
+    private byte[] encodedChanges;
+    private long sequence;
+    private int changeCount = -1;
+    private long tags;
+    private boolean tagged;
+    private volatile byte[] json;
 
     /**
      * Construct a new change set with timestamp of now.
@@ -53,6 +70,22 @@ public class ChangeSet {
         this.timestamp = timestamp;
     }
 
+    /**
+     * Construct a header of a change set, i.e. a change set whose changes have not been read. The changes are fetched by
+     * {@link #loadEncodedChanges()} when first needed.
+     *
+     * @param uuid        uuid identifying the change set.
+     * @param timestamp   of the change set.
+     * @param sequence    sequence number of the change set.
+     * @param changeCount number of changes in the change set.
+     */
+    protected ChangeSet(String uuid, long timestamp, long sequence, int changeCount) {
+        this(uuid, timestamp);
+        this.sequence = sequence;
+        this.changeCount = changeCount;
+        this.changes = null;
+    }
+
 
     /**
      * Get the timestamp of this change set.
@@ -63,6 +96,42 @@ public class ChangeSet {
         return timestamp;
     }
 
+    /**
+     * Make sure the timestamp of this change set is not lower than the given one, so that timestamps never decrease
+     * along the feed. Only meant to be called by the component recording the change set, when assigning its sequence
+     * number.
+     *
+     * @param timestamp of the change set preceding this one in the feed.
+     * @return timestamp of this change set.
+     */
+    public long notBefore(long timestamp) {
+        if (timestamp > this.timestamp) {
+            this.timestamp = timestamp;
+            json = null;
+        }
+        return this.timestamp;
+    }
+
+    /**
+     * Get the sequence number of this change set.
+     *
+     * @return sequence number determining the position of this change set in the feed, 0 if the change set has not been
+     * recorded yet.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set the sequence number of this change set. Only meant to be called by the component recording the change set.
+     *
+     * @param sequence sequence number.
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+        json = null;
+    }
+
     /**
      * Get the uuid of this change set.
      *
@@ -77,8 +146,12 @@ public class ChangeSet {
      *
      * @param changes to add.
      */
-    public void addChanges(Collection<String> changes) {
-        this.changes.addAll(changes);
+    public synchronized void addChanges(Collection<String> changes) {
+        decodedChanges().addAll(changes);
+        encodedChanges = null;
+        changeCount = -1;
+        tagged = false;
+        json = null;
     }
 
     /**
@@ -87,7 +160,94 @@ public class ChangeSet {
      * @param changes to add.
      */
     public void addChanges(String... changes) {
-        this.changes.addAll(Arrays.asList(changes));
+        addChanges(Arrays.asList(changes));
+    }
+
+    /**
+     * Replace all changes in this change set by changes in their encoded form.
+     *
+     * @param encodedChanges changes encoded by {@link ChangeEncoding}.
+     */
+    public synchronized void setEncodedChanges(byte[] encodedChanges) {
+        this.encodedChanges = encodedChanges;
+        this.changes = null;
+        changeCount = -1;
+        tagged = false;
+        json = null;
+    }
+
+    /**
+     * Set the number of changes in this change set, when known to the component reading the change set from storage.
+     * Only meant to be called after the changes have been set.
+     *
+     * @param changeCount number of changes, equal to the size of {@link #getChanges()}.
+     */
+    public synchronized void setChangeCount(int changeCount) {
+        this.changeCount = changeCount;
+    }
+
+    /**
+     * Get the number of changes in this change set. Unless known from storage, the changes are rendered to count them,
+     * but only once.
+     *
+     * @return number of changes.
+     */
+    @JsonIgnore
+    public synchronized int getChangeCount() {
+        if (changeCount < 0) {
+            changeCount = decodedChanges().size();
+        }
+        return changeCount;
+    }
+
+    /**
+     * Set the bitmap of the tags of this change set, when known to the component encoding the changes or reading the
+     * change set from storage. Only meant to be called after the changes have been set.
+     *
+     * @param tags bitmap, equal to the one of {@link ChangeEncoding#tags(byte[])} for {@link #getEncodedChanges()}.
+     */
+    public synchronized void setTags(long tags) {
+        this.tags = tags;
+        this.tagged = true;
+    }
+
+    /**
+     * Get the bitmap of the tags of this change set. Unless known, the tags are read from the encoded changes to compute
+     * it, but only once.
+     *
+     * @return bitmap (see {@link ChangeTags#toBitmap()}).
+     */
+    @JsonIgnore
+    public synchronized long getTags() {
+        if (!tagged) {
+            tags = ChangeEncoding.tags(getEncodedChanges()).toBitmap();
+            tagged = true;
+        }
+        return tags;
+    }
+
+    /**
+     * Check whether the changes of this change set have been read, i.e. it is not a header only, or its changes have
+     * been fetched since.
+     *
+     * @return true iff the changes are held by this change set.
+     */
+    @JsonIgnore
+    public synchronized boolean isLoaded() {
+        return changes != null || encodedChanges != null;
+    }
+
+    /**
+     * Get all the changes in this change set in their encoded form.
+     *
+     * @return changes encoded by {@link ChangeEncoding}.
+     */
+    @JsonIgnore
+    public synchronized byte[] getEncodedChanges() {
+        if (encodedChanges == null) {
+            encodedChanges = changes == null ? loadEncodedChanges() : ChangeEncoding.encode(changes);
+        }
+        return encodedChanges;
     }
 
     /**
@@ -95,8 +255,8 @@ public class ChangeSet {
      *
      * @return all changes in a read-only list.
      */
-    public List<String> getChanges() {
-        return Collections.unmodifiableList(changes);
+    public synchronized List<String> getChanges() {
+        return Collections.unmodifiableList(decodedChanges());
     }
 
     /**
@@ -105,10 +265,57 @@ public class ChangeSet {
      * @return all changes in an array.
      */
     @JsonIgnore
-    public String[] getChangesAsArray() {
+    public synchronized String[] getChangesAsArray() {
+        List<String> changes = decodedChanges();
         return changes.toArray(new String[changes.size()]);
     }
 
+    /**
+     * Get this change set encoded as a JSON object. The encoding is only done once, the result is retained.
+     *
+     * @return UTF-8 encoded JSON object, must not be modified.
+     */
+    @JsonIgnore
+    public byte[] getJson() {
+        byte[] result = json;
+        if (result == null) {
+            synchronized (this) {
+                result = json;
+                if (result == null) {
+                    result = ChangeSetJson.encode(this);
+                    json = result;
+                    if (encodedChanges != null) {
+                        //the rendered strings are not needed to serve the JSON, keep the compact form only
+                        changes = null;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private List<String> decodedChanges() {
+        if (changes == null) {
+            if (encodedChanges == null) {
+                encodedChanges = loadEncodedChanges();
+            }
+            changes = new ArrayList<>(ChangeEncoding.decode(encodedChanges));
+        }
+        return changes;
+    }
+
+    /**
+     * Fetch the changes of a change set that has been read as a header only. Called at most once, whilst holding the
+     * lock of this change set.
+     *
+     * @return changes encoded by {@link ChangeEncoding}.
+     * @throws IllegalStateException if the changes cannot be fetched, which is always the case for change sets that
+     *                               have not been constructed as headers.
+     */
+    protected byte[] loadEncodedChanges() {
+        throw new IllegalStateException("Changes of change set " + uuid + " have not been read");
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -116,6 +323,7 @@ public class ChangeSet {
     public String toString() {
         return "ChangeSet{" +
                 "uuid='" + uuid + '\'' +
+                ", sequence=" + sequence +
                 ", timestamp=" + timestamp +
                 ", changes=" + ArrayUtils.primitiveOrStringArrayToString(getChangesAsArray()) +
                 '}';
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.domain;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+/**
+ * JSON encoding of {@link ChangeSet}s, equivalent to the documents Jackson produces for them.
+ * <p/>
+ * A change set is encoded once and the resulting UTF-8 bytes are retained by the change set itself (see
+ * {@link ChangeSet#getJson()}), so a change set held in the cache and read by many clients is only ever encoded once.
+ * A list of change sets is then written by concatenating the encoded fragments, without building any intermediate
+ * objects.
+ * <p/>
+ * The header of a change set, i.e. everything but its changes, can be encoded instead, with the number of changes in
+ * place of the changes. Headers are cheap to produce and are not retained.
+ */
+public final class ChangeSetJson {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final byte[] START = "[".getBytes(UTF_8);
+    private static final byte[] SEPARATOR = ",".getBytes(UTF_8);
+    private static final byte[] END = "]".getBytes(UTF_8);
+    private static final byte[] PAGE_START = "{\"changes\":".getBytes(UTF_8);
+
+    private ChangeSetJson() {
+    }
+
+    /**
+     * Encode a change set as a JSON object.
+     *
+     * @param changeSet to encode.
+     * @return UTF-8 encoded JSON object.
+     */
+    public static byte[] encode(ChangeSet changeSet) {
+        StringBuilder json = new StringBuilder(128);
+
+        json.append("{\"uuid\":");
+        appendString(json, changeSet.getUuid());
+        json.append(",\"sequence\":").append(changeSet.getSequence());
+        json.append(",\"timestamp\":").append(changeSet.getTimestamp());
+        json.append(",\"changes\":[");
+        boolean first = true;
+        for (String change : changeSet.getChanges()) {
+            if (!first) {
+                json.append(',');
+            }
+            appendString(json, change);
+            first = false;
+        }
+        json.append("]}");
+
+        return json.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Encode the header of a change set as a JSON object, with the number of changes in place of the changes.
+     *
+     * @param changeSet to encode.
+     * @return UTF-8 encoded JSON object.
+     */
+    public static byte[] encodeHeader(ChangeSet changeSet) {
+        StringBuilder json = new StringBuilder(128);
+
+        json.append("{\"uuid\":");
+        appendString(json, changeSet.getUuid());
+        json.append(",\"sequence\":").append(changeSet.getSequence());
+        json.append(",\"timestamp\":").append(changeSet.getTimestamp());
+        json.append(",\"changeCount\":").append(changeSet.getChangeCount());
+        json.append('}');
+
+        return json.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Write change sets as a JSON array, using the encoded form retained by each change set.
+     *
+     * @param changeSets to write, in the order in which they should appear in the array.
+     * @param out        to write to. It is not closed.
+     * @throws IOException if writing fails.
+     */
+    public static void write(Collection<ChangeSet> changeSets, OutputStream out) throws IOException {
+        ArrayWriter writer = new ArrayWriter(out, false);
+        for (ChangeSet changeSet : changeSets) {
+            writer.write(changeSet);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Write headers of change sets as a JSON array.
+     *
+     * @param changeSets to write, in the order in which they should appear in the array.
+     * @param out        to write to. It is not closed.
+     * @throws IOException if writing fails.
+     * @see #encodeHeader(ChangeSet)
+     */
+    public static void writeHeaders(Collection<ChangeSet> changeSets, OutputStream out) throws IOException {
+        ArrayWriter writer = new ArrayWriter(out, true);
+        for (ChangeSet changeSet : changeSets) {
+            writer.write(changeSet);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Write a page of change sets as a JSON object holding the change sets (or their headers) as an array under
+     * <code>changes</code> and the token for reading the next page under <code>next</code>.
+     *
+     * @param changeSets to write, in the order in which they should appear in the array.
+     * @param next       token for reading the next page.
+     * @param headers    true for writing change set headers only (see {@link #encodeHeader(ChangeSet)}).
+     * @param out        to write to. It is not closed.
+     * @throws IOException if writing fails.
+     */
+    public static void writePage(Collection<ChangeSet> changeSets, String next, boolean headers, OutputStream out) throws IOException {
+        out.write(PAGE_START);
+        ArrayWriter writer = new ArrayWriter(out, headers);
+        for (ChangeSet changeSet : changeSets) {
+            writer.write(changeSet);
+        }
+        writer.finish();
+
+        StringBuilder json = new StringBuilder(",\"next\":");
+        appendString(json, next);
+        json.append('}');
+        out.write(json.toString().getBytes(UTF_8));
+    }
+
+    /**
+     * Writer of change sets as a JSON array, one change set at a time, so that change sets can be written as they are
+     * read, without collecting them first.
+     */
+    public static final class ArrayWriter {
+
+        private final OutputStream out;
+        private final boolean headers;
+        private boolean started = false;
+
+        /**
+         * Construct a new writer.
+         *
+         * @param out     to write to. It is not closed.
+         * @param headers true for writing change set headers only (see {@link #encodeHeader(ChangeSet)}).
+         */
+        public ArrayWriter(OutputStream out, boolean headers) {
+            this.out = out;
+            this.headers = headers;
+        }
+
+        /**
+         * Write the next change set of the array.
+         *
+         * @param changeSet to write.
+         * @throws IOException if writing fails.
+         */
+        public void write(ChangeSet changeSet) throws IOException {
+            out.write(started ? SEPARATOR : START);
+            out.write(headers ? encodeHeader(changeSet) : changeSet.getJson());
+            started = true;
+        }
+
+        /**
+         * Finish the array. Does not close the output stream.
+         *
+         * @throws IOException if writing fails.
+         */
+        public void finish() throws IOException {
+            if (!started) {
+                out.write(START);
+            }
+            out.write(END);
+        }
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                case '\b':
+                    json.append("\\b");
+                    break;
+                case '\f':
+                    json.append("\\f");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
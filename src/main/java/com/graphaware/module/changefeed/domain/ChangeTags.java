@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.domain;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tags of a {@link ChangeSet}, i.e. the operations it performs and the labels, relationship types, and property keys it
+ * touches. These are the labels of created, deleted, and changed nodes (before and after the change), the types of
+ * created, deleted, and changed relationships, the keys of all properties of created and deleted nodes and
+ * relationships, and the keys of properties set or removed on changed ones. Nodes at either end of a relationship are
+ * not tagged, unless they are created, deleted, or changed themselves.
+ * <p/>
+ * Every change set keeps its tags as a bitmap of 64 bits (see {@link #toBitmap()}), computed when its changes are
+ * encoded and stored alongside it, so that change sets can be filtered without reading their changes. The lowest three
+ * bits are the operations, each label, relationship type, and property key sets one of the other bits, chosen by the
+ * hash of its name. A bitmap can thus tell that a change set does not touch a label for sure, but only that it might
+ * touch it. The exact tags of a change set are read from its encoded changes by {@link ChangeEncoding#tags(byte[])}.
+ * <p/>
+ * Changes that are only available as text are tagged by their operation only, and might touch any label, relationship
+ * type, or property key.
+ */
+public final class ChangeTags {
+
+    public static final long CREATE = 1;
+    public static final long UPDATE = 1 << 1;
+    public static final long DELETE = 1 << 2;
+
+    private static final long OPERATIONS = CREATE | UPDATE | DELETE;
+    private static final int OPERATION_BITS = 3;
+
+    private static final int LABEL = 0x1b873593;
+    private static final int RELATIONSHIP_TYPE = 0x85ebca6b;
+    private static final int PROPERTY_KEY = 0xc2b2ae35;
+
+    private final Set<String> labels = new HashSet<>();
+    private final Set<String> relationshipTypes = new HashSet<>();
+    private final Set<String> propertyKeys = new HashSet<>();
+    private long operations;
+    private boolean complete = true;
+
+    ChangeTags() {
+    }
+
+    /**
+     * Get the operations performed.
+     *
+     * @return bits of {@link #CREATE}, {@link #UPDATE}, and {@link #DELETE}.
+     */
+    public long getOperations() {
+        return operations;
+    }
+
+    /**
+     * @return labels touched, in a read-only set.
+     */
+    public Set<String> getLabels() {
+        return Collections.unmodifiableSet(labels);
+    }
+
+    /**
+     * @return relationship types touched, in a read-only set.
+     */
+    public Set<String> getRelationshipTypes() {
+        return Collections.unmodifiableSet(relationshipTypes);
+    }
+
+    /**
+     * @return property keys touched, in a read-only set.
+     */
+    public Set<String> getPropertyKeys() {
+        return Collections.unmodifiableSet(propertyKeys);
+    }
+
+    /**
+     * @return false iff some changes are only available as text, so that the labels, relationship types, and property
+     * keys they touch are not known.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Get these tags as a bitmap.
+     *
+     * @return bitmap.
+     */
+    public long toBitmap() {
+        long bitmap = operations;
+        if (!complete) {
+            return bitmap | ~OPERATIONS;
+        }
+        for (String label : labels) {
+            bitmap |= labelBit(label);
+        }
+        for (String type : relationshipTypes) {
+            bitmap |= relationshipTypeBit(type);
+        }
+        for (String key : propertyKeys) {
+            bitmap |= propertyKeyBit(key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * @param label name.
+     * @return bit of the label in a bitmap.
+     */
+    public static long labelBit(String label) {
+        return bit(LABEL, label);
+    }
+
+    /**
+     * @param type name.
+     * @return bit of the relationship type in a bitmap.
+     */
+    public static long relationshipTypeBit(String type) {
+        return bit(RELATIONSHIP_TYPE, type);
+    }
+
+    /**
+     * @param key name.
+     * @return bit of the property key in a bitmap.
+     */
+    public static long propertyKeyBit(String key) {
+        return bit(PROPERTY_KEY, key);
+    }
+
+    /**
+     * Bits are derived from {@link String#hashCode()}, whose value is specified, so that stored bitmaps stay valid.
+     */
+    private static long bit(int kind, String name) {
+        int hash = (name.hashCode() ^ kind) * 0x9e3779b9;
+        hash ^= hash >>> 16;
+        return 1L << (OPERATION_BITS + (hash & Integer.MAX_VALUE) % (Long.SIZE - OPERATION_BITS));
+    }
+
+    void addOperation(long operation) {
+        operations |= operation;
+    }
+
+    void addLabels(Iterable<String> labels) {
+        for (String label : labels) {
+            this.labels.add(label);
+        }
+    }
+
+    void addRelationshipType(String type) {
+        relationshipTypes.add(type);
+    }
+
+    void addPropertyKeys(Iterable<String> keys) {
+        for (String key : keys) {
+            propertyKeys.add(key);
+        }
+    }
+
+    void markIncomplete() {
+        complete = false;
+    }
+}
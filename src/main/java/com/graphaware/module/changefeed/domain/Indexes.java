@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.domain;
+
+/**
+ * Legacy indices used by the {@link com.graphaware.module.changefeed.ChangeFeedModule}.
+ */
+public final class Indexes {
+
+    private static final String CHANGE_SET_INDEX_PREFIX = "_GA_ChangeFeed_";
+
+    /**
+     * Get the name of the node index holding change sets of a module. Individual change set nodes are keyed by
+     * {@link Properties#SEQUENCE} and {@link Properties#UUID}, segment nodes by {@link Properties#FIRST_SEQUENCE} and
+     * the {@link Properties#UUID}s of all change sets they contain.
+     *
+     * @param moduleId ID of the module storing changes.
+     * @return index name.
+     */
+    public static String changeSetIndex(String moduleId) {
+        return CHANGE_SET_INDEX_PREFIX + moduleId;
+    }
+
+    /**
+     * Get the name of the node index holding change sets of one shard of a module's change feed. The first shard uses
+     * the same index as an unsharded feed (see {@link #changeSetIndex(String)}).
+     *
+     * @param moduleId ID of the module storing changes.
+     * @param shard    number of the shard, starting at 0.
+     * @return index name.
+     */
+    public static String changeSetIndex(String moduleId, int shard) {
+        if (shard == 0) {
+            return changeSetIndex(moduleId);
+        }
+        return changeSetIndex(moduleId) + "_" + shard;
+    }
+
+    private Indexes() {
+    }
+}
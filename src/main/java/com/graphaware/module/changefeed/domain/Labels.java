@@ -23,5 +23,6 @@ import org.neo4j.graphdb.Label;
  */
 public enum Labels implements Label {
     _GA_ChangeFeed,
-    _GA_ChangeSet
+    _GA_ChangeSet,
+    _GA_ChangeSetSegment
 }
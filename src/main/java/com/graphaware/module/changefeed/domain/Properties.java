@@ -22,9 +22,21 @@ package com.graphaware.module.changefeed.domain;
 public final class Properties {
 
     public static final String UUID = "uuid";
+    public static final String SEQUENCE = "sequence";
     public static final String TIMESTAMP = "timestamp";
     public static final String CHANGES = "changes";
     public static final String MODULE_ID = "moduleId";
+    public static final String FIRST_SEQUENCE = "firstSequence";
+    public static final String SEQUENCES = "sequences";
+    public static final String UUIDS = "uuids";
+    public static final String TIMESTAMPS = "timestamps";
+    public static final String CHANGE_COUNTS = "changeCounts";
+    public static final String CHANGE_LENGTHS = "changeLengths";
+    public static final String TAGS = "tags";
+    public static final String DICTIONARY = "dictionary";
+    public static final String DICTIONARY_SEQUENCE = "dictionarySequence";
+    public static final String SHARDS = "shards";
+    public static final String TIMESTAMPS_INDEXED = "timestampsIndexed";
 
     private Properties() {
     }
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.common.uuid.EaioUuidGenerator;
+import com.graphaware.common.uuid.UuidGenerator;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ChangeWriter} that hands change sets over to a bounded in-memory queue and persists them using a delegate
+ * {@link ChangeWriter} on a dedicated background thread (write-behind).
+ * <p/>
+ * Change sets are only visible to readers once the background thread has recorded them. What happens when the queue is
+ * full is determined by the {@link OverflowPolicy}. Change sets persisted on the committing thread are only persisted
+ * after all queued change sets, so that change sets are always persisted in the order they have been handed over in.
+ * Change sets still queued when the writer is shut down are either flushed or discarded, depending on configuration.
+ * Change sets handed over after shutdown are rejected.
+ */
+public class AsyncChangeWriter implements ChangeWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncChangeWriter.class);
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private final UuidGenerator uuidGenerator = new EaioUuidGenerator();
+
+    private final ChangeWriter delegate;
+    private final BlockingQueue<ChangeSet> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final boolean flushOnShutdown;
+    private final int batchSize;
+    private final Thread worker;
+    private final Object writeLock = new Object();
+
+    private volatile boolean running;
+    private volatile boolean shutdown;
+
+    /**
+     * Construct a new writer.
+     *
+     * @param delegate        writer that actually persists the changes.
+     * @param moduleId        ID of the module storing changes, used to name the background thread.
+     * @param queueCapacity   maximum number of change sets waiting to be persisted.
+     * @param overflowPolicy  what to do when the queue is full.
+     * @param flushOnShutdown true iff change sets still queued at shutdown should be persisted.
+     * @param batchSize       maximum number of queued change sets persisted in a single transaction.
+     */
+    public AsyncChangeWriter(ChangeWriter delegate, String moduleId, int queueCapacity, OverflowPolicy overflowPolicy, boolean flushOnShutdown, int batchSize) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive, was " + queueCapacity);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, was " + batchSize);
+        }
+
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.overflowPolicy = overflowPolicy;
+        this.flushOnShutdown = flushOnShutdown;
+        this.batchSize = batchSize;
+
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processQueue();
+            }
+        }, "ChangeFeed-Writer-" + moduleId);
+        worker.setDaemon(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void initialize() {
+        delegate.initialize();
+        running = true;
+        worker.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordChanges(Set<String> changes) {
+        ChangeSet changeSet = new ChangeSet(uuidGenerator.generateUuid());
+        changeSet.addChanges(changes);
+        recordChanges(changeSet);
+    }
+
+    /**
+     * Enqueue a change set to be persisted by the background thread. Should be called after the transaction that made
+     * the changes has committed.
+     *
+     * @param changeSet to record.
+     */
+    @Override
+    public void recordChanges(ChangeSet changeSet) {
+        if (shutdown) {
+            LOG.warn("Change feed writer has been shut down, rejecting change set {}", changeSet.getUuid());
+            return;
+        }
+
+        if (!running) {
+            LOG.warn("Change feed writer is not running, recording change set {} synchronously", changeSet.getUuid());
+            recordSynchronously(changeSet);
+            return;
+        }
+
+        if (queue.offer(changeSet)) {
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(changeSet);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    LOG.warn("Interrupted while waiting for space in the change feed queue, recording change set {} synchronously", changeSet.getUuid());
+                    recordSynchronously(changeSet);
+                }
+                break;
+            case CALLER_RUNS:
+                recordSynchronously(changeSet);
+                break;
+            case DISCARD:
+                LOG.warn("Change feed queue is full, discarding change set {}", changeSet.getUuid());
+                break;
+            default:
+                throw new IllegalStateException("Unknown overflow policy " + overflowPolicy + ". This is a bug.");
+        }
+    }
+
+    /**
+     * Persist a change set on the calling thread, after all queued change sets, which are persisted by the calling
+     * thread as well unless the background thread is already persisting them.
+     *
+     * @param changeSet to persist.
+     */
+    private void recordSynchronously(ChangeSet changeSet) {
+        synchronized (writeLock) {
+            if (shutdown) {
+                LOG.warn("Change feed writer has been shut down, rejecting change set {}", changeSet.getUuid());
+                return;
+            }
+
+            List<ChangeSet> batch = new ArrayList<>();
+            while (queue.drainTo(batch, batchSize) > 0) {
+                persist(batch);
+                batch.clear();
+            }
+
+            delegate.recordChanges(changeSet);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordChangeSets(List<ChangeSet> changeSets) {
+        for (ChangeSet changeSet : changeSets) {
+            recordChanges(changeSet);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void pruneChanges(int keep, int mustBeExceededBy) {
+        delegate.pruneChanges(keep, mustBeExceededBy);
+    }
+
+    /**
+     * Stop the background thread. Depending on configuration, change sets that are still queued are either persisted
+     * before this method returns, or discarded. Change sets handed over from now on are rejected.
+     */
+    public void shutdown() {
+        running = false;
+
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while waiting for the change feed writer to finish");
+        }
+
+        synchronized (writeLock) {
+            shutdown = true;
+
+            if (!queue.isEmpty()) {
+                LOG.warn("Discarding {} change sets that have not been persisted", queue.size());
+                queue.clear();
+            }
+        }
+    }
+
+    /**
+     * Get the number of change sets waiting to be persisted.
+     *
+     * @return queue size.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void processQueue() {
+        List<ChangeSet> batch = new ArrayList<>();
+
+        while (running || (flushOnShutdown && !queue.isEmpty())) {
+            //held from taking change sets off the queue until they are persisted, so that a change set persisted on a
+            //committing thread cannot overtake them
+            synchronized (writeLock) {
+                ChangeSet first;
+                try {
+                    first = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    LOG.warn("Change feed writer interrupted, stopping");
+                    return;
+                }
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+
+                persist(batch);
+
+                batch.clear();
+            }
+        }
+    }
+
+    private void persist(List<ChangeSet> batch) {
+        try {
+            delegate.recordChangeSets(batch);
+            return;
+        } catch (RuntimeException e) {
+            LOG.warn("Could not record a batch of " + batch.size() + " change sets, recording them one by one", e);
+        }
+
+        for (ChangeSet changeSet : batch) {
+            try {
+                delegate.recordChanges(changeSet);
+            } catch (RuntimeException e) {
+                LOG.error("Could not record change set " + changeSet.getUuid(), e);
+            }
+        }
+    }
+}
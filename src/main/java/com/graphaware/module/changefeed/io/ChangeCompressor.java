@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import org.neo4j.graphdb.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.graphaware.module.changefeed.domain.Properties.*;
+
+/**
+ * Block compression of encoded changes stored in the graph, using deflate with a preset dictionary.
+ * <p/>
+ * Dictionaries are built from the encoded changes of recent change sets (see {@link #buildDictionary(List)}) and stored
+ * on the feed root, each under its own version. Every node with compressed changes records the version of the
+ * dictionary its changes have been compressed with, so entries compressed with older dictionaries stay readable after
+ * a new one has been trained. Version 0 means compression without a preset dictionary. Nodes without a dictionary
+ * version are not compressed.
+ * <p/>
+ * When a dictionary is superseded by a newer one, the highest sequence number of change sets that can have been
+ * compressed with it is recorded, so that it can be removed once all those change sets have been pruned.
+ * <p/>
+ * The compressor keeps track of the compression ratio and the time spent compressing and decompressing.
+ */
+public class ChangeCompressor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeCompressor.class);
+    private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    //native zlib streams are expensive to allocate, so each thread reuses its own, reset after every use
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final Node root;
+    private final boolean enabled;
+    private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+
+    private volatile int currentVersion;
+
+    private final AtomicLong compressions = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final AtomicLong decompressions = new AtomicLong();
+    private final AtomicLong decompressionNanos = new AtomicLong();
+
+    /**
+     * Construct a new compressor.
+     *
+     * @param root    of the change feed, where dictionaries are stored.
+     * @param enabled true iff changes should be compressed when written. Compressed changes are always decompressed
+     *                when read.
+     */
+    public ChangeCompressor(Node root, boolean enabled) {
+        this.root = root;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Load the current dictionary from the root. Must be called within a transaction.
+     */
+    public void initialize() {
+        currentVersion = (int) root.getProperty(DICTIONARY, 0);
+    }
+
+    /**
+     * Write encoded changes into a node, compressing them if enabled. Must be called within a transaction.
+     *
+     * @param node    to write to.
+     * @param changes encoded changes.
+     */
+    public void write(Node node, byte[] changes) {
+        if (!enabled) {
+            node.setProperty(CHANGES, changes);
+            node.removeProperty(DICTIONARY);
+            return;
+        }
+
+        int version = currentVersion;
+        long start = System.nanoTime();
+        byte[] compressed = compress(changes, dictionary(version));
+        compressionNanos.addAndGet(System.nanoTime() - start);
+        compressions.incrementAndGet();
+        uncompressedBytes.addAndGet(changes.length);
+        compressedBytes.addAndGet(compressed.length);
+
+        node.setProperty(CHANGES, compressed);
+        node.setProperty(DICTIONARY, version);
+    }
+
+    /**
+     * Read encoded changes stored in a node, decompressing them if needed. Must be called within a transaction.
+     *
+     * @param node   to read from.
+     * @param stored value of the {@link com.graphaware.module.changefeed.domain.Properties#CHANGES} property.
+     * @return encoded changes.
+     */
+    public byte[] read(Node node, byte[] stored) {
+        if (!node.hasProperty(DICTIONARY)) {
+            return stored;
+        }
+
+        long start = System.nanoTime();
+        byte[] changes = decompress(stored, dictionary((int) node.getProperty(DICTIONARY)));
+        decompressionNanos.addAndGet(System.nanoTime() - start);
+        decompressions.incrementAndGet();
+        return changes;
+    }
+
+    /**
+     * Build a dictionary from sample change sets. Byte sequences that occur in many change sets, such as labels and
+     * property keys, end up in the dictionary.
+     *
+     * @param sample change sets, newest first.
+     * @return dictionary, empty if the sample is empty.
+     */
+    public static byte[] buildDictionary(List<ChangeSet> sample) {
+        //deflate finds matches closer to the end of the dictionary more cheaply, so newest change sets go last
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        for (int i = sample.size() - 1; i >= 0; i--) {
+            byte[] changes = sample.get(i).getEncodedChanges();
+            dictionary.write(changes, 0, changes.length);
+        }
+
+        byte[] bytes = dictionary.toByteArray();
+        if (bytes.length <= MAX_DICTIONARY_SIZE) {
+            return bytes;
+        }
+        byte[] newest = new byte[MAX_DICTIONARY_SIZE];
+        System.arraycopy(bytes, bytes.length - MAX_DICTIONARY_SIZE, newest, 0, MAX_DICTIONARY_SIZE);
+        return newest;
+    }
+
+    /**
+     * Store a new dictionary on the root. Must be called within a transaction. The dictionary is not used for
+     * compression until {@link #use(int)} is called after the transaction has committed.
+     *
+     * @param dictionary to store.
+     * @param sequence   last sequence number of the change sets the dictionary has been built from.
+     * @return version of the new dictionary.
+     */
+    public int storeDictionary(byte[] dictionary, long sequence) {
+        int version = (int) root.getProperty(DICTIONARY, 0) + 1;
+        root.setProperty(dictionaryKey(version), dictionary);
+        root.setProperty(DICTIONARY, version);
+        root.setProperty(DICTIONARY_SEQUENCE, sequence);
+        return version;
+    }
+
+    /**
+     * Record that a dictionary is no longer used for compression. Must be called within a transaction, after the
+     * dictionary superseding it has been passed to {@link #use(int)}.
+     *
+     * @param version      of the superseded dictionary.
+     * @param lastSequence highest sequence number allocated so far. Change sets allocated a sequence number later are
+     *                     never compressed with the superseded dictionary.
+     */
+    public void supersede(int version, long lastSequence) {
+        if (version > 0 && root.hasProperty(dictionaryKey(version))) {
+            root.setProperty(lastSequenceKey(version), lastSequence);
+        }
+    }
+
+    /**
+     * Remove superseded dictionaries from the root, which no change set with the given or higher sequence number can
+     * have been compressed with. Must be called within a transaction. Removed dictionaries should be {@link #evict(List)}ed
+     * once the transaction has committed.
+     *
+     * @param oldestKeptSequence sequence number of the oldest change set left in the feed.
+     * @return versions of removed dictionaries.
+     */
+    public List<Integer> pruneDictionaries(long oldestKeptSequence) {
+        List<Integer> pruned = new ArrayList<>();
+
+        int current = (int) root.getProperty(DICTIONARY, 0);
+        for (int version = 1; version < current; version++) {
+            if (!root.hasProperty(dictionaryKey(version))) {
+                continue;
+            }
+
+            //dictionaries are superseded in version order, those whose last sequence is unknown are kept
+            if ((long) root.getProperty(lastSequenceKey(version), Long.MAX_VALUE) >= oldestKeptSequence) {
+                break;
+            }
+
+            root.removeProperty(dictionaryKey(version));
+            root.removeProperty(lastSequenceKey(version));
+            pruned.add(version);
+        }
+
+        return pruned;
+    }
+
+    /**
+     * Forget pruned dictionaries.
+     *
+     * @param versions of dictionaries removed by {@link #pruneDictionaries(long)}.
+     */
+    public void evict(List<Integer> versions) {
+        for (int version : versions) {
+            dictionaries.remove(version);
+        }
+    }
+
+    /**
+     * Start compressing with a stored dictionary.
+     *
+     * @param version of the dictionary.
+     */
+    public void use(int version) {
+        currentVersion = version;
+    }
+
+    /**
+     * Get the version of the dictionary used for compression.
+     *
+     * @return version, 0 for no dictionary.
+     */
+    public int getCurrentVersion() {
+        return currentVersion;
+    }
+
+    /**
+     * Get the ratio of uncompressed to compressed size of all changes compressed so far.
+     *
+     * @return compression ratio, 0 if nothing has been compressed.
+     */
+    public double getCompressionRatio() {
+        long compressed = compressedBytes.get();
+        return compressed == 0 ? 0 : (double) uncompressedBytes.get() / compressed;
+    }
+
+    /**
+     * Get the average time spent compressing changes of a single node.
+     *
+     * @return time in microseconds, 0 if nothing has been compressed.
+     */
+    public double getAverageCompressionMicros() {
+        return average(compressionNanos, compressions);
+    }
+
+    /**
+     * Get the average time spent decompressing changes of a single node.
+     *
+     * @return time in microseconds, 0 if nothing has been decompressed.
+     */
+    public double getAverageDecompressionMicros() {
+        return average(decompressionNanos, decompressions);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("dictionary version %d, ratio %.2f, %d compressions averaging %.1f us, %d decompressions averaging %.1f us",
+                currentVersion, getCompressionRatio(), compressions.get(), getAverageCompressionMicros(), decompressions.get(), getAverageDecompressionMicros());
+    }
+
+    /**
+     * Compress data.
+     *
+     * @param data       to compress.
+     * @param dictionary preset dictionary, null for none.
+     * @return compressed data.
+     */
+    static byte[] compress(byte[] data, byte[] dictionary) {
+        Deflater deflater = DEFLATER.get();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] buffer = new byte[Math.max(64, Math.min(data.length, 8192))];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Decompress data.
+     *
+     * @param data       to decompress.
+     * @param dictionary preset dictionary the data has been compressed with, null for none.
+     * @return decompressed data.
+     */
+    static byte[] decompress(byte[] data, byte[] dictionary) {
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(data);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[Math.max(64, Math.min(data.length * 4, 8192))];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0) {
+                    if (inflater.needsDictionary() && dictionary != null) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new IllegalStateException("Compressed changes are corrupt or their dictionary is missing");
+                    }
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed changes are corrupt", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    private byte[] dictionary(int version) {
+        if (version == 0) {
+            return null;
+        }
+
+        byte[] dictionary = dictionaries.get(version);
+        if (dictionary == null) {
+            if (!root.hasProperty(dictionaryKey(version))) {
+                LOG.error("Dictionary version {} is missing on the ChangeFeed Root", version);
+                throw new IllegalStateException("Dictionary version " + version + " is missing on the ChangeFeed Root");
+            }
+            dictionary = (byte[]) root.getProperty(dictionaryKey(version));
+            dictionaries.put(version, dictionary);
+        }
+        return dictionary;
+    }
+
+    private static String dictionaryKey(int version) {
+        return DICTIONARY + "_" + version;
+    }
+
+    private static String lastSequenceKey(int version) {
+        return dictionaryKey(version) + "_" + DICTIONARY_SEQUENCE;
+    }
+
+    private static double average(AtomicLong nanos, AtomicLong count) {
+        long n = count.get();
+        return n == 0 ? 0 : nanos.get() / (n * 1000.0);
+    }
+}
@@ -19,6 +19,7 @@ package com.graphaware.module.changefeed.io;
 import com.graphaware.module.changefeed.domain.ChangeSet;
 
 import java.util.Collection;
+import java.util.List;
 
 /**
  * A reader of {@link com.graphaware.module.changefeed.domain.ChangeSet}s.
@@ -57,4 +58,51 @@ public interface ChangeReader {
      * the latest limit number of changes will be returned.
      */
     Collection<ChangeSet> getNumberOfChangesSince(String uuid, int limit);
+
+    /**
+     * Get latest changes since a certain sequence number.
+     *
+     * @param sequence sequence number of the first change that will <b>not</b> be included in the result, 0 for all.
+     * @param limit    the maximum number of changes to return.
+     * @return changes, latest one first. Note that if there are more changes since the given sequence number than the
+     * limit, the latest limit number of changes will be returned.
+     */
+    Collection<ChangeSet> getNumberOfChangesSince(long sequence, int limit);
+
+    /**
+     * Get latest changes within a time range.
+     *
+     * @param from  timestamp in ms since 1/1/1970 of the oldest changes that can be included in the result (inclusive).
+     * @param to    timestamp in ms since 1/1/1970 of the first changes that will <b>not</b> be included in the result (exclusive).
+     * @param limit the maximum number of changes to return.
+     * @return changes, latest one first. Note that if there are more changes within the time range than the limit, the
+     * latest limit number of changes will be returned.
+     */
+    Collection<ChangeSet> getChangesBetween(long from, long to, int limit);
+
+    /**
+     * Get oldest changes after a certain sequence number, for paging through the feed from oldest to newest. The
+     * sequence number of the last change set of a page is the position from which to read the next page.
+     *
+     * @param sequence sequence number of the last change that will <b>not</b> be included in the result, 0 to start
+     *                 with the oldest change still kept.
+     * @param limit    the maximum number of changes to return.
+     * @return changes, oldest one first. Note that if changes following the given sequence number have already been
+     * pruned, the result starts with the oldest change still kept, i.e. its first change set does not have the sequence
+     * number following the given one.
+     */
+    List<ChangeSet> readForward(long sequence, int limit);
+
+    /**
+     * Read a page of oldest changes after a certain sequence number, like {@link #readForward(long, int)}, together
+     * with the sequence number from which to read the next page. Readers that read matching change sets only read at
+     * most {@link ForwardPage#MAX_SCANNED} change sets for a page, and the next page starts after the last change set
+     * read, even if it did not match.
+     *
+     * @param sequence sequence number of the last change that will <b>not</b> be included in the result, 0 to start
+     *                 with the oldest change still kept.
+     * @param limit    the maximum number of changes to return.
+     * @return page of changes, oldest one first.
+     */
+    ForwardPage readPage(long sequence, int limit);
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+
+import java.io.IOException;
+
+/**
+ * A handler of {@link ChangeSet}s, handed over one by one as they are read, e.g. to write them out without collecting
+ * them first.
+ */
+public interface ChangeSetHandler {
+
+    /**
+     * Handle a change set.
+     *
+     * @param changeSet to handle.
+     * @throws IOException if handling fails, which stops the read.
+     */
+    void handle(ChangeSet changeSet) throws IOException;
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+
+/**
+ * {@link ChangeSet} read from the graph without its changes, which are fetched by a {@link GraphChangeReader} when
+ * first needed.
+ */
+class ChangeSetHeader extends ChangeSet {
+
+    private final GraphChangeReader reader;
+
+    /**
+     * Construct a new header.
+     *
+     * @param uuid        uuid identifying the change set.
+     * @param timestamp   of the change set.
+     * @param sequence    sequence number of the change set.
+     * @param changeCount number of changes in the change set.
+     * @param reader      fetching the changes on demand.
+     */
+    ChangeSetHeader(String uuid, long timestamp, long sequence, int changeCount, GraphChangeReader reader) {
+        super(uuid, timestamp, sequence, changeCount);
+        this.reader = reader;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected byte[] loadEncodedChanges() {
+        return reader.readEncodedChanges(getSequence());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeFilter;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import org.neo4j.graphdb.Node;
+
+import static com.graphaware.module.changefeed.domain.Properties.*;
+
+/**
+ * Encoding of a single {@link ChangeSet} into the properties of its own node.
+ * <p/>
+ * The bitmap of the tags of the change set is stored in a property of its own, so that a change set not matching a
+ * {@link ChangeFilter} is skipped without reading (nor decompressing) its changes. Nodes written before tags were stored
+ * have their tags read from their changes.
+ */
+public final class ChangeSetNodes {
+
+    /**
+     * Write a change set into a node.
+     *
+     * @param changeNode node to write to.
+     * @param changeSet  to write.
+     * @param compressor compressing the changes.
+     */
+    public static void write(Node changeNode, ChangeSet changeSet, ChangeCompressor compressor) {
+        changeNode.setProperty(SEQUENCE, changeSet.getSequence());
+        changeNode.setProperty(UUID, changeSet.getUuid());
+        changeNode.setProperty(TIMESTAMP, changeSet.getTimestamp());
+        changeNode.setProperty(TAGS, changeSet.getTags());
+        compressor.write(changeNode, changeSet.getEncodedChanges());
+    }
+
+    /**
+     * Read a change set from a node.
+     *
+     * @param changeNode to read.
+     * @param compressor decompressing the changes.
+     * @return change set.
+     */
+    public static ChangeSet read(Node changeNode, ChangeCompressor compressor) {
+        ChangeSet changeSet = new ChangeSet((String) changeNode.getProperty(UUID), (long) changeNode.getProperty(TIMESTAMP));
+        changeSet.setSequence((long) changeNode.getProperty(SEQUENCE));
+        Object changes = changeNode.getProperty(CHANGES);
+        if (changes instanceof byte[]) {
+            changeSet.setEncodedChanges(compressor.read(changeNode, (byte[]) changes));
+        } else {
+            //change sets recorded before changes were encoded
+            changeSet.addChanges((String[]) changes);
+        }
+        if (changeNode.hasProperty(TAGS)) {
+            changeSet.setTags((long) changeNode.getProperty(TAGS));
+        }
+        return changeSet;
+    }
+
+    /**
+     * Read a change set from a node, if it matches a filter.
+     *
+     * @param changeNode to read.
+     * @param compressor decompressing the changes.
+     * @param filter     the change set must match.
+     * @return change set, null if it does not match the filter.
+     */
+    public static ChangeSet read(Node changeNode, ChangeCompressor compressor, ChangeFilter filter) {
+        if (!filter.isAll() && changeNode.hasProperty(TAGS) && !filter.mightMatch((long) changeNode.getProperty(TAGS))) {
+            return null;
+        }
+
+        ChangeSet changeSet = read(changeNode, compressor);
+        return filter.matches(changeSet) ? changeSet : null;
+    }
+
+    /**
+     * Get the sequence number of a change set stored in a node.
+     *
+     * @param changeNode node.
+     * @return sequence number.
+     */
+    public static long sequence(Node changeNode) {
+        return (long) changeNode.getProperty(SEQUENCE);
+    }
+
+    private ChangeSetNodes() {
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeFilter;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import org.neo4j.graphdb.Node;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.graphaware.module.changefeed.domain.Properties.*;
+
+/**
+ * Encoding of multiple {@link ChangeSet}s into the array properties of a single segment node.
+ * <p/>
+ * A segment stores the sequence numbers, uuids, timestamps, numbers of changes and lengths of encoded changes of its
+ * change sets in parallel arrays ordered oldest first, and the encoded changes of all its change sets concatenated into
+ * a single byte array in the same order. Segments written before changes were encoded store no lengths, and the changes
+ * flattened into a single array of strings. Segments written before the numbers of changes were stored can only be
+ * read in full.
+ * <p/>
+ * The bitmaps of the tags of the change sets are stored in a parallel array as well, so that a segment none of whose
+ * change sets match a {@link ChangeFilter} is skipped without reading (nor decompressing) its changes.
+ * <p/>
+ * When compression is enabled, the concatenated changes are compressed as a single block by a {@link ChangeCompressor}.
+ */
+public final class ChangeSetSegments {
+
+    /**
+     * Write change sets into a segment node.
+     *
+     * @param segment    node to write to.
+     * @param changeSets to write, oldest first. Must not be empty.
+     * @param compressor compressing the changes of all change sets as a single block.
+     */
+    public static void write(Node segment, List<ChangeSet> changeSets, ChangeCompressor compressor) {
+        long[] sequences = new long[changeSets.size()];
+        String[] uuids = new String[changeSets.size()];
+        long[] timestamps = new long[changeSets.size()];
+        int[] changeCounts = new int[changeSets.size()];
+        int[] changeLengths = new int[changeSets.size()];
+        long[] tags = new long[changeSets.size()];
+        ByteArrayOutputStream changes = new ByteArrayOutputStream();
+
+        for (int i = 0; i < changeSets.size(); i++) {
+            ChangeSet changeSet = changeSets.get(i);
+            sequences[i] = changeSet.getSequence();
+            uuids[i] = changeSet.getUuid();
+            timestamps[i] = changeSet.getTimestamp();
+            changeCounts[i] = changeSet.getChangeCount();
+            tags[i] = changeSet.getTags();
+            byte[] encodedChanges = changeSet.getEncodedChanges();
+            changeLengths[i] = encodedChanges.length;
+            changes.write(encodedChanges, 0, encodedChanges.length);
+        }
+
+        segment.setProperty(FIRST_SEQUENCE, sequences[0]);
+        segment.setProperty(SEQUENCES, sequences);
+        segment.setProperty(UUIDS, uuids);
+        segment.setProperty(TIMESTAMPS, timestamps);
+        segment.setProperty(CHANGE_COUNTS, changeCounts);
+        segment.setProperty(CHANGE_LENGTHS, changeLengths);
+        segment.setProperty(TAGS, tags);
+        compressor.write(segment, changes.toByteArray());
+    }
+
+    /**
+     * Read all change sets from a segment node.
+     *
+     * @param segment    to read.
+     * @param compressor decompressing the changes.
+     * @return change sets, oldest first.
+     */
+    public static List<ChangeSet> read(Node segment, ChangeCompressor compressor) {
+        long[] sequences = (long[]) segment.getProperty(SEQUENCES);
+        String[] uuids = (String[]) segment.getProperty(UUIDS);
+        long[] timestamps = (long[]) segment.getProperty(TIMESTAMPS);
+        Object changes = segment.getProperty(CHANGES);
+        boolean encoded = changes instanceof byte[];
+        if (encoded) {
+            changes = compressor.read(segment, (byte[]) changes);
+        }
+        int[] lengths = (int[]) segment.getProperty(encoded ? CHANGE_LENGTHS : CHANGE_COUNTS);
+        int[] counts = encoded ? (int[]) segment.getProperty(CHANGE_COUNTS, null) : null;
+        long[] tags = (long[]) segment.getProperty(TAGS, null);
+
+        List<ChangeSet> changeSets = new ArrayList<>(sequences.length);
+        int offset = 0;
+        for (int i = 0; i < sequences.length; i++) {
+            ChangeSet changeSet = new ChangeSet(uuids[i], timestamps[i]);
+            changeSet.setSequence(sequences[i]);
+            if (encoded) {
+                changeSet.setEncodedChanges(Arrays.copyOfRange((byte[]) changes, offset, offset + lengths[i]));
+                if (counts != null) {
+                    changeSet.setChangeCount(counts[i]);
+                }
+            } else {
+                changeSet.addChanges(Arrays.copyOfRange((String[]) changes, offset, offset + lengths[i]));
+            }
+            if (tags != null) {
+                changeSet.setTags(tags[i]);
+            }
+            offset += lengths[i];
+            changeSets.add(changeSet);
+        }
+
+        return changeSets;
+    }
+
+    /**
+     * Read the change sets matching a filter from a segment node. The changes are not read at all if the tags of none of
+     * the change sets might match.
+     *
+     * @param segment    to read.
+     * @param compressor decompressing the changes.
+     * @param filter     the change sets must match.
+     * @return matching change sets, oldest first, possibly empty.
+     */
+    public static List<ChangeSet> read(Node segment, ChangeCompressor compressor, ChangeFilter filter) {
+        if (filter.isAll()) {
+            return read(segment, compressor);
+        }
+
+        long[] tags = (long[]) segment.getProperty(TAGS, null);
+        if (tags != null && !mightMatch(tags, filter)) {
+            return new ArrayList<>();
+        }
+
+        List<ChangeSet> changeSets = new ArrayList<>();
+        for (ChangeSet changeSet : read(segment, compressor)) {
+            if (filter.matches(changeSet)) {
+                changeSets.add(changeSet);
+            }
+        }
+        return changeSets;
+    }
+
+    private static boolean mightMatch(long[] tags, ChangeFilter filter) {
+        for (long changeSetTags : tags) {
+            if (filter.mightMatch(changeSetTags)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the headers of all change sets from a segment node, without reading their changes. The changes of every
+     * header are fetched from the feed by the given reader when first needed.
+     *
+     * @param segment to read.
+     * @param reader  fetching the changes on demand.
+     * @return change set headers, oldest first, null if the segment does not store the numbers of changes, in which case
+     * it must be read in full.
+     */
+    public static List<ChangeSet> readHeaders(Node segment, GraphChangeReader reader) {
+        if (!segment.hasProperty(CHANGE_COUNTS)) {
+            return null;
+        }
+
+        long[] sequences = (long[]) segment.getProperty(SEQUENCES);
+        String[] uuids = (String[]) segment.getProperty(UUIDS);
+        long[] timestamps = (long[]) segment.getProperty(TIMESTAMPS);
+        int[] counts = (int[]) segment.getProperty(CHANGE_COUNTS);
+        long[] tags = (long[]) segment.getProperty(TAGS, null);
+
+        List<ChangeSet> headers = new ArrayList<>(sequences.length);
+        for (int i = 0; i < sequences.length; i++) {
+            ChangeSet header = new ChangeSetHeader(uuids[i], timestamps[i], sequences[i], counts[i], reader);
+            if (tags != null) {
+                header.setTags(tags[i]);
+            }
+            headers.add(header);
+        }
+
+        return headers;
+    }
+
+    /**
+     * Get the number of change sets in a segment node.
+     *
+     * @param segment node.
+     * @return number of change sets.
+     */
+    public static int size(Node segment) {
+        return ((long[]) segment.getProperty(SEQUENCES)).length;
+    }
+
+    /**
+     * Get the sequence numbers of all change sets in a segment node.
+     *
+     * @param segment node.
+     * @return sequence numbers, oldest first.
+     */
+    public static long[] sequences(Node segment) {
+        return (long[]) segment.getProperty(SEQUENCES);
+    }
+
+    /**
+     * Get the sequence number of the newest change set in a segment node.
+     *
+     * @param segment node.
+     * @return last sequence number.
+     */
+    public static long lastSequence(Node segment) {
+        long[] sequences = (long[]) segment.getProperty(SEQUENCES);
+        return sequences[sequences.length - 1];
+    }
+
+    /**
+     * Find the sequence number of a change set in a segment node.
+     *
+     * @param segment node.
+     * @param uuid    of the change set.
+     * @return sequence number, 0 if the segment does not contain a change set with the given uuid.
+     */
+    public static long sequenceOf(Node segment, String uuid) {
+        String[] uuids = (String[]) segment.getProperty(UUIDS);
+        for (int i = 0; i < uuids.length; i++) {
+            if (uuids[i].equals(uuid)) {
+                return ((long[]) segment.getProperty(SEQUENCES))[i];
+            }
+        }
+        return 0;
+    }
+
+    private ChangeSetSegments() {
+    }
+}
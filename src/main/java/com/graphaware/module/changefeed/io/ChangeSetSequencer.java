@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * Allocator of monotonically increasing {@link ChangeSet} sequence numbers, which also keeps track of sequence numbers
+ * whose transactions have not finished yet. Timestamps of change sets are adjusted on allocation so that they never
+ * decrease with increasing sequence numbers.
+ * <p/>
+ * Change sets are allocated sequence numbers before the transactions recording them commit, and those transactions
+ * may commit in a different order. The sequencer therefore maintains a visible sequence number, which is the highest
+ * sequence number such that all change sets with the same or lower sequence number have either committed or rolled
+ * back. Readers that do not return change sets above the visible sequence number never observe a gap in the feed.
+ * <p/>
+ * A change set that has been in flight for longer than a configured time is assumed to belong to a transaction that
+ * has been abandoned without notification, and stops holding the visible sequence number back.
+ * <p/>
+ * The {@link Listener} is notified after the sequencer's lock has been released, so that allocating and completing
+ * sequence numbers is never held up by listeners.
+ */
+public class ChangeSetSequencer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeSetSequencer.class);
+
+    private final long abandonAfterMs;
+    private final Listener listener;
+    private final TreeMap<Long, InFlightChangeSet> inFlight = new TreeMap<>();
+    private final Queue<ChangeSet> becameVisible = new ArrayDeque<>();
+    private final Object notificationLock = new Object();
+
+    private long lastAllocated;
+    private long lastTimestamp;
+    private long visible;
+
+    /**
+     * Construct a new sequencer.
+     *
+     * @param abandonAfterMs time in ms after which an unfinished change set is no longer waited for.
+     * @param listener       notified about committed change sets once they become visible, in sequence order.
+     */
+    public ChangeSetSequencer(long abandonAfterMs, Listener listener) {
+        this.abandonAfterMs = abandonAfterMs;
+        this.listener = listener;
+    }
+
+    /**
+     * Reset the sequencer, forgetting all change sets in flight.
+     *
+     * @param lastSequence the highest sequence number already in use, 0 if none.
+     */
+    public synchronized void reset(long lastSequence) {
+        inFlight.clear();
+        becameVisible.clear();
+        lastAllocated = lastSequence;
+        visible = lastSequence;
+    }
+
+    /**
+     * Allocate the next sequence number to a change set and mark it as in flight.
+     *
+     * @param changeSet to allocate sequence number to. Its sequence number will be set by this method.
+     */
+    public synchronized void allocate(ChangeSet changeSet) {
+        changeSet.setSequence(++lastAllocated);
+        lastTimestamp = changeSet.notBefore(lastTimestamp);
+        inFlight.put(lastAllocated, new InFlightChangeSet(changeSet, System.currentTimeMillis()));
+    }
+
+    /**
+     * Mark a change set, which has previously been {@link #allocate(ChangeSet)}d a sequence number, as finished.
+     *
+     * @param changeSet finished change set.
+     * @param committed true iff the transaction recording the change set has committed, false if it has rolled back.
+     */
+    public void complete(ChangeSet changeSet, boolean committed) {
+        synchronized (this) {
+            InFlightChangeSet finished = inFlight.get(changeSet.getSequence());
+            if (finished == null || finished.changeSet != changeSet) {
+                LOG.warn("Change set {} with sequence {} is not in flight, it has probably been abandoned", changeSet.getUuid(), changeSet.getSequence());
+                return;
+            }
+
+            finished.finished = true;
+            finished.committed = committed;
+            advance();
+        }
+
+        notifyListener();
+    }
+
+    /**
+     * Get the highest sequence number allocated so far.
+     *
+     * @return last allocated sequence number.
+     */
+    public synchronized long getLastAllocatedSequence() {
+        return lastAllocated;
+    }
+
+    /**
+     * Get the highest sequence number such that all change sets with the same or lower sequence number have finished.
+     *
+     * @return visible sequence number.
+     */
+    public long getVisibleSequence() {
+        long result;
+        synchronized (this) {
+            advance();
+            result = visible;
+        }
+
+        notifyListener();
+
+        return result;
+    }
+
+    /**
+     * Notify the listener about change sets that became visible, in sequence order. Only one thread notifies at a time,
+     * so that a thread returns from this method only once all change sets that became visible before it was called have
+     * been passed to the listener.
+     */
+    private void notifyListener() {
+        if (Thread.holdsLock(notificationLock)) {
+            //called back from the listener, the outer call keeps notifying
+            return;
+        }
+
+        synchronized (notificationLock) {
+            ChangeSet changeSet;
+            while ((changeSet = nextVisible()) != null) {
+                listener.changeSetVisible(changeSet);
+            }
+        }
+    }
+
+    private synchronized ChangeSet nextVisible() {
+        return becameVisible.poll();
+    }
+
+    private void advance() {
+        long now = System.currentTimeMillis();
+
+        while (!inFlight.isEmpty()) {
+            Map.Entry<Long, InFlightChangeSet> oldest = inFlight.firstEntry();
+            InFlightChangeSet changeSet = oldest.getValue();
+
+            if (!changeSet.finished) {
+                if (now - changeSet.allocatedAt < abandonAfterMs) {
+                    break;
+                }
+                LOG.warn("Change set {} with sequence {} has not finished within {} ms, no longer waiting for it", changeSet.changeSet.getUuid(), oldest.getKey(), abandonAfterMs);
+            } else if (changeSet.committed) {
+                becameVisible.add(changeSet.changeSet);
+            }
+
+            inFlight.pollFirstEntry();
+        }
+
+        visible = inFlight.isEmpty() ? lastAllocated : inFlight.firstKey() - 1;
+    }
+
+    /**
+     * Listener notified about committed change sets becoming visible.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a committed change set becomes visible. Change sets are passed to this method one by one in
+         * sequence order, after the sequencer's lock has been released. Change sets that became visible later are only
+         * passed once this method returns, so implementations should be quick.
+         *
+         * @param changeSet that became visible.
+         */
+        void changeSetVisible(ChangeSet changeSet);
+    }
+
+    private static final class InFlightChangeSet {
+
+        private final ChangeSet changeSet;
+        private final long allocatedAt;
+        private boolean finished;
+        private boolean committed;
+
+        private InFlightChangeSet(ChangeSet changeSet, long allocatedAt) {
+            this.changeSet = changeSet;
+            this.allocatedAt = allocatedAt;
+        }
+    }
+}
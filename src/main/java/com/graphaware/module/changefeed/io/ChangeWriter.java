@@ -16,6 +16,9 @@
 
 package com.graphaware.module.changefeed.io;
 
+import com.graphaware.module.changefeed.domain.ChangeSet;
+
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -35,6 +38,20 @@ public interface ChangeWriter {
      */
     void recordChanges(Set<String> changes);
 
+    /**
+     * Record (persist) a change set that has already been captured.
+     *
+     * @param changeSet to record.
+     */
+    void recordChanges(ChangeSet changeSet);
+
+    /**
+     * Record (persist) a number of change sets that have already been captured, all at once.
+     *
+     * @param changeSets to record, ordered from oldest to newest.
+     */
+    void recordChangeSets(List<ChangeSet> changeSets);
+
     /**
      * Prune the changes, only keeping the specified number of latest changes.
      *
@@ -0,0 +1,636 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of {@link ChangeSet}s stored in memory-mapped, fixed-size segment files in a directory.
+ * <p/>
+ * Each segment file is named after the sequence number of its first change set and contains records of the form
+ * <code>length, crc, sequence, timestamp, uuid length, uuid, encoded changes</code>. A record is never split across
+ * segments; when the active segment is full, a new one is created. For every segment, the offset of every
+ * {@link #INDEX_INTERVAL}th record is kept in memory (sparse offset index), so that the log can be read newest first
+ * without keeping the offset of every record.
+ * <p/>
+ * Appends are serialized. Reads do not take any locks: they scan a duplicate of the mapped buffer up to the last
+ * completely written record, and only copy the records that are returned. Pruning deletes whole segment files.
+ * A pruned segment file is unmapped as soon as no read is using it any longer, using the buffer's cleaner, before it
+ * is deleted. The cleaner is not accessible on all JVMs (it is on Java 8); where it is not, the mapping is only released
+ * once the buffer has been garbage collected, and the disk space of a deleted segment file is not reclaimed until then.
+ * When the log is opened, all records are validated and a partially written record at the end is discarded.
+ */
+public class FileChangeLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileChangeLog.class);
+
+    public static final int DEFAULT_SEGMENT_FILE_SIZE = 16 * 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SUFFIX = ".log";
+    private static final int INDEX_INTERVAL = 32;
+    private static final int RECORD_HEADER = 8;
+    private static final int PAYLOAD_HEADER = 18;
+
+    private final File directory;
+    private final int segmentFileSize;
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private Segment active;
+    private long lastSequence;
+    private long lastTimestamp;
+
+    /**
+     * Construct a new log.
+     *
+     * @param directory       in which to keep the segment files. Created if it does not exist.
+     * @param segmentFileSize size of a segment file in bytes.
+     */
+    public FileChangeLog(File directory, int segmentFileSize) {
+        if (segmentFileSize < RECORD_HEADER + PAYLOAD_HEADER) {
+            throw new IllegalArgumentException("Segment file size is too small: " + segmentFileSize);
+        }
+
+        this.directory = directory;
+        this.segmentFileSize = segmentFileSize;
+    }
+
+    /**
+     * Open the log, recovering all segment files in the directory.
+     *
+     * @throws IllegalStateException if the directory can not be created or the segment files can not be read.
+     */
+    public synchronized void open() {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IllegalStateException("Could not create change feed directory " + directory.getAbsolutePath());
+        }
+
+        File[] files = directory.listFiles();
+        List<File> segmentFiles = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX)) {
+                    segmentFiles.add(file);
+                }
+            }
+        }
+        Collections.sort(segmentFiles);
+
+        for (File file : segmentFiles) {
+            Segment segment = Segment.recover(file, baseSequence(file));
+            segments.put(segment.baseSequence, segment);
+            if (segment.count > 0) {
+                lastSequence = Math.max(lastSequence, segment.lastSequence);
+                lastTimestamp = Math.max(lastTimestamp, segment.lastTimestamp);
+            }
+            active = segment;
+        }
+
+        LOG.info("Opened change feed log in {} with {} segments, last sequence {}", directory.getAbsolutePath(), segments.size(), lastSequence);
+    }
+
+    /**
+     * Append change sets to the log, assigning them sequence numbers. Once this method returns, the change sets have
+     * been forced to disk.
+     *
+     * @param changeSets to append, oldest first.
+     * @throws IllegalStateException if the log can not be written to.
+     */
+    public synchronized void append(List<ChangeSet> changeSets) {
+        if (changeSets.isEmpty()) {
+            return;
+        }
+
+        for (ChangeSet changeSet : changeSets) {
+            changeSet.setSequence(++lastSequence);
+            lastTimestamp = changeSet.notBefore(lastTimestamp);
+            byte[] payload = payload(changeSet);
+
+            if (active == null || !active.hasRoomFor(payload.length)) {
+                roll(payload.length);
+            }
+            active.append(changeSet, payload);
+        }
+
+        active.buffer.force();
+    }
+
+    /**
+     * Read change sets, newest first.
+     *
+     * @param uuid  uuid of the first change set that will not be included in the result, null for all.
+     * @param limit maximum number of change sets to read.
+     * @return change sets, newest first.
+     */
+    public List<ChangeSet> read(String uuid, int limit) {
+        return read(uuid == null ? null : uuid.getBytes(UTF_8), 0, Long.MIN_VALUE, Long.MAX_VALUE, limit);
+    }
+
+    /**
+     * Read change sets with a sequence number higher than the given one, newest first.
+     *
+     * @param sequence sequence number of the newest change set that will not be included in the result, 0 for all.
+     * @param limit    maximum number of change sets to read.
+     * @return change sets, newest first.
+     */
+    public List<ChangeSet> read(long sequence, int limit) {
+        return read(null, sequence, Long.MIN_VALUE, Long.MAX_VALUE, limit);
+    }
+
+    /**
+     * Read change sets with a timestamp within a time range, newest first. Timestamps never decrease with sequence
+     * numbers, so segments newer than the range are skipped without being read, and reading stops at the first change
+     * set older than the range.
+     *
+     * @param from  timestamp of the oldest change set that can be included in the result, inclusive.
+     * @param to    timestamp of the newest change set that can be included in the result, exclusive.
+     * @param limit maximum number of change sets to read.
+     * @return change sets, newest first.
+     */
+    public List<ChangeSet> readBetween(long from, long to, int limit) {
+        return read(null, 0, from, to, limit);
+    }
+
+    /**
+     * Read change sets with a sequence number higher than the given one, oldest first. Only the segment holding the
+     * change set following the given sequence number and the segments after it are read, starting at the nearest
+     * indexed record, so the cost of a read does not depend on the number of change sets in the log.
+     *
+     * @param sequence sequence number of the last change set that will not be included in the result, 0 for all.
+     * @param limit    maximum number of change sets to read.
+     * @return change sets, oldest first.
+     */
+    public List<ChangeSet> readForward(long sequence, int limit) {
+        List<ChangeSet> result = new ArrayList<>();
+        if (limit <= 0) {
+            return result;
+        }
+
+        Long first = segments.floorKey(sequence + 1);
+        for (Segment segment : (first == null ? segments : segments.tailMap(first)).values()) {
+            if (!segment.acquire()) {
+                continue;
+            }
+            try {
+                if (segment.readForward(sequence, limit, result)) {
+                    break;
+                }
+            } finally {
+                segment.release();
+            }
+        }
+
+        return result;
+    }
+
+    private List<ChangeSet> read(byte[] uuid, long sequence, long from, long to, int limit) {
+        List<ChangeSet> result = new ArrayList<>();
+        if (limit <= 0) {
+            return result;
+        }
+
+        for (Map.Entry<Long, Segment> entry : segments.descendingMap().entrySet()) {
+            //all change sets of a segment are at least as recent as the last change set of the segment before it
+            Map.Entry<Long, Segment> previous = segments.lowerEntry(entry.getKey());
+            if (previous != null && previous.getValue().lastTimestamp >= to) {
+                continue;
+            }
+
+            Segment segment = entry.getValue();
+            if (!segment.acquire()) {
+                continue;
+            }
+            try {
+                if (segment.read(uuid, sequence, from, to, limit, result)) {
+                    break;
+                }
+            } finally {
+                segment.release();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Prune the log, only keeping the specified number of latest change sets (or more, since only whole segment files
+     * are deleted). The active segment is never deleted. Segment files still being read are deleted once the reads
+     * have finished.
+     *
+     * @param keep             number of change sets to keep.
+     * @param mustBeExceededBy number of change sets in the log by which <code>keep</code> must be exceeded before the
+     *                         oldest change sets are actually pruned.
+     */
+    public synchronized void prune(int keep, int mustBeExceededBy) {
+        int toPrune = size() - keep;
+        if (toPrune <= 0 || toPrune < mustBeExceededBy) {
+            LOG.debug("Nothing to prune");
+            return;
+        }
+
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment == active || segment.count > toPrune) {
+                break;
+            }
+
+            segments.remove(segment.baseSequence);
+            toPrune -= segment.count;
+            segment.release();
+        }
+    }
+
+    /**
+     * Get the number of change sets in the log.
+     *
+     * @return number of change sets.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of segment files of the log.
+     *
+     * @return number of segments.
+     */
+    public int getNumberOfSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Get the directory the log is kept in.
+     *
+     * @return directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Close the log, forcing the active segment to disk.
+     */
+    public synchronized void close() {
+        if (active != null) {
+            active.buffer.force();
+        }
+    }
+
+    private void roll(int payloadLength) {
+        if (active != null) {
+            active.buffer.force();
+        }
+
+        long baseSequence = lastSequence;
+        File file = new File(directory, String.format("%020d", baseSequence) + SUFFIX);
+        active = Segment.create(file, baseSequence, Math.max(segmentFileSize, RECORD_HEADER + payloadLength));
+        segments.put(baseSequence, active);
+        LOG.debug("Created change feed segment file {}", file.getAbsolutePath());
+    }
+
+    private static byte[] payload(ChangeSet changeSet) {
+        byte[] uuid = changeSet.getUuid().getBytes(UTF_8);
+        byte[] changes = changeSet.getEncodedChanges();
+
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_HEADER + uuid.length + changes.length);
+        payload.putLong(changeSet.getSequence());
+        payload.putLong(changeSet.getTimestamp());
+        payload.putShort((short) uuid.length);
+        payload.put(uuid);
+        payload.put(changes);
+        return payload.array();
+    }
+
+    private static long baseSequence(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * A single segment file.
+     */
+    private static final class Segment {
+
+        private final File file;
+        private final long baseSequence;
+        private final MappedByteBuffer buffer;
+
+        //only written whilst holding the lock of the log; limit is written last, so that readers reading it first
+        //see the records and index entries before it
+        private volatile int[] index = new int[16];
+        private volatile int indexSize;
+        private volatile int count;
+        private volatile long lastSequence;
+        private volatile long lastTimestamp;
+        private volatile int limit;
+
+        //one reference held by the log until the segment is pruned, and one by every read in progress
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Segment(File file, long baseSequence, MappedByteBuffer buffer) {
+            this.file = file;
+            this.baseSequence = baseSequence;
+            this.buffer = buffer;
+        }
+
+        private static Segment create(File file, long baseSequence, int size) {
+            return new Segment(file, baseSequence, map(file, size));
+        }
+
+        private static Segment recover(File file, long baseSequence) {
+            Segment segment = new Segment(file, baseSequence, map(file, (int) file.length()));
+            ByteBuffer view = segment.buffer.duplicate();
+
+            int position = 0;
+            while (position + RECORD_HEADER + PAYLOAD_HEADER <= view.capacity()) {
+                int length = view.getInt(position);
+                if (length < PAYLOAD_HEADER || position + RECORD_HEADER + length > view.capacity()) {
+                    break;
+                }
+                if (view.getInt(position + 4) != crc(view, position + RECORD_HEADER, length)) {
+                    LOG.warn("Discarding partially written change set at offset {} of {}", position, file.getAbsolutePath());
+                    break;
+                }
+                segment.indexRecord(position, view.getLong(position + RECORD_HEADER), view.getLong(position + RECORD_HEADER + 8));
+                position += RECORD_HEADER + length;
+            }
+
+            //make sure whatever follows the last valid record is never mistaken for one
+            for (int i = position; i < view.capacity() && i < position + RECORD_HEADER; i++) {
+                view.put(i, (byte) 0);
+            }
+            segment.limit = position;
+
+            return segment;
+        }
+
+        private boolean hasRoomFor(int payloadLength) {
+            return limit + RECORD_HEADER + payloadLength <= buffer.capacity();
+        }
+
+        private void append(ChangeSet changeSet, byte[] payload) {
+            ByteBuffer view = buffer.duplicate();
+            int position = limit;
+            view.position(position + RECORD_HEADER);
+            view.put(payload);
+            view.putInt(position + 4, crc(view, position + RECORD_HEADER, payload.length));
+            view.putInt(position, payload.length);
+
+            indexRecord(position, changeSet.getSequence(), changeSet.getTimestamp());
+            limit = position + RECORD_HEADER + payload.length;
+        }
+
+        private void indexRecord(int position, long sequence, long timestamp) {
+            if (count % INDEX_INTERVAL == 0) {
+                int[] current = index;
+                if (indexSize == current.length) {
+                    current = Arrays.copyOf(current, current.length * 2);
+                }
+                current[indexSize] = position;
+                index = current;
+                indexSize++;
+            }
+            count++;
+            lastSequence = sequence;
+            lastTimestamp = timestamp;
+        }
+
+        /**
+         * Acquire a reference to the segment, so that it is not unmapped while being read.
+         *
+         * @return true iff the reference has been acquired, false if the segment has been pruned and must not be read.
+         */
+        private boolean acquire() {
+            while (true) {
+                int current = references.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Release a reference to the segment. Once the last reference has been released, the segment file is unmapped
+         * and deleted.
+         */
+        private void release() {
+            if (references.decrementAndGet() > 0) {
+                return;
+            }
+
+            unmap(buffer);
+            if (!file.delete()) {
+                LOG.warn("Could not delete change feed segment file {}", file.getAbsolutePath());
+            }
+        }
+
+        /**
+         * Read records of this segment newest first into the result.
+         *
+         * @return true iff reading should stop, because the uuid, the sequence number or the start of the time range has
+         * been reached, or the limit has been reached.
+         */
+        private boolean read(byte[] uuid, long sequence, long from, long to, int maxResults, List<ChangeSet> result) {
+            int end = limit;
+            if (end == 0) {
+                return false;
+            }
+            if (lastSequence <= sequence || lastTimestamp < from) {
+                return true;
+            }
+
+            int blockCount = indexSize;
+            int[] blocks = index;
+            ByteBuffer view = buffer.duplicate();
+
+            int[] offsets = new int[INDEX_INTERVAL];
+            for (int block = blockCount - 1; block >= 0; block--) {
+                int start = blocks[block];
+                if (start >= end) {
+                    continue;
+                }
+                int blockEnd = block + 1 < blockCount ? Math.min(blocks[block + 1], end) : end;
+
+                int records = 0;
+                for (int position = start; position < blockEnd; position += RECORD_HEADER + view.getInt(position)) {
+                    if (records == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                    }
+                    offsets[records++] = position;
+                }
+
+                for (int i = records - 1; i >= 0; i--) {
+                    if (uuid != null && hasUuid(view, offsets[i], uuid)) {
+                        return true;
+                    }
+                    if (view.getLong(offsets[i] + RECORD_HEADER) <= sequence) {
+                        return true;
+                    }
+                    long timestamp = view.getLong(offsets[i] + RECORD_HEADER + 8);
+                    if (timestamp < from) {
+                        return true;
+                    }
+                    if (timestamp >= to) {
+                        continue;
+                    }
+                    result.add(readRecord(view, offsets[i]));
+                    if (result.size() >= maxResults) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Read records of this segment with a sequence number higher than the given one oldest first into the result.
+         *
+         * @return true iff the limit has been reached.
+         */
+        private boolean readForward(long sequence, int maxResults, List<ChangeSet> result) {
+            int end = limit;
+            if (end == 0 || lastSequence <= sequence) {
+                return false;
+            }
+
+            int blockCount = indexSize;
+            int[] blocks = index;
+            ByteBuffer view = buffer.duplicate();
+
+            //start at the last block whose first record is not newer than the first record to read
+            int low = 0;
+            int high = blockCount - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (blocks[middle] < end && view.getLong(blocks[middle] + RECORD_HEADER) <= sequence + 1) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+
+            for (int position = blocks[low]; position < end; position += RECORD_HEADER + view.getInt(position)) {
+                if (view.getLong(position + RECORD_HEADER) <= sequence) {
+                    continue;
+                }
+                result.add(readRecord(view, position));
+                if (result.size() >= maxResults) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private static boolean hasUuid(ByteBuffer view, int position, byte[] uuid) {
+            int payload = position + RECORD_HEADER;
+            if (view.getShort(payload + 16) != uuid.length) {
+                return false;
+            }
+            for (int i = 0; i < uuid.length; i++) {
+                if (view.get(payload + PAYLOAD_HEADER + i) != uuid[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static ChangeSet readRecord(ByteBuffer view, int position) {
+            int length = view.getInt(position);
+            int payload = position + RECORD_HEADER;
+
+            long sequence = view.getLong(payload);
+            long timestamp = view.getLong(payload + 8);
+            int uuidLength = view.getShort(payload + 16);
+
+            byte[] uuid = new byte[uuidLength];
+            byte[] changes = new byte[length - PAYLOAD_HEADER - uuidLength];
+            ByteBuffer record = view.duplicate();
+            record.position(payload + PAYLOAD_HEADER);
+            record.get(uuid);
+            record.get(changes);
+
+            ChangeSet changeSet = new ChangeSet(new String(uuid, UTF_8), timestamp);
+            changeSet.setSequence(sequence);
+            changeSet.setEncodedChanges(changes);
+            return changeSet;
+        }
+
+        private static int crc(ByteBuffer view, int position, int length) {
+            ByteBuffer data = view.duplicate();
+            data.position(position);
+            data.limit(position + length);
+
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[Math.min(length, 4096)];
+            while (data.hasRemaining()) {
+                int size = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, size);
+                crc.update(chunk, 0, size);
+            }
+            return (int) crc.getValue();
+        }
+
+        private static void unmap(MappedByteBuffer buffer) {
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception e) {
+                LOG.debug("Could not unmap change feed segment, it will be unmapped once garbage collected", e);
+            }
+        }
+
+        private static MappedByteBuffer map(File file, int size) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not map change feed segment file " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link ChangeReader} that reads the changes from a {@link FileChangeLog}.
+ */
+public class FileChangeReader implements ChangeReader {
+
+    private final FileChangeLog log;
+
+    /**
+     * Construct a new reader.
+     *
+     * @param log to read the changes from.
+     */
+    public FileChangeReader(FileChangeLog log) {
+        this.log = log;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getAllChanges() {
+        return log.read(null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getNumberOfChanges(int limit) {
+        return log.read(null, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getChangesSince(String uuid) {
+        return log.read(uuid, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getNumberOfChangesSince(String uuid, int limit) {
+        return log.read(uuid, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getNumberOfChangesSince(long sequence, int limit) {
+        return log.read(sequence, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The log is not indexed by time, so it is read from the newest segment that can hold change sets within the time
+     * range back to the start of the time range.
+     */
+    @Override
+    public Collection<ChangeSet> getChangesBetween(long from, long to, int limit) {
+        return log.readBetween(from, to, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<ChangeSet> readForward(long sequence, int limit) {
+        return log.readForward(sequence, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ForwardPage readPage(long sequence, int limit) {
+        return ForwardPage.of(readForward(sequence, limit), sequence);
+    }
+}
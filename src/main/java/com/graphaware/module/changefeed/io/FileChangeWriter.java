@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.common.uuid.EaioUuidGenerator;
+import com.graphaware.common.uuid.UuidGenerator;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link ChangeWriter} that keeps the changes in a {@link FileChangeLog} rather than in the graph, so that recording
+ * changes does not cost any Neo4j records, locks, or page cache.
+ * <p/>
+ * Change sets are visible to readers as soon as they have been appended, so they must only be recorded after the
+ * transaction that caused them has committed.
+ */
+public class FileChangeWriter implements ChangeWriter {
+
+    private final UuidGenerator uuidGenerator = new EaioUuidGenerator();
+
+    private final FileChangeLog log;
+
+    /**
+     * Construct a new writer.
+     *
+     * @param log to append the changes to.
+     */
+    public FileChangeWriter(FileChangeLog log) {
+        this.log = log;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void initialize() {
+        log.open();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordChanges(Set<String> changes) {
+        ChangeSet changeSet = new ChangeSet(uuidGenerator.generateUuid());
+        changeSet.addChanges(changes);
+        recordChanges(changeSet);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordChanges(ChangeSet changeSet) {
+        recordChangeSets(Collections.singletonList(changeSet));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordChangeSets(List<ChangeSet> changeSets) {
+        log.append(changeSets);
+        for (ChangeSet changeSet : changeSets) {
+            onChangeSetVisible(changeSet);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Only whole segment files are pruned, so more changes than <code>keep</code> may remain.
+     */
+    @Override
+    public void pruneChanges(int keep, int mustBeExceededBy) {
+        log.prune(keep, mustBeExceededBy);
+    }
+
+    /**
+     * Called once a change set has been appended to the log. Does nothing by default, intended to be overridden.
+     *
+     * @param changeSet that has been appended.
+     */
+    protected void onChangeSetVisible(ChangeSet changeSet) {
+    }
+
+    /**
+     * Close the underlying log.
+     */
+    public void shutdown() {
+        log.close();
+    }
+}
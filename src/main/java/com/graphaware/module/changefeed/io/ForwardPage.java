@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+
+import java.util.List;
+
+/**
+ * A page of {@link ChangeSet}s read oldest first (see {@link ChangeReader#readPage(long, int)}), together with the
+ * sequence number from which to read the next page.
+ * <p/>
+ * A page read with a filter holds the matching change sets only, but the feed is read up to its next sequence number,
+ * which can therefore be higher than the sequence number of its last change set. At most {@link #MAX_SCANNED} change
+ * sets are read for a filtered page, so a page can be empty even though newer change sets match.
+ */
+public final class ForwardPage {
+
+    /**
+     * Maximum number of change sets read for a single filtered page.
+     */
+    public static final int MAX_SCANNED = 10000;
+
+    private final List<ChangeSet> changeSets;
+    private final long next;
+
+    /**
+     * Construct a new page.
+     *
+     * @param changeSets of the page, oldest first.
+     * @param next       sequence number of the last change set read for the page.
+     */
+    public ForwardPage(List<ChangeSet> changeSets, long next) {
+        this.changeSets = changeSets;
+        this.next = next;
+    }
+
+    /**
+     * Construct a page of all change sets read for it.
+     *
+     * @param changeSets of the page, oldest first.
+     * @param sequence   sequence number after which the page has been read.
+     * @return page whose next sequence number is that of its last change set, or the given one if it is empty.
+     */
+    public static ForwardPage of(List<ChangeSet> changeSets, long sequence) {
+        return new ForwardPage(changeSets, changeSets.isEmpty() ? sequence : changeSets.get(changeSets.size() - 1).getSequence());
+    }
+
+    /**
+     * Get the change sets of the page.
+     *
+     * @return change sets, oldest first.
+     */
+    public List<ChangeSet> getChangeSets() {
+        return changeSets;
+    }
+
+    /**
+     * Get the sequence number after which the next page should be read.
+     *
+     * @return next sequence number.
+     */
+    public long getNext() {
+        return next;
+    }
+}
@@ -17,29 +17,82 @@
 package com.graphaware.module.changefeed.io;
 
 import com.graphaware.module.changefeed.ChangeFeedModule;
+import com.graphaware.module.changefeed.domain.ChangeFilter;
 import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.domain.Indexes;
 import com.graphaware.module.changefeed.domain.Labels;
-import com.graphaware.module.changefeed.domain.Relationships;
+import com.graphaware.runtime.GraphAwareRuntime;
+import com.graphaware.runtime.RuntimeRegistry;
 import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.index.lucene.QueryContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import static com.graphaware.common.util.IterableUtils.getSingleOrNull;
 import static com.graphaware.module.changefeed.domain.Properties.*;
 
 /**
  * {@link ChangeReader} that reads the changes stored in the graph.
+ * <p/>
+ * Changes are looked up in the change set index by sequence number, both in nodes storing a single change set and in
+ * segment nodes storing many, and merged newest first. If the feed is striped across several shards (see
+ * {@link GraphChangeWriter}), each shard is read this way and the shards are merged by sequence number, so the order
+ * is the same as for a single shard. Only change sets at or below the visible sequence number of the
+ * {@link ChangeFeedModule} are returned, so a change set never appears in the feed before all the change sets
+ * preceding it. Reading does not take any locks; a read that observes concurrent packing or pruning is retried.
+ * <p/>
+ * Timestamps of change sets are indexed as well, both in nodes storing a single change set and in segment nodes, so
+ * that changes within a time range are found by a range query on the index.
+ * <p/>
+ * A reader can be constructed to read change set headers only, in which case the changes of change sets packed into
+ * segments are not read (nor decompressed) at all, only their uuids, sequence numbers, timestamps, and numbers of
+ * changes. The changes of such a change set are fetched on demand, when first read. Change sets not yet packed into
+ * segments, and those in segments written before the numbers of changes were stored, are always read in full.
+ * <p/>
+ * Changes are also read forward, oldest first, in pages. A page is found by looking up the change set nodes following
+ * the given sequence number and the segments holding them in the index, so a page costs the same no matter how long
+ * the feed is.
+ * <p/>
+ * A reader can also be constructed to read change sets matching a {@link ChangeFilter} only. The filter is applied as
+ * change sets are read, before they count towards a limit, using the bitmaps of tags stored alongside the change sets,
+ * so that change set nodes and segments that do not match are not decompressed.
  */
 public class GraphChangeReader implements ChangeReader {
 
     private static final Logger LOG = LoggerFactory.getLogger(GraphChangeReader.class);
+    private static final int MAX_READ_ATTEMPTS = 3;
+    private static final Comparator<ShardCursor> NEWEST_FIRST = new Comparator<ShardCursor>() {
+        @Override
+        public int compare(ShardCursor c1, ShardCursor c2) {
+            return Long.compare(c2.current().getSequence(), c1.current().getSequence());
+        }
+    };
+    private static final Comparator<ForwardShardCursor> OLDEST_FIRST = new Comparator<ForwardShardCursor>() {
+        @Override
+        public int compare(ForwardShardCursor c1, ForwardShardCursor c2) {
+            return Long.compare(c1.current().getSequence(), c2.current().getSequence());
+        }
+    };
 
     private final GraphDatabaseService database;
+    private final String moduleId;
     private final Node root;
+    private final ChangeCompressor compressor;
+    private final boolean headersOnly;
+    private final ChangeFilter filter;
 
     /**
      * Construct a new reader.
@@ -59,7 +112,33 @@ public class GraphChangeReader implements ChangeReader {
      * @param moduleId ID of the module storing changes.
      */
     public GraphChangeReader(GraphDatabaseService database, String moduleId) {
+        this(database, moduleId, false);
+    }
+
+    /**
+     * Construct a new reader.
+     *
+     * @param database    in which the changes are stored.
+     * @param moduleId    ID of the module storing changes.
+     * @param headersOnly true for reading change set headers only, fetching their changes on demand.
+     */
+    public GraphChangeReader(GraphDatabaseService database, String moduleId, boolean headersOnly) {
+        this(database, moduleId, headersOnly, ChangeFilter.all());
+    }
+
+    /**
+     * Construct a new reader.
+     *
+     * @param database    in which the changes are stored.
+     * @param moduleId    ID of the module storing changes.
+     * @param headersOnly true for reading change set headers only, fetching their changes on demand.
+     * @param filter      change sets must match to be read.
+     */
+    public GraphChangeReader(GraphDatabaseService database, String moduleId, boolean headersOnly, ChangeFilter filter) {
         this.database = database;
+        this.moduleId = moduleId;
+        this.headersOnly = headersOnly;
+        this.filter = filter;
 
         try (Transaction tx = database.beginTx()) {
             root = getSingleOrNull(database.findNodes(Labels._GA_ChangeFeed, MODULE_ID, moduleId));
@@ -69,6 +148,8 @@ public class GraphChangeReader implements ChangeReader {
             }
             tx.success();
         }
+
+        compressor = new ChangeCompressor(root, false);
     }
 
     /**
@@ -103,6 +184,265 @@ public class GraphChangeReader implements ChangeReader {
         return doGetChanges(uuid, limit);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getNumberOfChangesSince(long sequence, int limit) {
+        return readChanges(null, sequence, Long.MAX_VALUE, limit, headersOnly, filter);
+    }
+
+    /**
+     * Get a number of latest changes with a sequence number higher than one given number and not higher than another.
+     *
+     * @param sinceSequence sequence number of the newest change set that will not be included in the result, 0 for all.
+     * @param untilSequence sequence number of the newest change set that can be included in the result.
+     * @param limit         maximum number of changes to fetch.
+     * @return changes, latest change first.
+     */
+    public Collection<ChangeSet> getNumberOfChangesBetween(long sinceSequence, long untilSequence, int limit) {
+        return readChanges(null, sinceSequence, untilSequence, limit, headersOnly, filter);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> getChangesBetween(long from, long to, int limit) {
+        if (limit <= 0 || from >= to) {
+            return new ArrayList<>();
+        }
+
+        long visibleSequence = getVisibleSequence();
+
+        for (int attempt = 1; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            try {
+                return readChangesBetween(from, to, limit, visibleSequence, false, headersOnly);
+            } catch (NotFoundException e) {
+                LOG.debug("Change feed modified whilst reading, retrying");
+            }
+        }
+
+        return readChangesBetween(from, to, limit, visibleSequence, true, headersOnly);
+    }
+
+    private List<ChangeSet> readChangesBetween(long from, long to, int limit, long visibleSequence, boolean skipMissing, boolean headers) {
+        List<ChangeSet> changeFeed = new ArrayList<>();
+
+        try (Transaction tx = database.beginTx()) {
+            List<Index<Node>> indexes = indexes();
+            List<ShardCursor> cursors = new ArrayList<>(indexes.size());
+            try {
+                PriorityQueue<ShardCursor> newestFirst = new PriorityQueue<>(indexes.size(), NEWEST_FIRST);
+                for (Index<Node> index : indexes) {
+                    ShardCursor cursor = new ShardCursor(index, limit, from, to, visibleSequence, skipMissing, headers, filter);
+                    cursors.add(cursor);
+                    if (cursor.advance()) {
+                        newestFirst.add(cursor);
+                    }
+                }
+
+                while (changeFeed.size() < limit && !newestFirst.isEmpty()) {
+                    ShardCursor cursor = newestFirst.poll();
+                    changeFeed.add(cursor.current());
+                    if (cursor.advance()) {
+                        newestFirst.add(cursor);
+                    }
+                }
+            } finally {
+                for (ShardCursor cursor : cursors) {
+                    cursor.close();
+                }
+            }
+
+            tx.success();
+        }
+
+        return changeFeed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<ChangeSet> readForward(long sequence, int limit) {
+        return readPage(sequence, limit).getChangeSets();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Sequence numbers of change sets kept in the feed are contiguous, apart from those of rolled back transactions,
+     * so a filtered page is read from change sets with at most {@link ForwardPage#MAX_SCANNED} sequence numbers
+     * following the oldest one after the given sequence number.
+     */
+    @Override
+    public ForwardPage readPage(long sequence, int limit) {
+        if (limit <= 0) {
+            return new ForwardPage(new ArrayList<ChangeSet>(), sequence);
+        }
+
+        long visibleSequence = getVisibleSequence();
+
+        if (filter.isAll()) {
+            return ForwardPage.of(readForward(sequence, limit, visibleSequence, filter), sequence);
+        }
+
+        List<ChangeSet> oldest = readForward(sequence, 1, visibleSequence, ChangeFilter.all());
+        if (oldest.isEmpty()) {
+            return new ForwardPage(oldest, sequence);
+        }
+
+        long untilSequence = Math.min(visibleSequence, oldest.get(0).getSequence() - 1 + ForwardPage.MAX_SCANNED);
+        List<ChangeSet> changeSets = readForward(sequence, limit, untilSequence, filter);
+        if (changeSets.size() >= limit) {
+            return new ForwardPage(changeSets, changeSets.get(changeSets.size() - 1).getSequence());
+        }
+
+        //all change sets up to the newest one within the range have been read
+        List<ChangeSet> newest = readChanges(null, sequence, untilSequence, 1, true, ChangeFilter.all());
+        return new ForwardPage(changeSets, newest.isEmpty() ? sequence : newest.get(0).getSequence());
+    }
+
+    private List<ChangeSet> readForward(long sequence, int limit, long untilSequence, ChangeFilter filter) {
+        for (int attempt = 1; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            try {
+                return readForward(sequence, limit, untilSequence, false, filter);
+            } catch (NotFoundException e) {
+                LOG.debug("Change feed modified whilst reading, retrying");
+            }
+        }
+
+        return readForward(sequence, limit, untilSequence, true, filter);
+    }
+
+    private List<ChangeSet> readForward(long sequence, int limit, long visibleSequence, boolean skipMissing, ChangeFilter filter) {
+        List<ChangeSet> changeFeed = new ArrayList<>();
+
+        try (Transaction tx = database.beginTx()) {
+            if (sequence < visibleSequence) {
+                List<Index<Node>> indexes = indexes();
+                List<ForwardShardCursor> cursors = new ArrayList<>(indexes.size());
+                try {
+                    PriorityQueue<ForwardShardCursor> oldestFirst = new PriorityQueue<>(indexes.size(), OLDEST_FIRST);
+                    for (Index<Node> index : indexes) {
+                        ForwardShardCursor cursor = new ForwardShardCursor(index, limit, sequence, visibleSequence, skipMissing, filter);
+                        cursors.add(cursor);
+                        if (cursor.advance()) {
+                            oldestFirst.add(cursor);
+                        }
+                    }
+
+                    while (changeFeed.size() < limit && !oldestFirst.isEmpty()) {
+                        ForwardShardCursor cursor = oldestFirst.poll();
+                        changeFeed.add(cursor.current());
+                        if (cursor.advance()) {
+                            oldestFirst.add(cursor);
+                        }
+                    }
+                } finally {
+                    for (ForwardShardCursor cursor : cursors) {
+                        cursor.close();
+                    }
+                }
+            }
+
+            tx.success();
+        }
+
+        return changeFeed;
+    }
+
+    /**
+     * Read latest changes since a change set, handing every change set to a handler as soon as it has been read, rather
+     * than collecting them, so that any number of changes is read in constant memory.
+     *
+     * @param uuid    uuid of the first change that will <b>not</b> be handled, null for all changes.
+     * @param limit   maximum number of changes to read.
+     * @param handler of the changes, latest change first.
+     * @return number of change sets handed to the handler.
+     * @throws IOException if the handler fails, in which case no more changes are read.
+     */
+    public int readChangesSince(String uuid, int limit, ChangeSetHandler handler) throws IOException {
+        return readChangesBetween(uuid == null ? 0 : getSequence(uuid), Long.MAX_VALUE, limit, handler);
+    }
+
+    /**
+     * Read latest changes since a sequence number, handing every change set to a handler as soon as it has been read,
+     * rather than collecting them, so that any number of changes is read in constant memory.
+     *
+     * @param sequence sequence number of the first change that will <b>not</b> be handled, 0 for all changes.
+     * @param limit    maximum number of changes to read.
+     * @param handler  of the changes, latest change first.
+     * @return number of change sets handed to the handler.
+     * @throws IOException if the handler fails, in which case no more changes are read.
+     */
+    public int readChangesSince(long sequence, int limit, ChangeSetHandler handler) throws IOException {
+        return readChangesBetween(sequence, Long.MAX_VALUE, limit, handler);
+    }
+
+    /**
+     * Read a number of latest changes with a sequence number higher than one given number and not higher than another,
+     * handing every change set to a handler as soon as it has been read. A read that observes concurrent packing or
+     * pruning resumes after the last change set handed to the handler, so no change set is handled twice.
+     *
+     * @param sinceSequence sequence number of the newest change set that will not be handled, 0 for all.
+     * @param untilSequence sequence number of the newest change set that can be handled.
+     * @param limit         maximum number of changes to read.
+     * @param handler       of the changes, latest change first.
+     * @return number of change sets handed to the handler.
+     * @throws IOException if the handler fails, in which case no more changes are read.
+     */
+    protected int readChangesBetween(long sinceSequence, long untilSequence, int limit, ChangeSetHandler handler) throws IOException {
+        if (limit <= 0) {
+            return 0;
+        }
+
+        ResumingHandler resuming = new ResumingHandler(handler, Math.min(getVisibleSequence(), untilSequence));
+
+        for (int attempt = 1; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            try {
+                readChanges(null, sinceSequence, resuming.remaining(limit), resuming.untilSequence, false, headersOnly, filter, resuming);
+                return resuming.handled;
+            } catch (NotFoundException e) {
+                LOG.debug("Change feed modified whilst reading, resuming");
+            }
+        }
+
+        readChanges(null, sinceSequence, resuming.remaining(limit), resuming.untilSequence, true, headersOnly, filter, resuming);
+        return resuming.handled;
+    }
+
+    /**
+     * Read the changes of a change set whose header has been read by this reader.
+     *
+     * @param sequence sequence number of the change set.
+     * @return encoded changes.
+     * @throws NotFoundException if the change set has been pruned since its header was read.
+     */
+    byte[] readEncodedChanges(long sequence) {
+        List<ChangeSet> changeSets = readChanges(null, sequence - 1, sequence, 1, false, ChangeFilter.all());
+        if (changeSets.isEmpty() || changeSets.get(0).getSequence() != sequence) {
+            throw new NotFoundException("Change set with sequence number " + sequence + " has been pruned");
+        }
+        return changeSets.get(0).getEncodedChanges();
+    }
+
+    /**
+     * Get the sequence number of a change set.
+     *
+     * @param uuid of the change set.
+     * @return sequence number, 0 if there is no such change set.
+     */
+    public long getSequence(String uuid) {
+        long sequence;
+        try (Transaction tx = database.beginTx()) {
+            sequence = findSequence(indexes(), uuid);
+            tx.success();
+        }
+        return sequence;
+    }
+
     /**
      * Get a list of changes from the graph.
      *
@@ -111,29 +451,461 @@ public class GraphChangeReader implements ChangeReader {
      * @return List of {@link com.graphaware.module.changefeed.domain.ChangeSet}, latest change first.
      */
     protected Collection<ChangeSet> doGetChanges(String uuid, int limit) {
-        int count = 0;
-        List<ChangeSet> changeFeed = new ArrayList<>();
+        return readChanges(uuid, 0, Long.MAX_VALUE, limit, headersOnly, filter);
+    }
 
-        try (Transaction tx = database.beginTx()) {
-            tx.acquireWriteLock(root); //We should not have to do this, temp workaround for https://github.com/neo4j/neo4j/issues/2677
-            Relationship nextRel = root.getSingleRelationship(Relationships._GA_CHANGEFEED_NEXT_CHANGE, Direction.OUTGOING);
+    private List<ChangeSet> readChanges(String uuid, long sequence, long untilSequence, int limit, boolean headers, ChangeFilter filter) {
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        long visibleSequence = Math.min(getVisibleSequence(), untilSequence);
+
+        for (int attempt = 1; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            try {
+                return readChanges(uuid, sequence, limit, visibleSequence, false, headers, filter);
+            } catch (NotFoundException e) {
+                LOG.debug("Change feed modified whilst reading, retrying");
+            }
+        }
+
+        return readChanges(uuid, sequence, limit, visibleSequence, true, headers, filter);
+    }
 
-            while (count < limit && nextRel != null) {
-                Node changeNode = nextRel.getEndNode();
+    private List<ChangeSet> readChanges(String uuid, long sequence, int limit, long visibleSequence, boolean skipMissing, boolean headers, ChangeFilter filter) {
+        final List<ChangeSet> changeFeed = new ArrayList<>();
 
-                ChangeSet changeSet = new ChangeSet((String) changeNode.getProperty(UUID), (long) changeNode.getProperty(TIMESTAMP));
-                if (uuid != null && changeSet.getUuid().equals(uuid)) {
-                    break;
+        try {
+            readChanges(uuid, sequence, limit, visibleSequence, skipMissing, headers, filter, new ChangeSetHandler() {
+                @Override
+                public void handle(ChangeSet changeSet) {
+                    changeFeed.add(changeSet);
                 }
-                changeSet.addChanges((String[]) changeNode.getProperty(CHANGES));
-                changeFeed.add(changeSet);
-                count++;
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("Collecting change sets should not fail", e);
+        }
 
-                nextRel = changeNode.getSingleRelationship(Relationships._GA_CHANGEFEED_NEXT_CHANGE, Direction.OUTGOING);
+        return changeFeed;
+    }
+
+    private int readChanges(String uuid, long sequence, int limit, long visibleSequence, boolean skipMissing, boolean headers, ChangeFilter filter, ChangeSetHandler handler) throws IOException {
+        int handled = 0;
+
+        try (Transaction tx = database.beginTx()) {
+            List<Index<Node>> indexes = indexes();
+            int shards = indexes.size();
+
+            long sinceSequence = uuid == null ? sequence : findSequence(indexes, uuid);
+
+            if (sinceSequence < visibleSequence) {
+                List<ShardCursor> cursors = new ArrayList<>(shards);
+                try {
+                    PriorityQueue<ShardCursor> newestFirst = new PriorityQueue<>(shards, NEWEST_FIRST);
+                    for (Index<Node> index : indexes) {
+                        ShardCursor cursor = new ShardCursor(index, limit, sinceSequence, visibleSequence, skipMissing, headers, filter);
+                        cursors.add(cursor);
+                        if (cursor.advance()) {
+                            newestFirst.add(cursor);
+                        }
+                    }
+
+                    while (handled < limit && !newestFirst.isEmpty()) {
+                        ShardCursor cursor = newestFirst.poll();
+                        handler.handle(cursor.current());
+                        handled++;
+                        if (cursor.advance()) {
+                            newestFirst.add(cursor);
+                        }
+                    }
+                } finally {
+                    for (ShardCursor cursor : cursors) {
+                        cursor.close();
+                    }
+                }
             }
+
             tx.success();
         }
 
-        return changeFeed;
+        return handled;
+    }
+
+    private List<Index<Node>> indexes() {
+        int shards = (int) root.getProperty(SHARDS, 1);
+        List<Index<Node>> indexes = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            indexes.add(database.index().forNodes(Indexes.changeSetIndex(moduleId, shard)));
+        }
+        return indexes;
+    }
+
+    private long findSequence(List<Index<Node>> indexes, String uuid) {
+        for (Index<Node> index : indexes) {
+            try (IndexHits<Node> hits = index.get(UUID, uuid)) {
+                Node node = hits.getSingle();
+                if (node == null) {
+                    continue;
+                }
+                if (node.hasLabel(Labels._GA_ChangeSetSegment)) {
+                    return ChangeSetSegments.sequenceOf(node, uuid);
+                }
+                return ChangeSetNodes.sequence(node);
+            }
+        }
+        return 0;
+    }
+
+    private ChangeSet nextChangeSet(IndexHits<Node> changeNodes, boolean skipMissing, ChangeFilter filter) {
+        while (changeNodes.hasNext()) {
+            Node changeNode = changeNodes.next();
+            try {
+                if (changeNode.hasLabel(Labels._GA_ChangeSetSegment)) {
+                    //segments have no sequence number and are thus sorted after all change set nodes
+                    return null;
+                }
+                ChangeSet changeSet = ChangeSetNodes.read(changeNode, compressor, filter);
+                if (changeSet != null) {
+                    return changeSet;
+                }
+            } catch (NotFoundException e) {
+                if (!skipMissing) {
+                    throw e;
+                }
+                LOG.debug("Change set node {} has been removed whilst reading the feed", changeNode.getId());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read change sets within the given bounds from the next segment that contains any, newest first.
+     *
+     * @return false iff there are no more segments with change sets newer than since sequence.
+     */
+    private boolean nextSegment(Iterator<Node> segments, Deque<ChangeSet> segmented, long sinceSequence, long visibleSequence, long from, long to, boolean skipMissing, boolean headers, ChangeFilter filter) {
+        while (segments.hasNext()) {
+            Node segment = segments.next();
+
+            List<ChangeSet> changeSets;
+            long lastSequence;
+            try {
+                if (!segment.hasLabel(Labels._GA_ChangeSetSegment)) {
+                    //change set nodes have no first sequence number and are thus sorted after all segments
+                    return false;
+                }
+                changeSets = readSegment(segment, headers, filter);
+                lastSequence = ChangeSetSegments.lastSequence(segment);
+            } catch (NotFoundException e) {
+                if (!skipMissing) {
+                    throw e;
+                }
+                LOG.debug("Segment node {} has been removed whilst reading the feed", segment.getId());
+                continue;
+            }
+
+            for (ChangeSet changeSet : changeSets) {
+                if (changeSet.getSequence() > sinceSequence && changeSet.getSequence() <= visibleSequence && changeSet.getTimestamp() >= from && changeSet.getTimestamp() < to) {
+                    segmented.addFirst(changeSet);
+                }
+            }
+
+            if (lastSequence <= sinceSequence) {
+                return false;
+            }
+
+            if (!segmented.isEmpty()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private List<ChangeSet> readSegment(Node segment, boolean headers, ChangeFilter filter) {
+        if (headers) {
+            List<ChangeSet> changeSets = ChangeSetSegments.readHeaders(segment, this);
+            if (changeSets != null) {
+                return filter.isAll() ? changeSets : matching(changeSets, filter);
+            }
+        }
+        return ChangeSetSegments.read(segment, compressor, filter);
+    }
+
+    /**
+     * @return change sets matching the filter. The changes of headers are only fetched if their tags might match.
+     */
+    private static List<ChangeSet> matching(List<ChangeSet> changeSets, ChangeFilter filter) {
+        List<ChangeSet> result = new ArrayList<>(changeSets.size());
+        for (ChangeSet changeSet : changeSets) {
+            if (filter.matches(changeSet)) {
+                result.add(changeSet);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Handler keeping track of the change sets handed over, so that a read can be resumed after the last one.
+     */
+    private static class ResumingHandler implements ChangeSetHandler {
+
+        private final ChangeSetHandler delegate;
+        private long untilSequence;
+        private int handled = 0;
+
+        ResumingHandler(ChangeSetHandler delegate, long untilSequence) {
+            this.delegate = delegate;
+            this.untilSequence = untilSequence;
+        }
+
+        @Override
+        public void handle(ChangeSet changeSet) throws IOException {
+            delegate.handle(changeSet);
+            untilSequence = changeSet.getSequence() - 1;
+            handled++;
+        }
+
+        int remaining(int limit) {
+            //no limit stays no limit, as a limit is passed on to the index as the number of top hits to collect
+            return limit == Integer.MAX_VALUE ? limit : limit - handled;
+        }
+    }
+
+    /**
+     * Cursor over the change sets of a single shard within the given bounds, newest first. Merges the shard's change
+     * set nodes with its segments, ending with the segment holding the change set following the since sequence number,
+     * if any.
+     */
+    private class ShardCursor {
+
+        private final IndexHits<Node> changeNodes;
+        private final IndexHits<Node> segments;
+        private Node lastSegment;
+        private final long sinceSequence;
+        private final long visibleSequence;
+        private final long from;
+        private final long to;
+        private final boolean skipMissing;
+        private final boolean headers;
+        private final ChangeFilter filter;
+        private final Deque<ChangeSet> segmented = new ArrayDeque<>();
+
+        private boolean started = false;
+        private boolean moreSegments = true;
+        private ChangeSet single;
+        private ChangeSet current;
+
+        ShardCursor(Index<Node> index, int limit, long sinceSequence, long visibleSequence, boolean skipMissing, boolean headers, ChangeFilter filter) {
+            this.sinceSequence = sinceSequence;
+            this.visibleSequence = visibleSequence;
+            this.from = Long.MIN_VALUE;
+            this.to = Long.MAX_VALUE;
+            this.skipMissing = skipMissing;
+            this.headers = headers;
+            this.filter = filter;
+
+            QueryContext changeNodesQuery = QueryContext.numericRange(SEQUENCE, sinceSequence + 1, visibleSequence).sortNumeric(SEQUENCE, true);
+            QueryContext segmentsQuery = QueryContext.numericRange(FIRST_SEQUENCE, sinceSequence + 1, visibleSequence).sortNumeric(FIRST_SEQUENCE, true);
+            if (limit < Integer.MAX_VALUE && filter.isAll()) {
+                //every segment holds at least one change set
+                changeNodesQuery = changeNodesQuery.top(limit);
+                segmentsQuery = segmentsQuery.top(limit);
+            }
+
+            try (IndexHits<Node> hits = index.query(QueryContext.numericRange(FIRST_SEQUENCE, 0L, sinceSequence).sortNumeric(FIRST_SEQUENCE, true).top(1))) {
+                lastSegment = hits.hasNext() ? hits.next() : null;
+            }
+            changeNodes = index.query(changeNodesQuery);
+            segments = index.query(segmentsQuery);
+        }
+
+        /**
+         * Cursor over the change sets with a timestamp within the given time range. Both change set nodes and segments
+         * are found by their timestamps, but sorted by sequence number, so that only the top limit of each are read.
+         */
+        ShardCursor(Index<Node> index, int limit, long from, long to, long visibleSequence, boolean skipMissing, boolean headers, ChangeFilter filter) {
+            this.sinceSequence = 0;
+            this.visibleSequence = visibleSequence;
+            this.from = from;
+            this.to = to;
+            this.skipMissing = skipMissing;
+            this.headers = headers;
+            this.filter = filter;
+
+            QueryContext changeNodesQuery = QueryContext.numericRange(TIMESTAMP, from, to, true, false).sortNumeric(SEQUENCE, true);
+            QueryContext segmentsQuery = QueryContext.numericRange(TIMESTAMP, from, to, true, false).sortNumeric(FIRST_SEQUENCE, true);
+            if (limit < Integer.MAX_VALUE && filter.isAll()) {
+                //every segment found holds at least one change set within the time range
+                changeNodesQuery = changeNodesQuery.top(limit);
+                segmentsQuery = segmentsQuery.top(limit);
+            }
+
+            changeNodes = index.query(changeNodesQuery);
+            segments = index.query(segmentsQuery);
+        }
+
+        /**
+         * Move to the next (older) change set.
+         *
+         * @return false iff there are no more change sets in this shard.
+         */
+        boolean advance() {
+            if (!started) {
+                single = nextChangeSet(changeNodes, skipMissing, filter);
+                started = true;
+            }
+
+            if (segmented.isEmpty() && moreSegments) {
+                moreSegments = nextSegment(segments, segmented, sinceSequence, visibleSequence, from, to, skipMissing, headers, filter);
+            }
+
+            if (segmented.isEmpty() && lastSegment != null) {
+                nextSegment(Collections.singletonList(lastSegment).iterator(), segmented, sinceSequence, visibleSequence, from, to, skipMissing, headers, filter);
+                lastSegment = null;
+            }
+
+            if (single == null && segmented.isEmpty()) {
+                current = null;
+            } else if (segmented.isEmpty() || (single != null && single.getSequence() > segmented.peekFirst().getSequence())) {
+                current = single;
+                single = nextChangeSet(changeNodes, skipMissing, filter);
+            } else {
+                current = segmented.pollFirst();
+            }
+
+            return current != null;
+        }
+
+        ChangeSet current() {
+            return current;
+        }
+
+        void close() {
+            changeNodes.close();
+            segments.close();
+        }
+    }
+
+    /**
+     * Cursor over the change sets of a single shard following a sequence number, oldest first. Merges the shard's
+     * change set nodes with its segments, starting with the segment holding the change set following the sequence
+     * number, if any.
+     */
+    private class ForwardShardCursor {
+
+        private final IndexHits<Node> changeNodes;
+        private final IndexHits<Node> segments;
+        private final Node firstSegment;
+        private final long sinceSequence;
+        private final long visibleSequence;
+        private final boolean skipMissing;
+        private final ChangeFilter filter;
+        private final Deque<ChangeSet> segmented = new ArrayDeque<>();
+
+        private boolean started = false;
+        private boolean moreSegments = true;
+        private ChangeSet single;
+        private ChangeSet current;
+
+        ForwardShardCursor(Index<Node> index, int limit, long sinceSequence, long visibleSequence, boolean skipMissing, ChangeFilter filter) {
+            this.sinceSequence = sinceSequence;
+            this.visibleSequence = visibleSequence;
+            this.skipMissing = skipMissing;
+            this.filter = filter;
+
+            QueryContext changeNodesQuery = QueryContext.numericRange(SEQUENCE, sinceSequence + 1, visibleSequence).sortNumeric(SEQUENCE, false);
+            QueryContext segmentsQuery = QueryContext.numericRange(FIRST_SEQUENCE, sinceSequence + 1, visibleSequence).sortNumeric(FIRST_SEQUENCE, false);
+            if (limit < Integer.MAX_VALUE && filter.isAll()) {
+                //every segment holds at least one change set
+                changeNodesQuery = changeNodesQuery.top(limit);
+                segmentsQuery = segmentsQuery.top(limit);
+            }
+
+            try (IndexHits<Node> hits = index.query(QueryContext.numericRange(FIRST_SEQUENCE, 0L, sinceSequence).sortNumeric(FIRST_SEQUENCE, true).top(1))) {
+                firstSegment = hits.hasNext() ? hits.next() : null;
+            }
+            changeNodes = index.query(changeNodesQuery);
+            segments = index.query(segmentsQuery);
+        }
+
+        /**
+         * Move to the next (newer) change set.
+         *
+         * @return false iff there are no more change sets in this shard.
+         */
+        boolean advance() {
+            if (!started) {
+                single = nextChangeSet(changeNodes, skipMissing, filter);
+                if (firstSegment != null) {
+                    readSegment(firstSegment);
+                }
+                started = true;
+            }
+
+            while (segmented.isEmpty() && moreSegments) {
+                moreSegments = segments.hasNext();
+                if (moreSegments) {
+                    readSegment(segments.next());
+                }
+            }
+
+            if (single == null && segmented.isEmpty()) {
+                current = null;
+            } else if (segmented.isEmpty() || (single != null && single.getSequence() < segmented.peekFirst().getSequence())) {
+                current = single;
+                single = nextChangeSet(changeNodes, skipMissing, filter);
+            } else {
+                current = segmented.pollFirst();
+            }
+
+            return current != null;
+        }
+
+        private void readSegment(Node segment) {
+            List<ChangeSet> changeSets;
+            try {
+                changeSets = GraphChangeReader.this.readSegment(segment, headersOnly, filter);
+            } catch (NotFoundException e) {
+                if (!skipMissing) {
+                    throw e;
+                }
+                LOG.debug("Segment node {} has been removed whilst reading the feed", segment.getId());
+                return;
+            }
+
+            for (ChangeSet changeSet : changeSets) {
+                if (changeSet.getSequence() > sinceSequence && changeSet.getSequence() <= visibleSequence) {
+                    segmented.addLast(changeSet);
+                }
+            }
+        }
+
+        ChangeSet current() {
+            return current;
+        }
+
+        void close() {
+            changeNodes.close();
+            segments.close();
+        }
+    }
+
+    /**
+     * Get the visible sequence number of the module whose changes this reader reads.
+     *
+     * @return visible sequence number, {@link Long#MAX_VALUE} if the module is not running in this JVM.
+     */
+    protected long getVisibleSequence() {
+        GraphAwareRuntime runtime = RuntimeRegistry.getRuntime(database);
+        if (runtime == null) {
+            return Long.MAX_VALUE;
+        }
+
+        try {
+            return runtime.getModule(moduleId, ChangeFeedModule.class).getVisibleSequence();
+        } catch (NotFoundException e) {
+            return Long.MAX_VALUE;
+        }
     }
 }
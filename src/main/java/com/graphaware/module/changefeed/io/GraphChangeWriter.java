@@ -19,34 +19,80 @@ package com.graphaware.module.changefeed.io;
 import com.graphaware.common.uuid.EaioUuidGenerator;
 import com.graphaware.common.uuid.UuidGenerator;
 import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.domain.Indexes;
 import com.graphaware.module.changefeed.domain.Labels;
-import com.graphaware.module.changefeed.domain.Relationships;
 import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.index.lucene.QueryContext;
+import org.neo4j.index.lucene.ValueContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import static com.graphaware.common.util.IterableUtils.getSingleOrNull;
 import static com.graphaware.module.changefeed.domain.Labels._GA_ChangeSet;
+import static com.graphaware.module.changefeed.domain.Labels._GA_ChangeSetSegment;
 import static com.graphaware.module.changefeed.domain.Properties.*;
 import static com.graphaware.module.changefeed.domain.Relationships._GA_CHANGEFEED_NEXT_CHANGE;
 import static com.graphaware.module.changefeed.domain.Relationships._GA_CHANGEFEED_OLDEST_CHANGE;
-import static org.neo4j.graphdb.Direction.INCOMING;
 import static org.neo4j.graphdb.Direction.OUTGOING;
 
 /**
  * {@link ChangeWriter} that keeps the changes stored in the graph.
+ * <p/>
+ * Every change set is first stored in its own node, which is assigned a sequence number by a {@link ChangeSetSequencer}
+ * and added to a legacy index keyed by sequence number and uuid. Appending a change set does not touch any existing
+ * node, so concurrent transactions recording changes do not contend on a single lock. The total order of the feed is
+ * given by the sequence numbers.
+ * <p/>
+ * Once enough change sets are visible, {@link #packSegments()} packs the oldest of them into a segment node (see
+ * {@link ChangeSetSegments}), so that the feed does not consist of one node per change set. Pruning removes whole
+ * segments where possible.
+ * <p/>
+ * The feed can be striped across a number of shards, each with its own change set index, so that transactions on
+ * different threads append to different indexes. A transaction appends all its change sets to the shard assigned to
+ * its thread. Every shard is packed and indexed independently; sequence numbers are global, so readers merge the shards
+ * into a single feed ordered by sequence number. The number of shards ever used is stored on the root, so that reducing
+ * the number of shards does not hide change sets stored in the shards no longer appended to. A single shard is the
+ * default and uses the same layout as an unsharded feed.
+ * <p/>
+ * If compression is enabled, changes are compressed by a {@link ChangeCompressor}, with a dictionary periodically
+ * trained from recent change sets by {@link #trainDictionary()}.
  */
 public class GraphChangeWriter implements ChangeWriter {
 
     private static final Logger LOG = LoggerFactory.getLogger(GraphChangeWriter.class);
+    private static final long ABANDON_AFTER_MS = 60_000;
+    private static final int DEFAULT_SEGMENT_SIZE = 100;
+    private static final int DICTIONARY_SAMPLE_SIZE = 100;
+    private static final int DICTIONARY_RETRAIN_INTERVAL = 10_000;
+    private static final Comparator<SequenceCursor> NEWEST_FIRST = new Comparator<SequenceCursor>() {
+        @Override
+        public int compare(SequenceCursor c1, SequenceCursor c2) {
+            return Long.compare(c2.current(), c1.current());
+        }
+    };
+
     private final UuidGenerator uuidGenerator = new EaioUuidGenerator();
 
     private final GraphDatabaseService database;
     private final String moduleId;
+    private final int segmentSize;
+    private final boolean compression;
+    private final int shards;
+    private final ChangeSetSequencer sequencer;
 
     private Node root;
+    private volatile int storedShards = 1;
+    private ChangeCompressor compressor;
 
     /**
      * Construct a new writer.
@@ -55,8 +101,60 @@ public class GraphChangeWriter implements ChangeWriter {
      * @param moduleId ID of the module storing changes.
      */
     public GraphChangeWriter(GraphDatabaseService database, String moduleId) {
+        this(database, moduleId, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Construct a new writer.
+     *
+     * @param database    in which to store the changes.
+     * @param moduleId    ID of the module storing changes.
+     * @param segmentSize maximum number of change sets packed into a single segment node, 1 disables packing.
+     */
+    public GraphChangeWriter(GraphDatabaseService database, String moduleId, int segmentSize) {
+        this(database, moduleId, segmentSize, false);
+    }
+
+    /**
+     * Construct a new writer.
+     *
+     * @param database    in which to store the changes.
+     * @param moduleId    ID of the module storing changes.
+     * @param segmentSize maximum number of change sets packed into a single segment node, 1 disables packing.
+     * @param compression true iff stored changes should be compressed.
+     */
+    public GraphChangeWriter(GraphDatabaseService database, String moduleId, int segmentSize, boolean compression) {
+        this(database, moduleId, segmentSize, compression, 1);
+    }
+
+    /**
+     * Construct a new writer.
+     *
+     * @param database    in which to store the changes.
+     * @param moduleId    ID of the module storing changes.
+     * @param segmentSize maximum number of change sets packed into a single segment node, 1 disables packing.
+     * @param compression true iff stored changes should be compressed.
+     * @param shards      number of shards to stripe the change feed across, 1 for a single shard.
+     */
+    public GraphChangeWriter(GraphDatabaseService database, String moduleId, int segmentSize, boolean compression, int shards) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("Segment size must be positive, was " + segmentSize);
+        }
+        if (shards < 1) {
+            throw new IllegalArgumentException("Number of shards must be positive, was " + shards);
+        }
+
         this.database = database;
         this.moduleId = moduleId;
+        this.segmentSize = segmentSize;
+        this.compression = compression;
+        this.shards = shards;
+        this.sequencer = new ChangeSetSequencer(ABANDON_AFTER_MS, new ChangeSetSequencer.Listener() {
+            @Override
+            public void changeSetVisible(ChangeSet changeSet) {
+                onChangeSetVisible(changeSet);
+            }
+        });
     }
 
     /**
@@ -65,9 +163,22 @@ public class GraphChangeWriter implements ChangeWriter {
     @Override
     public void initialize() {
         root = getOrCreateRoot();
+        compressor = new ChangeCompressor(root, compression);
+        try (Transaction tx = database.beginTx()) {
+            compressor.initialize();
+            storedShards = Math.max(shards, (int) root.getProperty(SHARDS, 1));
+            if (storedShards > 1) {
+                root.setProperty(SHARDS, storedShards);
+            }
+            tx.success();
+        }
+        createIndexes();
+        migrateLinkedChangeSets();
+        indexTimestamps();
+        sequencer.reset(findLastSequence());
+        packSegments();
     }
 
-
     /**
      * {@inheritDoc}
      */
@@ -79,98 +190,392 @@ public class GraphChangeWriter implements ChangeWriter {
     }
 
     /**
-     * Record (persist) a set of changes.
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordChanges(ChangeSet changeSet) {
+        recordChangeSets(Collections.singletonList(changeSet));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * All change sets are recorded in a single transaction.
+     */
+    @Override
+    public void recordChangeSets(List<ChangeSet> changeSets) {
+        if (changeSets.isEmpty()) {
+            return;
+        }
+
+        boolean committed = false;
+        try {
+            try (Transaction tx = database.beginTx()) {
+                appendChangeSets(changeSets);
+                tx.success();
+            }
+            committed = true;
+        } finally {
+            completeChangeSets(changeSets, committed);
+        }
+    }
+
+    /**
+     * Append change sets to the feed as part of the current transaction. Each change set is assigned a sequence number,
+     * but does not become visible to readers until {@link #completeChangeSets(List, boolean)} has been called for it
+     * and for all change sets with a lower sequence number.
+     * <p/>
+     * Use this method (rather than {@link #recordChangeSets(List)}) if the change sets should be committed or rolled
+     * back together with the transaction that caused them.
      *
-     * @param changeSet to record.
+     * @param changeSets to append, oldest first.
      */
-    protected void recordChanges(ChangeSet changeSet) {
-        try (Transaction tx = database.beginTx()) {
-            tx.acquireWriteLock(getRoot());
+    public void appendChangeSets(List<ChangeSet> changeSets) {
+        Index<Node> index = changeSetIndex((int) (Thread.currentThread().getId() % shards));
+
+        for (ChangeSet changeSet : changeSets) {
+            sequencer.allocate(changeSet);
 
             Node changeNode = database.createNode(_GA_ChangeSet);
-            changeNode.setProperty(UUID, changeSet.getUuid());
-            changeNode.setProperty(TIMESTAMP, changeSet.getTimestamp());
-            changeNode.setProperty(CHANGES, changeSet.getChangesAsArray());
+            ChangeSetNodes.write(changeNode, changeSet, compressor);
 
-            Relationship firstChangeRel = getRoot().getSingleRelationship(Relationships._GA_CHANGEFEED_NEXT_CHANGE, Direction.OUTGOING);
-            if (firstChangeRel == null) { //First changeSet recorded, create an _GA_CHANGEFEED_OLDEST_CHANGE relation from the root to it
-                getRoot().createRelationshipTo(changeNode, Relationships._GA_CHANGEFEED_OLDEST_CHANGE);
-            } else {
-                Node firstChange = firstChangeRel.getEndNode();
-                tx.acquireWriteLock(firstChange);
-                changeNode.createRelationshipTo(firstChange, Relationships._GA_CHANGEFEED_NEXT_CHANGE);
-                firstChangeRel.delete();
+            index.add(changeNode, SEQUENCE, ValueContext.numeric(changeSet.getSequence()));
+            index.add(changeNode, UUID, changeSet.getUuid());
+            index.add(changeNode, TIMESTAMP, ValueContext.numeric(changeSet.getTimestamp()));
+        }
+    }
+
+    /**
+     * Mark change sets previously passed to {@link #appendChangeSets(List)} as finished, once the transaction they
+     * have been appended in has committed or rolled back.
+     *
+     * @param changeSets to complete.
+     * @param committed  true iff the transaction has committed.
+     */
+    public void completeChangeSets(List<ChangeSet> changeSets, boolean committed) {
+        for (ChangeSet changeSet : changeSets) {
+            if (changeSet.getSequence() > 0) {
+                sequencer.complete(changeSet, committed);
             }
+        }
+    }
 
-            getRoot().createRelationshipTo(changeNode, Relationships._GA_CHANGEFEED_NEXT_CHANGE);
+    /**
+     * Get the highest sequence number such that all change sets with the same or lower sequence number have been
+     * committed or rolled back.
+     *
+     * @return visible sequence number.
+     */
+    public long getVisibleSequence() {
+        return sequencer.getVisibleSequence();
+    }
 
+    /**
+     * Called once a committed change set has become visible to readers. Change sets are passed to this method in
+     * sequence order. Does nothing by default, intended to be overridden.
+     *
+     * @param changeSet that became visible.
+     */
+    protected void onChangeSetVisible(ChangeSet changeSet) {
+    }
+
+    /**
+     * Pack visible change sets stored in their own nodes into segment nodes, oldest first, one segment per transaction.
+     * Only full segments are created, so up to segment size - 1 newest change sets of each shard remain stored in their
+     * own nodes.
+     */
+    public void packSegments() {
+        if (segmentSize <= 1) {
+            return;
+        }
+
+        long visibleSequence = sequencer.getVisibleSequence();
+        int packed = 0;
+        for (int shard = 0; shard < storedShards; shard++) {
+            while (packSegment(shard, visibleSequence)) {
+                packed++;
+            }
+        }
+
+        if (packed > 0) {
+            LOG.debug("Packed {} segments of {} change sets", packed, segmentSize);
+        }
+    }
+
+    private boolean packSegment(int shard, long visibleSequence) {
+        try (Transaction tx = database.beginTx()) {
+            Index<Node> index = changeSetIndex(shard);
+
+            List<Node> changeNodes = new ArrayList<>(segmentSize);
+            try (IndexHits<Node> hits = index.query(QueryContext.numericRange(SEQUENCE, 0L, visibleSequence).sortNumeric(SEQUENCE, false).top(segmentSize))) {
+                while (changeNodes.size() < segmentSize && hits.hasNext()) {
+                    changeNodes.add(hits.next());
+                }
+            }
+
+            if (changeNodes.size() < segmentSize) {
+                tx.success();
+                return false;
+            }
+
+            List<ChangeSet> changeSets = new ArrayList<>(segmentSize);
+            for (Node changeNode : changeNodes) {
+                changeSets.add(ChangeSetNodes.read(changeNode, compressor));
+            }
+
+            Node segment = database.createNode(_GA_ChangeSetSegment);
+            ChangeSetSegments.write(segment, changeSets, compressor);
+            indexSegment(index, segment, changeSets);
+
+            for (Node changeNode : changeNodes) {
+                index.remove(changeNode);
+                changeNode.delete();
+            }
+
+            tx.success();
+            return true;
+        }
+    }
+
+    /**
+     * Train a new compression dictionary from the most recent change sets, if compression is enabled and there is no
+     * dictionary yet, or the current one has been trained from change sets more than {@link #DICTIONARY_RETRAIN_INTERVAL}
+     * change sets old. Change sets compressed with older dictionaries remain readable, until they are pruned together
+     * with the dictionaries.
+     *
+     * @return true iff a new dictionary has been trained.
+     */
+    public boolean trainDictionary() {
+        if (!compression) {
+            return false;
+        }
+
+        LOG.debug("Compression of Module ID {}: {}", moduleId, compressor);
+
+        long trainedAt;
+        try (Transaction tx = database.beginTx()) {
+            trainedAt = (long) getRoot().getProperty(DICTIONARY_SEQUENCE, 0L);
+            tx.success();
+        }
+
+        long visibleSequence = sequencer.getVisibleSequence();
+        if (visibleSequence < DICTIONARY_SAMPLE_SIZE || (trainedAt > 0 && visibleSequence - trainedAt < DICTIONARY_RETRAIN_INTERVAL)) {
+            return false;
+        }
+
+        List<ChangeSet> sample = new ArrayList<>(new GraphChangeReader(database, moduleId).getNumberOfChanges(DICTIONARY_SAMPLE_SIZE));
+        if (sample.isEmpty()) {
+            return false;
+        }
+
+        byte[] dictionary = ChangeCompressor.buildDictionary(sample);
+        int version;
+        try (Transaction tx = database.beginTx()) {
+            version = compressor.storeDictionary(dictionary, sample.get(0).getSequence());
             tx.success();
         }
+        compressor.use(version);
+
+        //change sets allocated a sequence number from now on are compressed with the new dictionary
+        try (Transaction tx = database.beginTx()) {
+            compressor.supersede(version - 1, sequencer.getLastAllocatedSequence());
+            tx.success();
+        }
+
+        long uncompressed = 0, withoutDictionary = 0, withDictionary = 0;
+        for (ChangeSet changeSet : sample) {
+            byte[] changes = changeSet.getEncodedChanges();
+            uncompressed += changes.length;
+            withoutDictionary += ChangeCompressor.compress(changes, null).length;
+            withDictionary += ChangeCompressor.compress(changes, dictionary).length;
+        }
+        LOG.info("Trained compression dictionary version {} of {} bytes for Module ID {}. Sample of {} change sets: {} bytes, {} bytes compressed without dictionary, {} bytes with dictionary",
+                version, dictionary.length, moduleId, sample.size(), uncompressed, withoutDictionary, withDictionary);
+
+        return true;
+    }
+
+    /**
+     * Get the compressor of stored changes, which also reports compression statistics.
+     *
+     * @return compressor.
+     */
+    public ChangeCompressor getCompressor() {
+        if (compressor == null) {
+            throw new IllegalStateException("Writer for Module ID " + moduleId + " has not been initialized");
+        }
+        return compressor;
     }
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * The oldest change sets across all shards are pruned. Segments are pruned as a whole. If only some change sets of a
+     * segment should be pruned, the segment is rewritten without them. Compression dictionaries no longer needed to
+     * read the remaining change sets are pruned as well.
      */
     @Override
     public void pruneChanges(int keep, int mustBeExceededBy) {
+        List<Integer> prunedDictionaries;
+
         try (Transaction tx = database.beginTx()) {
-            tx.acquireWriteLock(getRoot());
-            Relationship oldestChangeRel = getRoot().getSingleRelationship(_GA_CHANGEFEED_OLDEST_CHANGE, OUTGOING);
-            if (oldestChangeRel != null) {
-                Node oldestNode = oldestChangeRel.getEndNode();
-                Node newestNode = getRoot().getSingleRelationship(_GA_CHANGEFEED_NEXT_CHANGE, OUTGOING).getEndNode();
-                if (newestNode != null) {
-                    int changeCount = 1;
-                    Node lastNodeToKeep = newestNode;
-                    Relationship nextRel = lastNodeToKeep.getSingleRelationship(_GA_CHANGEFEED_NEXT_CHANGE, OUTGOING);
-
-                    while (changeCount < keep && nextRel != null) {
-                        lastNodeToKeep = nextRel.getEndNode();
-                        changeCount++;
-                        nextRel = lastNodeToKeep.getSingleRelationship(_GA_CHANGEFEED_NEXT_CHANGE, OUTGOING);
-                    }
+            List<SequenceCursor> cursors = new ArrayList<>(storedShards);
+            long oldestKept = Long.MAX_VALUE;
+            long counted = 0;
 
-                    if (changeCount < keep) {
-                        LOG.debug("Nothing to prune");
-                        tx.success();
-                        return;
+            //only the newest change sets that are kept and those that must exceed them are counted
+            long toCount = (long) keep + Math.max(1, mustBeExceededBy);
+            try {
+                PriorityQueue<SequenceCursor> newestFirst = new PriorityQueue<>(storedShards, NEWEST_FIRST);
+                for (int shard = 0; shard < storedShards; shard++) {
+                    SequenceCursor cursor = new SequenceCursor(changeSetIndex(shard), toCount);
+                    cursors.add(cursor);
+                    if (cursor.advance()) {
+                        newestFirst.add(cursor);
                     }
+                }
 
-                    //Now check if there are more changes than the pruneWhenExceeded limit
-                    int exceededCount = 0;
-                    Relationship nextExceededByRel = nextRel;
-                    while (exceededCount < mustBeExceededBy && nextExceededByRel != null) {
-                        nextExceededByRel = nextExceededByRel.getEndNode().getSingleRelationship(_GA_CHANGEFEED_NEXT_CHANGE, OUTGOING);
-                        exceededCount++;
+                while (counted < toCount && !newestFirst.isEmpty()) {
+                    SequenceCursor cursor = newestFirst.poll();
+                    if (++counted == keep) {
+                        oldestKept = cursor.current();
                     }
-
-                    if (exceededCount < mustBeExceededBy) {
-                        LOG.debug("pruneWhenExceeded limit not exceeded, nothing to prune");
-                        tx.success();
-                        return;
+                    if (cursor.advance()) {
+                        newestFirst.add(cursor);
                     }
+                }
+            } finally {
+                for (SequenceCursor cursor : cursors) {
+                    cursor.close();
+                }
+            }
+
+            if (counted <= keep) {
+                LOG.debug("Nothing to prune");
+                tx.success();
+                return;
+            }
+
+            if (counted - keep < mustBeExceededBy) {
+                LOG.debug("pruneWhenExceeded limit not exceeded, nothing to prune");
+                tx.success();
+                return;
+            }
+
+            LOG.debug("Preparing to prune change feed");
 
+            for (int shard = 0; shard < storedShards; shard++) {
+                Index<Node> index = changeSetIndex(shard);
+
+                List<Node> changeNodes = new ArrayList<>();
+                try (IndexHits<Node> hits = index.query(QueryContext.numericRange(SEQUENCE, 0L, oldestKept - 1))) {
+                    for (Node changeNode : hits) {
+                        changeNodes.add(changeNode);
+                    }
+                }
+                for (Node changeNode : changeNodes) {
+                    index.remove(changeNode);
+                    changeNode.delete();
+                }
 
-                    LOG.debug("Preparing to prune change feed");
-                    if (nextRel != null) {
-                        nextRel.delete();
-                        oldestChangeRel.delete();
-                        getRoot().createRelationshipTo(lastNodeToKeep, _GA_CHANGEFEED_OLDEST_CHANGE);
-                        Relationship previousChange = oldestNode.getSingleRelationship(_GA_CHANGEFEED_NEXT_CHANGE, INCOMING);
-                        while (previousChange != null) {
-                            Node newOldestNode = previousChange.getStartNode();
-                            previousChange.delete();
-                            oldestNode.delete();
-                            previousChange = newOldestNode.getSingleRelationship(_GA_CHANGEFEED_NEXT_CHANGE, INCOMING);
-                            oldestNode = newOldestNode;
+                List<Node> segments = new ArrayList<>();
+                try (IndexHits<Node> hits = index.query(QueryContext.numericRange(FIRST_SEQUENCE, 0L, oldestKept - 1))) {
+                    for (Node segment : hits) {
+                        segments.add(segment);
+                    }
+                }
+                for (Node segment : segments) {
+                    if (ChangeSetSegments.lastSequence(segment) < oldestKept) {
+                        index.remove(segment);
+                        segment.delete();
+                    } else {
+                        List<ChangeSet> remaining = new ArrayList<>();
+                        for (ChangeSet changeSet : ChangeSetSegments.read(segment, compressor)) {
+                            if (changeSet.getSequence() >= oldestKept) {
+                                remaining.add(changeSet);
+                            }
                         }
-                        oldestNode.delete();
+                        index.remove(segment);
+                        ChangeSetSegments.write(segment, remaining, compressor);
+                        indexSegment(index, segment, remaining);
                     }
-                    LOG.debug("ChangeFeed pruning complete");
                 }
             }
+
+            prunedDictionaries = compressor.pruneDictionaries(oldestKept);
+
+            LOG.debug("ChangeFeed pruning complete");
+
             tx.success();
         }
+
+        compressor.evict(prunedDictionaries);
+    }
+
+    /**
+     * Cursor over the sequence numbers of the change sets of a single shard, newest first. Merges the shard's change set
+     * nodes with its segments, without reading any changes.
+     */
+    private static class SequenceCursor {
+
+        private final IndexHits<Node> changeNodes;
+        private final IndexHits<Node> segments;
+        private long single;
+        private long[] segmented = new long[0];
+        private int segmentedIndex = -1;
+        private long current;
+
+        SequenceCursor(Index<Node> index, long limit) {
+            QueryContext changeNodesQuery = QueryContext.numericRange(SEQUENCE, 0L, Long.MAX_VALUE).sortNumeric(SEQUENCE, true);
+            QueryContext segmentsQuery = QueryContext.numericRange(FIRST_SEQUENCE, 0L, Long.MAX_VALUE).sortNumeric(FIRST_SEQUENCE, true);
+            if (limit < Integer.MAX_VALUE) {
+                //every segment holds at least one change set
+                changeNodesQuery = changeNodesQuery.top((int) limit);
+                segmentsQuery = segmentsQuery.top((int) limit);
+            }
+
+            changeNodes = index.query(changeNodesQuery);
+            segments = index.query(segmentsQuery);
+            single = nextSingle();
+        }
+
+        /**
+         * Move to the next (older) sequence number.
+         *
+         * @return false iff there are no more change sets in this shard.
+         */
+        boolean advance() {
+            if (segmentedIndex < 0 && segments.hasNext()) {
+                segmented = ChangeSetSegments.sequences(segments.next());
+                segmentedIndex = segmented.length - 1;
+            }
+
+            if (single == 0 && segmentedIndex < 0) {
+                return false;
+            }
+
+            if (segmentedIndex < 0 || single > segmented[segmentedIndex]) {
+                current = single;
+                single = nextSingle();
+            } else {
+                current = segmented[segmentedIndex--];
+            }
+
+            return true;
+        }
+
+        long current() {
+            return current;
+        }
+
+        void close() {
+            changeNodes.close();
+            segments.close();
+        }
+
+        private long nextSingle() {
+            return changeNodes.hasNext() ? ChangeSetNodes.sequence(changeNodes.next()) : 0;
+        }
     }
 
     /**
@@ -206,4 +611,152 @@ public class GraphChangeWriter implements ChangeWriter {
         return root;
     }
 
+    /**
+     * Get the number of shards the change feed is striped across, including shards that are no longer appended to.
+     *
+     * @return number of shards.
+     */
+    public int getShards() {
+        return storedShards;
+    }
+
+    /**
+     * Create the change set indexes of all shards, so that they exist before the first change set is appended in a
+     * transaction that also modifies data.
+     */
+    private void createIndexes() {
+        try (Transaction tx = database.beginTx()) {
+            for (int shard = 0; shard < storedShards; shard++) {
+                changeSetIndex(shard);
+            }
+            tx.success();
+        }
+    }
+
+    /**
+     * Migrate change sets stored by previous versions, which linked them into a chain starting at the root, to the
+     * indexed layout.
+     */
+    private void migrateLinkedChangeSets() {
+        try (Transaction tx = database.beginTx()) {
+            LinkedList<Node> changeNodes = new LinkedList<>();
+
+            Relationship nextRel = getRoot().getSingleRelationship(_GA_CHANGEFEED_NEXT_CHANGE, OUTGOING);
+            while (nextRel != null) {
+                Node changeNode = nextRel.getEndNode();
+                nextRel.delete();
+                changeNodes.addFirst(changeNode);
+                nextRel = changeNode.getSingleRelationship(_GA_CHANGEFEED_NEXT_CHANGE, OUTGOING);
+            }
+
+            Relationship oldestChangeRel = getRoot().getSingleRelationship(_GA_CHANGEFEED_OLDEST_CHANGE, OUTGOING);
+            if (oldestChangeRel != null) {
+                oldestChangeRel.delete();
+            }
+
+            if (!changeNodes.isEmpty()) {
+                LOG.info("Migrating " + changeNodes.size() + " change sets of Module ID " + moduleId + " to the indexed layout");
+
+                Index<Node> index = changeSetIndex(0);
+                long sequence = findLastSequence();
+                for (Node changeNode : changeNodes) {
+                    sequence++;
+                    changeNode.setProperty(SEQUENCE, sequence);
+                    index.add(changeNode, SEQUENCE, ValueContext.numeric(sequence));
+                    index.add(changeNode, UUID, changeNode.getProperty(UUID));
+                }
+            }
+
+            tx.success();
+        }
+    }
+
+    /**
+     * Index the timestamps of change sets stored by previous versions, which did not index them.
+     */
+    private void indexTimestamps() {
+        try (Transaction tx = database.beginTx()) {
+            Node root = getRoot();
+            if (root.hasProperty(TIMESTAMPS_INDEXED)) {
+                tx.success();
+                return;
+            }
+
+            int indexed = 0;
+            for (int shard = 0; shard < storedShards; shard++) {
+                Index<Node> index = changeSetIndex(shard);
+
+                try (IndexHits<Node> hits = index.query(QueryContext.numericRange(SEQUENCE, 0L, Long.MAX_VALUE))) {
+                    for (Node changeNode : hits) {
+                        index.add(changeNode, TIMESTAMP, ValueContext.numeric((long) changeNode.getProperty(TIMESTAMP)));
+                        indexed++;
+                    }
+                }
+
+                try (IndexHits<Node> hits = index.query(QueryContext.numericRange(FIRST_SEQUENCE, 0L, Long.MAX_VALUE))) {
+                    for (Node segment : hits) {
+                        for (long timestamp : (long[]) segment.getProperty(TIMESTAMPS)) {
+                            index.add(segment, TIMESTAMP, ValueContext.numeric(timestamp));
+                            indexed++;
+                        }
+                    }
+                }
+            }
+
+            if (indexed > 0) {
+                LOG.info("Indexed timestamps of " + indexed + " change sets of Module ID " + moduleId);
+            }
+
+            root.setProperty(TIMESTAMPS_INDEXED, true);
+            tx.success();
+        }
+    }
+
+    /**
+     * Find the highest sequence number stored in the graph.
+     *
+     * @return highest sequence number, 0 if there are no change sets.
+     */
+    private long findLastSequence() {
+        long lastSequence = 0;
+
+        try (Transaction tx = database.beginTx()) {
+            for (int shard = 0; shard < storedShards; shard++) {
+                lastSequence = Math.max(lastSequence, findLastSequence(changeSetIndex(shard)));
+            }
+            tx.success();
+        }
+
+        return lastSequence;
+    }
+
+    private long findLastSequence(Index<Node> index) {
+        long lastSequence = 0;
+
+        try (IndexHits<Node> hits = index.query(QueryContext.numericRange(SEQUENCE, 0L, Long.MAX_VALUE).sortNumeric(SEQUENCE, true).top(1))) {
+            if (hits.hasNext()) {
+                lastSequence = ChangeSetNodes.sequence(hits.next());
+            }
+        }
+
+        try (IndexHits<Node> hits = index.query(QueryContext.numericRange(FIRST_SEQUENCE, 0L, Long.MAX_VALUE).sortNumeric(FIRST_SEQUENCE, true).top(1))) {
+            if (hits.hasNext()) {
+                lastSequence = Math.max(lastSequence, ChangeSetSegments.lastSequence(hits.next()));
+            }
+        }
+
+        return lastSequence;
+    }
+
+    private void indexSegment(Index<Node> index, Node segment, List<ChangeSet> changeSets) {
+        index.add(segment, FIRST_SEQUENCE, ValueContext.numeric(changeSets.get(0).getSequence()));
+        for (ChangeSet changeSet : changeSets) {
+            index.add(segment, UUID, changeSet.getUuid());
+            index.add(segment, TIMESTAMP, ValueContext.numeric(changeSet.getTimestamp()));
+        }
+    }
+
+    private Index<Node> changeSetIndex(int shard) {
+        return database.index().forNodes(Indexes.changeSetIndex(moduleId, shard));
+    }
 }
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.common.uuid.EaioUuidGenerator;
+import com.graphaware.common.uuid.UuidGenerator;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ChangeWriter} that groups change sets recorded by concurrent producers and persists them using a delegate
+ * {@link ChangeWriter} in a single transaction (group commit).
+ * <p/>
+ * A batch is closed when the configured window has elapsed since its first change set arrived, or when it reaches the
+ * configured size, whichever happens first. Producers are blocked until the batch containing their change set has been
+ * persisted, so when {@link #recordChanges(ChangeSet)} returns, the change set is in the feed.
+ */
+public class GroupCommitChangeWriter implements ChangeWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GroupCommitChangeWriter.class);
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private final UuidGenerator uuidGenerator = new EaioUuidGenerator();
+
+    private final ChangeWriter delegate;
+    private final long windowNanos;
+    private final int batchSize;
+    private final BlockingQueue<PendingChangeSet> pending = new LinkedBlockingQueue<>();
+    private final Thread committer;
+
+    private volatile boolean running;
+
+    /**
+     * Construct a new writer.
+     *
+     * @param delegate  writer that actually persists the changes.
+     * @param moduleId  ID of the module storing changes, used to name the background thread.
+     * @param windowMs  maximum time in ms a batch stays open after its first change set has arrived.
+     * @param batchSize maximum number of change sets persisted in a single transaction.
+     */
+    public GroupCommitChangeWriter(ChangeWriter delegate, String moduleId, int windowMs, int batchSize) {
+        if (windowMs < 0) {
+            throw new IllegalArgumentException("Group commit window must not be negative, was " + windowMs);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, was " + batchSize);
+        }
+
+        this.delegate = delegate;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.batchSize = batchSize;
+
+        committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "ChangeFeed-GroupCommit-" + moduleId);
+        committer.setDaemon(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void initialize() {
+        delegate.initialize();
+        running = true;
+        committer.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordChanges(Set<String> changes) {
+        ChangeSet changeSet = new ChangeSet(uuidGenerator.generateUuid());
+        changeSet.addChanges(changes);
+        recordChanges(changeSet);
+    }
+
+    /**
+     * Record a change set as part of the next group commit. Blocks until the change set has been persisted.
+     *
+     * @param changeSet to record.
+     * @throws RuntimeException in case the batch containing the change set could not be persisted.
+     */
+    @Override
+    public void recordChanges(ChangeSet changeSet) {
+        if (!running) {
+            delegate.recordChanges(changeSet);
+            return;
+        }
+
+        PendingChangeSet pendingChangeSet = new PendingChangeSet(changeSet);
+        pending.add(pendingChangeSet);
+
+        //the committer may have stopped in the meantime, in which case nobody would ever pick this up
+        if (!running && pending.remove(pendingChangeSet)) {
+            delegate.recordChanges(changeSet);
+            return;
+        }
+
+        pendingChangeSet.await();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordChangeSets(List<ChangeSet> changeSets) {
+        delegate.recordChangeSets(changeSets);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void pruneChanges(int keep, int mustBeExceededBy) {
+        delegate.pruneChanges(keep, mustBeExceededBy);
+    }
+
+    /**
+     * Stop the background thread, persisting all change sets that are still waiting.
+     */
+    public void shutdown() {
+        running = false;
+
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while waiting for the change feed group committer to finish");
+        }
+
+        List<PendingChangeSet> remaining = new ArrayList<>();
+        pending.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            commit(remaining);
+        }
+    }
+
+    private void commitLoop() {
+        List<PendingChangeSet> batch = new ArrayList<>(batchSize);
+
+        while (running || !pending.isEmpty()) {
+            try {
+                PendingChangeSet first = pending.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                collectBatch(batch, System.nanoTime() + windowNanos);
+            } catch (InterruptedException e) {
+                LOG.warn("Change feed group committer interrupted, stopping");
+                running = false;
+            }
+
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void collectBatch(List<PendingChangeSet> batch, long deadline) throws InterruptedException {
+        while (batch.size() < batchSize) {
+            pending.drainTo(batch, batchSize - batch.size());
+            if (batch.size() >= batchSize) {
+                return;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+
+            PendingChangeSet next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void commit(List<PendingChangeSet> batch) {
+        List<ChangeSet> changeSets = new ArrayList<>(batch.size());
+        for (PendingChangeSet pendingChangeSet : batch) {
+            changeSets.add(pendingChangeSet.changeSet);
+        }
+
+        RuntimeException failure = null;
+        try {
+            delegate.recordChangeSets(changeSets);
+        } catch (RuntimeException e) {
+            LOG.error("Could not record a batch of " + batch.size() + " change sets", e);
+            failure = e;
+        }
+
+        for (PendingChangeSet pendingChangeSet : batch) {
+            pendingChangeSet.complete(failure);
+        }
+    }
+
+    /**
+     * A change set waiting to be persisted, with a latch the producer waits on.
+     */
+    private static final class PendingChangeSet {
+
+        private final ChangeSet changeSet;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile RuntimeException failure;
+
+        private PendingChangeSet(ChangeSet changeSet) {
+            this.changeSet = changeSet;
+        }
+
+        private void complete(RuntimeException failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        private void await() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted while waiting for change set {} to be persisted, it will be persisted later", changeSet.getUuid());
+                return;
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
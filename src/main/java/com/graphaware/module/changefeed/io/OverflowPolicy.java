@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+/**
+ * What an {@link AsyncChangeWriter} should do with a {@link com.graphaware.module.changefeed.domain.ChangeSet} when
+ * its queue is full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Block the committing thread until there is space in the queue.
+     */
+    BLOCK,
+
+    /**
+     * Persist the change set synchronously on the committing thread, after all change sets already queued, so that
+     * commit order is kept.
+     */
+    CALLER_RUNS,
+
+    /**
+     * Drop the change set and log a warning. The change set will never appear in the feed.
+     */
+    DISCARD
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.storage;
+
+import com.graphaware.module.changefeed.cache.CachingFileChangeWriter;
+import com.graphaware.module.changefeed.cache.ChangeSetCache;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.io.ChangeReader;
+import com.graphaware.module.changefeed.io.ChangeWriter;
+import com.graphaware.module.changefeed.io.FileChangeLog;
+import com.graphaware.module.changefeed.io.FileChangeReader;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import java.io.File;
+import java.util.Collection;
+
+import static com.graphaware.module.changefeed.ChangeFeedConfiguration.FILE_STORAGE;
+
+/**
+ * {@link StorageEngine} keeping the changes in a {@link FileChangeLog} in the <code>changefeed/&lt;moduleId&gt;</code>
+ * directory of the database store. Finding a change set by uuid scans the log from the newest change set.
+ */
+public class FileStorageEngine implements StorageEngine {
+
+    private final FileChangeLog log;
+    private final ChangeWriter writer;
+
+    /**
+     * Construct a new engine.
+     *
+     * @param database the module is registered with, must be a <code>GraphDatabaseAPI</code>.
+     * @param moduleId ID of the module storing changes.
+     * @param cache    of the module.
+     */
+    public FileStorageEngine(GraphDatabaseService database, String moduleId, ChangeSetCache cache) {
+        this.log = new FileChangeLog(new File(storeDirectory(database), "changefeed" + File.separator + moduleId), FileChangeLog.DEFAULT_SEGMENT_FILE_SIZE);
+        this.writer = new CachingFileChangeWriter(log, cache);
+    }
+
+    //Neo4j 2.3 exposes the store directory (and the dependency resolver holding its configuration) only through the
+    //deprecated GraphDatabaseAPI, which has no replacement until its internal successor in 3.0
+    @SuppressWarnings("deprecation")
+    private static String storeDirectory(GraphDatabaseService database) {
+        return ((org.neo4j.kernel.GraphDatabaseAPI) database).getStoreDir();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return FILE_STORAGE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ChangeWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ChangeReader getReader() {
+        return new FileChangeReader(log);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> read(long sequence, int limit) {
+        return log.read(sequence, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getVisibleSequence() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void doMaintenance() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void shutdown() {
+        log.close();
+    }
+
+    /**
+     * Get the log the changes are kept in.
+     *
+     * @return log.
+     */
+    public FileChangeLog getLog() {
+        return log;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.storage;
+
+import com.graphaware.module.changefeed.ChangeFeedConfiguration;
+import com.graphaware.module.changefeed.cache.CachingGraphChangeWriter;
+import com.graphaware.module.changefeed.cache.ChangeSetCache;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.io.GraphChangeReader;
+import com.graphaware.module.changefeed.io.GraphChangeWriter;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import java.util.Collection;
+
+import static com.graphaware.module.changefeed.ChangeFeedConfiguration.GRAPH_STORAGE;
+
+/**
+ * {@link StorageEngine} keeping the changes in the graph, using a {@link GraphChangeWriter} and a
+ * {@link GraphChangeReader}. This is the only engine able to append change sets within the transaction that caused
+ * them. Maintenance packs change sets into segments and trains compression dictionaries.
+ */
+public class GraphStorageEngine implements StorageEngine {
+
+    private final GraphDatabaseService database;
+    private final String moduleId;
+    private final GraphChangeWriter writer;
+
+    /**
+     * Construct a new engine.
+     *
+     * @param database      in which to store the changes.
+     * @param moduleId      ID of the module storing changes.
+     * @param configuration of the module, providing segment size, compression, and number of shards.
+     * @param cache         of the module.
+     */
+    public GraphStorageEngine(GraphDatabaseService database, String moduleId, ChangeFeedConfiguration configuration, ChangeSetCache cache) {
+        this.database = database;
+        this.moduleId = moduleId;
+        this.writer = new CachingGraphChangeWriter(database, moduleId, configuration.getSegmentSize(), configuration.isCompression(), configuration.getShards(), cache);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return GRAPH_STORAGE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public GraphChangeWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public GraphChangeReader getReader() {
+        return new GraphChangeReader(database, moduleId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> read(long sequence, int limit) {
+        return getReader().getNumberOfChangesSince(sequence, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getVisibleSequence() {
+        return writer.getVisibleSequence();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void doMaintenance() {
+        writer.packSegments();
+        writer.trainDictionary();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void shutdown() {
+    }
+}
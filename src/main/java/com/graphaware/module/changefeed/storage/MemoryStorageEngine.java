@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.storage;
+
+import com.graphaware.common.uuid.EaioUuidGenerator;
+import com.graphaware.common.uuid.UuidGenerator;
+import com.graphaware.module.changefeed.cache.ChangeSetCache;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.io.ChangeReader;
+import com.graphaware.module.changefeed.io.ChangeWriter;
+import com.graphaware.module.changefeed.io.ForwardPage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static com.graphaware.module.changefeed.ChangeFeedConfiguration.MEMORY_STORAGE;
+
+/**
+ * {@link StorageEngine} keeping the changes only in memory, indexed by sequence number and uuid. Recording changes
+ * costs no I/O at all, but the feed starts empty after every restart of the database.
+ * <p/>
+ * Change sets are visible to readers as soon as they have been recorded, so they must only be recorded after the
+ * transaction that caused them has committed.
+ */
+public class MemoryStorageEngine implements StorageEngine {
+
+    private final UuidGenerator uuidGenerator = new EaioUuidGenerator();
+
+    private final ChangeSetCache cache;
+    private final ConcurrentSkipListMap<Long, ChangeSet> changeSets = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Long> sequences = new ConcurrentHashMap<>();
+    private final ChangeWriter writer = new MemoryChangeWriter();
+    private final ChangeReader reader = new MemoryChangeReader();
+
+    //guarded by this
+    private long lastSequence;
+    private long lastTimestamp;
+    private int size;
+
+    /**
+     * Construct a new engine.
+     *
+     * @param cache of the module.
+     */
+    public MemoryStorageEngine(ChangeSetCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return MEMORY_STORAGE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ChangeWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ChangeReader getReader() {
+        return reader;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ChangeSet> read(long sequence, int limit) {
+        List<ChangeSet> result = new ArrayList<>();
+        if (limit <= 0) {
+            return result;
+        }
+
+        for (ChangeSet changeSet : changeSets.descendingMap().headMap(sequence, false).values()) {
+            result.add(changeSet);
+            if (result.size() >= limit) {
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getVisibleSequence() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void doMaintenance() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void shutdown() {
+    }
+
+    private synchronized void append(List<ChangeSet> toAppend) {
+        for (ChangeSet changeSet : toAppend) {
+            changeSet.setSequence(++lastSequence);
+            lastTimestamp = changeSet.notBefore(lastTimestamp);
+            changeSets.put(changeSet.getSequence(), changeSet);
+            sequences.put(changeSet.getUuid(), changeSet.getSequence());
+            size++;
+            cache.push(changeSet);
+        }
+    }
+
+    private synchronized void prune(int keep, int mustBeExceededBy) {
+        int toPrune = size - keep;
+        if (toPrune <= 0 || toPrune < mustBeExceededBy) {
+            return;
+        }
+
+        for (int i = 0; i < toPrune; i++) {
+            ChangeSet changeSet = changeSets.pollFirstEntry().getValue();
+            sequences.remove(changeSet.getUuid());
+            size--;
+        }
+    }
+
+    private class MemoryChangeWriter implements ChangeWriter {
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void recordChanges(Set<String> changes) {
+            ChangeSet changeSet = new ChangeSet(uuidGenerator.generateUuid());
+            changeSet.addChanges(changes);
+            recordChanges(changeSet);
+        }
+
+        @Override
+        public void recordChanges(ChangeSet changeSet) {
+            recordChangeSets(Collections.singletonList(changeSet));
+        }
+
+        @Override
+        public void recordChangeSets(List<ChangeSet> changeSets) {
+            append(changeSets);
+        }
+
+        @Override
+        public void pruneChanges(int keep, int mustBeExceededBy) {
+            prune(keep, mustBeExceededBy);
+        }
+    }
+
+    private class MemoryChangeReader implements ChangeReader {
+
+        @Override
+        public Collection<ChangeSet> getAllChanges() {
+            return getNumberOfChangesSince(null, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public Collection<ChangeSet> getNumberOfChanges(int limit) {
+            return getNumberOfChangesSince(null, limit);
+        }
+
+        @Override
+        public Collection<ChangeSet> getChangesSince(String uuid) {
+            return getNumberOfChangesSince(uuid, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public Collection<ChangeSet> getNumberOfChangesSince(String uuid, int limit) {
+            Long sequence = uuid == null ? null : sequences.get(uuid);
+            return read(sequence == null ? 0 : sequence, limit);
+        }
+
+        @Override
+        public Collection<ChangeSet> getNumberOfChangesSince(long sequence, int limit) {
+            return read(sequence, limit);
+        }
+
+        @Override
+        public Collection<ChangeSet> getChangesBetween(long from, long to, int limit) {
+            List<ChangeSet> result = new ArrayList<>();
+            for (ChangeSet changeSet : changeSets.descendingMap().values()) {
+                if (changeSet.getTimestamp() < from || result.size() >= limit) {
+                    break;
+                }
+                if (changeSet.getTimestamp() < to) {
+                    result.add(changeSet);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public List<ChangeSet> readForward(long sequence, int limit) {
+            List<ChangeSet> result = new ArrayList<>();
+            if (limit <= 0) {
+                return result;
+            }
+
+            for (ChangeSet changeSet : changeSets.tailMap(sequence, false).values()) {
+                result.add(changeSet);
+                if (result.size() >= limit) {
+                    break;
+                }
+            }
+
+            return result;
+        }
+
+        @Override
+        public ForwardPage readPage(long sequence, int limit) {
+            return ForwardPage.of(readForward(sequence, limit), sequence);
+        }
+    }
+}
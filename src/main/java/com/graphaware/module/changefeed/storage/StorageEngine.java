@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.storage;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.io.ChangeReader;
+import com.graphaware.module.changefeed.io.ChangeWriter;
+
+import java.util.Collection;
+
+/**
+ * A storage engine keeping the changes of a single {@link com.graphaware.module.changefeed.ChangeFeedModule}.
+ * <p/>
+ * Engines are created by a {@link StorageEngineFactory} registered with {@link StorageEngines} under a name, which is
+ * selected by {@link com.graphaware.module.changefeed.ChangeFeedConfiguration#withStorage(String)}. An engine appends
+ * and prunes change sets through its {@link #getWriter()}, which must also push every change set into the cache of the
+ * module once it becomes visible to readers, in sequence order. Change sets are read through {@link #getReader()},
+ * or by position (sequence number) through {@link #read(long, int)}, which is also used to warm up the cache.
+ */
+public interface StorageEngine {
+
+    /**
+     * Get the name the engine is registered under.
+     *
+     * @return name.
+     */
+    String getName();
+
+    /**
+     * Get the writer appending to and pruning this engine. It is initialized by the module before it is used.
+     *
+     * @return writer.
+     */
+    ChangeWriter getWriter();
+
+    /**
+     * Get a reader of the changes kept in this engine. Must only be called once the writer has been initialized.
+     *
+     * @return reader.
+     */
+    ChangeReader getReader();
+
+    /**
+     * Read change sets with a sequence number higher than the given one.
+     *
+     * @param sequence sequence number of the newest change set that will not be included in the result, 0 for all.
+     * @param limit    maximum number of change sets to read.
+     * @return change sets, newest first.
+     */
+    Collection<ChangeSet> read(long sequence, int limit);
+
+    /**
+     * Get the highest sequence number such that all change sets with the same or lower sequence number are final.
+     *
+     * @return visible sequence number, {@link Long#MAX_VALUE} if change sets are only written once final.
+     */
+    long getVisibleSequence();
+
+    /**
+     * Perform periodic maintenance other than pruning, such as compacting the stored changes. Called by the module
+     * every time it checks the changes for pruning.
+     */
+    void doMaintenance();
+
+    /**
+     * Release resources held by the engine. Called by the module after its writer has been shut down.
+     */
+    void shutdown();
+}
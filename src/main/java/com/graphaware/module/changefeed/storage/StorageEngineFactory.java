@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.storage;
+
+import com.graphaware.module.changefeed.ChangeFeedConfiguration;
+import com.graphaware.module.changefeed.cache.ChangeSetCache;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+/**
+ * A factory of {@link StorageEngine}s, registered with {@link StorageEngines}.
+ */
+public interface StorageEngineFactory {
+
+    /**
+     * Create a new storage engine for a module.
+     *
+     * @param database      the module is registered with.
+     * @param moduleId      ID of the module storing changes.
+     * @param configuration of the module.
+     * @param cache         of the module, into which the engine's writer pushes visible change sets.
+     * @return storage engine.
+     */
+    StorageEngine create(GraphDatabaseService database, String moduleId, ChangeFeedConfiguration configuration, ChangeSetCache cache);
+}
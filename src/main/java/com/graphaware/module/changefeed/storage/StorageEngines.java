@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.storage;
+
+import com.graphaware.module.changefeed.ChangeFeedConfiguration;
+import com.graphaware.module.changefeed.cache.ChangeSetCache;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.graphaware.module.changefeed.ChangeFeedConfiguration.FILE_STORAGE;
+import static com.graphaware.module.changefeed.ChangeFeedConfiguration.GRAPH_STORAGE;
+import static com.graphaware.module.changefeed.ChangeFeedConfiguration.MEMORY_STORAGE;
+
+/**
+ * Registry of {@link StorageEngineFactory}s by name. The {@link GraphStorageEngine}, {@link FileStorageEngine}, and
+ * {@link MemoryStorageEngine} are registered by default, further engines can be registered before the
+ * {@link com.graphaware.module.changefeed.ChangeFeedModule}s using them are created.
+ */
+public final class StorageEngines {
+
+    private static final Map<String, StorageEngineFactory> FACTORIES = new ConcurrentHashMap<>();
+
+    static {
+        register(GRAPH_STORAGE, new StorageEngineFactory() {
+            @Override
+            public StorageEngine create(GraphDatabaseService database, String moduleId, ChangeFeedConfiguration configuration, ChangeSetCache cache) {
+                return new GraphStorageEngine(database, moduleId, configuration, cache);
+            }
+        });
+
+        register(FILE_STORAGE, new StorageEngineFactory() {
+            @Override
+            public StorageEngine create(GraphDatabaseService database, String moduleId, ChangeFeedConfiguration configuration, ChangeSetCache cache) {
+                return new FileStorageEngine(database, moduleId, cache);
+            }
+        });
+
+        register(MEMORY_STORAGE, new StorageEngineFactory() {
+            @Override
+            public StorageEngine create(GraphDatabaseService database, String moduleId, ChangeFeedConfiguration configuration, ChangeSetCache cache) {
+                return new MemoryStorageEngine(cache);
+            }
+        });
+    }
+
+    /**
+     * Register a storage engine, replacing any engine previously registered under the same name.
+     *
+     * @param name    of the engine, used in {@link ChangeFeedConfiguration#withStorage(String)}.
+     * @param factory creating the engine.
+     */
+    public static void register(String name, StorageEngineFactory factory) {
+        if (name == null || factory == null) {
+            throw new IllegalArgumentException("Storage engine name and factory must not be null");
+        }
+        FACTORIES.put(name, factory);
+    }
+
+    /**
+     * Create a storage engine for a module.
+     *
+     * @param name          of the engine.
+     * @param database      the module is registered with.
+     * @param moduleId      ID of the module storing changes.
+     * @param configuration of the module.
+     * @param cache         of the module.
+     * @return storage engine.
+     * @throws IllegalArgumentException if there is no engine registered under the given name.
+     */
+    public static StorageEngine create(String name, GraphDatabaseService database, String moduleId, ChangeFeedConfiguration configuration, ChangeSetCache cache) {
+        StorageEngineFactory factory = name == null ? null : FACTORIES.get(name);
+        if (factory == null) {
+            throw new IllegalArgumentException("Unknown storage " + name + " for Module ID " + moduleId + ", available storage engines are " + getNames());
+        }
+        return factory.create(database, moduleId, configuration, cache);
+    }
+
+    /**
+     * Get the names of all registered engines.
+     *
+     * @return names, sorted.
+     */
+    public static Set<String> getNames() {
+        return Collections.unmodifiableSet(new TreeSet<>(FACTORIES.keySet()));
+    }
+
+    private StorageEngines() {
+    }
+}
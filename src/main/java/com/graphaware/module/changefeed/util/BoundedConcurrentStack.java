@@ -16,43 +16,193 @@
 
 package com.graphaware.module.changefeed.util;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Deque;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A stack (last-in-first-out) with a configurable maximum capacity. Optimised for high concurrent read throughput.
  * <p/>
- * When the number of elements in the stack exceeds its capacity, the oldest entries are dropped. Please note that
- * in multi-threaded environments, the size of the stack can temporarily exceed this number. This is a design decision
- * (to avoid synchronising writes).
+ * Backed by a ring buffer with a slot per element of capacity, plus a number of headroom slots. Every pushed element
+ * is assigned a position (1 for the first element, incremented by one for every push), which determines its slot. When
+ * the number of elements in the stack exceeds its capacity, the oldest element is no longer visible, and it is physically
+ * overwritten once the headroom has been used up as well. Pushing does not allocate and takes constant time, but pushes
+ * are serialized: every pusher claims a position atomically, then waits until all older elements have been published
+ * before it writes and publishes its slot. Pushing is therefore not lock-free, and a pusher that stalls holds up all
+ * pushers after it. The stack is meant to be pushed to by one thread at a time, in which case nobody ever waits.
+ * <p/>
+ * Readers never block. A {@link Snapshot} taken in constant time is a point-in-time view of the stack, which stays
+ * intact until more elements than the headroom have been pushed after it has been taken. Subclasses are notified of
+ * pushed and overwritten elements by {@link #pushed(Object, long)} and {@link #evicted(Object, long)}.
+ * <p/>
+ * The stack can additionally be bounded by weight. Every element is assigned a weight by {@link #weigh(Object)}, and the
+ * oldest elements stop being visible once the total weight of the visible elements exceeds the maximum weight. An element
+ * weighing more than the maximum weight on its own is refused, so that it does not push all other elements out. Every
+ * element is given an offset, which is the total weight of all elements pushed before it. Once the total weight pushed
+ * after an element exceeds the weight capacity of the stack, the element is physically dropped, even if its slot has not
+ * been overwritten yet, so that the weight of the elements held by the stack stays bounded as well. Elements are kept in
+ * slots of the ring buffer by default; subclasses can keep them elsewhere by overriding
+ * {@link #store(int, Object, long)} and {@link #load(int, long)}.
  */
 public class BoundedConcurrentStack<E> implements Iterable<E> {
 
-    private final Deque<E> elements;
+    private static final long WRITING = -1;
+
     private final int maxCapacity;
+    private final int slots;
+    private final long maxWeight;
+    private final long weightCapacity;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray positions;
+    private final AtomicLongArray offsets;
+    private final AtomicLongArray firsts;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong claimedWeight = new AtomicLong();
+    private final AtomicLong visibleWeight = new AtomicLong();
+    private long first = 1;
+    private long released = 1;
 
     /**
-     * Construct a new stack.
+     * Construct a new stack with headroom of a quarter of its capacity.
      *
-     * @param maxCapacity maximum capacity.
+     * @param maxCapacity maximum capacity, must be positive.
      */
     public BoundedConcurrentStack(int maxCapacity) {
-        elements = new ConcurrentLinkedDeque<>();
+        this(maxCapacity, maxCapacity / 4 + 1);
+    }
+
+    /**
+     * Construct a new stack.
+     *
+     * @param maxCapacity maximum capacity, must be positive.
+     * @param headroom    number of elements that can be pushed after a {@link Snapshot} has been taken before it is no
+     *                    longer intact, must be positive.
+     */
+    public BoundedConcurrentStack(int maxCapacity, int headroom) {
+        this(maxCapacity, headroom, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Construct a new stack bounded by weight.
+     *
+     * @param maxCapacity    maximum capacity, must be positive.
+     * @param headroom       number of elements that can be pushed after a {@link Snapshot} has been taken before it is no
+     *                       longer intact, must be positive.
+     * @param maxWeight      maximum total weight of visible elements, 0 for no limit.
+     * @param weightCapacity total weight that can be pushed after an element before it is physically overwritten, must
+     *                       not be lower than the maximum weight.
+     */
+    protected BoundedConcurrentStack(int maxCapacity, int headroom, long maxWeight, long weightCapacity) {
+        if (maxCapacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, was " + maxCapacity);
+        }
+        if (headroom < 1) {
+            throw new IllegalArgumentException("Headroom must be positive, was " + headroom);
+        }
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("Maximum weight must not be negative, was " + maxWeight);
+        }
+        if (weightCapacity < maxWeight) {
+            throw new IllegalArgumentException("Weight capacity must not be lower than maximum weight " + maxWeight + ", was " + weightCapacity);
+        }
         this.maxCapacity = maxCapacity;
+        this.slots = maxCapacity + headroom;
+        this.maxWeight = maxWeight;
+        this.weightCapacity = weightCapacity;
+        this.elements = new AtomicReferenceArray<>(slots);
+        this.positions = new AtomicLongArray(slots);
+        this.offsets = new AtomicLongArray(slots);
+        this.firsts = new AtomicLongArray(slots);
     }
 
     /**
      * Push an element onto the stack.
      *
      * @param e to push.
+     * @return position of the element, 0 if it has been refused because it weighs more than the maximum weight.
+     */
+    public long push(E e) {
+        long weight = weigh(e);
+        if (maxWeight > 0 && weight > maxWeight) {
+            return 0;
+        }
+
+        long position = claimed.incrementAndGet();
+
+        //wait for all older elements to be published (a ticket lock), the pusher one lap behind has then finished writing the slot
+        while (published.get() != position - 1) {
+            Thread.yield();
+        }
+
+        int slot = slot(position);
+        long previousPosition = positions.get(slot);
+        E previous = elements.get(slot);
+        boolean written = false;
+
+        try {
+            long offset = claimedWeight.get();
+            long end = offset + weight;
+            claimedWeight.set(end);
+
+            positions.set(slot, WRITING);
+            offsets.set(slot, offset);
+            store(slot, e, offset);
+            positions.set(slot, position);
+
+            pushed(e, position);
+
+            long oldest = Math.max(first, position - maxCapacity + 1);
+            while (maxWeight > 0 && oldest <= position && end - offsets.get(slot(oldest)) > maxWeight) {
+                oldest++;
+            }
+            first = oldest;
+            firsts.set(slot, oldest);
+            visibleWeight.set(oldest <= position ? end - offsets.get(slot(oldest)) : 0);
+
+            release(position, oldest, end);
+            written = true;
+        } finally {
+            if (!written) {
+                //the element might be half written, nothing is visible until newer elements are pushed
+                first = position + 1;
+                firsts.set(slot, first);
+                positions.set(slot, position);
+                visibleWeight.set(0);
+            }
+
+            //publish even if writing has failed, so that newer pushers do not wait forever
+            published.set(position);
+        }
+
+        if (previous != null) {
+            evicted(previous, previousPosition);
+        }
+
+        return position;
+    }
+
+    /**
+     * Release elements that are no longer visible and whose weight has been overwritten, so that they are not retained
+     * until their slots are overwritten. Readers treat such elements as overwritten already.
      */
-    public void push(E e) {
-        while (elements.size() >= maxCapacity) {
-            elements.removeLast();
+    private void release(long pushed, long oldest, long end) {
+        long position = Math.max(released, pushed - slots + 1);
+        while (position < oldest && end - offsets.get(slot(position)) > weightCapacity) {
+            int slot = slot(position);
+            E e = elements.get(slot);
+            if (e != null && positions.get(slot) == position) {
+                elements.set(slot, null);
+                evicted(e, position);
+            }
+            position++;
         }
-        elements.addFirst(e);
+        released = position;
     }
 
     /**
@@ -63,20 +213,282 @@ public class BoundedConcurrentStack<E> implements Iterable<E> {
      * @param elements to populate the stack with.
      */
     public void populate(Collection<E> elements) {
-        this.elements.addAll(elements);
+        List<E> newestFirst = new ArrayList<>(elements);
+        for (int i = Math.min(newestFirst.size(), maxCapacity) - 1; i >= 0; i--) {
+            push(newestFirst.get(i));
+        }
+    }
+
+    /**
+     * Take a point-in-time view of the stack.
+     *
+     * @return snapshot.
+     */
+    public Snapshot snapshot() {
+        while (true) {
+            long lastPosition = published.get();
+            if (lastPosition == 0) {
+                return new Snapshot(1, 0);
+            }
+
+            //the oldest visible position is recorded with every element, so that it matches the newest element
+            int slot = slot(lastPosition);
+            long firstPosition = firsts.get(slot);
+            if (positions.get(slot) == lastPosition) {
+                return new Snapshot(firstPosition, lastPosition);
+            }
+            //the newest element has been overwritten whilst taking the snapshot, take a newer one
+        }
+    }
+
+    /**
+     * Get the position of the newest element.
+     *
+     * @return position, 0 if nothing has been pushed yet.
+     */
+    public long getLastPosition() {
+        return published.get();
+    }
 
-        while (this.elements.size() > maxCapacity) {
-            this.elements.removeLast();
+    /**
+     * Get the position of the oldest element that can still be in the stack.
+     *
+     * @return position, greater than {@link #getLastPosition()} if the stack is empty.
+     */
+    public long getFirstPosition() {
+        return snapshot().getFirstPosition();
+    }
+
+    /**
+     * Get the element at the given position.
+     *
+     * @param position of the element.
+     * @return element, null if there is no such element (yet) or it has already been dropped.
+     */
+    public E get(long position) {
+        return snapshot().get(position);
+    }
+
+    private E read(long position) {
+        int slot = slot(position);
+        if (positions.get(slot) != position) {
+            return null;
         }
+        long offset = offsets.get(slot);
+        E e = load(slot, offset);
+        if (positions.get(slot) != position || claimedWeight.get() - offset > weightCapacity) {
+            return null;
+        }
+        return e;
+    }
+
+    /**
+     * Get the maximum capacity.
+     *
+     * @return capacity.
+     */
+    public int getMaxCapacity() {
+        return maxCapacity;
     }
 
     /**
      * Get iterator over the elements of this stack. Note that the order of iteration is the reverse of the order in which
-     * elements were added.
+     * elements were added. The iterator reads a {@link Snapshot} and ends early if the snapshot is no longer intact.
      *
      * @return iterator.
      */
     public Iterator<E> iterator() {
-        return elements.iterator();
+        return snapshot().iterator();
+    }
+
+    /**
+     * Get the total weight of visible elements.
+     *
+     * @return weight, 0 if the stack is not bounded by weight.
+     */
+    public long getWeight() {
+        return visibleWeight.get();
+    }
+
+    /**
+     * Get the maximum total weight of visible elements.
+     *
+     * @return maximum weight, 0 for no limit.
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Weigh an element. Called before the element is pushed, which is refused if the element weighs more than the
+     * maximum weight. Returns 0 by default, intended to be overridden by stacks bounded by weight.
+     *
+     * @param e element to weigh.
+     * @return weight of the element, not negative.
+     */
+    protected long weigh(E e) {
+        return 0;
+    }
+
+    /**
+     * Store an element. Called by the pusher of the element, after all older elements have been published. Stores the
+     * element in the slot by default.
+     *
+     * @param slot   of the element.
+     * @param e      element to store.
+     * @param offset total weight of all elements pushed before this one.
+     */
+    protected void store(int slot, E e, long offset) {
+        elements.set(slot, e);
+    }
+
+    /**
+     * Load an element. The element is discarded if it turns out it has been overwritten whilst loading, so
+     * implementations must tolerate reading elements that are concurrently being overwritten.
+     *
+     * @param slot   of the element.
+     * @param offset total weight of all elements pushed before the element.
+     * @return element, null if it cannot be loaded.
+     */
+    protected E load(int slot, long offset) {
+        return elements.get(slot);
+    }
+
+    /**
+     * Called when an element has been written into the stack, but before readers can see it. Does nothing by default,
+     * intended to be overridden.
+     *
+     * @param e        pushed element.
+     * @param position of the element.
+     */
+    protected void pushed(E e, long position) {
+    }
+
+    /**
+     * Called when an element has been overwritten because the capacity and headroom of the stack have been exceeded,
+     * or released because its weight has been overwritten. Does nothing by default, intended to be overridden.
+     *
+     * @param e        dropped element.
+     * @param position the element had.
+     */
+    protected void evicted(E e, long position) {
+    }
+
+    private int slot(long position) {
+        return (int) ((position - 1) % slots);
+    }
+
+    /**
+     * Point-in-time view of the stack, consisting of at most capacity elements pushed before the snapshot has been taken.
+     */
+    public class Snapshot implements Iterable<E> {
+
+        private final long firstPosition;
+        private final long lastPosition;
+
+        private Snapshot(long firstPosition, long lastPosition) {
+            this.firstPosition = firstPosition;
+            this.lastPosition = lastPosition;
+        }
+
+        /**
+         * Get the position of the newest element in the snapshot.
+         *
+         * @return position, 0 if the snapshot is empty.
+         */
+        public long getLastPosition() {
+            return lastPosition;
+        }
+
+        /**
+         * Get the position of the oldest element in the snapshot.
+         *
+         * @return position, greater than {@link #getLastPosition()} if the snapshot is empty.
+         */
+        public long getFirstPosition() {
+            return firstPosition;
+        }
+
+        /**
+         * Get the element at the given position.
+         *
+         * @param position of the element.
+         * @return element, null if the position is not in the snapshot, or the element has already been overwritten,
+         * in which case {@link #isIntact()} returns false.
+         */
+        public E get(long position) {
+            if (position < getFirstPosition() || position > lastPosition) {
+                return null;
+            }
+            return read(position);
+        }
+
+        /**
+         * Check whether all elements of the snapshot can still be read.
+         *
+         * @return true iff no element of the snapshot has been overwritten yet.
+         */
+        public boolean isIntact() {
+            if (claimed.get() >= firstPosition + slots) {
+                return false;
+            }
+            return firstPosition > lastPosition || claimedWeight.get() - offsets.get(slot(firstPosition)) <= weightCapacity;
+        }
+
+        /**
+         * Get iterator over the elements of this snapshot, newest first. Ends early if the snapshot is no longer intact.
+         *
+         * @return iterator.
+         */
+        @Override
+        public Iterator<E> iterator() {
+            return new NewestFirstIterator(this);
+        }
+    }
+
+    /**
+     * Iterator over a snapshot, ending when there are no more elements or an element has been overwritten.
+     */
+    private class NewestFirstIterator implements Iterator<E> {
+
+        private final Snapshot snapshot;
+        private long position;
+        private E next;
+
+        private NewestFirstIterator(Snapshot snapshot) {
+            this.snapshot = snapshot;
+            this.position = snapshot.getLastPosition();
+            this.next = advance();
+        }
+
+        private E advance() {
+            if (position < snapshot.getFirstPosition()) {
+                return null;
+            }
+            E e = snapshot.get(position--);
+            if (e == null) {
+                position = 0;
+            }
+            return e;
+        }
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public E next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            E result = next;
+            next = advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 }
@@ -19,6 +19,7 @@ package com.graphaware.module.changefeed;
 import com.graphaware.common.policy.BaseNodeInclusionPolicy;
 import com.graphaware.module.changefeed.cache.CachingGraphChangeReader;
 import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.domain.Indexes;
 import com.graphaware.module.changefeed.domain.Labels;
 import com.graphaware.module.changefeed.domain.Relationships;
 import com.graphaware.module.changefeed.io.GraphChangeReader;
@@ -34,20 +35,24 @@ import org.junit.Test;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.event.TransactionData;
 import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.index.lucene.QueryContext;
 import org.neo4j.helpers.collection.Iterables;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.graphaware.common.util.IterableUtils.getSingleOrNull;
-import static com.graphaware.module.changefeed.domain.Properties.MODULE_ID;
-import static com.graphaware.module.changefeed.domain.Properties.UUID;
+import static com.graphaware.module.changefeed.domain.Properties.*;
 import static org.junit.Assert.*;
 import static org.neo4j.graphdb.DynamicRelationshipType.withName;
 import static org.neo4j.tooling.GlobalGraphOperations.at;
@@ -68,7 +73,7 @@ public class ChangeFeedEmbeddedProgrammaticIntegrationTest extends DatabaseInteg
     }
 
     @Test
-    public void changeRootShouldHavePointerToOldestChange() throws InterruptedException {
+    public void changeSetsShouldBeIndexedBySequenceWithoutLinkingToRoot() throws InterruptedException {
         registerSingleModuleAndStart();
 
         List<String> uuids = performModifications();
@@ -76,9 +81,13 @@ public class ChangeFeedEmbeddedProgrammaticIntegrationTest extends DatabaseInteg
         try (Transaction tx = getDatabase().beginTx()) {
             Node changeRoot = getSingleOrNull(at(getDatabase()).getAllNodesWithLabel(Labels._GA_ChangeFeed));
             assertNotNull(changeRoot);
-            Relationship rel = changeRoot.getSingleRelationship(Relationships._GA_CHANGEFEED_OLDEST_CHANGE, Direction.OUTGOING);
-            assertNotNull(rel);
-            assertEquals(uuids.get(0), rel.getEndNode().getProperty(UUID)); //Pruning hasn't happened so the first change will be the oldest
+            assertFalse(changeRoot.hasRelationship());
+
+            Index<Node> index = getDatabase().index().forNodes(Indexes.changeSetIndex("CFM"));
+            Node oldest = index.query(QueryContext.numericRange(SEQUENCE, 0L, Long.MAX_VALUE).sortNumeric(SEQUENCE, false)).next();
+            assertEquals(uuids.get(0), oldest.getProperty(UUID)); //Pruning hasn't happened so the first change will be the oldest
+            assertEquals(1L, oldest.getProperty(SEQUENCE));
+            assertEquals(4L, index.get(UUID, uuids.get(3)).getSingle().getProperty(SEQUENCE));
             tx.success();
         }
     }
@@ -127,6 +136,22 @@ public class ChangeFeedEmbeddedProgrammaticIntegrationTest extends DatabaseInteg
         verifyChanges(1, new CachingGraphChangeReader(getDatabase(), "CFM").getNumberOfChangesSince(uuids.get(1), 1), uuids);
     }
 
+    @Test
+    public void offHeapCacheShouldServeTheSameChangesAsTheGraph() {
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(getDatabase());
+        runtime.registerModule(new ChangeFeedModule("CFM", ChangeFeedConfiguration
+                .defaultConfiguration()
+                .withMaxChanges(3)
+                .withCacheSize(1024 * 1024)
+                .withOffHeapCache(true), getDatabase()));
+        runtime.start();
+
+        List<String> uuids = performModifications();
+
+        verifyChanges(3, new CachingGraphChangeReader(getDatabase()).getNumberOfChanges(3), uuids);
+        verifyChanges(2, new CachingGraphChangeReader(getDatabase()).getChangesSince(uuids.get(1)), uuids);
+    }
+
     @Test
     public void transactionsNotCommittedShouldNotReflectInTheChangeFeed() {
         registerSingleModuleAndStart();
@@ -188,8 +213,6 @@ public class ChangeFeedEmbeddedProgrammaticIntegrationTest extends DatabaseInteg
     public void changeSetsShouldBeOrdered() throws InterruptedException {
         registerSingleModuleAndStart();
 
-        final List<String> uuids = new ArrayList<>();
-
         //slow down the first tx:
         getDatabase().registerTransactionEventHandler(new TransactionEventHandler.Adapter<Void>() {
             protected AtomicBoolean hasRun = new AtomicBoolean(false);
@@ -216,7 +239,6 @@ public class ChangeFeedEmbeddedProgrammaticIntegrationTest extends DatabaseInteg
                     getDatabase().createNode().setProperty("name", "One");
                     tx.success();
                 }
-                uuids.add(UuidUtil.getUuidOfLatestChange(getDatabase()));
             }
         });
 
@@ -227,7 +249,6 @@ public class ChangeFeedEmbeddedProgrammaticIntegrationTest extends DatabaseInteg
                     getDatabase().createNode().setProperty("name", "Two");
                     tx.success();
                 }
-                uuids.add(UuidUtil.getUuidOfLatestChange(getDatabase()));
             }
         });
 
@@ -239,8 +260,9 @@ public class ChangeFeedEmbeddedProgrammaticIntegrationTest extends DatabaseInteg
         assertEquals(2, changes.size());
         Iterator<ChangeSet> it = changes.iterator();
 
-        assertEquals(uuids.get(1), it.next().getUuid());
-        assertEquals(uuids.get(0), it.next().getUuid());
+        ChangeSet newer = it.next();
+        ChangeSet older = it.next();
+        assertEquals(older.getSequence() + 1, newer.getSequence());
 
         //caching
         GraphChangeReader reader = new CachingGraphChangeReader(getDatabase());
@@ -248,8 +270,108 @@ public class ChangeFeedEmbeddedProgrammaticIntegrationTest extends DatabaseInteg
         assertEquals(2, changes.size());
         it = changes.iterator();
 
-        assertEquals(uuids.get(1), it.next().getUuid());
-        assertEquals(uuids.get(0), it.next().getUuid());
+        assertEquals(newer.getUuid(), it.next().getUuid());
+        assertEquals(older.getUuid(), it.next().getUuid());
+    }
+
+    @Test
+    public void changeSetShouldNotBeVisibleBeforePrecedingChangeSetsHaveCommitted() throws InterruptedException {
+        registerSingleModuleAndStart();
+
+        final CountDownLatch firstAppended = new CountDownLatch(1);
+        final CountDownLatch secondCommitted = new CountDownLatch(1);
+
+        //hold the first tx after its change set has been appended:
+        getDatabase().registerTransactionEventHandler(new TransactionEventHandler.Adapter<Void>() {
+            @Override
+            public Void beforeCommit(TransactionData data) throws Exception {
+                for (Node node : data.createdNodes()) {
+                    if ("One".equals(node.getProperty("name", null))) {
+                        firstAppended.countDown();
+                        secondCommitted.await();
+                    }
+                }
+                return null;
+            }
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try (Transaction tx = getDatabase().beginTx()) {
+                    getDatabase().createNode().setProperty("name", "One");
+                    tx.success();
+                }
+            }
+        });
+
+        firstAppended.await();
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            getDatabase().createNode().setProperty("name", "Two");
+            tx.success();
+        }
+
+        assertEquals(0, new GraphChangeReader(getDatabase()).getAllChanges().size());
+        assertEquals(0, new CachingGraphChangeReader(getDatabase()).getAllChanges().size());
+
+        secondCommitted.countDown();
+        executor.shutdown();
+        executor.awaitTermination(1000, TimeUnit.MILLISECONDS);
+
+        Iterator<ChangeSet> it = new GraphChangeReader(getDatabase()).getAllChanges().iterator();
+        assertTrue(it.next().getChanges().contains("Created node ({name: Two})"));
+        assertTrue(it.next().getChanges().contains("Created node ({name: One})"));
+        assertFalse(it.hasNext());
+
+        it = new CachingGraphChangeReader(getDatabase()).getAllChanges().iterator();
+        assertTrue(it.next().getChanges().contains("Created node ({name: Two})"));
+        assertTrue(it.next().getChanges().contains("Created node ({name: One})"));
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void changeSetOfTransactionRolledBackByAnotherHandlerShouldNotHoldBackLaterChangeSets() throws InterruptedException {
+        registerSingleModuleAndStart();
+
+        getDatabase().registerTransactionEventHandler(new TransactionEventHandler.Adapter<Void>() {
+            @Override
+            public Void beforeCommit(TransactionData data) throws Exception {
+                for (Node node : data.createdNodes()) {
+                    if ("One".equals(node.getProperty("name", null))) {
+                        throw new IllegalStateException("Rolling back");
+                    }
+                }
+                return null;
+            }
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try (Transaction tx = getDatabase().beginTx()) {
+                    getDatabase().createNode().setProperty("name", "One");
+                    tx.success();
+                }
+            }
+        });
+        executor.shutdown();
+        executor.awaitTermination(1000, TimeUnit.MILLISECONDS);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            getDatabase().createNode().setProperty("name", "Two");
+            tx.success();
+        }
+
+        Iterator<ChangeSet> it = new GraphChangeReader(getDatabase()).getAllChanges().iterator();
+        assertTrue(it.next().getChanges().contains("Created node ({name: Two})"));
+        assertFalse(it.hasNext());
+
+        it = new CachingGraphChangeReader(getDatabase()).getAllChanges().iterator();
+        assertTrue(it.next().getChanges().contains("Created node ({name: Two})"));
+        assertFalse(it.hasNext());
     }
 
     @Test
@@ -309,17 +431,23 @@ public class ChangeFeedEmbeddedProgrammaticIntegrationTest extends DatabaseInteg
         new CachingGraphChangeReader(getDatabase()).getAllChanges();
     }
 
-   /* @Test
-    public void sequenceShouldStartWhereItLeftOff() {
-        //previously, a root has been created:
+    @Test
+    public void changeSetsLinkedToRootShouldBeMigratedAndSequenceShouldContinue() {
+        //previously, change sets have been linked to the root:
         try (Transaction tx = getDatabase().beginTx()) {
             Node root = getDatabase().createNode(Labels._GA_ChangeFeed);
             root.setProperty(MODULE_ID, "CFM");
-            Node change = getDatabase().createNode(Labels._GA_ChangeSet);
-            change.setProperty(SEQUENCE, 100L);
-            change.setProperty(TIMESTAMP, new Date().getTime());
-            change.setProperty(CHANGES, new String[]{"dummy"});
-            root.createRelationshipTo(change, Relationships._GA_CHANGEFEED_NEXT_CHANGE);
+            Node older = getDatabase().createNode(Labels._GA_ChangeSet);
+            older.setProperty(UUID, "older");
+            older.setProperty(TIMESTAMP, new Date().getTime());
+            older.setProperty(CHANGES, new String[]{"dummy1"});
+            Node newer = getDatabase().createNode(Labels._GA_ChangeSet);
+            newer.setProperty(UUID, "newer");
+            newer.setProperty(TIMESTAMP, new Date().getTime());
+            newer.setProperty(CHANGES, new String[]{"dummy2"});
+            root.createRelationshipTo(older, Relationships._GA_CHANGEFEED_OLDEST_CHANGE);
+            root.createRelationshipTo(newer, Relationships._GA_CHANGEFEED_NEXT_CHANGE);
+            newer.createRelationshipTo(older, Relationships._GA_CHANGEFEED_NEXT_CHANGE);
             tx.success();
         }
 
@@ -330,9 +458,25 @@ public class ChangeFeedEmbeddedProgrammaticIntegrationTest extends DatabaseInteg
             tx.success();
         }
 
-        assertEquals(101, new CachingGraphChangeReader(getDatabase()).getAllChanges().iterator().next().getSequence());
-        assertEquals(101, new GraphChangeReader(getDatabase()).getAllChanges().iterator().next().getSequence());
-    }*/
+        for (GraphChangeReader reader : Arrays.asList(new GraphChangeReader(getDatabase()), new CachingGraphChangeReader(getDatabase()))) {
+            Iterator<ChangeSet> it = reader.getAllChanges().iterator();
+            assertEquals(3, it.next().getSequence());
+            ChangeSet newer = it.next();
+            assertEquals("newer", newer.getUuid());
+            assertEquals(2, newer.getSequence());
+            ChangeSet older = it.next();
+            assertEquals("older", older.getUuid());
+            assertEquals(1, older.getSequence());
+            assertFalse(it.hasNext());
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (Node node : at(getDatabase()).getAllNodes()) {
+                assertFalse(node.hasRelationship());
+            }
+            tx.success();
+        }
+    }
 
     private void registerSingleModuleAndStart() {
         TimingStrategy timingStrategy = FixedDelayTimingStrategy
@@ -522,7 +666,7 @@ public class ChangeFeedEmbeddedProgrammaticIntegrationTest extends DatabaseInteg
     }
 
     @Test
-    public void eachChangeSetShouldHaveSingleRelationshipToNextChangeSet() throws InterruptedException {
+    public void concurrentChangeSetsShouldHaveContiguousSequenceNumbers() throws InterruptedException {
         registerSingleModuleAndStart();
 
         ExecutorService executorService = Executors.newFixedThreadPool(50);
@@ -544,23 +688,14 @@ public class ChangeFeedEmbeddedProgrammaticIntegrationTest extends DatabaseInteg
 
         executorService.shutdown();
         executorService.awaitTermination(2,TimeUnit.MINUTES);
-        Thread.sleep(5000);
+        Thread.sleep(1000); //wait for pruning
 
-        //Start walking the changefeed from root and make sure there is only one _GA_CHANGEFEED_NEXT_CHANGE relationship
-        try (Transaction tx = getDatabase().beginTx()) {
-            Node changeRoot = getSingleOrNull(at(getDatabase()).getAllNodesWithLabel(Labels._GA_ChangeFeed));
-            assertNotNull(changeRoot);
-            Relationship oldestChangeRel = changeRoot.getSingleRelationship(Relationships._GA_CHANGEFEED_OLDEST_CHANGE, Direction.OUTGOING);
-            assertNotNull(oldestChangeRel);
-            oldestChangeRel = oldestChangeRel.getEndNode().getSingleRelationship(Relationships._GA_CHANGEFEED_NEXT_CHANGE, Direction.INCOMING);
-            while (oldestChangeRel != null) {
-                changeRoot = oldestChangeRel.getStartNode();
-                oldestChangeRel = changeRoot.getSingleRelationship(Relationships._GA_CHANGEFEED_NEXT_CHANGE, Direction.INCOMING);
-                assertNotNull(changeRoot);
+        Collection<ChangeSet> changes = new GraphChangeReader(getDatabase()).getAllChanges();
+        assertEquals(3, changes.size());
 
-            }
-            tx.success();
+        long expectedSequence = 500;
+        for (ChangeSet changeSet : changes) {
+            assertEquals(expectedSequence--, changeSet.getSequence());
         }
-
     }
 }
@@ -16,6 +16,8 @@
 
 package com.graphaware.module.changefeed.api;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.graphaware.module.changefeed.ChangeFeedConfiguration;
 import com.graphaware.module.changefeed.ChangeFeedModule;
 import com.graphaware.module.changefeed.domain.ChangeSet;
@@ -32,13 +34,28 @@ import org.junit.Test;
 import org.neo4j.cypher.javacompat.ExecutionEngine;
 import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Transaction;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import static com.graphaware.common.util.IterableUtils.count;
 import static com.graphaware.module.changefeed.domain.Labels._GA_ChangeSet;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.neo4j.tooling.GlobalGraphOperations.at;
 
 /**
@@ -138,6 +155,219 @@ public class ChangeFeedApiTest extends DatabaseIntegrationTest {
         assertEquals(uuids.get(3), result.get(0).getUuid());
     }
 
+    @Test
+    public void shouldReturnCorrectNumberOfResultsWhenAskedSinceSequence() {
+        ChangeSet since = new ArrayList<>(api.getChangeFeed(null, null)).get(2);
+        assertEquals(uuids.get(1), since.getUuid());
+        long sequence = since.getSequence();
+
+        List<ChangeSet> result = new ArrayList<>(api.getChangeFeed("CFM", null, sequence, null, null, null));
+        assertEquals(2, result.size());
+        assertEquals(uuids.get(3), result.get(0).getUuid());
+        assertEquals(uuids.get(2), result.get(1).getUuid());
+
+        result = new ArrayList<>(api.getChangeFeed("CFM", null, sequence, null, null, 1));
+        assertEquals(1, result.size());
+        assertEquals(uuids.get(3), result.get(0).getUuid());
+    }
+
+    @Test
+    public void shouldReturnCorrectNumberOfResultsWhenAskedForTimeRange() {
+        List<ChangeSet> all = new ArrayList<>(api.getChangeFeed(null, null));
+        long from = all.get(1).getTimestamp();
+        long to = all.get(0).getTimestamp();
+
+        List<ChangeSet> result = new ArrayList<>(api.getChangeFeed("CFM", null, null, from, to + 1, null));
+        assertEquals(uuids.get(3), result.get(0).getUuid());
+        assertEquals(uuids.get(2), result.get(1).getUuid());
+        for (ChangeSet changeSet : result) {
+            assertTrue(changeSet.getTimestamp() >= from && changeSet.getTimestamp() <= to);
+        }
+
+        result = new ArrayList<>(api.getChangeFeed("CFM", null, null, from, to + 1, 1));
+        assertEquals(1, result.size());
+        assertEquals(uuids.get(3), result.get(0).getUuid());
+
+        assertEquals(0, api.getChangeFeed("CFM", null, null, to + 1, null, null).size());
+    }
+
+    @Test
+    public void shouldWriteChangeSetsAsJsonArray() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse response = response(body);
+
+        api.writeChangeFeed("CFM", uuids.get(1), null, null, null, null, null, null, null, null, null, response);
+
+        verify(response).setContentType("application/json;charset=UTF-8");
+        JsonNode json = new ObjectMapper().readTree(body.toByteArray());
+        assertEquals(2, json.size());
+        assertEquals(uuids.get(3), json.get(0).get("uuid").asText());
+        assertEquals(uuids.get(2), json.get(1).get("uuid").asText());
+        assertEquals("Created node (:Company {name: GraphAware})", json.get(1).get("changes").get(0).asText());
+    }
+
+    @Test
+    public void shouldWriteChangeSetHeadersOnlyWhenRequested() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        api.writeChangeFeed("CFM", uuids.get(1), null, null, null, null, "headers", null, null, null, null, response(body));
+
+        JsonNode json = new ObjectMapper().readTree(body.toByteArray());
+        assertEquals(2, json.size());
+        assertEquals(uuids.get(3), json.get(0).get("uuid").asText());
+        assertEquals(uuids.get(2), json.get(1).get("uuid").asText());
+        assertEquals(1, json.get(1).get("changeCount").asInt());
+        assertNull(json.get(1).get("changes"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAcceptUnknownFields() throws IOException {
+        api.writeChangeFeed("CFM", null, null, null, null, null, "changes", null, null, null, null, response(new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void shouldWriteChangeSetsMatchingFilterOnly() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        api.writeChangeFeed("CFM", null, null, null, null, null, null, Collections.singletonList("Company"), null, null, null, response(body));
+
+        JsonNode json = new ObjectMapper().readTree(body.toByteArray());
+        assertEquals(1, json.size());
+        assertEquals(uuids.get(2), json.get(0).get("uuid").asText());
+
+        body = new ByteArrayOutputStream();
+        api.writeChangeFeed("CFM", null, null, null, null, 1, "headers", null, Collections.singletonList("WORKS_FOR"), Collections.singletonList("name"), Collections.singletonList("create"), response(body));
+
+        json = new ObjectMapper().readTree(body.toByteArray());
+        assertEquals(0, json.size());
+
+        body = new ByteArrayOutputStream();
+        api.writeChangeFeed("CFM", null, null, null, null, 1, null, null, null, null, Arrays.asList("delete", "create"), response(body));
+
+        json = new ObjectMapper().readTree(body.toByteArray());
+        assertEquals(1, json.size());
+        assertEquals(uuids.get(3), json.get(0).get("uuid").asText());
+    }
+
+    @Test
+    public void shouldPageForwardThroughChangeSetsMatchingFilterOnly() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        api.writeChangeFeedForward("CFM", null, 1, null, null, Collections.singletonList("WORKS_FOR"), null, null, response(body));
+
+        JsonNode page = new ObjectMapper().readTree(body.toByteArray());
+        assertEquals(1, page.get("changes").size());
+        assertEquals(uuids.get(3), page.get("changes").get(0).get("uuid").asText());
+
+        String next = page.get("next").asText();
+        body = new ByteArrayOutputStream();
+        api.writeChangeFeedForward("CFM", next, 1, null, null, Collections.singletonList("WORKS_FOR"), null, null, response(body));
+
+        page = new ObjectMapper().readTree(body.toByteArray());
+        assertEquals(0, page.get("changes").size());
+        assertEquals(next, page.get("next").asText());
+    }
+
+    @Test
+    public void filteredPageShouldMoveCursorPastChangeSetsNotMatching() throws IOException {
+        engine.execute("CREATE (:Person {name:'Daniela'})");
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        api.writeChangeFeedForward("CFM", null, 10, null, null, null, null, null, response(body));
+        String newest = new ObjectMapper().readTree(body.toByteArray()).get("next").asText();
+
+        body = new ByteArrayOutputStream();
+        api.writeChangeFeedForward("CFM", null, 10, null, null, Collections.singletonList("WORKS_FOR"), null, null, response(body));
+
+        JsonNode page = new ObjectMapper().readTree(body.toByteArray());
+        assertEquals(1, page.get("changes").size());
+        assertEquals(uuids.get(3), page.get("changes").get(0).get("uuid").asText());
+        assertEquals(newest, page.get("next").asText());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAcceptUnknownOperation() throws IOException {
+        api.writeChangeFeed("CFM", null, null, null, null, null, null, null, null, null, Collections.singletonList("bogus"), response(new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void shouldPageForwardWithCursors() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        api.writeChangeFeedForward("CFM", null, 2, null, null, null, null, null, response(body));
+
+        JsonNode page = new ObjectMapper().readTree(body.toByteArray());
+        assertEquals(2, page.get("changes").size());
+        long sequence = page.get("changes").get(1).get("sequence").asLong();
+
+        body = new ByteArrayOutputStream();
+        api.writeChangeFeedForward("CFM", page.get("next").asText(), 2, null, null, null, null, null, response(body));
+
+        page = new ObjectMapper().readTree(body.toByteArray());
+        assertTrue(page.get("changes").size() > 0);
+        assertEquals(sequence + 1, page.get("changes").get(0).get("sequence").asLong());
+        assertEquals(uuids.get(3), page.get("changes").get(page.get("changes").size() - 1).get("uuid").asText());
+
+        String next = page.get("next").asText();
+        body = new ByteArrayOutputStream();
+        api.writeChangeFeedForward("CFM", next, null, "headers", null, null, null, null, response(body));
+
+        page = new ObjectMapper().readTree(body.toByteArray());
+        assertEquals(0, page.get("changes").size());
+        assertEquals(next, page.get("next").asText());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAcceptInvalidCursor() throws IOException {
+        api.writeChangeFeedForward("CFM", "42", null, null, null, null, null, null, response(new ByteArrayOutputStream()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAcceptPageLimitOutOfBounds() throws IOException {
+        api.writeChangeFeedForward("CFM", null, 0, null, null, null, null, null, response(new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void pollShouldReturnStraightAwayWhenThereAreNewerChanges() {
+        DeferredResult<Collection<ChangeSet>> result = api.pollChangeFeed("CFM", uuids.get(2), null, null);
+
+        assertTrue(result.hasResult());
+        List<ChangeSet> changeSets = new ArrayList<>((Collection<ChangeSet>) result.getResult());
+        assertEquals(1, changeSets.size());
+        assertEquals(uuids.get(3), changeSets.get(0).getUuid());
+    }
+
+    @Test
+    public void pollShouldWaitForNewerChanges() {
+        DeferredResult<Collection<ChangeSet>> result = api.pollChangeFeed("CFM", uuids.get(3), null, 1000L);
+        assertFalse(result.hasResult());
+
+        engine.execute("CREATE (:Person {name:'Daniela'})");
+
+        assertTrue(result.hasResult());
+        List<ChangeSet> changeSets = new ArrayList<>((Collection<ChangeSet>) result.getResult());
+        assertEquals(1, changeSets.size());
+        assertEquals(UuidUtil.getUuidOfLatestChange(getDatabase()), changeSets.get(0).getUuid());
+        assertEquals("Created node (:Person {name: Daniela})", changeSets.get(0).getChanges().get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pollShouldNotAcceptNonPositiveTimeout() {
+        api.pollChangeFeed("CFM", null, null, 0L);
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void streamShouldNotResumeAfterChangeSetNoLongerCached() {
+        api.streamChangeFeed("CFM", "unknown");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAcceptBothSequenceAndTimeRange() {
+        api.getChangeFeed("CFM", null, 1L, 0L, null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAcceptBothUuidAndSequence() {
+        api.getChangeFeed("CFM", uuids.get(1), 1L, null, null, null);
+    }
+
     @Test(expected = NotFoundException.class)
     public void shouldThrowExceptionWhenModuleNotRegistered() {
         api.getChangeFeed("unknown", null, null);
@@ -161,4 +391,23 @@ public class ChangeFeedApiTest extends DatabaseIntegrationTest {
         }
     }
 
+    private HttpServletResponse response(final ByteArrayOutputStream body) throws IOException {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+        return response;
+    }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.api;
+
+import com.graphaware.module.changefeed.cache.ChangeSetCache;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.NotFoundException;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.ByteArrayHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.StringHttpMessageConverter;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncManager;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitterReturnValueHandler;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ChangeSetBroadcasterTest {
+
+    private ChangeSetCache cache;
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            scheduled.add(command);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        cache = new ChangeSetCache(100);
+    }
+
+    @Test
+    public void pushedChangeSetsShouldBeStreamedAsEventsToAllSubscribers() {
+        ChangeSetBroadcaster broadcaster = new ChangeSetBroadcaster(cache, executor, 10);
+        RecordingEmitter first = new RecordingEmitter();
+        RecordingEmitter second = new RecordingEmitter();
+        broadcaster.subscribe(first, null);
+        broadcaster.subscribe(second, null);
+        assertEquals(2, broadcaster.getSubscriberCount());
+
+        ChangeSet changeSet = push(1);
+        push(2);
+        runScheduled();
+
+        assertEquals(2, first.events.size());
+        assertEquals("id: uuid-1\ndata: " + new String(changeSet.getJson()) + "\n\n", first.events.get(0));
+        assertEquals(first.events, second.events);
+        assertSame(first.sent.get(0), second.sent.get(0));
+    }
+
+    @Test
+    public void eventsShouldBeWrittenToTheResponseAsEncoded() throws Exception {
+        ChangeSetBroadcaster broadcaster = new ChangeSetBroadcaster(cache, executor, 10);
+        EventStreamEmitter emitter = new EventStreamEmitter(1000L);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        ByteArrayOutputStream body = connect(emitter, response);
+        verify(response).addHeader("Content-Type", "text/event-stream;charset=UTF-8");
+
+        broadcaster.subscribe(emitter, null);
+        ChangeSet first = push(1);
+        ChangeSet second = push(2);
+        runScheduled();
+
+        assertEquals("id: uuid-1\ndata: " + new String(first.getJson()) + "\n\n"
+                + "id: uuid-2\ndata: " + new String(second.getJson()) + "\n\n", body.toString("UTF-8"));
+    }
+
+    @Test
+    public void sseEmitterWouldWrapEncodedEventsIntoData() throws Exception {
+        SseEmitter emitter = new SseEmitter(1000L);
+        ByteArrayOutputStream body = connect(emitter, mock(HttpServletResponse.class));
+
+        emitter.send("id: uuid-1\ndata: {}\n\n".getBytes("UTF-8"), MediaType.TEXT_PLAIN);
+
+        assertTrue(body.toString("UTF-8").startsWith("data:id: uuid-1\n"));
+    }
+
+    @Test
+    public void subscriberShouldResumeAfterLastEventId() {
+        ChangeSetBroadcaster broadcaster = new ChangeSetBroadcaster(cache, executor, 10);
+        push(1);
+        push(2);
+        push(3);
+
+        RecordingEmitter emitter = new RecordingEmitter();
+        broadcaster.subscribe(emitter, "uuid-1");
+        push(4);
+        runScheduled();
+
+        assertEquals(3, emitter.events.size());
+        assertTrue(emitter.events.get(0).startsWith("id: uuid-2\n"));
+        assertTrue(emitter.events.get(1).startsWith("id: uuid-3\n"));
+        assertTrue(emitter.events.get(2).startsWith("id: uuid-4\n"));
+    }
+
+    @Test
+    public void changeSetPushedWhilstSubscribingShouldNotOvertakeBacklog() {
+        cache = new ChangeSetCache(100) {
+            private boolean pushing = false;
+
+            @Override
+            public List<ChangeSet> getChangesIfCached(String uuid, int limit) {
+                if (!pushing) {
+                    pushing = true;
+                    ChangeSetBroadcasterTest.this.push(4);
+                }
+                return super.getChangesIfCached(uuid, limit);
+            }
+        };
+        ChangeSetBroadcaster broadcaster = new ChangeSetBroadcaster(cache, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, 10);
+        push(1);
+        push(2);
+        push(3);
+
+        RecordingEmitter emitter = new RecordingEmitter();
+        broadcaster.subscribe(emitter, "uuid-1");
+
+        assertEquals(3, emitter.events.size());
+        assertTrue(emitter.events.get(0).startsWith("id: uuid-2\n"));
+        assertTrue(emitter.events.get(1).startsWith("id: uuid-3\n"));
+        assertTrue(emitter.events.get(2).startsWith("id: uuid-4\n"));
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void resumingAfterChangeSetNoLongerCachedShouldFail() {
+        ChangeSetBroadcaster broadcaster = new ChangeSetBroadcaster(cache, executor, 10);
+        push(1);
+
+        broadcaster.subscribe(new RecordingEmitter(), "uuid-unknown");
+    }
+
+    @Test
+    public void slowSubscriberShouldBeDisconnected() {
+        ChangeSetBroadcaster broadcaster = new ChangeSetBroadcaster(cache, executor, 2);
+        RecordingEmitter emitter = new RecordingEmitter();
+        broadcaster.subscribe(emitter, null);
+
+        push(1);
+        push(2);
+        push(3);
+        runScheduled();
+
+        assertTrue(emitter.completed);
+        assertTrue(emitter.events.isEmpty());
+        assertEquals(0, broadcaster.getSubscriberCount());
+
+        push(4);
+        assertTrue(scheduled.isEmpty());
+    }
+
+    private ChangeSet push(int sequence) {
+        ChangeSet changeSet = new ChangeSet("uuid-" + sequence, sequence);
+        changeSet.setSequence(sequence);
+        changeSet.addChanges("Change " + sequence);
+        cache.push(changeSet);
+        return changeSet;
+    }
+
+    private void runScheduled() {
+        while (!scheduled.isEmpty()) {
+            scheduled.remove(0).run();
+        }
+    }
+
+    /**
+     * Connect the emitter to the response the way Spring MVC does when a controller returns it.
+     *
+     * @return body written to the response.
+     */
+    private ByteArrayOutputStream connect(ResponseBodyEmitter emitter, HttpServletResponse response) throws Exception {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                body.write(b);
+            }
+        });
+
+        WebAsyncManager asyncManager = WebAsyncUtils.getAsyncManager(mock(ServletRequest.class));
+        asyncManager.setAsyncWebRequest(mock(AsyncWebRequest.class));
+
+        NativeWebRequest webRequest = mock(NativeWebRequest.class);
+        when(webRequest.getNativeRequest(HttpServletRequest.class)).thenReturn(mock(HttpServletRequest.class));
+        when(webRequest.getNativeRequest(ServletRequest.class)).thenReturn(mock(HttpServletRequest.class));
+        when(webRequest.getNativeResponse(HttpServletResponse.class)).thenReturn(response);
+        when(webRequest.getAttribute(WebAsyncUtils.WEB_ASYNC_MANAGER_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST)).thenReturn(asyncManager);
+
+        List<HttpMessageConverter<?>> converters = Arrays.<HttpMessageConverter<?>>asList(new ByteArrayHttpMessageConverter(), new StringHttpMessageConverter());
+        new ResponseBodyEmitterReturnValueHandler(converters).handleReturnValue(emitter, null, new ModelAndViewContainer(), webRequest);
+
+        return body;
+    }
+
+    private static class RecordingEmitter extends EventStreamEmitter {
+
+        private final List<Object> sent = new ArrayList<>();
+        private final List<String> events = new ArrayList<>();
+        private boolean completed = false;
+
+        private RecordingEmitter() {
+            super(null);
+        }
+
+        @Override
+        public synchronized void send(Object object, MediaType mediaType) {
+            sent.add(object);
+            events.add(new String((byte[]) object));
+        }
+
+        @Override
+        public synchronized void complete() {
+            completed = true;
+        }
+    }
+}
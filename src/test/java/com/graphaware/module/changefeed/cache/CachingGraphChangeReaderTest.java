@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.cache;
+
+import com.graphaware.module.changefeed.ChangeFeedConfiguration;
+import com.graphaware.module.changefeed.ChangeFeedModule;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.io.ChangeSetHandler;
+import com.graphaware.module.changefeed.io.GraphChangeReader;
+import com.graphaware.runtime.GraphAwareRuntime;
+import com.graphaware.runtime.GraphAwareRuntimeFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.graphaware.common.util.DatabaseUtils.registerShutdownHook;
+import static com.graphaware.module.changefeed.ChangeFeedModule.DEFAULT_MODULE_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CachingGraphChangeReaderTest {
+
+    private GraphDatabaseService database;
+    private ChangeSetCache cache;
+    private List<String> uuids;
+
+    @Before
+    public void setUp() {
+        database = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        registerShutdownHook(database);
+
+        ChangeFeedModule module = new ChangeFeedModule(DEFAULT_MODULE_ID, ChangeFeedConfiguration.defaultConfiguration().withMaxChanges(3).withPruneWhenMaxExceededBy(100), database);
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(database);
+        runtime.registerModule(module);
+        runtime.start();
+        runtime.waitUntilStarted();
+        cache = module.getChangesCache();
+
+        for (int i = 1; i <= 8; i++) {
+            try (Transaction tx = database.beginTx()) {
+                database.createNode().setProperty("number", i);
+                tx.success();
+            }
+        }
+
+        uuids = new ArrayList<>();
+        for (ChangeSet changeSet : new GraphChangeReader(database).getAllChanges()) {
+            uuids.add(0, changeSet.getUuid());
+        }
+        assertEquals(8, uuids.size());
+    }
+
+    @After
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void changesSinceCachedUuidShouldBeReadFromCache() {
+        CachingGraphChangeReader reader = new CachingGraphChangeReader(database);
+
+        verifySequences(reader.getChangesSince(uuids.get(5)), 8, 7);
+        verifySequences(reader.getChangesSince(uuids.get(4)), 8, 6);
+
+        assertEquals(2, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void changesOlderThanCacheShouldBeReadFromGraph() {
+        CachingGraphChangeReader reader = new CachingGraphChangeReader(database);
+
+        verifySequences(reader.getChangesSince(uuids.get(1)), 8, 3);
+        verifySequences(reader.getNumberOfChangesSince(uuids.get(1), 4), 8, 5);
+        verifySequences(reader.getNumberOfChangesSince(uuids.get(0), 2), 8, 7);
+        verifySequences(reader.getChangesSince("unknown"), 8, 1);
+
+        assertEquals(0, cache.getHits());
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void changesSinceSequenceShouldBeReadFromCacheAndGraph() {
+        CachingGraphChangeReader reader = new CachingGraphChangeReader(database);
+
+        verifySequences(reader.getNumberOfChangesSince(6, Integer.MAX_VALUE), 8, 7);
+        verifySequences(reader.getNumberOfChangesSince(5, 2), 8, 7);
+        verifySequences(reader.getNumberOfChangesSince(8, 2), 8, 9);
+        assertEquals(3, cache.getHits());
+
+        verifySequences(reader.getNumberOfChangesSince(1, Integer.MAX_VALUE), 8, 2);
+        verifySequences(reader.getNumberOfChangesSince(0, 5), 8, 4);
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void changesShouldBeHandedOverFromCacheAndGraphAsTheyAreRead() throws IOException {
+        CachingGraphChangeReader reader = new CachingGraphChangeReader(database);
+
+        verifySequences(readChangesSince(reader, uuids.get(4), Integer.MAX_VALUE), 8, 6);
+        verifySequences(readChangesSince(reader, uuids.get(1), Integer.MAX_VALUE), 8, 3);
+        verifySequences(readChangesSince(reader, "unknown", 6), 8, 3);
+
+        final List<ChangeSet> handled = new ArrayList<>();
+        assertEquals(5, reader.readChangesSince(2, 5, new ChangeSetHandler() {
+            @Override
+            public void handle(ChangeSet changeSet) {
+                handled.add(changeSet);
+            }
+        }));
+        verifySequences(handled, 8, 4);
+    }
+
+    @Test
+    public void failingHandlerShouldStopReading() {
+        CachingGraphChangeReader reader = new CachingGraphChangeReader(database);
+        final AtomicInteger handled = new AtomicInteger();
+
+        try {
+            reader.readChangesSince(0, Integer.MAX_VALUE, new ChangeSetHandler() {
+                @Override
+                public void handle(ChangeSet changeSet) throws IOException {
+                    if (handled.incrementAndGet() == 5) {
+                        throw new IOException("Client disconnected");
+                    }
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals(5, handled.get());
+        }
+    }
+
+    private List<ChangeSet> readChangesSince(GraphChangeReader reader, String uuid, int limit) throws IOException {
+        final List<ChangeSet> handled = new ArrayList<>();
+        int count = reader.readChangesSince(uuid, limit, new ChangeSetHandler() {
+            @Override
+            public void handle(ChangeSet changeSet) {
+                handled.add(changeSet);
+            }
+        });
+        assertEquals(handled.size(), count);
+        return handled;
+    }
+
+    private void verifySequences(Collection<ChangeSet> changes, long newest, long oldest) {
+        assertEquals(newest - oldest + 1, changes.size());
+        long expected = newest;
+        for (ChangeSet changeSet : changes) {
+            assertEquals(expected--, changeSet.getSequence());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.cache;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.util.BoundedConcurrentStack;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OffHeapChangeSetStackTest {
+
+    @Test
+    public void changeSetsShouldBeDecodedFromDirectMemory() {
+        OffHeapChangeSetStack stack = new OffHeapChangeSetStack(10, 1000);
+
+        ChangeSet changeSet = changeSet(1, "Created node (:Person {name: Michal})", "Created node (:Person {name: Luanne})");
+        stack.push(changeSet);
+
+        ChangeSet read = stack.get(1);
+        assertNotSame(changeSet, read);
+        assertEquals(changeSet.getUuid(), read.getUuid());
+        assertEquals(1, read.getSequence());
+        assertEquals(1000, read.getTimestamp());
+        assertEquals(changeSet.getChanges(), read.getChanges());
+        assertEquals(1251, stack.getBufferCapacity());
+    }
+
+    @Test
+    public void oldestChangeSetsShouldNotBeVisibleOnceSizeIsExceeded() {
+        int weight = weight(changeSet(0, "Created node (:Person {name: Person0})"));
+        OffHeapChangeSetStack stack = new OffHeapChangeSetStack(100, 3 * weight);
+
+        for (int i = 1; i <= 50; i++) {
+            stack.push(changeSet(i, "Created node (:Person {name: Person" + i % 10 + "})"));
+        }
+
+        assertEquals(48, stack.getFirstPosition());
+        assertEquals(50, stack.getLastPosition());
+        assertNull(stack.get(47));
+
+        List<ChangeSet> changeSets = new ArrayList<>();
+        for (ChangeSet changeSet : stack) {
+            changeSets.add(changeSet);
+        }
+        assertEquals(3, changeSets.size());
+        assertEquals(Collections.singletonList("Created node (:Person {name: Person0})"), changeSets.get(0).getChanges());
+        assertEquals(Collections.singletonList("Created node (:Person {name: Person9})"), changeSets.get(1).getChanges());
+        assertEquals(Collections.singletonList("Created node (:Person {name: Person8})"), changeSets.get(2).getChanges());
+    }
+
+    @Test
+    public void snapshotShouldNotBeIntactOnceBytesHaveBeenOverwritten() {
+        int weight = weight(changeSet(0, "Created node (:Person {name: Person0})"));
+        OffHeapChangeSetStack stack = new OffHeapChangeSetStack(100, 4 * weight);
+
+        for (int i = 1; i <= 4; i++) {
+            stack.push(changeSet(i, "Created node (:Person {name: Person" + i + "})"));
+        }
+
+        BoundedConcurrentStack<ChangeSet>.Snapshot snapshot = stack.snapshot();
+        assertEquals(1, snapshot.getFirstPosition());
+        assertTrue(snapshot.isIntact());
+
+        //a quarter of headroom, the bytes of the oldest change set are still intact
+        stack.push(changeSet(5, "Created node (:Person {name: Person5})"));
+        assertTrue(snapshot.isIntact());
+        assertEquals(1, snapshot.get(1).getSequence());
+
+        stack.push(changeSet(6, "Created node (:Person {name: Person6})"));
+        assertFalse(snapshot.isIntact());
+        assertNull(snapshot.get(1));
+        assertEquals(4, snapshot.get(4).getSequence());
+    }
+
+    @Test
+    public void changeSetLargerThanSizeShouldNotBeCached() {
+        OffHeapChangeSetStack stack = new OffHeapChangeSetStack(10, 50);
+
+        stack.push(changeSet(1, "Created node (:Person)"));
+        long weight = stack.getWeight();
+        assertEquals(0, stack.push(changeSet(2, "Created node (:Person {name: This is a change too large to fit into the cache})")));
+
+        assertEquals(1, stack.getFirstPosition());
+        assertEquals(1, stack.getLastPosition());
+        assertEquals(weight, stack.getWeight());
+        assertEquals(1, stack.iterator().next().getSequence());
+
+        stack.push(changeSet(3, "Created node (:Person)"));
+        assertEquals(3, stack.iterator().next().getSequence());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeShouldBePositive() {
+        new OffHeapChangeSetStack(10, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeShouldFitIntoSingleBuffer() {
+        new OffHeapChangeSetStack(10, Integer.MAX_VALUE);
+    }
+
+    private ChangeSet changeSet(long sequence, String... changes) {
+        ChangeSet changeSet = new ChangeSet("uuid" + sequence, 1000);
+        changeSet.setSequence(sequence);
+        changeSet.addChanges(changes);
+        return changeSet;
+    }
+
+    private int weight(ChangeSet changeSet) {
+        return 4 + changeSet.getEncodedChanges().length;
+    }
+}
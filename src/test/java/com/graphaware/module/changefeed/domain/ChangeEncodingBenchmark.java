@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.domain;
+
+import com.graphaware.tx.event.improved.api.LazyTransactionData;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Measures the memory allocated on the committing thread to capture the changes of a transaction, comparing rendering
+ * the mutations into strings and copying them into a change set (as done before changes were encoded) with
+ * {@link ChangeEncoding#encode(com.graphaware.tx.event.improved.api.ImprovedTransactionData)}.
+ * <p/>
+ * Also reports the allocation caused merely by reading the created nodes, which no capture approach can avoid.
+ * Not a unit test; run the main method, optionally with the number of nodes per transaction and number of transactions
+ * as arguments.
+ */
+public class ChangeEncodingBenchmark {
+
+    public static void main(String[] args) {
+        int nodesPerTransaction = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int transactions = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        GraphDatabaseService database = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        AllocationHandler handler = new AllocationHandler();
+        database.registerTransactionEventHandler(handler);
+
+        try {
+            for (int t = 0; t < transactions; t++) {
+                try (Transaction tx = database.beginTx()) {
+                    for (int i = 0; i < nodesPerTransaction; i++) {
+                        Node node = database.createNode(DynamicLabel.label("Person"));
+                        node.setProperty("name", "Person " + i);
+                        node.setProperty("age", i);
+                        node.setProperty("scores", new long[]{i, i + 1, i + 2});
+                    }
+                    tx.success();
+                }
+
+                //the first transactions only warm up
+                if (t == transactions / 5) {
+                    handler.reset();
+                }
+            }
+        } finally {
+            database.shutdown();
+        }
+
+        System.out.println(String.format("%d nodes per transaction, %d transactions measured", nodesPerTransaction, handler.measured));
+        System.out.println(String.format("Strings:  %,d bytes allocated per transaction", handler.stringBytes / handler.measured));
+        System.out.println(String.format("Encoding: %,d bytes allocated per transaction, %,d bytes stored", handler.encodedBytes / handler.measured, handler.storedBytes / handler.measured));
+        System.out.println(String.format("Of which reading created nodes alone: %,d bytes allocated per transaction", handler.readBytes / handler.measured));
+    }
+
+    private static class AllocationHandler extends TransactionEventHandler.Adapter<Void> {
+
+        private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        private long stringBytes;
+        private long encodedBytes;
+        private long readBytes;
+        private long storedBytes;
+        private int measured;
+
+        @Override
+        public Void beforeCommit(TransactionData data) throws Exception {
+            LazyTransactionData transactionData = new LazyTransactionData(data);
+            //load the transaction data, which both approaches need equally
+            ChangeEncoding.encode(transactionData);
+
+            long threadId = Thread.currentThread().getId();
+
+            long start = threads.getThreadAllocatedBytes(threadId);
+            Set<String> strings = new HashSet<>(transactionData.mutationsToStrings());
+            List<String> changes = new LinkedList<>(strings);
+            String[] stored = changes.toArray(new String[changes.size()]);
+            long afterStrings = threads.getThreadAllocatedBytes(threadId);
+
+            ChangeSet changeSet = new ChangeSet("uuid");
+            changeSet.setEncodedChanges(ChangeEncoding.encode(transactionData));
+            long afterEncoding = threads.getThreadAllocatedBytes(threadId);
+
+            readAll(transactionData);
+            long afterReading = threads.getThreadAllocatedBytes(threadId);
+
+            stringBytes += afterStrings - start;
+            encodedBytes += afterEncoding - afterStrings;
+            readBytes += afterReading - afterEncoding;
+            storedBytes += changeSet.getEncodedChanges().length;
+            measured += stored.length > 0 ? 1 : 0;
+
+            return null;
+        }
+
+        /**
+         * Read everything the encoding reads, without encoding it, to show the allocation caused by reading the data.
+         */
+        private void readAll(LazyTransactionData transactionData) {
+            for (Node node : transactionData.getAllCreatedNodes()) {
+                for (Label label : node.getLabels()) {
+                    label.name();
+                }
+                for (String key : node.getPropertyKeys()) {
+                    node.getProperty(key);
+                }
+            }
+        }
+
+        private void reset() {
+            stringBytes = encodedBytes = readBytes = storedBytes = measured = 0;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.domain;
+
+import com.graphaware.tx.event.improved.api.LazyTransactionData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.graphaware.common.util.DatabaseUtils.registerShutdownHook;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeEncodingTest {
+
+    private GraphDatabaseService database;
+    private EncodingHandler handler;
+
+    @Before
+    public void setUp() {
+        database = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        registerShutdownHook(database);
+        handler = new EncodingHandler();
+        database.registerTransactionEventHandler(handler);
+    }
+
+    @After
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void decodedChangesShouldBeIdenticalToMutationsRenderedAsStrings() {
+        long personId, companyId;
+        try (Transaction tx = database.beginTx()) {
+            Node person = database.createNode(DynamicLabel.label("Person"), DynamicLabel.label("Employee"));
+            person.setProperty("name", "Michal");
+            person.setProperty("age", 33);
+            person.setProperty("height", 1.83);
+            person.setProperty("initial", 'M');
+            person.setProperty("tags", new String[]{"one", "two"});
+            person.setProperty("scores", new int[]{-1, 0, 100000});
+            person.setProperty("active", true);
+            person.setProperty("big", Long.MIN_VALUE);
+
+            Node company = database.createNode(DynamicLabel.label("Company"));
+            company.setProperty("name", "GraphAware");
+            Relationship worksFor = person.createRelationshipTo(company, DynamicRelationshipType.withName("WORKS_FOR"));
+            worksFor.setProperty("since", 2013);
+            database.createNode();
+
+            personId = person.getId();
+            companyId = company.getId();
+            tx.success();
+        }
+        assertDecodedAsStrings();
+
+        try (Transaction tx = database.beginTx()) {
+            Node person = database.getNodeById(personId);
+            person.removeLabel(DynamicLabel.label("Employee"));
+            person.setProperty("age", 34);
+            person.removeProperty("tags");
+            person.setProperty("scores", new int[]{1});
+            Relationship worksFor = person.getSingleRelationship(DynamicRelationshipType.withName("WORKS_FOR"), Direction.OUTGOING);
+            worksFor.setProperty("since", 2014);
+            worksFor.setProperty("role", "Founder");
+
+            Node company = database.getNodeById(companyId);
+            company.setProperty("location", "London");
+            tx.success();
+        }
+        assertDecodedAsStrings();
+
+        try (Transaction tx = database.beginTx()) {
+            Node person = database.getNodeById(personId);
+            person.getSingleRelationship(DynamicRelationshipType.withName("WORKS_FOR"), Direction.OUTGOING).delete();
+            person.delete();
+            tx.success();
+        }
+        assertDecodedAsStrings();
+    }
+
+    @Test
+    public void tagsShouldBeReadFromEncodedChanges() {
+        long personId;
+        try (Transaction tx = database.beginTx()) {
+            Node person = database.createNode(DynamicLabel.label("Person"), DynamicLabel.label("Employee"));
+            person.setProperty("name", "Michal");
+            person.setProperty("age", 33);
+            Node company = database.createNode(DynamicLabel.label("Company"));
+            person.createRelationshipTo(company, DynamicRelationshipType.withName("WORKS_FOR")).setProperty("since", 2013);
+            personId = person.getId();
+            tx.success();
+        }
+
+        ChangeTags tags = ChangeEncoding.tags(handler.encoded);
+        assertEquals(ChangeTags.CREATE, tags.getOperations());
+        assertEquals(new HashSet<>(Arrays.asList("Person", "Employee", "Company")), tags.getLabels());
+        assertEquals(new HashSet<>(Arrays.asList("WORKS_FOR")), tags.getRelationshipTypes());
+        assertEquals(new HashSet<>(Arrays.asList("name", "age", "since")), tags.getPropertyKeys());
+        assertTrue(tags.isComplete());
+        assertEquals(tags.toBitmap(), handler.tags);
+
+        try (Transaction tx = database.beginTx()) {
+            Node person = database.getNodeById(personId);
+            person.removeLabel(DynamicLabel.label("Employee"));
+            person.setProperty("age", 34);
+            person.removeProperty("name");
+            person.getSingleRelationship(DynamicRelationshipType.withName("WORKS_FOR"), Direction.OUTGOING).delete();
+            tx.success();
+        }
+
+        tags = ChangeEncoding.tags(handler.encoded);
+        assertEquals(ChangeTags.UPDATE | ChangeTags.DELETE, tags.getOperations());
+        //nodes at either end of the deleted relationship are not tagged, the company is not changed
+        assertEquals(new HashSet<>(Arrays.asList("Person", "Employee")), tags.getLabels());
+        assertEquals(new HashSet<>(Arrays.asList("WORKS_FOR")), tags.getRelationshipTypes());
+        assertEquals(new HashSet<>(Arrays.asList("name", "age", "since")), tags.getPropertyKeys());
+        assertEquals(tags.toBitmap(), handler.tags);
+    }
+
+    @Test
+    public void textChangesShouldBeTaggedByOperationOnly() {
+        ChangeTags tags = ChangeEncoding.tags(ChangeEncoding.encode(Arrays.asList("Created node (:Person {name: Michal})", "Deleted node ()")));
+
+        assertEquals(ChangeTags.CREATE | ChangeTags.DELETE, tags.getOperations());
+        assertFalse(tags.isComplete());
+        assertTrue(tags.getLabels().isEmpty());
+
+        ChangeFilter filter = ChangeFilter.all().withLabels("Company");
+        assertTrue(filter.mightMatch(tags.toBitmap()));
+        assertFalse(filter.withOperations("update").mightMatch(tags.toBitmap()));
+    }
+
+    @Test
+    public void changeSetsShouldBeFilteredByTheirTags() {
+        try (Transaction tx = database.beginTx()) {
+            Node person = database.createNode(DynamicLabel.label("Person"));
+            person.setProperty("name", "Michal");
+            person.createRelationshipTo(database.createNode(), DynamicRelationshipType.withName("KNOWS"));
+            tx.success();
+        }
+
+        ChangeSet changeSet = new ChangeSet("uuid");
+        changeSet.setEncodedChanges(handler.encoded);
+        changeSet.setTags(handler.tags);
+
+        assertTrue(ChangeFilter.all().matches(changeSet));
+        assertTrue(ChangeFilter.all().withLabels("Company", "Person").matches(changeSet));
+        assertTrue(ChangeFilter.all().withLabels("Person").withRelationshipTypes("KNOWS").withPropertyKeys("name").withOperations("CREATE").matches(changeSet));
+        assertFalse(ChangeFilter.all().withLabels("Company").matches(changeSet));
+        assertFalse(ChangeFilter.all().withLabels("Person").withRelationshipTypes("WORKS_FOR").matches(changeSet));
+        assertFalse(ChangeFilter.all().withPropertyKeys("age").matches(changeSet));
+        assertFalse(ChangeFilter.all().withOperations("update", "delete").matches(changeSet));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownOperationsShouldNotBeAccepted() {
+        ChangeFilter.all().withOperations("create", "bogus");
+    }
+
+    @Test
+    public void textChangesShouldRoundTrip() {
+        String[] changes = {"Created node (:Person {name: Michal})", "Ünïcödé ✓", "Surrogate \uD83D\uDE00 pair", ""};
+        assertEquals(Arrays.asList(changes), ChangeEncoding.decode(ChangeEncoding.encode(Arrays.asList(changes))));
+    }
+
+    @Test
+    public void encodedChangesShouldBeSmallerThanStrings() {
+        try (Transaction tx = database.beginTx()) {
+            for (int i = 0; i < 100; i++) {
+                Node node = database.createNode(DynamicLabel.label("Person"));
+                node.setProperty("name", "Person " + i);
+                node.setProperty("age", i);
+            }
+            tx.success();
+        }
+
+        int stringBytes = 0;
+        for (String change : handler.strings) {
+            stringBytes += change.length() * 2;
+        }
+        assertTrue(handler.encoded.length * 3 < stringBytes);
+    }
+
+    @Test
+    public void encodingBufferShouldBeReusedAcrossTransactionsOfDifferentSizes() {
+        try (Transaction tx = database.beginTx()) {
+            for (int i = 0; i < 20000; i++) {
+                Node node = database.createNode(DynamicLabel.label("Person"));
+                node.setProperty("name", "Person " + i);
+                node.setProperty("scores", new long[]{i, -i});
+            }
+            tx.success();
+        }
+        assertDecodedAsStrings();
+
+        try (Transaction tx = database.beginTx()) {
+            database.createNode(DynamicLabel.label("Company")).setProperty("name", "GraphAware");
+            tx.success();
+        }
+        assertDecodedAsStrings();
+        assertEquals(1, ChangeEncoding.decode(handler.encoded).size());
+    }
+
+    private void assertDecodedAsStrings() {
+        Set<String> decoded = new HashSet<>(ChangeEncoding.decode(handler.encoded));
+        assertEquals(handler.strings, decoded);
+        assertEquals(handler.strings.size(), ChangeEncoding.decode(handler.encoded).size());
+        assertEquals(ChangeEncoding.tags(handler.encoded).toBitmap(), handler.tags);
+    }
+
+    private static class EncodingHandler extends TransactionEventHandler.Adapter<Void> {
+
+        private Set<String> strings;
+        private byte[] encoded;
+        private long tags;
+
+        @Override
+        public Void beforeCommit(TransactionData data) throws Exception {
+            LazyTransactionData transactionData = new LazyTransactionData(data);
+            strings = transactionData.mutationsToStrings();
+            ChangeSet changeSet = new ChangeSet("uuid");
+            ChangeEncoding.encode(transactionData, changeSet);
+            encoded = changeSet.getEncodedChanges();
+            tags = changeSet.getTags();
+            return null;
+        }
+    }
+}
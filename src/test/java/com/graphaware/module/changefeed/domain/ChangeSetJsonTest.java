@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.domain;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ChangeSetJsonTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void encodedChangeSetShouldBeEquivalentToJacksonSerialization() throws IOException {
+        ChangeSet changeSet = new ChangeSet("uuid-1", 123456789L);
+        changeSet.setSequence(42);
+        changeSet.addChanges("Created node (:Person {name: \"Michal\"})", "Changed node (:Person {path: C:\\temp}) to (:Person {path: C:\\temp2})", "tab\there\nnew line \u0001 žluťoučký");
+
+        assertEquals(mapper.readTree(mapper.writeValueAsBytes(changeSet)), mapper.readTree(ChangeSetJson.encode(changeSet)));
+    }
+
+    @Test
+    public void encodedChangeSetsShouldBeWrittenAsArray() throws IOException {
+        ChangeSet first = new ChangeSet("uuid-1", 1);
+        first.addChanges("Created node (:Person)");
+        ChangeSet second = new ChangeSet("uuid-2", 2);
+        second.setEncodedChanges(ChangeEncoding.encode(Collections.singletonList("Deleted node (:Person)")));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChangeSetJson.write(Arrays.asList(second, first), out);
+
+        assertEquals(mapper.readTree(mapper.writeValueAsBytes(Arrays.asList(second, first))), mapper.readTree(out.toByteArray()));
+
+        out.reset();
+        ChangeSetJson.write(Collections.<ChangeSet>emptyList(), out);
+        assertEquals("[]", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void headerShouldBeEncodedWithNumberOfChanges() throws IOException {
+        ChangeSet changeSet = new ChangeSet("uuid-\"1\"", 123456789L);
+        changeSet.setSequence(42);
+        changeSet.setEncodedChanges(ChangeEncoding.encode(Arrays.asList("Created node (:Person)", "Deleted node (:Person)")));
+
+        JsonNode header = mapper.readTree(ChangeSetJson.encodeHeader(changeSet));
+        assertEquals("uuid-\"1\"", header.get("uuid").asText());
+        assertEquals(42, header.get("sequence").asLong());
+        assertEquals(123456789L, header.get("timestamp").asLong());
+        assertEquals(2, header.get("changeCount").asInt());
+        assertEquals(4, header.size());
+    }
+
+    @Test
+    public void jsonShouldBeRetainedUntilChangeSetChanges() throws IOException {
+        ChangeSet changeSet = new ChangeSet("uuid-1", 1);
+        changeSet.setEncodedChanges(ChangeEncoding.encode(Collections.singletonList("Created node (:Person)")));
+
+        byte[] json = changeSet.getJson();
+        assertSame(json, changeSet.getJson());
+
+        changeSet.setSequence(5);
+        assertNotSame(json, changeSet.getJson());
+        assertEquals(5, mapper.readTree(changeSet.getJson()).get("sequence").asLong());
+
+        json = changeSet.getJson();
+        changeSet.notBefore(0);
+        assertSame(json, changeSet.getJson());
+        changeSet.notBefore(10);
+        assertEquals(10, mapper.readTree(changeSet.getJson()).get("timestamp").asLong());
+
+        changeSet.addChanges("Deleted node (:Person)");
+        assertEquals(2, mapper.readTree(changeSet.getJson()).get("changes").size());
+        assertEquals(Arrays.asList("Created node (:Person)", "Deleted node (:Person)"), changeSet.getChanges());
+    }
+}
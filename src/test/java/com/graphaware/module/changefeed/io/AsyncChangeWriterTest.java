@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.ChangeFeedConfiguration;
+import com.graphaware.module.changefeed.ChangeFeedModule;
+import com.graphaware.module.changefeed.cache.CachingGraphChangeReader;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.runtime.GraphAwareRuntime;
+import com.graphaware.runtime.GraphAwareRuntimeFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static com.graphaware.common.util.DatabaseUtils.registerShutdownHook;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncChangeWriterTest {
+
+    private GraphDatabaseService database;
+    private ChangeFeedModule module;
+
+    @Before
+    public void setUp() {
+        database = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        registerShutdownHook(database);
+
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(database);
+        module = new ChangeFeedModule("CFM", ChangeFeedConfiguration.defaultConfiguration()
+                .withMaxChanges(100)
+                .withAsyncWrites(true)
+                .withQueueCapacity(10), database);
+        runtime.registerModule(module);
+        runtime.start();
+    }
+
+    @After
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void changesShouldEventuallyAppearInTheFeedInCommitOrder() throws InterruptedException {
+        for (int i = 1; i <= 50; i++) {
+            try (Transaction tx = database.beginTx()) {
+                Node node = database.createNode();
+                node.setProperty("age", i);
+                tx.success();
+            }
+        }
+
+        waitForChanges(50);
+
+        Collection<ChangeSet> changes = new GraphChangeReader(database).getAllChanges();
+        assertEquals(50, changes.size());
+        assertEquals(50, new CachingGraphChangeReader(database).getAllChanges().size());
+
+        Iterator<ChangeSet> it = changes.iterator();
+        assertTrue(it.next().getChanges().contains("Created node ({age: 50})"));
+        assertTrue(it.next().getChanges().contains("Created node ({age: 49})"));
+    }
+
+    @Test
+    public void queuedChangesShouldBeFlushedOnShutdown() {
+        for (int i = 1; i <= 20; i++) {
+            try (Transaction tx = database.beginTx()) {
+                database.createNode().setProperty("age", i);
+                tx.success();
+            }
+        }
+
+        module.shutdown();
+
+        assertEquals(20, new GraphChangeReader(database).getAllChanges().size());
+    }
+
+    @Test
+    public void rolledBackTransactionsShouldNotBeQueued() throws InterruptedException {
+        try (Transaction tx = database.beginTx()) {
+            database.createNode().setProperty("age", 1);
+            tx.failure();
+        }
+
+        try (Transaction tx = database.beginTx()) {
+            database.createNode().setProperty("age", 2);
+            tx.success();
+        }
+
+        waitForChanges(1);
+        module.shutdown();
+
+        Collection<ChangeSet> changes = new GraphChangeReader(database).getAllChanges();
+        assertEquals(1, changes.size());
+        assertTrue(changes.iterator().next().getChanges().contains("Created node ({age: 2})"));
+    }
+
+    @Test
+    public void changeSetsPersistedByCommittingThreadShouldNotOvertakeQueuedOnes() throws InterruptedException {
+        final RecordingChangeWriter delegate = new RecordingChangeWriter();
+        final AsyncChangeWriter writer = new AsyncChangeWriter(delegate, "test", 1, OverflowPolicy.CALLER_RUNS, true, 10);
+        writer.initialize();
+
+        writer.recordChanges(changeSet(1));
+        delegate.persisting.await();
+        writer.recordChanges(changeSet(2));
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    //ignore
+                }
+                delegate.release.countDown();
+            }
+        }).start();
+
+        writer.recordChanges(changeSet(3));
+        writer.shutdown();
+
+        assertEquals(Arrays.asList("uuid-1", "uuid-2", "uuid-3"), delegate.recorded);
+    }
+
+    @Test
+    public void changeSetsShouldBeRejectedAfterShutdown() {
+        RecordingChangeWriter delegate = new RecordingChangeWriter();
+        delegate.release.countDown();
+        AsyncChangeWriter writer = new AsyncChangeWriter(delegate, "test", 10, OverflowPolicy.CALLER_RUNS, true, 10);
+        writer.initialize();
+        writer.shutdown();
+
+        writer.recordChanges(changeSet(1));
+
+        assertTrue(delegate.recorded.isEmpty());
+    }
+
+    private ChangeSet changeSet(int sequence) {
+        ChangeSet changeSet = new ChangeSet("uuid-" + sequence, sequence);
+        changeSet.addChanges("Change " + sequence);
+        return changeSet;
+    }
+
+    private void waitForChanges(int expected) throws InterruptedException {
+        GraphChangeReader reader = new GraphChangeReader(database);
+        for (int i = 0; i < 100 && reader.getAllChanges().size() < expected; i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Records UUIDs of persisted change sets, blocking until released.
+     */
+    private static class RecordingChangeWriter implements ChangeWriter {
+
+        private final List<String> recorded = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch persisting = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void recordChanges(Set<String> changes) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void recordChanges(ChangeSet changeSet) {
+            recordChangeSets(Collections.singletonList(changeSet));
+        }
+
+        @Override
+        public void recordChangeSets(List<ChangeSet> changeSets) {
+            persisting.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            for (ChangeSet changeSet : changeSets) {
+                recorded.add(changeSet.getUuid());
+            }
+        }
+
+        @Override
+        public void pruneChanges(int keep, int mustBeExceededBy) {
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.domain.Labels;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.graphaware.common.util.DatabaseUtils.registerShutdownHook;
+import static com.graphaware.module.changefeed.domain.Properties.DICTIONARY;
+import static org.junit.Assert.*;
+import static org.neo4j.tooling.GlobalGraphOperations.at;
+
+public class ChangeCompressorTest {
+
+    private static final String MODULE_ID = "Compressed";
+
+    private GraphDatabaseService database;
+
+    @Before
+    public void setUp() {
+        database = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        registerShutdownHook(database);
+    }
+
+    @After
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void changesShouldRoundTripWithAndWithoutDictionary() {
+        byte[] data = "Created node (:Person {age: 33, name: Michal})".getBytes();
+        byte[] dictionary = "Created node (:Person {age: 34, name: Luanne})".getBytes();
+
+        assertArrayEquals(data, ChangeCompressor.decompress(ChangeCompressor.compress(data, null), null));
+        assertArrayEquals(data, ChangeCompressor.decompress(ChangeCompressor.compress(data, dictionary), dictionary));
+        assertTrue(ChangeCompressor.compress(data, dictionary).length < ChangeCompressor.compress(data, null).length);
+    }
+
+    @Test
+    public void reusedStreamsShouldNotCarryStateBetweenCalls() {
+        byte[] first = "Created node (:Person {age: 33, name: Michal})".getBytes();
+        byte[] second = "Deleted relationship [:FRIEND_OF]".getBytes();
+        byte[] dictionary = "Created node (:Person {age: 34, name: Luanne})".getBytes();
+
+        byte[] compressed = ChangeCompressor.compress(first, dictionary);
+        assertArrayEquals(compressed, ChangeCompressor.compress(first, dictionary));
+        assertArrayEquals(ChangeCompressor.compress(second, null), ChangeCompressor.compress(second, null));
+
+        try {
+            ChangeCompressor.decompress(compressed, null);
+            fail();
+        } catch (IllegalStateException e) {
+            //expected, the dictionary is missing
+        }
+
+        assertArrayEquals(second, ChangeCompressor.decompress(ChangeCompressor.compress(second, null), null));
+        assertArrayEquals(first, ChangeCompressor.decompress(compressed, dictionary));
+    }
+
+    @Test
+    public void changeSetsCompressedWithOlderDictionariesShouldRemainReadable() {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 10, true);
+        writer.initialize();
+
+        recordChanges(writer, 1, 150);
+        assertEquals(0, writer.getCompressor().getCurrentVersion());
+        writer.packSegments();
+
+        assertTrue(writer.trainDictionary());
+        assertEquals(1, writer.getCompressor().getCurrentVersion());
+        assertFalse(writer.trainDictionary());
+
+        recordChanges(writer, 151, 175);
+        writer.packSegments();
+
+        Collection<ChangeSet> changes = new GraphChangeReader(database, MODULE_ID).getAllChanges();
+        assertEquals(175, changes.size());
+        Iterator<ChangeSet> it = changes.iterator();
+        for (int i = 175; i >= 1; i--) {
+            ChangeSet changeSet = it.next();
+            assertEquals(i, changeSet.getSequence());
+            assertEquals("Created node (:Person {age: " + i + ", name: Person " + i + "})", changeSet.getChanges().get(0));
+        }
+
+        try (Transaction tx = database.beginTx()) {
+            List<Integer> versions = new ArrayList<>();
+            for (Node segment : at(database).getAllNodesWithLabel(Labels._GA_ChangeSetSegment)) {
+                versions.add((Integer) segment.getProperty(DICTIONARY));
+            }
+            assertTrue(versions.contains(0));
+            assertTrue(versions.contains(1));
+            tx.success();
+        }
+
+        assertTrue(writer.getCompressor().getCompressionRatio() > 1);
+    }
+
+    @Test
+    public void prunedSegmentsShouldBeRecompressed() {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 10, true);
+        writer.initialize();
+        recordChanges(writer, 1, 25);
+        writer.packSegments();
+
+        writer.pruneChanges(12, 0);
+
+        Collection<ChangeSet> changes = new GraphChangeReader(database, MODULE_ID).getAllChanges();
+        assertEquals(12, changes.size());
+        assertEquals("Created node (:Person {age: 14, name: Person 14})", new ArrayList<>(changes).get(11).getChanges().get(0));
+    }
+
+    @Test
+    public void supersededDictionariesShouldBePrunedOnceNoLongerNeeded() {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 10, true);
+        writer.initialize();
+        ChangeCompressor compressor = writer.getCompressor();
+
+        try (Transaction tx = database.beginTx()) {
+            compressor.use(compressor.storeDictionary("first".getBytes(), 10));
+            compressor.supersede(0, 10);
+            compressor.use(compressor.storeDictionary("second".getBytes(), 100));
+            compressor.supersede(1, 120);
+            compressor.use(compressor.storeDictionary("third".getBytes(), 200));
+            compressor.supersede(2, 220);
+            tx.success();
+        }
+
+        try (Transaction tx = database.beginTx()) {
+            assertTrue(compressor.pruneDictionaries(120).isEmpty());
+            assertEquals(Arrays.asList(1, 2), compressor.pruneDictionaries(1000));
+            assertTrue(compressor.pruneDictionaries(1000).isEmpty());
+
+            assertFalse(writer.getRoot().hasProperty(DICTIONARY + "_1"));
+            assertFalse(writer.getRoot().hasProperty(DICTIONARY + "_2"));
+            assertTrue(writer.getRoot().hasProperty(DICTIONARY + "_3"));
+            tx.success();
+        }
+    }
+
+    private void recordChanges(GraphChangeWriter writer, int from, int to) {
+        for (int i = from; i <= to; i++) {
+            ChangeSet changeSet = new ChangeSet("uuid-" + i);
+            changeSet.addChanges("Created node (:Person {age: " + i + ", name: Person " + i + "})");
+            writer.recordChanges(changeSet);
+        }
+    }
+}
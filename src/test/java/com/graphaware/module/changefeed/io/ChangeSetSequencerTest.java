@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeSetSequencerTest {
+
+    @Test
+    public void listenerShouldBeNotifiedInSequenceOrderOnceAllPrecedingChangeSetsHaveFinished() {
+        final List<Long> notified = new ArrayList<>();
+        ChangeSetSequencer sequencer = new ChangeSetSequencer(60000, new ChangeSetSequencer.Listener() {
+            @Override
+            public void changeSetVisible(ChangeSet changeSet) {
+                notified.add(changeSet.getSequence());
+            }
+        });
+
+        ChangeSet first = allocate(sequencer, 1);
+        ChangeSet second = allocate(sequencer, 2);
+        ChangeSet third = allocate(sequencer, 3);
+
+        sequencer.complete(third, true);
+        sequencer.complete(second, false);
+        assertEquals(0, sequencer.getVisibleSequence());
+        assertTrue(notified.isEmpty());
+
+        sequencer.complete(first, true);
+        assertEquals(3, sequencer.getVisibleSequence());
+        assertEquals(Arrays.asList(1L, 3L), notified);
+    }
+
+    @Test
+    public void listenerShouldNotHoldUpAllocation() throws InterruptedException {
+        final CountDownLatch notifying = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Long> notified = Collections.synchronizedList(new ArrayList<Long>());
+        final ChangeSetSequencer sequencer = new ChangeSetSequencer(60000, new ChangeSetSequencer.Listener() {
+            @Override
+            public void changeSetVisible(ChangeSet changeSet) {
+                notifying.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                notified.add(changeSet.getSequence());
+            }
+        });
+
+        final ChangeSet first = allocate(sequencer, 1);
+        Thread completing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sequencer.complete(first, true);
+            }
+        });
+        completing.start();
+        assertTrue(notifying.await(5, TimeUnit.SECONDS));
+
+        ChangeSet second = allocate(sequencer, 2);
+        assertEquals(2, second.getSequence());
+
+        release.countDown();
+        sequencer.complete(second, true);
+        completing.join();
+
+        assertEquals(Arrays.asList(1L, 2L), notified);
+    }
+
+    private ChangeSet allocate(ChangeSetSequencer sequencer, int number) {
+        ChangeSet changeSet = new ChangeSet("uuid-" + number);
+        sequencer.allocate(changeSet);
+        return changeSet;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.ChangeFeedConfiguration;
+import com.graphaware.module.changefeed.ChangeFeedModule;
+import com.graphaware.module.changefeed.cache.CachingChangeReader;
+import com.graphaware.module.changefeed.domain.ChangeFilter;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.runtime.GraphAwareRuntime;
+import com.graphaware.runtime.GraphAwareRuntimeFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static com.graphaware.module.changefeed.ChangeFeedConfiguration.FILE_STORAGE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileChangeLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void changeSetsShouldBeReadNewestFirstAcrossSegments() throws Exception {
+        FileChangeLog log = new FileChangeLog(folder.getRoot(), 512);
+        log.open();
+        List<String> uuids = append(log, 1, 100);
+
+        assertTrue(log.getNumberOfSegments() > 1);
+        assertEquals(100, log.size());
+
+        verifySequences(log.read(null, Integer.MAX_VALUE), 100, 1);
+        verifySequences(log.read(null, 7), 100, 94);
+        verifySequences(log.read(uuids.get(49), Integer.MAX_VALUE), 100, 51);
+        verifySequences(log.read(50L, Integer.MAX_VALUE), 100, 51);
+        verifySequences(log.read(97L, 10), 100, 98);
+        verifySequences(log.read(uuids.get(9), 5), 100, 96);
+        verifySequences(log.read(uuids.get(99), Integer.MAX_VALUE), 100, 101);
+
+        assertEquals("Change 100", log.read(null, 1).get(0).getChanges().get(0));
+    }
+
+    @Test
+    public void changeSetsShouldBeReadForwardAcrossSegments() throws Exception {
+        FileChangeLog log = new FileChangeLog(folder.getRoot(), 512);
+        log.open();
+        append(log, 1, 100);
+
+        verifySequencesForward(log.readForward(0, 7), 1, 7);
+        verifySequencesForward(log.readForward(50, 10), 51, 60);
+        verifySequencesForward(log.readForward(95, 10), 96, 100);
+        verifySequencesForward(log.readForward(100, 10), 101, 100);
+        verifySequencesForward(log.readForward(0, Integer.MAX_VALUE), 1, 100);
+        assertEquals("Change 34", log.readForward(33, 1).get(0).getChanges().get(0));
+
+        log.prune(30, 0);
+        long oldest = 100 - log.size() + 1;
+        verifySequencesForward(log.readForward(0, 5), oldest, oldest + 4);
+    }
+
+    @Test
+    public void changeSetsShouldBeReadWithinTimeRangeAcrossSegments() throws Exception {
+        FileChangeLog log = new FileChangeLog(folder.getRoot(), 512);
+        log.open();
+        for (int i = 1; i <= 100; i++) {
+            ChangeSet changeSet = new ChangeSet("uuid-" + i, 1000 + i * 10);
+            changeSet.addChanges("Change " + i);
+            log.append(Collections.singletonList(changeSet));
+        }
+        assertTrue(log.getNumberOfSegments() > 2);
+
+        verifySequences(log.readBetween(1200, 1300, Integer.MAX_VALUE), 29, 20);
+        verifySequences(log.readBetween(1200, 1300, 3), 29, 27);
+        verifySequences(log.readBetween(1201, 1301, Integer.MAX_VALUE), 30, 21);
+        verifySequences(log.readBetween(0, 1015, Integer.MAX_VALUE), 1, 1);
+        verifySequences(log.readBetween(1995, 5000, Integer.MAX_VALUE), 100, 100);
+        verifySequences(log.readBetween(0, 5000, Integer.MAX_VALUE), 100, 1);
+        assertTrue(log.readBetween(2001, 5000, Integer.MAX_VALUE).isEmpty());
+        assertTrue(log.readBetween(0, 1010, Integer.MAX_VALUE).isEmpty());
+        assertEquals("Change 50", log.readBetween(1500, 1510, 10).get(0).getChanges().get(0));
+    }
+
+    @Test
+    public void logShouldBeRecoveredWhenReopened() throws Exception {
+        FileChangeLog log = new FileChangeLog(folder.getRoot(), 512);
+        log.open();
+        append(log, 1, 50);
+        log.close();
+
+        FileChangeLog reopened = new FileChangeLog(folder.getRoot(), 512);
+        reopened.open();
+        verifySequences(reopened.read(null, Integer.MAX_VALUE), 50, 1);
+
+        append(reopened, 51, 60);
+        verifySequences(reopened.read(null, Integer.MAX_VALUE), 60, 1);
+    }
+
+    @Test
+    public void timestampsShouldNotDecreaseAfterReopening() throws Exception {
+        FileChangeLog log = new FileChangeLog(folder.getRoot(), 512);
+        log.open();
+        long future = System.currentTimeMillis() + 60000;
+        log.append(Collections.singletonList(new ChangeSet("uuid-1", future)));
+        log.close();
+
+        FileChangeLog reopened = new FileChangeLog(folder.getRoot(), 512);
+        reopened.open();
+        ChangeSet changeSet = new ChangeSet("uuid-2");
+        reopened.append(Collections.singletonList(changeSet));
+
+        assertEquals(future, changeSet.getTimestamp());
+        assertEquals(future, reopened.read(null, 1).get(0).getTimestamp());
+    }
+
+    @Test
+    public void partiallyWrittenChangeSetShouldBeDiscardedOnRecovery() throws Exception {
+        FileChangeLog log = new FileChangeLog(folder.getRoot(), 4096);
+        log.open();
+        append(log, 1, 3);
+        log.close();
+
+        //corrupt the last byte of the last record
+        File segment = folder.getRoot().listFiles()[0];
+        int lastRecordEnd = 0;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            for (int i = 0; i < 3; i++) {
+                file.seek(lastRecordEnd);
+                lastRecordEnd += 8 + file.readInt();
+            }
+            file.seek(lastRecordEnd - 1);
+            byte last = file.readByte();
+            file.seek(lastRecordEnd - 1);
+            file.writeByte(last ^ 0xFF);
+        }
+
+        FileChangeLog reopened = new FileChangeLog(folder.getRoot(), 4096);
+        reopened.open();
+        verifySequences(reopened.read(null, Integer.MAX_VALUE), 2, 1);
+
+        append(reopened, 3, 4);
+        verifySequences(reopened.read(null, Integer.MAX_VALUE), 4, 1);
+    }
+
+    @Test
+    public void pruningShouldDeleteWholeSegmentFiles() throws Exception {
+        FileChangeLog log = new FileChangeLog(folder.getRoot(), 512);
+        log.open();
+        append(log, 1, 100);
+        int segments = log.getNumberOfSegments();
+
+        log.prune(30, 0);
+
+        assertTrue(log.getNumberOfSegments() < segments);
+        assertEquals(log.getNumberOfSegments(), folder.getRoot().listFiles().length);
+        assertTrue(log.size() >= 30);
+        assertTrue(log.size() < 100);
+        verifySequences(log.read(null, Integer.MAX_VALUE), 100, 100 - log.size() + 1);
+    }
+
+    @Test
+    public void moduleShouldKeepChangesInFilesAndWarmUpCacheFromThem() throws Exception {
+        File storeDir = folder.newFolder("graph.db");
+
+        GraphDatabaseService database = startDatabase(storeDir);
+        for (int i = 1; i <= 5; i++) {
+            try (Transaction tx = database.beginTx()) {
+                database.createNode().setProperty("age", i);
+                tx.success();
+            }
+        }
+
+        Collection<ChangeSet> cached = new CachingChangeReader(database).getAllChanges();
+        assertEquals(5, cached.size());
+        assertTrue(cached.iterator().next().getChanges().contains("Created node ({age: 5})"));
+        database.shutdown();
+
+        assertTrue(new File(storeDir, "changefeed" + File.separator + ChangeFeedModule.DEFAULT_MODULE_ID).listFiles().length > 0);
+
+        database = startDatabase(storeDir);
+        cached = new CachingChangeReader(database).getAllChanges();
+        assertEquals(5, cached.size());
+        assertTrue(cached.iterator().next().getChanges().contains("Created node ({age: 5})"));
+        assertEquals(5, cached.iterator().next().getSequence());
+        database.shutdown();
+    }
+
+    @Test
+    public void changesSinceUuidOlderThanCacheShouldBeReadFromFiles() throws Exception {
+        GraphDatabaseService database = startDatabase(folder.newFolder("graph.db"), ChangeFeedConfiguration.defaultConfiguration()
+                .withStorage(FILE_STORAGE).withCacheSize(2000));
+        for (int i = 1; i <= 50; i++) {
+            try (Transaction tx = database.beginTx()) {
+                Node node = database.createNode();
+                if (i % 2 == 0) {
+                    node.addLabel(DynamicLabel.label("Even"));
+                }
+                tx.success();
+            }
+        }
+
+        CachingChangeReader reader = new CachingChangeReader(database);
+        ChangeSet second = reader.readForward(1, 1).get(0);
+        assertEquals(2, second.getSequence());
+        assertTrue(reader.getNumberOfChanges(100).size() < 48);
+        String evicted = second.getUuid();
+
+        Collection<ChangeSet> changes = reader.getChangesSince(evicted);
+        assertEquals(48, changes.size());
+        assertEquals(50, changes.iterator().next().getSequence());
+
+        changes = new CachingChangeReader(database, ChangeFeedModule.DEFAULT_MODULE_ID, ChangeFilter.all().withLabels("Even")).getNumberOfChangesSince(evicted, 100);
+        assertEquals(24, changes.size());
+        for (ChangeSet changeSet : changes) {
+            assertTrue(changeSet.getSequence() > 2);
+            assertEquals(0, changeSet.getSequence() % 2);
+        }
+
+        database.shutdown();
+    }
+
+    private GraphDatabaseService startDatabase(File storeDir) {
+        return startDatabase(storeDir, ChangeFeedConfiguration.defaultConfiguration().withStorage(FILE_STORAGE));
+    }
+
+    private GraphDatabaseService startDatabase(File storeDir, ChangeFeedConfiguration configuration) {
+        GraphDatabaseService database = new TestGraphDatabaseFactory().newImpermanentDatabase(storeDir);
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(database);
+        runtime.registerModule(new ChangeFeedModule(ChangeFeedModule.DEFAULT_MODULE_ID, configuration, database));
+        runtime.start();
+        runtime.waitUntilStarted();
+        return database;
+    }
+
+    private List<String> append(FileChangeLog log, int from, int to) {
+        List<String> uuids = new ArrayList<>();
+        for (int i = from; i <= to; i++) {
+            ChangeSet changeSet = new ChangeSet("uuid-" + i);
+            changeSet.addChanges("Change " + i);
+            log.append(Collections.singletonList(changeSet));
+            uuids.add(changeSet.getUuid());
+        }
+        return uuids;
+    }
+
+    private void verifySequences(Collection<ChangeSet> changes, long newest, long oldest) {
+        assertEquals(Math.max(0, newest - oldest + 1), changes.size());
+        long expected = newest;
+        for (ChangeSet changeSet : changes) {
+            assertEquals(expected--, changeSet.getSequence());
+        }
+    }
+
+    private void verifySequencesForward(Collection<ChangeSet> changes, long oldest, long newest) {
+        assertEquals(Math.max(0, newest - oldest + 1), changes.size());
+        long expected = oldest;
+        for (ChangeSet changeSet : changes) {
+            assertEquals(expected++, changeSet.getSequence());
+        }
+    }
+}
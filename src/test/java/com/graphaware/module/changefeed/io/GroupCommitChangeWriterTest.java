@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.ChangeFeedConfiguration;
+import com.graphaware.module.changefeed.ChangeFeedModule;
+import com.graphaware.module.changefeed.cache.CachingGraphChangeReader;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.runtime.GraphAwareRuntime;
+import com.graphaware.runtime.GraphAwareRuntimeFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.graphaware.common.util.DatabaseUtils.registerShutdownHook;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GroupCommitChangeWriterTest {
+
+    private GraphDatabaseService database;
+
+    @Before
+    public void setUp() {
+        database = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        registerShutdownHook(database);
+
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(database);
+        runtime.registerModule(new ChangeFeedModule("CFM", ChangeFeedConfiguration.defaultConfiguration()
+                .withMaxChanges(1000)
+                .withGroupCommitWindow(20)
+                .withBatchSize(10), database));
+        runtime.start();
+    }
+
+    @After
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void changeShouldBeInTheFeedWhenCommitReturns() {
+        try (Transaction tx = database.beginTx()) {
+            database.createNode().setProperty("name", "One");
+            tx.success();
+        }
+
+        Iterator<ChangeSet> it = new GraphChangeReader(database).getAllChanges().iterator();
+        assertTrue(it.next().getChanges().contains("Created node ({name: One})"));
+    }
+
+    @Test
+    public void concurrentChangesShouldAllBeRecorded() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        for (int i = 0; i < 200; i++) {
+            final int age = i;
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try (Transaction tx = database.beginTx()) {
+                        Node node = database.createNode();
+                        node.setProperty("age", age);
+                        tx.success();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        Set<String> uuids = new HashSet<>();
+        for (ChangeSet changeSet : new GraphChangeReader(database).getAllChanges()) {
+            uuids.add(changeSet.getUuid());
+        }
+        assertEquals(200, uuids.size());
+        assertEquals(200, new CachingGraphChangeReader(database).getAllChanges().size());
+    }
+
+    @Test
+    public void batchShouldBeRecordedInOrder() {
+        GraphChangeWriter writer = new GraphChangeWriter(database, "Standalone");
+        writer.initialize();
+
+        ChangeSet first = new ChangeSet("first");
+        ChangeSet second = new ChangeSet("second");
+        ChangeSet third = new ChangeSet("third");
+        writer.recordChangeSets(Arrays.asList(first, second, third));
+
+        Iterator<ChangeSet> it = new GraphChangeReader(database, "Standalone").getAllChanges().iterator();
+        assertEquals("third", it.next().getUuid());
+        assertEquals("second", it.next().getUuid());
+        assertEquals("first", it.next().getUuid());
+    }
+}
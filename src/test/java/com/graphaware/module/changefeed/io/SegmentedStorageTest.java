@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeFilter;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.domain.Labels;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.Iterables;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static com.graphaware.common.util.DatabaseUtils.registerShutdownHook;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.tooling.GlobalGraphOperations.at;
+
+public class SegmentedStorageTest {
+
+    private static final String MODULE_ID = "Segmented";
+
+    private GraphDatabaseService database;
+
+    @Before
+    public void setUp() {
+        database = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        registerShutdownHook(database);
+    }
+
+    @After
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void changeSetsShouldBePackedIntoSegmentsAndReadInOrder() {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 10);
+        writer.initialize();
+        List<String> uuids = recordChanges(writer, 25);
+
+        writer.packSegments();
+
+        assertNodeCounts(2, 5);
+
+        GraphChangeReader reader = new GraphChangeReader(database, MODULE_ID);
+        verifySequences(reader.getAllChanges(), 25, 1);
+        verifySequences(reader.getNumberOfChanges(7), 25, 19);
+        verifySequences(reader.getChangesSince(uuids.get(11)), 25, 13);
+        verifySequences(reader.getChangesSince(uuids.get(21)), 25, 23);
+        verifySequences(reader.getNumberOfChangesSince(uuids.get(4), 3), 25, 23);
+        verifySequences(reader.getChangesSince(uuids.get(24)), 25, 26);
+
+        assertTrue(reader.getAllChanges().iterator().next().getChanges().contains("Change 25"));
+    }
+
+    @Test
+    public void pruningShouldRemoveWholeSegmentsAndTrimTheOldestRemainingOne() {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 10);
+        writer.initialize();
+        recordChanges(writer, 25);
+        writer.packSegments();
+
+        writer.pruneChanges(12, 0);
+
+        assertNodeCounts(1, 5);
+        verifySequences(new GraphChangeReader(database, MODULE_ID).getAllChanges(), 25, 14);
+    }
+
+    @Test
+    public void changeSetsStoredInTheirOwnNodesShouldBePackedOnInitialization() {
+        GraphChangeWriter unpacked = new GraphChangeWriter(database, MODULE_ID, 1);
+        unpacked.initialize();
+        recordChanges(unpacked, 12);
+        assertNodeCounts(0, 12);
+
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 5);
+        writer.initialize();
+        assertNodeCounts(2, 2);
+
+        recordChanges(writer, 1);
+        verifySequences(new GraphChangeReader(database, MODULE_ID).getAllChanges(), 13, 1);
+    }
+
+    @Test
+    public void changeSetsShouldBeReadForwardAcrossSegmentsAndChangeSetNodes() {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 10);
+        writer.initialize();
+        recordChanges(writer, 25);
+        writer.packSegments();
+
+        GraphChangeReader reader = new GraphChangeReader(database, MODULE_ID);
+        verifySequencesForward(reader.readForward(0, 7), 1, 7);
+        verifySequencesForward(reader.readForward(7, 5), 8, 12);
+        verifySequencesForward(reader.readForward(18, 5), 19, 23);
+        verifySequencesForward(reader.readForward(23, 10), 24, 25);
+        verifySequencesForward(reader.readForward(25, 10), 26, 25);
+        verifySequencesForward(reader.readForward(0, Integer.MAX_VALUE), 1, 25);
+        assertTrue(reader.readForward(12, 1).get(0).getChanges().contains("Change 13"));
+
+        writer.pruneChanges(12, 0);
+
+        verifySequencesForward(reader.readForward(3, 5), 14, 18);
+        verifySequencesForward(new GraphChangeReader(database, MODULE_ID, true).readForward(14, 5), 15, 19);
+    }
+
+    @Test
+    public void changeSetsMatchingFilterShouldBeReadFromSegmentsAndChangeSetNodes() {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 10);
+        writer.initialize();
+        for (int i = 1; i <= 25; i++) {
+            ChangeSet changeSet = new ChangeSet("uuid-" + i);
+            changeSet.addChanges((i % 3 == 0 ? "Deleted" : "Created") + " node (" + i + ")");
+            writer.recordChanges(changeSet);
+        }
+        writer.packSegments();
+
+        ChangeFilter deletes = ChangeFilter.all().withOperations("delete");
+        GraphChangeReader reader = new GraphChangeReader(database, MODULE_ID, false, deletes);
+        verifyEveryThird(reader.getAllChanges(), 24, 3);
+        verifyEveryThird(reader.getNumberOfChanges(3), 24, 18);
+        verifyEveryThird(reader.getNumberOfChangesSince(13, Integer.MAX_VALUE), 24, 15);
+        verifyEveryThird(reader.getChangesBetween(0, Long.MAX_VALUE, 2), 24, 21);
+        verifyEveryThird(reader.readForward(0, 3), 3, 9);
+        verifyEveryThird(reader.readForward(9, 100), 12, 24);
+        assertTrue(reader.readForward(24, 100).isEmpty());
+        assertEquals("Deleted node (12)", reader.readForward(9, 1).get(0).getChanges().get(0));
+
+        ForwardPage page = reader.readPage(9, 100);
+        verifyEveryThird(page.getChangeSets(), 12, 24);
+        assertEquals(25, page.getNext());
+        assertEquals(9, reader.readPage(6, 1).getNext());
+
+        GraphChangeReader headers = new GraphChangeReader(database, MODULE_ID, true, deletes);
+        verifyEveryThird(headers.getNumberOfChanges(4), 24, 15);
+        assertEquals("Deleted node (15)", new ArrayList<>(headers.getNumberOfChanges(4)).get(3).getChanges().get(0));
+
+        assertEquals(25, new GraphChangeReader(database, MODULE_ID, false, ChangeFilter.all().withOperations("create", "delete")).getAllChanges().size());
+    }
+
+    @Test
+    public void changeSetsWithinTimeRangeShouldBeFoundInSegmentsAndChangeSetNodes() {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 10);
+        writer.initialize();
+        for (int i = 1; i <= 25; i++) {
+            ChangeSet changeSet = new ChangeSet("uuid-" + i, 1000 + 10 * i);
+            changeSet.addChanges("Change " + i);
+            writer.recordChanges(changeSet);
+        }
+        writer.packSegments();
+
+        GraphChangeReader reader = new GraphChangeReader(database, MODULE_ID);
+        verifySequences(reader.getChangesBetween(1050, 1100, Integer.MAX_VALUE), 9, 5);
+        verifySequences(reader.getChangesBetween(1095, 1215, Integer.MAX_VALUE), 21, 10);
+        verifySequences(reader.getChangesBetween(1095, 1215, 3), 21, 19);
+        verifySequences(reader.getChangesBetween(0, Long.MAX_VALUE, Integer.MAX_VALUE), 25, 1);
+        verifySequences(reader.getChangesBetween(1251, Long.MAX_VALUE, Integer.MAX_VALUE), 25, 26);
+    }
+
+    @Test
+    public void headersOfSegmentedChangeSetsShouldBeReadWithoutChangesAndChangesFetchedOnDemand() {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 10);
+        writer.initialize();
+        recordChanges(writer, 25);
+        writer.packSegments();
+
+        GraphChangeReader reader = new GraphChangeReader(database, MODULE_ID, true);
+        List<ChangeSet> headers = new ArrayList<>(reader.getAllChanges());
+        verifySequences(headers, 25, 1);
+        verifySequences(reader.getNumberOfChangesSince(12, 5), 25, 21);
+        verifySequences(reader.getChangesBetween(0, Long.MAX_VALUE, 3), 25, 23);
+
+        List<ChangeSet> full = new ArrayList<>(new GraphChangeReader(database, MODULE_ID).getAllChanges());
+        for (int i = 0; i < headers.size(); i++) {
+            ChangeSet header = headers.get(i);
+            assertEquals(header.getSequence() <= 20, !header.isLoaded());
+            assertEquals(full.get(i).getUuid(), header.getUuid());
+            assertEquals(full.get(i).getTimestamp(), header.getTimestamp());
+            assertEquals(1, header.getChangeCount());
+        }
+
+        assertFalse(headers.get(10).isLoaded());
+        assertEquals(Collections.singletonList("Change 15"), headers.get(10).getChanges());
+        assertTrue(headers.get(10).isLoaded());
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void fetchingChangesOfPrunedHeaderShouldFail() {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 10);
+        writer.initialize();
+        recordChanges(writer, 25);
+        writer.packSegments();
+
+        List<ChangeSet> headers = new ArrayList<>(new GraphChangeReader(database, MODULE_ID, true).getAllChanges());
+        writer.pruneChanges(5, 0);
+
+        headers.get(24).getChanges();
+    }
+
+    @Test
+    public void timestampsShouldNeverDecreaseAlongTheFeed() {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 10);
+        writer.initialize();
+        writer.recordChanges(new ChangeSet("uuid-1", 2000));
+        writer.recordChanges(new ChangeSet("uuid-2", 1000));
+
+        List<ChangeSet> changes = new ArrayList<>(new GraphChangeReader(database, MODULE_ID).getAllChanges());
+        assertEquals(2000, changes.get(0).getTimestamp());
+        assertEquals(2000, changes.get(1).getTimestamp());
+    }
+
+    private List<String> recordChanges(GraphChangeWriter writer, int number) {
+        List<String> uuids = new ArrayList<>();
+        for (int i = 1; i <= number; i++) {
+            ChangeSet changeSet = new ChangeSet("uuid-" + System.nanoTime());
+            changeSet.addChanges("Change " + i);
+            writer.recordChanges(changeSet);
+            uuids.add(changeSet.getUuid());
+        }
+        return uuids;
+    }
+
+    private void assertNodeCounts(int segments, int changeNodes) {
+        try (Transaction tx = database.beginTx()) {
+            assertEquals(segments, Iterables.count(at(database).getAllNodesWithLabel(Labels._GA_ChangeSetSegment)));
+            assertEquals(changeNodes, Iterables.count(at(database).getAllNodesWithLabel(Labels._GA_ChangeSet)));
+            tx.success();
+        }
+    }
+
+    private void verifySequences(Collection<ChangeSet> changes, long newest, long oldest) {
+        assertEquals(Math.max(0, newest - oldest + 1), changes.size());
+        long expected = newest;
+        for (ChangeSet changeSet : changes) {
+            assertEquals(expected--, changeSet.getSequence());
+        }
+    }
+
+    private void verifyEveryThird(Collection<ChangeSet> changes, long first, long last) {
+        assertEquals(Math.abs(first - last) / 3 + 1, changes.size());
+        long expected = first;
+        for (ChangeSet changeSet : changes) {
+            assertEquals(expected, changeSet.getSequence());
+            expected += first < last ? 3 : -3;
+        }
+    }
+
+    private void verifySequencesForward(Collection<ChangeSet> changes, long oldest, long newest) {
+        assertEquals(Math.max(0, newest - oldest + 1), changes.size());
+        long expected = oldest;
+        for (ChangeSet changeSet : changes) {
+            assertEquals(expected++, changeSet.getSequence());
+        }
+    }
+}
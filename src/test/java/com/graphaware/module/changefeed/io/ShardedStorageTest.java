@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.io;
+
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.domain.Indexes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.index.lucene.QueryContext;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static com.graphaware.common.util.DatabaseUtils.registerShutdownHook;
+import static com.graphaware.module.changefeed.domain.Properties.FIRST_SEQUENCE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedStorageTest {
+
+    private static final String MODULE_ID = "Sharded";
+    private static final int SHARDS = 3;
+
+    private GraphDatabaseService database;
+
+    @Before
+    public void setUp() {
+        database = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        registerShutdownHook(database);
+    }
+
+    @After
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void changeSetsFromDifferentThreadsShouldBeStripedAcrossShardsAndMergedOnRead() throws InterruptedException {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 4, false, SHARDS);
+        writer.initialize();
+        List<String> uuids = recordChangesOnEveryShard(writer, 30);
+
+        writer.packSegments();
+
+        for (int shard = 0; shard < SHARDS; shard++) {
+            assertTrue(countIndexed(shard, FIRST_SEQUENCE) > 0);
+        }
+
+        GraphChangeReader reader = new GraphChangeReader(database, MODULE_ID);
+        verifySequences(reader.getAllChanges(), 30, 1);
+        verifySequences(reader.getNumberOfChanges(7), 30, 24);
+        verifySequences(reader.getChangesSince(uuids.get(11)), 30, 13);
+        verifySequences(reader.getNumberOfChangesSince(uuids.get(4), 3), 30, 28);
+        verifySequences(reader.getChangesSince(uuids.get(29)), 30, 31);
+    }
+
+    @Test
+    public void changeSetsShouldBeReadForwardAcrossShards() throws InterruptedException {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 4, false, SHARDS);
+        writer.initialize();
+        recordChangesOnEveryShard(writer, 30);
+        writer.packSegments();
+
+        GraphChangeReader reader = new GraphChangeReader(database, MODULE_ID);
+        verifySequencesForward(reader.readForward(0, 7), 1, 7);
+        verifySequencesForward(reader.readForward(12, 100), 13, 30);
+        verifySequencesForward(reader.readForward(29, 5), 30, 30);
+    }
+
+    @Test
+    public void changeSetsWithinTimeRangeShouldBeMergedAcrossShards() throws InterruptedException {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 4, false, SHARDS);
+        writer.initialize();
+        recordChangesOnEveryShard(writer, 30);
+        writer.packSegments();
+
+        GraphChangeReader reader = new GraphChangeReader(database, MODULE_ID);
+        verifySequences(reader.getChangesBetween(1050, 1100, Integer.MAX_VALUE), 9, 5);
+        verifySequences(reader.getChangesBetween(1095, 1215, 3), 21, 19);
+        verifySequences(reader.getChangesBetween(0, Long.MAX_VALUE, 7), 30, 24);
+        verifySequences(reader.getChangesBetween(1301, Long.MAX_VALUE, 7), 30, 31);
+    }
+
+    @Test
+    public void pruningShouldRemoveTheOldestChangeSetsAcrossAllShards() throws InterruptedException {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 4, false, SHARDS);
+        writer.initialize();
+        recordChangesOnEveryShard(writer, 30);
+        writer.packSegments();
+
+        writer.pruneChanges(11, 0);
+
+        verifySequences(new GraphChangeReader(database, MODULE_ID).getAllChanges(), 30, 20);
+    }
+
+    @Test
+    public void pruningShouldOnlyHappenWhenTheFeedExceedsTheLimit() throws InterruptedException {
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 4, false, SHARDS);
+        writer.initialize();
+        recordChangesOnEveryShard(writer, 30);
+        writer.packSegments();
+
+        writer.pruneChanges(30, 0);
+        writer.pruneChanges(20, 11);
+        verifySequences(new GraphChangeReader(database, MODULE_ID).getAllChanges(), 30, 1);
+
+        writer.pruneChanges(20, 10);
+        verifySequences(new GraphChangeReader(database, MODULE_ID).getAllChanges(), 30, 11);
+
+        writer.pruneChanges(0, 0);
+        assertTrue(new GraphChangeReader(database, MODULE_ID).getAllChanges().isEmpty());
+    }
+
+    @Test
+    public void reducingTheNumberOfShardsShouldKeepAllChangeSetsReadable() throws InterruptedException {
+        GraphChangeWriter sharded = new GraphChangeWriter(database, MODULE_ID, 4, false, SHARDS);
+        sharded.initialize();
+        recordChangesOnEveryShard(sharded, 12);
+
+        GraphChangeWriter writer = new GraphChangeWriter(database, MODULE_ID, 4, false, 1);
+        writer.initialize();
+        assertEquals(SHARDS, writer.getShards());
+
+        recordChangesOnEveryShard(writer, 3);
+        verifySequences(new GraphChangeReader(database, MODULE_ID).getAllChanges(), 15, 1);
+    }
+
+    /**
+     * Record change sets one by one, each from a new thread, cycling through threads assigned to different shards.
+     */
+    private List<String> recordChangesOnEveryShard(final GraphChangeWriter writer, int number) throws InterruptedException {
+        final List<String> uuids = new ArrayList<>();
+        for (int i = 1; i <= number; i++) {
+            final ChangeSet changeSet = new ChangeSet("uuid-" + System.nanoTime(), 1000 + 10 * i);
+            changeSet.addChanges("Change " + i);
+
+            Thread thread;
+            do {
+                thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writer.recordChanges(changeSet);
+                    }
+                });
+            } while (thread.getId() % SHARDS != i % SHARDS);
+
+            thread.start();
+            thread.join();
+            uuids.add(changeSet.getUuid());
+        }
+        return uuids;
+    }
+
+    private int countIndexed(int shard, String key) {
+        try (Transaction tx = database.beginTx()) {
+            int count = database.index().forNodes(Indexes.changeSetIndex(MODULE_ID, shard)).query(QueryContext.numericRange(key, 0L, Long.MAX_VALUE)).size();
+            tx.success();
+            return count;
+        }
+    }
+
+    private void verifySequences(Collection<ChangeSet> changes, long newest, long oldest) {
+        assertEquals(Math.max(0, newest - oldest + 1), changes.size());
+        long expected = newest;
+        for (ChangeSet changeSet : changes) {
+            assertEquals(expected--, changeSet.getSequence());
+        }
+    }
+
+    private void verifySequencesForward(Collection<ChangeSet> changes, long oldest, long newest) {
+        assertEquals(Math.max(0, newest - oldest + 1), changes.size());
+        long expected = oldest;
+        for (ChangeSet changeSet : changes) {
+            assertEquals(expected++, changeSet.getSequence());
+        }
+    }
+}
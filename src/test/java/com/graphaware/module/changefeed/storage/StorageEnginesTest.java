@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.storage;
+
+import com.graphaware.module.changefeed.ChangeFeedConfiguration;
+import com.graphaware.module.changefeed.ChangeFeedModule;
+import com.graphaware.module.changefeed.cache.CachingChangeReader;
+import com.graphaware.module.changefeed.cache.ChangeSetCache;
+import com.graphaware.module.changefeed.domain.ChangeSet;
+import com.graphaware.module.changefeed.domain.Labels;
+import com.graphaware.runtime.GraphAwareRuntime;
+import com.graphaware.runtime.GraphAwareRuntimeFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.Iterables;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static com.graphaware.common.util.DatabaseUtils.registerShutdownHook;
+import static com.graphaware.module.changefeed.ChangeFeedConfiguration.MEMORY_STORAGE;
+import static com.graphaware.module.changefeed.ChangeFeedModule.DEFAULT_MODULE_ID;
+import static org.junit.Assert.*;
+import static org.neo4j.tooling.GlobalGraphOperations.at;
+
+public class StorageEnginesTest {
+
+    private GraphDatabaseService database;
+
+    @Before
+    public void setUp() {
+        database = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        registerShutdownHook(database);
+    }
+
+    @After
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void memoryEngineShouldKeepChangesOutOfTheGraph() {
+        ChangeFeedModule module = startModule(ChangeFeedConfiguration.defaultConfiguration().withStorage(MEMORY_STORAGE));
+
+        for (int i = 1; i <= 5; i++) {
+            try (Transaction tx = database.beginTx()) {
+                database.createNode().setProperty("age", i);
+                tx.success();
+            }
+        }
+
+        StorageEngine engine = module.getStorageEngine();
+        assertEquals(MEMORY_STORAGE, engine.getName());
+
+        Collection<ChangeSet> cached = new CachingChangeReader(database).getAllChanges();
+        assertEquals(5, cached.size());
+        assertTrue(cached.iterator().next().getChanges().contains("Created node ({age: 5})"));
+
+        verifySequences(engine.read(3, 10), 5, 4);
+        verifySequences(engine.read(0, 2), 5, 4);
+        String third = new ArrayList<>(engine.read(0, 10)).get(2).getUuid();
+        verifySequences(engine.getReader().getChangesSince(third), 5, 4);
+
+        try (Transaction tx = database.beginTx()) {
+            assertEquals(0, Iterables.count(at(database).getAllNodesWithLabel(Labels._GA_ChangeFeed)));
+            assertEquals(5, Iterables.count(at(database).getAllNodes()));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void memoryEngineShouldPruneOldestChanges() {
+        MemoryStorageEngine engine = new MemoryStorageEngine(new ChangeSetCache(10));
+        List<String> uuids = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            ChangeSet changeSet = new ChangeSet("uuid-" + i);
+            changeSet.addChanges("Change " + i);
+            engine.getWriter().recordChanges(changeSet);
+            uuids.add(changeSet.getUuid());
+        }
+
+        engine.getWriter().pruneChanges(15, 10);
+        verifySequences(engine.read(0, 100), 20, 1);
+
+        engine.getWriter().pruneChanges(5, 0);
+        verifySequences(engine.read(0, 100), 20, 16);
+        verifySequences(engine.getReader().getChangesSince(uuids.get(17)), 20, 19);
+        verifySequences(engine.getReader().getChangesSince(uuids.get(0)), 20, 16);
+
+        List<ChangeSet> page = engine.getReader().readForward(0, 3);
+        assertEquals(3, page.size());
+        assertEquals(16, page.get(0).getSequence());
+        assertEquals(20, engine.getReader().readForward(18, 10).get(1).getSequence());
+    }
+
+    @Test
+    public void graphEngineShouldBeTheDefault() {
+        assertTrue(startModule(ChangeFeedConfiguration.defaultConfiguration()).getStorageEngine() instanceof GraphStorageEngine);
+    }
+
+    @Test
+    public void registeredEngineShouldBeSelectableByName() {
+        StorageEngines.register("test", new StorageEngineFactory() {
+            @Override
+            public StorageEngine create(GraphDatabaseService database, String moduleId, ChangeFeedConfiguration configuration, ChangeSetCache cache) {
+                return new MemoryStorageEngine(cache);
+            }
+        });
+
+        assertTrue(StorageEngines.getNames().contains("test"));
+        assertTrue(startModule(ChangeFeedConfiguration.defaultConfiguration().withStorage("test")).getStorageEngine() instanceof MemoryStorageEngine);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownEngineShouldBeRejected() {
+        new ChangeFeedModule(DEFAULT_MODULE_ID, ChangeFeedConfiguration.defaultConfiguration().withStorage("unknown"), database);
+    }
+
+    private ChangeFeedModule startModule(ChangeFeedConfiguration configuration) {
+        ChangeFeedModule module = new ChangeFeedModule(DEFAULT_MODULE_ID, configuration, database);
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(database);
+        runtime.registerModule(module);
+        runtime.start();
+        runtime.waitUntilStarted();
+        return module;
+    }
+
+    private void verifySequences(Collection<ChangeSet> changes, long newest, long oldest) {
+        assertEquals(Math.max(0, newest - oldest + 1), changes.size());
+        long expected = newest;
+        for (ChangeSet changeSet : changes) {
+            assertEquals(expected--, changeSet.getSequence());
+        }
+    }
+}
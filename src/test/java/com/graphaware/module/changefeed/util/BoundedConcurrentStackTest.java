@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.changefeed.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BoundedConcurrentStackTest {
+
+    @Test
+    public void elementsShouldBeAccessibleByPosition() {
+        BoundedConcurrentStack<String> stack = new BoundedConcurrentStack<>(3);
+
+        assertEquals(0, stack.getLastPosition());
+        assertFalse(stack.iterator().hasNext());
+        assertNull(stack.get(1));
+
+        assertEquals(1, stack.push("a"));
+        assertEquals(2, stack.push("b"));
+        assertEquals(3, stack.push("c"));
+        assertEquals(4, stack.push("d"));
+
+        assertEquals(4, stack.getLastPosition());
+        assertEquals(2, stack.getFirstPosition());
+        assertNull(stack.get(1));
+        assertEquals("b", stack.get(2));
+        assertEquals("d", stack.get(4));
+        assertNull(stack.get(5));
+
+        Iterator<String> it = stack.iterator();
+        assertEquals("d", it.next());
+        assertEquals("c", it.next());
+        assertEquals("b", it.next());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void oldestElementsShouldBeEvictedOnceWeightIsExceeded() {
+        final List<String> evicted = new ArrayList<>();
+
+        BoundedConcurrentStack<String> stack = new BoundedConcurrentStack<String>(100, 25, 10, 15) {
+            @Override
+            protected long weigh(String e) {
+                return e.length();
+            }
+
+            @Override
+            protected void evicted(String e, long position) {
+                evicted.add(e);
+            }
+        };
+
+        stack.push("aaaa");
+        stack.push("bbbb");
+        assertEquals(8, stack.getWeight());
+
+        stack.push("cc");
+        assertEquals(1, stack.getFirstPosition());
+        assertEquals(10, stack.getWeight());
+
+        BoundedConcurrentStack<String>.Snapshot snapshot = stack.snapshot();
+
+        stack.push("ddd");
+        assertEquals(2, stack.getFirstPosition());
+        assertEquals(9, stack.getWeight());
+        assertNull(stack.get(1));
+        assertTrue(evicted.isEmpty());
+
+        //still within weight capacity, the snapshot can read the element that is no longer visible
+        assertTrue(snapshot.isIntact());
+        assertEquals("aaaa", snapshot.get(1));
+
+        stack.push("eeeeeeeeee");
+        assertEquals(5, stack.getFirstPosition());
+        assertEquals(10, stack.getWeight());
+        assertFalse(snapshot.isIntact());
+        assertNull(snapshot.get(1));
+        assertEquals(Arrays.asList("aaaa", "bbbb"), evicted);
+
+        assertEquals(0, stack.push("too heavy to be visible"));
+        assertEquals(5, stack.getFirstPosition());
+        assertEquals(5, stack.getLastPosition());
+        assertEquals(10, stack.getWeight());
+        assertEquals("eeeeeeeeee", stack.iterator().next());
+    }
+
+    @Test
+    public void listenersShouldBeNotifiedOfPushedAndEvictedElements() {
+        final List<String> pushed = new ArrayList<>();
+        final List<String> evicted = new ArrayList<>();
+
+        BoundedConcurrentStack<String> stack = new BoundedConcurrentStack<String>(2, 1) {
+            @Override
+            protected void pushed(String e, long position) {
+                pushed.add(e + position);
+            }
+
+            @Override
+            protected void evicted(String e, long position) {
+                evicted.add(e + position);
+            }
+        };
+
+        stack.populate(Arrays.asList("c", "b", "a"));
+        stack.push("d");
+
+        assertEquals(Arrays.asList("b1", "c2", "d3"), pushed);
+        assertTrue(evicted.isEmpty());
+
+        stack.push("e");
+
+        assertEquals(Arrays.asList("b1"), evicted);
+    }
+
+    @Test
+    public void failedPushShouldNotBlockLaterPushes() {
+        BoundedConcurrentStack<String> stack = new BoundedConcurrentStack<String>(3) {
+            @Override
+            protected void store(int slot, String e, long offset) {
+                if ("failing".equals(e)) {
+                    throw new IllegalStateException("Failed to store " + e);
+                }
+                super.store(slot, e, offset);
+            }
+        };
+
+        stack.push("a");
+        try {
+            stack.push("failing");
+            fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+
+        assertEquals(2, stack.getLastPosition());
+        assertFalse(stack.iterator().hasNext());
+
+        stack.push("b");
+        Iterator<String> it = stack.iterator();
+        assertEquals("b", it.next());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void snapshotShouldStayIntactWithinHeadroom() {
+        BoundedConcurrentStack<String> stack = new BoundedConcurrentStack<>(3, 2);
+        stack.push("a");
+        stack.push("b");
+        stack.push("c");
+
+        BoundedConcurrentStack<String>.Snapshot snapshot = stack.snapshot();
+        assertEquals(1, snapshot.getFirstPosition());
+        assertEquals(3, snapshot.getLastPosition());
+
+        stack.push("d");
+        stack.push("e");
+
+        assertTrue(snapshot.isIntact());
+        assertNull(stack.get(1));
+        assertEquals("a", snapshot.get(1));
+        assertNull(snapshot.get(4));
+
+        Iterator<String> it = snapshot.iterator();
+        assertEquals("c", it.next());
+        assertEquals("b", it.next());
+        assertEquals("a", it.next());
+        assertFalse(it.hasNext());
+
+        stack.push("f");
+
+        assertFalse(snapshot.isIntact());
+        assertNull(snapshot.get(1));
+        assertEquals("c", snapshot.get(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new BoundedConcurrentStack<String>(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void headroomMustBePositive() {
+        new BoundedConcurrentStack<String>(1, 0);
+    }
+
+    @Test
+    public void concurrentPushesShouldBePublishedWithoutGaps() throws InterruptedException {
+        final BoundedConcurrentStack<Integer> stack = new BoundedConcurrentStack<>(100);
+        final AtomicInteger counter = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 10000; i++) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    stack.push(counter.incrementAndGet());
+                }
+            });
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    int count = 0;
+                    for (Integer ignored : stack) {
+                        count++;
+                    }
+                    if (count > 100) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals(0, failures.get());
+        assertEquals(10000, stack.getLastPosition());
+
+        int count = 0;
+        for (Integer ignored : stack) {
+            count++;
+        }
+        assertEquals(100, count);
+    }
+}
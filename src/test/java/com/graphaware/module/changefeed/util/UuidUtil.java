@@ -16,15 +16,16 @@
 
 package com.graphaware.module.changefeed.util;
 
+import com.graphaware.module.changefeed.domain.Indexes;
 import com.graphaware.module.changefeed.domain.Labels;
-import com.graphaware.module.changefeed.domain.Relationships;
-import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.index.lucene.QueryContext;
 
 import static com.graphaware.common.util.IterableUtils.getSingleOrNull;
 import static com.graphaware.module.changefeed.domain.Properties.MODULE_ID;
+import static com.graphaware.module.changefeed.domain.Properties.SEQUENCE;
 import static com.graphaware.module.changefeed.domain.Properties.UUID;
 
 public class UuidUtil {
@@ -37,7 +38,9 @@ public class UuidUtil {
             if (root == null) {
                 throw new IllegalStateException("The ChangeFeed node should have been created");
             }
-            Node latestChangeNode = root.getSingleRelationship(Relationships._GA_CHANGEFEED_NEXT_CHANGE, Direction.OUTGOING).getEndNode();
+            Node latestChangeNode = database.index().forNodes(Indexes.changeSetIndex("CFM"))
+                    .query(QueryContext.numericRange(SEQUENCE, 0L, Long.MAX_VALUE).sortNumeric(SEQUENCE, true).top(1))
+                    .getSingle();
             uuid = (String) latestChangeNode.getProperty(UUID);
             tx.success();
         }